@@ -0,0 +1,65 @@
+package net.pyroneon.bench;
+
+import net.pyroneon.util.Bind;
+import net.pyroneon.util.Protocol;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Creating and printing single bindings, which every command and config entry does.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BindBenchmark {
+
+    // Not final, so the JIT can't fold the constructors away.
+    private Protocol protocol = Protocol.UDP;
+    private int port = 25565;
+    private Bind plain = new Bind(Protocol.TCP, 25565);
+    private Bind full = new Bind(Protocol.UDP, 25565, 3600, "Minecraft");
+
+    /**
+     * @return A new binding without a lease.
+     */
+    @Benchmark
+    public Bind construct(){
+        return new Bind(protocol, port);
+    }
+
+    /**
+     * @return A new binding with a lease and a description.
+     */
+    @Benchmark
+    public Bind constructFull(){
+        return new Bind(protocol, port, 3600, "Minecraft");
+    }
+
+    /**
+     * @return A binding without a lease, as text.
+     */
+    @Benchmark
+    public String toStringPlain(){
+        return plain.toString();
+    }
+
+    /**
+     * @return A binding with a lease and a description, as text.
+     */
+    @Benchmark
+    public String toStringFull(){
+        return full.toString();
+    }
+}
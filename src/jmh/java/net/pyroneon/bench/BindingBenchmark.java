@@ -0,0 +1,90 @@
+package net.pyroneon.bench;
+
+import net.pyroneon.CLIPnP;
+import net.pyroneon.util.Bind;
+import net.pyroneon.util.Console;
+import net.pyroneon.util.Protocol;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The binding registry: lookups, and re-opening a config whose bindings are all registered already, which should cost
+ * nothing but the duplicate checks. Runs against a stub gateway.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BindingBenchmark {
+
+    @Param({"10", "1000", "100000"})
+    public int bindings;
+
+    private CLIPnP cliPnP;
+    private ArrayList<Bind> registered;
+    private Bind hit;
+    private Bind miss;
+
+    /**
+     * Registers every binding on a stub gateway.
+     */
+    @Setup(Level.Trial)
+    public void setUp(){
+        Console.setOutput(OutputStream.nullOutputStream());
+        registered = Bindings.generate(bindings);
+        cliPnP = new CLIPnP(new StubGateway());
+        cliPnP.openAllPorts(registered);
+        hit = registered.get(registered.size() / 2);
+        miss = new Bind(Protocol.TCP, 65535);
+    }
+
+    /**
+     * Closes every binding.
+     */
+    @TearDown(Level.Trial)
+    public void tearDown(){
+        cliPnP.close();
+    }
+
+    /**
+     * @return The registered binding looked up.
+     */
+    @Benchmark
+    public Bind containsBindHit(){
+        return cliPnP.containsBind(new Bind(hit.getProtocol(), hit.getPort()));
+    }
+
+    /**
+     * @return Null, the binding isn't registered.
+     */
+    @Benchmark
+    public Bind containsBindMiss(){
+        return cliPnP.containsBind(miss);
+    }
+
+    /**
+     * @return The number opened, always 0 since every binding is already registered.
+     */
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public int openAllPortsDuplicates(){
+        return cliPnP.openAllPorts(registered);
+    }
+}
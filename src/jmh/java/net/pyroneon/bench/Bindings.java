@@ -0,0 +1,32 @@
+package net.pyroneon.bench;
+
+import net.pyroneon.util.Bind;
+import net.pyroneon.util.Protocol;
+
+import java.util.ArrayList;
+
+/**
+ * Builds the binding sets the benchmarks work on.
+ */
+class Bindings {
+
+    /**
+     * @param count How many bindings to make, at most 2 x 65535.
+     * @return Distinct bindings, alternating TCP and UDP over consecutive ports from 1, every tenth with a lease and a
+     * description so each field is exercised.
+     */
+    static ArrayList<Bind> generate(int count){
+        ArrayList<Bind> binds = new ArrayList<>(count);
+        for(int i = 0; i < count; i++){
+            Protocol protocol = i % 2 == 0 ? Protocol.TCP : Protocol.UDP;
+            int port = i / 2 + 1;
+            if(i % 10 == 0){
+                binds.add(new Bind(protocol, port, 3600, "Bench " + port));
+            }
+            else{
+                binds.add(new Bind(protocol, port));
+            }
+        }
+        return binds;
+    }
+}
@@ -0,0 +1,118 @@
+package net.pyroneon.bench;
+
+import net.pyroneon.Configuration;
+import net.pyroneon.storage.ConfigFormat;
+import net.pyroneon.util.Bind;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reading config files of various sizes: the whole-file Configuration path, and the streaming path "config add" uses,
+ * for both formats.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ConfigBenchmark {
+
+    @Param({"10", "1000", "100000"})
+    public int bindings;
+
+    private Path directory;
+    private String json;
+    private String binary;
+    private Configuration parsed;
+
+    /**
+     * Writes the config files once, in both formats.
+     * @throws IOException If the files couldn't be written.
+     */
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        ArrayList<Bind> binds = Bindings.generate(bindings);
+        directory = Files.createTempDirectory("clipnp-bench");
+        json = directory.resolve("config.clip").toString();
+        binary = directory.resolve("config" + ConfigFormat.BINARY_EXTENSION).toString();
+        ConfigFormat.JSON.write(json, binds);
+        ConfigFormat.BINARY.write(binary, binds);
+        parsed = Configuration.readFromFile(json);
+    }
+
+    /**
+     * Removes the config files.
+     * @throws IOException If they couldn't be removed.
+     */
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        Files.deleteIfExists(Path.of(json));
+        Files.deleteIfExists(Path.of(binary));
+        Files.deleteIfExists(directory);
+    }
+
+    /**
+     * @return The file read into a JSON tree.
+     * @throws IOException If the file couldn't be read.
+     */
+    @Benchmark
+    public Configuration readFromFile() throws IOException {
+        return Configuration.readFromFile(json);
+    }
+
+    /**
+     * @return The bindings of an already parsed JSON tree.
+     */
+    @Benchmark
+    public ArrayList<Bind> getBindings(){
+        return parsed.getBindings();
+    }
+
+    /**
+     * @return The bindings of the file, the way the old "config add" read them.
+     * @throws IOException If the file couldn't be read.
+     */
+    @Benchmark
+    public ArrayList<Bind> readFromFileAndGetBindings() throws IOException {
+        return Configuration.readFromFile(json).getBindings();
+    }
+
+    /**
+     * @param blackhole Consumes each bind.
+     * @return The number of binds streamed from the JSON file.
+     * @throws IOException If the file couldn't be read.
+     */
+    @Benchmark
+    public int streamJson(Blackhole blackhole) throws IOException {
+        return ConfigFormat.read(json, blackhole::consume);
+    }
+
+    /**
+     * @param blackhole Consumes each bind.
+     * @return The number of binds streamed from the binary file.
+     * @throws IOException If the file couldn't be read.
+     */
+    @Benchmark
+    public int streamBinary(Blackhole blackhole) throws IOException {
+        return ConfigFormat.read(binary, blackhole::consume);
+    }
+}
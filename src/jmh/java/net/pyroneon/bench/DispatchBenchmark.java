@@ -0,0 +1,84 @@
+package net.pyroneon.bench;
+
+import net.pyroneon.CLIPnP;
+import net.pyroneon.Main;
+import net.pyroneon.util.Console;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A command line's path from Main.dispatch to its printed reply: parsing, the command handlers, and formatting, with
+ * the gateway stubbed out and the output discarded.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DispatchBenchmark {
+
+    /**
+     * Points Main at a CLIPnP on a stub gateway, with one port open.
+     */
+    @Setup(Level.Trial)
+    public void setUp(){
+        Console.setOutput(OutputStream.nullOutputStream());
+        Main.cliPnP = new CLIPnP(new StubGateway());
+        Main.dispatch("port open tcp 25565");
+    }
+
+    /**
+     * Closes the port again.
+     */
+    @TearDown(Level.Trial)
+    public void tearDown(){
+        Main.cliPnP.close();
+    }
+
+    /**
+     * A query answered from the mapping cache.
+     */
+    @Benchmark
+    public void portQuery(){
+        Main.dispatch("port query tcp 25565");
+    }
+
+    /**
+     * Opening and closing a port, both round trips to the stub.
+     */
+    @Benchmark
+    public void portOpenClose(){
+        Main.dispatch("port open udp 25566");
+        Main.dispatch("port close udp 25566");
+    }
+
+    /**
+     * A command with a syntax error.
+     */
+    @Benchmark
+    public void syntaxError(){
+        Main.dispatch("port open tcp notaport");
+    }
+
+    /**
+     * An unknown command.
+     */
+    @Benchmark
+    public void unknown(){
+        Main.dispatch("frobnicate");
+    }
+}
@@ -0,0 +1,153 @@
+package net.pyroneon.bench;
+
+import net.pyroneon.CLIPnP;
+import net.pyroneon.engine.BatchResult;
+import net.pyroneon.metrics.LatencyHistogram;
+import net.pyroneon.metrics.Metrics;
+import net.pyroneon.metrics.OperationStats;
+import net.pyroneon.upnp.GatewayDiscovery;
+import net.pyroneon.upnp.InternetGateway;
+import net.pyroneon.upnp.MockGateway;
+import net.pyroneon.util.Bind;
+import net.pyroneon.util.Console;
+
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Drives CLIPnP against a MockGateway with thousands of mappings, and reports the throughput and latency of each phase:
+ * opening them all in one batch, querying them one by one from several threads, re-probing them in bulk, scanning the
+ * gateway's table, and closing them all again. Run with "gradle loadtest", passing options with -PloadArgs, E.g.
+ * -PloadArgs="--mappings=10000 --latency=200-2000 --failure-rate=0.01".
+ * <pre>
+ * --mappings=N        How many mappings to drive, default 5000.
+ * --latency=MIN-MAX   The mock's reply delay in microseconds, or a single value, default 0.
+ * --failure-rate=F    The fraction of actions the mock fails, default 0.
+ * --table-limit=N     The most mappings the mock's table holds, default unlimited.
+ * --concurrency=N     The engine's in-flight limit, default the engine's own.
+ * --threads=N         Client threads for the one-by-one query phase, default 8.
+ * </pre>
+ */
+public class LoadHarness {
+
+    /**
+     * @param args The options above.
+     * @throws Exception If the mock couldn't be started or found.
+     */
+    public static void main(String[] args) throws Exception {
+        HashMap<String, String> options = new HashMap<>();
+        for(String arg : args){
+            if(!arg.startsWith("--")){
+                throw new IllegalArgumentException("Unexpected argument: " + arg);
+            }
+            int equals = arg.indexOf('=');
+            options.put(equals < 0 ? arg.substring(2) : arg.substring(2, equals), equals < 0 ? "" : arg.substring(equals + 1));
+        }
+        int mappings = Integer.parseInt(options.getOrDefault("mappings", "5000"));
+        int threads = Integer.parseInt(options.getOrDefault("threads", "8"));
+
+        // CLIPnP's own output would drown out the report.
+        Console.setOutput(OutputStream.nullOutputStream());
+
+        try (MockGateway mock = new MockGateway()) {
+            String latency = options.getOrDefault("latency", "0");
+            int dash = latency.indexOf('-');
+            mock.setLatency(Long.parseLong(dash < 0 ? latency : latency.substring(0, dash)),
+                    Long.parseLong(dash < 0 ? latency : latency.substring(dash + 1)));
+            mock.setFailureRate(Double.parseDouble(options.getOrDefault("failure-rate", "0")));
+            if(options.containsKey("table-limit")){
+                mock.setTableLimit(Integer.parseInt(options.get("table-limit")));
+            }
+
+            long start = System.nanoTime();
+            InternetGateway gateway = GatewayDiscovery.discover(GatewayDiscovery.DEFAULT_TIMEOUT_MILLIS, mock.getSearchAddress());
+            if(gateway == null){
+                throw new IllegalStateException("The mock gateway didn't answer its M-SEARCH.");
+            }
+            System.out.printf("Discovered %s in %.1f ms%n", gateway.getLocation(), (System.nanoTime() - start) / 1e6);
+            System.out.printf("%d mappings, latency %s us, failure rate %s, table limit %s%n%n", mappings, latency,
+                    options.getOrDefault("failure-rate", "0"), options.getOrDefault("table-limit", "none"));
+
+            CLIPnP cliPnP = new CLIPnP(gateway);
+            // A background table scan would land in whichever phase happened to be running.
+            cliPnP.stopReconciling();
+            if(options.containsKey("concurrency")){
+                cliPnP.setConcurrency(Integer.parseInt(options.get("concurrency")));
+            }
+            ArrayList<Bind> binds = Bindings.generate(mappings);
+            System.out.printf("%-8s %8s %8s %10s %12s %9s %9s %9s %9s%n",
+                    "phase", "ops", "failed", "seconds", "ops/sec", "p50 ms", "p99 ms", "p99.9 ms", "max ms");
+
+            Metrics.reset();
+            start = System.nanoTime();
+            BatchResult opened = cliPnP.openBindings(binds);
+            report("open", opened.getTotal(), opened.getFailureCount(), start, Metrics.get("AddPortMapping").getLatency());
+
+            Metrics.reset();
+            LatencyHistogram queries = new LatencyHistogram();
+            AtomicInteger next = new AtomicInteger();
+            AtomicInteger closed = new AtomicInteger();
+            List<Thread> clients = new ArrayList<>();
+            start = System.nanoTime();
+            for(int i = 0; i < threads; i++){
+                Thread client = new Thread(() -> {
+                    for(int index; (index = next.getAndIncrement()) < binds.size(); ){
+                        Bind bind = binds.get(index);
+                        long began = System.nanoTime();
+                        if(!cliPnP.isOpen(bind.getProtocol(), bind.getPort(), true)){
+                            closed.incrementAndGet();
+                        }
+                        queries.record((System.nanoTime() - began) / 1000);
+                    }
+                });
+                client.start();
+                clients.add(client);
+            }
+            for(Thread client : clients){
+                client.join();
+            }
+            report("query", binds.size(), closed.get(), start, queries);
+
+            Metrics.reset();
+            start = System.nanoTime();
+            long open = cliPnP.getBindingStates(true).values().stream().filter(Boolean::booleanValue).count();
+            report("refresh", binds.size(), binds.size() - (int) open, start,
+                    Metrics.get("GetSpecificPortMappingEntry").getLatency());
+
+            Metrics.reset();
+            start = System.nanoTime();
+            cliPnP.printMappings();
+            // Counted as failed: the scan's probes past the end of the table, as well as any real failures.
+            OperationStats scan = Metrics.get("GetGenericPortMappingEntry");
+            report("scan", (int) scan.getCount(), (int) (scan.getFaults() + scan.getErrors()), start, scan.getLatency());
+
+            Metrics.reset();
+            start = System.nanoTime();
+            BatchResult closing = cliPnP.closeBindings(binds);
+            report("close", closing.getTotal(), closing.getFailureCount(), start, Metrics.get("DeletePortMapping").getLatency());
+
+            cliPnP.close();
+            System.out.printf("%nThe mock served %d requests, %d failed on purpose, %d mappings left in its table.%n",
+                    mock.getRequests(), mock.getInjectedFailures(), mock.getTableSize());
+        }
+        System.exit(0);
+    }
+
+    /**
+     * Prints one row of the report.
+     * @param phase The phase name.
+     * @param ops The number of operations made.
+     * @param failed How many of them failed, or found a port unexpectedly closed.
+     * @param start When the phase started, from System.nanoTime().
+     * @param latency The latency of each operation in the phase.
+     */
+    private static void report(String phase, int ops, int failed, long start, LatencyHistogram latency){
+        double seconds = (System.nanoTime() - start) / 1e9;
+        System.out.printf("%-8s %8d %8d %10.3f %12.0f %9.2f %9.2f %9.2f %9.2f%n", phase, ops, failed, seconds,
+                ops / seconds, latency.getPercentile(50) / 1000.0, latency.getPercentile(99) / 1000.0,
+                latency.getPercentile(99.9) / 1000.0, latency.getMax() / 1000.0);
+    }
+}
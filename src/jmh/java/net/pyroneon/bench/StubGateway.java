@@ -0,0 +1,65 @@
+package net.pyroneon.bench;
+
+import net.pyroneon.upnp.Gateway;
+import net.pyroneon.upnp.PortMappingEntry;
+import net.pyroneon.util.Protocol;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A gateway that answers instantly from memory, so benchmarks measure CLIPnP's own work rather than the network.
+ * Mappings are remembered for isMapped, but the table can't be read back: it always looks empty to a scan.
+ */
+public class StubGateway implements Gateway {
+
+    private final Set<Integer> mapped = ConcurrentHashMap.newKeySet();
+
+    /**
+     * @param protocol A protocol.
+     * @param port A port.
+     * @return The mapping's key, as in Bind.getKey().
+     */
+    private static int key(Protocol protocol, int port){
+        return (protocol.ordinal() << 16) | port;
+    }
+
+    @Override
+    public void openPort(Protocol protocol, int port, int lease, String description){
+        mapped.add(key(protocol, port));
+    }
+
+    @Override
+    public void closePort(Protocol protocol, int port){
+        mapped.remove(key(protocol, port));
+    }
+
+    @Override
+    public boolean isMapped(Protocol protocol, int port){
+        return mapped.contains(key(protocol, port));
+    }
+
+    @Override
+    public String getExternalIP(){
+        return "203.0.113.1";
+    }
+
+    @Override
+    public PortMappingEntry getPortMappingEntry(int index){
+        return null;
+    }
+
+    @Override
+    public String getLocalIP(){
+        return "192.168.0.2";
+    }
+
+    @Override
+    public String getGatewayIP(){
+        return "192.168.0.1";
+    }
+
+    @Override
+    public void close(){
+    }
+}
@@ -1,25 +1,92 @@
 package net.pyroneon;
 
-import com.simtechdata.waifupnp.UPnP;
+import net.pyroneon.engine.ApplyResult;
+import net.pyroneon.engine.BatchResult;
+import net.pyroneon.engine.ConcurrencyLimit;
+import net.pyroneon.engine.LeaseScheduler;
+import net.pyroneon.engine.MappingCache;
+import net.pyroneon.engine.MappingEngine;
+import net.pyroneon.engine.MappingTable;
+import net.pyroneon.engine.Reconciler;
+import net.pyroneon.upnp.EventSubscription;
+import net.pyroneon.upnp.Gateway;
+import net.pyroneon.upnp.GatewayDiscovery;
+import net.pyroneon.upnp.InternetGateway;
+import net.pyroneon.upnp.NetworkSnapshot;
+import net.pyroneon.storage.AutoSaver;
+import net.pyroneon.storage.ConfigFormat;
+import net.pyroneon.storage.GatewayCache;
+import net.pyroneon.storage.Journal;
+import net.pyroneon.upnp.PortMappingEntry;
 import net.pyroneon.util.Bind;
+import net.pyroneon.util.BindIndex;
 import net.pyroneon.util.Console;
 import net.pyroneon.util.Protocol;
+import org.json.JSONException;
+import org.json.JSONObject;
 
 import java.io.IOException;
+import java.nio.file.Path;
 import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 /**
  * Handles interactions with UPnP, such as opening ports and closing them. Also handles importing and opening Config file ports.
  */
 public class CLIPnP {
 
-    private final ArrayList<Bind> bindings;
+    private final BindIndex bindings;
+    private final MappingEngine engine;
+    private final MappingCache cache;
+    private final LeaseScheduler leases;
+    private final Reconciler reconciler;
+    private final Object reconciling = new Object();
+    private final Map<Gateway, NetworkSnapshot> network = new ConcurrentHashMap<>();
+    private final List<EventSubscription> subscriptions = new CopyOnWriteArrayList<>();
+    private volatile boolean closed;
+    private volatile Journal journal;
+    private volatile AutoSaver autosaver;
+    private volatile Map<Gateway, MappingTable> scanned = Map.of();
+    private static CompletableFuture<List<Gateway>> discovery;
+    private static Path gatewayCache = GatewayCache.defaultPath();
+    private static boolean trustCache = true;
 
     /**
      * Constructor without any config file provided. No ports are open by default.
      */
     public CLIPnP() {
-        bindings = new ArrayList<>();
+        this(discovered());
+    }
+
+    /**
+     * Constructor talking to a specific gateway instead of the discovered ones. No ports are open by default.
+     * @param gateway The gateway to make mappings on, E.g. a stub when benchmarking. Null to discover one when needed.
+     */
+    public CLIPnP(Gateway gateway) {
+        this(gateway == null ? List.of() : List.of(gateway));
+    }
+
+    /**
+     * Constructor talking to specific gateways instead of the discovered ones. No ports are open by default.
+     * @param gateways The gateways to make mappings on, the first being the primary one. Empty to discover them when needed.
+     */
+    public CLIPnP(List<Gateway> gateways) {
+        bindings = new BindIndex();
+        engine = new MappingEngine();
+        engine.setGateways(gateways);
+        cache = new MappingCache(engine);
+        leases = new LeaseScheduler(this::renewLeases, engine::execute);
+        reconciler = new Reconciler(this::reconcile);
     }
 
     /**
@@ -27,23 +94,170 @@ public class CLIPnP {
      * @param config The configuration to use.
      */
     public CLIPnP(Configuration config) {
-        bindings = new ArrayList<>();
+        this();
         openAllPorts(config.getBindings());
     }
 
+    /**
+     * Replays the binding journal left by the last run and reconciles it with the router, then journals every change
+     * from here on. Mappings the last run still owned, E.g. because it crashed, are either reclaimed (registered again,
+     * and re-opened if the router no longer has them) or cleaned up (closed). Should be called before any ports are opened.
+     * @param file The journal file, created if it doesn't exist.
+     * @param cleanUp If true, closes every mapping the last run left behind instead of reclaiming them.
+     */
+    public void openJournal(Path file, boolean cleanUp){
+        LinkedHashMap<Integer, Bind> owned;
+        try {
+            owned = Journal.replay(file);
+        } catch (IOException e) {
+            Console.sendWarning("Could not read the binding journal ("+e.getMessage()+"). Proceeding without one.");
+            return;
+        }
+
+        // Leaked mappings which couldn't be closed stay in the journal, so the next run tries again.
+        ArrayList<Bind> unowned = new ArrayList<>();
+        if(!owned.isEmpty() && cleanUp){
+            BatchResult result = engine.closeAll(owned.values());
+            cacheResult(result, false);
+            unowned.addAll(result.getFailed());
+            sendSummary(result, "Cleaned up mappings left by the last run. Closed");
+        }
+        else if(!owned.isEmpty()){
+            reclaim(owned.values());
+        }
+
+        try {
+            ArrayList<Bind> compacted = bindings.toList();
+            compacted.addAll(unowned);
+            journal = Journal.open(file, compacted);
+        } catch (IOException e) {
+            Console.sendWarning("Could not write the binding journal ("+e.getMessage()+"). Proceeding without one.");
+        }
+    }
+
+    /**
+     * Registers the mappings a previous run owned. One sweep of each router's table finds which are still mapped to
+     * this machine, those are taken over as they are, and the rest are opened again.
+     * @param owned The bindings the previous run owned.
+     */
+    private void reclaim(Collection<Bind> owned){
+        try {
+            scanGateways();
+        } catch (IOException e) {
+            // Without a table, everything there is simply opened again.
+        }
+
+        int adopted = 0;
+        ArrayList<Bind> toOpen = new ArrayList<>();
+        for(Bind bind : owned){
+            if(isMappedAs(bind)){
+                register(bind);
+                adopted++;
+            }
+            else{
+                toOpen.add(bind);
+            }
+        }
+        BatchResult result = openBindings(toOpen);
+        Console.sendResponse("Reclaimed "+(adopted+result.getSuccessCount())+"/"+owned.size()+" bindings from the last run. "
+                +adopted+" were still mapped, "+result.getSuccessCount()+" were re-opened.");
+        if(result.getFailureCount() > 0){
+            Console.sendError(result.summary("Re-opened"));
+        }
+    }
+
+    /**
+     * Registers a binding, and journals it.
+     * @param bind The binding to register.
+     * @return True if it was registered, false if a binding with the same protocol and port already was.
+     */
+    private boolean register(Bind bind){
+        if(!bindings.add(bind)){
+            return false;
+        }
+        Journal j = journal;
+        if(j != null){
+            j.recordOpen(bind);
+        }
+        markDirty();
+        return true;
+    }
+
+    /**
+     * Registers a binding in place of any with the same protocol and port, E.g. with a changed lease, and journals it.
+     * @param bind The binding to register.
+     */
+    private void reregister(Bind bind){
+        bindings.replace(bind);
+        Journal j = journal;
+        if(j != null){
+            j.recordOpen(bind);
+        }
+        markDirty();
+    }
+
+    /**
+     * Deregisters a binding, and journals it.
+     * @param key The packed key of the binding.
+     * @return The deregistered binding, or null if none was registered with this key.
+     */
+    private Bind deregister(int key){
+        Bind bind = bindings.remove(key);
+        Journal j = journal;
+        if(bind != null && j != null){
+            j.recordClose(bind);
+        }
+        if(bind != null){
+            markDirty();
+        }
+        return bind;
+    }
+
+    /**
+     * Tells the autosaver, if there is one, that the registered bindings have changed.
+     */
+    private void markDirty(){
+        AutoSaver saver = autosaver;
+        if(saver != null){
+            saver.markDirty();
+        }
+    }
+
+    /**
+     * Starts or stops keeping a config file saved automatically. Changes are saved in the background shortly after
+     * they happen, with bursts of changes merged into a single write.
+     * @param filepath The config file to keep saved, in binary form if it ends with ".clipb". Null stops autosaving.
+     */
+    public void setAutosave(String filepath){
+        AutoSaver previous = autosaver;
+        autosaver = null;
+        if(previous != null){
+            previous.close();
+        }
+        if(filepath == null){
+            Console.sendResponse(previous != null ? "Stopped autosaving to "+previous.getFilepath() : "Autosave is already off.");
+            return;
+        }
+
+        AutoSaver saver = new AutoSaver(filepath, bindings::toList);
+        autosaver = saver;
+        // Save the current state straight away, so the file is valid from the start.
+        saver.markDirty();
+        saver.flush();
+        Console.sendResponse("Autosaving config to "+filepath);
+    }
+
     /**
      * Checks if a Bind already exists in the current config.
-     * @param bind The object to search for.
+     * @param bind The object to search for. Its port can be out of range.
      * @return The binding object if it was found, otherwise returns null if not found.
      */
     public Bind containsBind(Bind bind){
-        for(Bind b : bindings){
-            // If the binding already exists within the list, return true.
-            if(b.equals(bind)){
-                return b;
-            }
+        // Out of range ports can't be registered, and would alias another port's key.
+        if(bind.getPort() < 0 || bind.getPort() > 65535){
+            return null;
         }
-        return null;
+        return bindings.get(bind.getKey());
     }
 
     /**
@@ -51,73 +265,428 @@ public class CLIPnP {
      * @param index The position to remove from current config.
      */
     public void closePortByIndex(int index){
-        Console.println((bindings.get(index)).close());
-        bindings.remove(index);
+        Bind bind = bindings.getAt(index);
+        leases.cancel(bind.getKey());
+        sendCloseResult(bind, engine.close(bind), "");
+        cache.invalidate(bind.getProtocol(), bind.getPort());
+        deregister(bind.getKey());
     }
 
     /**
-     * Opens a new port and registers it with the current config.
+     * Opens a new permanent port and registers it with the current config.
      * @param protocol The protocol to use.
-     * @param port The port to use. Must be within range of 0-65535 or the constructor will send a soft error message.
+     * @param port The port to use. Must be within range of 0-65535 or a soft error message is sent.
      */
     public void openPort(Protocol protocol, int port){
+        openPort(protocol, port, 0);
+    }
+
+    /**
+     * Opens a new port and registers it with the current config. A leased port is renewed automatically for as long
+     * as it stays registered, and expires on the router on its own if CLIPnP stops without closing it.
+     * @param protocol The protocol to use.
+     * @param port The port to use. Must be within range of 0-65535 or a soft error message is sent.
+     * @param lease The lease duration in seconds, 0 for a permanent port. Must be within 0-Bind.MAX_LEASE_SECONDS.
+     */
+    public void openPort(Protocol protocol, int port, int lease){
+        openPort(protocol, port, lease, List.of());
+    }
+
+    /**
+     * Opens a new port on specific gateways and registers it with the current config, on hosts behind several gateways.
+     * @param protocol The protocol to use.
+     * @param port The port to use. Must be within range of 0-65535 or a soft error message is sent.
+     * @param lease The lease duration in seconds, 0 for a permanent port. Must be within 0-Bind.MAX_LEASE_SECONDS.
+     * @param gateways The addresses of the gateways to open it on, or empty for every gateway. Each must be a known
+     * gateway or a soft error message is sent.
+     */
+    public void openPort(Protocol protocol, int port, int lease, List<String> gateways){
         // If outside of range
         if(port < 0 || port > 65535){
-            Console.println("(ERROR) Invalid port number. Accepted range: 0-65535.");
+            Console.sendError("Invalid port number. Accepted range: 0-65535.");
+            return;
+        }
+        if(lease < 0 || lease > Bind.MAX_LEASE_SECONDS){
+            Console.sendError("Invalid lease duration. Accepted range: 0-"+Bind.MAX_LEASE_SECONDS+" seconds.");
+            return;
+        }
+        if(!checkGateways(gateways)){
             return;
         }
 
         // Ensure this binding doesnt already exist.
-        Bind newBind = new Bind(protocol, port);
-        if(containsBind(newBind) != null){
-            Console.println("(ERROR) Binding already exists.");
+        // Register it before mapping, so the journal knows about it even if CLIPnP dies mid-request.
+        Bind newBind = new Bind(protocol, port, lease, null, gateways);
+        if(!register(newBind)){
+            Console.sendError("Binding already exists.");
+            return;
+        }
+
+        // If map successful, keep it in config.
+        if(engine.open(newBind)){
+            Console.sendResponse("Successfully opened "+protocol+" port: "+port);
+            cache.put(protocol, port, true);
+            trackLease(newBind);
+        }
+        else{
+            Console.sendError("Failed to open "+protocol+" port: "+port);
+            cache.invalidate(protocol, port);
+            deregister(newBind.getKey());
+        }
+    }
+
+    /**
+     * Opens several ports of one protocol and registers them, E.g. from a range like 27000-27100. A single port is
+     * handled exactly like openPort(), more are opened concurrently with one summary.
+     * @param protocol The protocol to use.
+     * @param ports The ports to open, each within 0-65535.
+     * @param lease The lease duration in seconds for every port, 0 for permanent ports.
+     */
+    public void openPorts(Protocol protocol, int[] ports, int lease){
+        openPorts(protocol, ports, lease, List.of());
+    }
+
+    /**
+     * Opens several ports of one protocol on specific gateways and registers them, on hosts behind several gateways.
+     * @param protocol The protocol to use.
+     * @param ports The ports to open, each within 0-65535.
+     * @param lease The lease duration in seconds for every port, 0 for permanent ports.
+     * @param gateways The addresses of the gateways to open them on, or empty for every gateway. Each must be a known
+     * gateway or a soft error message is sent.
+     */
+    public void openPorts(Protocol protocol, int[] ports, int lease, List<String> gateways){
+        if(ports.length == 1){
+            openPort(protocol, ports[0], lease, gateways);
+            return;
+        }
+        if(lease < 0 || lease > Bind.MAX_LEASE_SECONDS){
+            Console.sendError("Invalid lease duration. Accepted range: 0-"+Bind.MAX_LEASE_SECONDS+" seconds.");
+            return;
+        }
+        if(!checkGateways(gateways)){
+            return;
+        }
+        ArrayList<Bind> binds = new ArrayList<>(ports.length);
+        for(int port : ports){
+            binds.add(new Bind(protocol, port, lease, null, gateways));
+        }
+        openAllPorts(binds);
+    }
+
+    /**
+     * Checks that bindings can target some gateways.
+     * @param gateways The gateway addresses, or empty for every gateway.
+     * @return True if every address is a known gateway's. Sends a soft error message otherwise.
+     */
+    public boolean checkGateways(List<String> gateways){
+        if(gateways.size() > Bind.MAX_GATEWAYS){
+            Console.sendError("Too many gateways. A binding can target at most "+Bind.MAX_GATEWAYS+".");
+            return false;
+        }
+        if(gateways.isEmpty()){
+            return true;
+        }
+        List<String> known = new ArrayList<>();
+        for(Gateway gw : getGateways()){
+            known.add(gw.getGatewayIP());
+        }
+        for(String gateway : gateways){
+            if(!known.contains(gateway)){
+                Console.sendError("No gateway found at "+gateway+". Known gateways: "+(known.isEmpty() ? "none" : String.join(", ", known))+".");
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Schedules a newly mapped binding's lease for renewal. Does nothing for permanent bindings, or if the gateway
+     * turned out to only support permanent mappings.
+     * @param bind The binding that was just mapped.
+     */
+    private void trackLease(Bind bind){
+        if(bind.getLease() > 0 && !engine.isPermanentOnly(bind)){
+            leases.scheduleRenewal(bind);
+        }
+    }
+
+    /**
+     * Renews a batch of leases that are about to expire. Called by the lease scheduler, off the main thread. Bindings
+     * that were closed or re-opened in the meantime are skipped, and failed renewals are retried shortly after.
+     * @param due The bindings due for renewal.
+     */
+    private void renewLeases(List<Bind> due){
+        // Compared by identity, as equals() only compares protocol and port, and a re-open with a new lease or gateways
+        // registers a new instance with its own timer.
+        ArrayList<Bind> toRenew = new ArrayList<>(due.size());
+        for(Bind bind : due){
+            if(bindings.get(bind.getKey()) == bind){
+                toRenew.add(bind);
+            }
+        }
+
+        BatchResult result = engine.openAll(toRenew);
+        for(Bind bind : result.getSucceeded()){
+            if(bindings.get(bind.getKey()) == bind){
+                trackLease(bind);
+            }
+        }
+        for(Bind bind : result.getFailed()){
+            if(bindings.get(bind.getKey()) == bind){
+                leases.schedule(bind, LeaseScheduler.RETRY_MILLIS);
+            }
+        }
+        if(result.getFailureCount() > 0){
+            Console.sendWarning(result.summary("Renewed leases for"));
+        }
+    }
+
+    /**
+     * Closes several ports of one protocol, E.g. from a range like 27000-27100, removing any that are registered. A
+     * single port is handled exactly like closePort(), more are closed concurrently with one summary.
+     * @param protocol The protocol to search.
+     * @param ports The ports to close, each within 0-65535.
+     */
+    public void closePorts(Protocol protocol, int[] ports){
+        if(ports.length == 1){
+            closePort(protocol, ports[0]);
             return;
         }
+        ArrayList<Bind> binds = new ArrayList<>(ports.length);
+        for(int port : ports){
+            binds.add(new Bind(protocol, port));
+        }
+        sendSummary(closeBindings(binds), "Closed");
+    }
+
+    /**
+     * Closes several bindings concurrently without printing anything, removing any that are registered.
+     * @param binds The bindings to close, each within 0-65535. Registered or not.
+     * @return The outcome of every close.
+     * @throws CancellationException If this thread's progress was cancelled partway. Bindings that weren't sent yet
+     * stay registered.
+     */
+    public BatchResult closeBindings(Collection<Bind> binds) throws CancellationException {
+        // Registered bindings are closed on the gateways they target, the rest on every gateway.
+        MappingEngine.Batch batch = engine.startCloseBatch();
+        BatchResult result;
+        try {
+            for(Bind bind : binds){
+                Bind registered = bindings.get(bind.getKey());
+                // Only deregistered once it's been sent, so a cancelled close leaves the rest as they were.
+                batch.submit(registered != null ? registered : bind);
+                deregister(bind.getKey());
+                leases.cancel(bind.getKey());
+            }
+        } finally {
+            // Even if cancelled partway, let the closes already sent finish.
+            result = batch.await();
+            cacheResult(result, false);
+        }
+        return result;
+    }
 
-        // If map successful, add to config.
-        if(newBind.connect()){
-            bindings.add(newBind);
+    /**
+     * Prints the result of closing a single binding.
+     * @param bind The binding that was closed.
+     * @param success Whether the gateway accepted the close.
+     * @param suffix Appended to a success message, E.g. " and removed it from config."
+     */
+    private static void sendCloseResult(Bind bind, boolean success, String suffix){
+        if(success){
+            Console.sendResponse("Successfully closed "+bind.getProtocol()+" port: "+bind.getPort()+suffix);
+        }
+        else{
+            Console.sendError("Failed to close "+bind.getProtocol()+" port: "+bind.getPort());
         }
     }
 
     /**
-     * Registers and opens each individual bind from a list of binds.
+     * Registers and opens each individual bind from a list of binds. The ports are opened concurrently by the mapping
+     * engine, and a single summary is printed once all of them have finished.
      * @param binds The list of binds to use.
      * @return Returns the number of binds which were SUCCESSFULLY added. (Not total size of bind list)
      */
     public int openAllPorts(ArrayList<Bind> binds){
-        int no = 0;
-        for(Bind bind : binds){
-            // Ignore existing bindings.
-            if(!bindings.contains(bind)){
-                bind.connect();
-                bindings.add(bind);
-                no++;
+        BatchResult result = openBindings(binds);
+        sendSummary(result, "Opened");
+        return result.getSuccessCount();
+    }
+
+    /**
+     * Registers and opens each new bind from a collection concurrently without printing anything. Binds which are
+     * already registered, or appear more than once, are skipped and left out of the result.
+     * @param binds The binds to open, each within 0-65535.
+     * @return The outcome of every bind which was actually opened.
+     * @throws CancellationException If this thread's progress was cancelled partway. Binds that weren't sent yet
+     * aren't registered.
+     */
+    public BatchResult openBindings(Collection<Bind> binds) throws CancellationException {
+        // Ignore existing bindings, and duplicates within the list itself.
+        BitSet seen = new BitSet(Bind.KEY_SPACE);
+        MappingEngine.Batch batch = engine.startOpenBatch();
+        BatchResult result;
+        try {
+            for(Bind bind : binds){
+                int key = bind.getKey();
+                if(!seen.get(key) && register(bind)){
+                    seen.set(key);
+                    submitOpen(batch, bind);
+                }
             }
+        } finally {
+            result = batch.await();
+            finishOpen(result);
         }
-        return no;
+        return result;
+    }
+
+    /**
+     * Hands a newly registered bind to an open batch.
+     * @param batch The batch.
+     * @param bind The bind, already registered.
+     * @throws CancellationException If this thread's progress has been cancelled. The bind is deregistered again.
+     */
+    private void submitOpen(MappingEngine.Batch batch, Bind bind) throws CancellationException {
+        try {
+            batch.submit(bind);
+        } catch (CancellationException e) {
+            deregister(bind.getKey());
+            throw e;
+        }
+    }
+
+    /**
+     * Records a finished open batch in the mapping cache, and schedules renewals for any leases it mapped.
+     * @param result The finished batch.
+     */
+    private void finishOpen(BatchResult result){
+        cacheResult(result, true);
+        for(Bind bind : result.getSucceeded()){
+            trackLease(bind);
+        }
+    }
+
+    /**
+     * Updates the mapping cache from a finished batch. Bindings that succeeded are now known to be in the given state,
+     * those that failed are left to be probed again.
+     * @param result The finished batch.
+     * @param mapped Whether a successful operation leaves the port mapped (open) or not (close).
+     */
+    private void cacheResult(BatchResult result, boolean mapped){
+        for(Bind bind : result.getSucceeded()){
+            cache.put(bind.getProtocol(), bind.getPort(), mapped);
+        }
+        for(Bind bind : result.getFailed()){
+            cache.invalidate(bind.getProtocol(), bind.getPort());
+        }
+    }
+
+    /**
+     * Prints a batch summary, as an error if any binding in the batch failed.
+     * @param result The finished batch.
+     * @param verb The past-tense action performed, E.g. "Opened".
+     */
+    private static void sendSummary(BatchResult result, String verb){
+        if(result.getFailureCount() > 0){
+            Console.sendError(result.summary(verb));
+        }
+        else{
+            Console.sendResponse(result.summary(verb));
+        }
+    }
+
+    /**
+     * Changes how many gateway requests the mapping engine keeps in flight at once, at most. Each gateway's adaptive
+     * limit stays at or below it.
+     * @param limit The new limit. Must be within 1 and MappingEngine.MAX_IN_FLIGHT or a soft error message is sent.
+     */
+    public void setConcurrency(int limit){
+        if(limit < 1 || limit > MappingEngine.MAX_IN_FLIGHT){
+            Console.sendError("Invalid concurrency limit. Accepted range: 1-"+MappingEngine.MAX_IN_FLIGHT+".");
+            return;
+        }
+        engine.setMaxInFlight(limit);
+        Console.sendResponse("Up to "+limit+" gateway requests will now be sent at once, fewer to gateways that can't take that many.");
+    }
+
+    /**
+     * @return The adaptive limit on requests to each gateway, the primary one first. Empty if none has been found.
+     */
+    public Map<Gateway, ConcurrencyLimit> getConcurrencyLimits(){
+        return engine.getLimits();
+    }
+
+    /**
+     * Changes how long the open/closed state of a port is cached before the gateway is asked again.
+     * @param seconds The new TTL in seconds. 0 disables caching, negative values send a soft error message.
+     */
+    public void setCacheTTL(int seconds){
+        if(seconds < 0){
+            Console.sendError("Invalid cache TTL. Must be 0 or more seconds.");
+            return;
+        }
+        cache.setTTL(seconds * 1000L);
+        Console.sendResponse("Port states will now be cached for "+seconds+" seconds.");
     }
 
     /**
      * Checks if a port is registered in current config and whether it's still open.
      * @param protocol The protocol to check.
-     * @param port The port number to be checked. Can be out of range.
+     * @param port The port number to be checked, within 0-65535.
+     * @param refresh If true, ignores any cached state and asks the gateway again.
      * @return Returns a string informing the client whether it was registered or not, and it's open status.
+     * @throws IllegalArgumentException If the port is out of range.
      */
-    public String queryPort(Protocol protocol, int port){
+    public String queryPort(Protocol protocol, int port, boolean refresh){
+        boolean open = isOpen(protocol, port, refresh);
         Bind bind = containsBind(new Bind(protocol,port));
         if(bind != null){
-            return "(i) Binding registered as "+bind;
+            return "(i) Binding registered as "+bind+" Open: "+open;
         }
         else{
-            String toReturn = "(i) Binding unregistered. Port open: ";
-            if(protocol == Protocol.TCP){
-                return toReturn + UPnP.isMappedTCP(port);
-            }
-            else{
-                return toReturn + UPnP.isMappedUDP(port);
-            }
+            return "(i) Binding unregistered. Port open: "+open;
+        }
+    }
+
+    /**
+     * Checks whether a port is currently mapped on the gateway, using the mapping cache where possible.
+     * @param protocol The protocol to check.
+     * @param port The port number to be checked, within 0-65535.
+     * @param refresh If true, ignores any cached state and asks the gateway again.
+     * @return True if the port is mapped, false if it isn't or the gateway couldn't be asked.
+     * @throws IllegalArgumentException If the port is out of range.
+     */
+    public boolean isOpen(Protocol protocol, int port, boolean refresh){
+        // Checked before the cache, whose keys would alias an out of range port onto another one.
+        if(port < 0 || port > 65535){
+            throw new IllegalArgumentException("Invalid port number. Accepted range: 0-65535.");
+        }
+        if(refresh){
+            cache.invalidate(protocol, port);
+        }
+        return cache.isMapped(protocol, port);
+    }
+
+    /**
+     * Gets every registered binding along with whether it's currently open. Any missing or expired states are probed
+     * concurrently first.
+     * @param refresh If true, re-probes every binding instead of trusting the cache.
+     * @return Each registered binding in the order it was added, mapped to its open state.
+     */
+    public LinkedHashMap<Bind, Boolean> getBindingStates(boolean refresh){
+        List<Bind> current = bindings.toList();
+        if(refresh){
+            cache.refresh(current);
+        }
+        else{
+            cache.prefetch(current);
+        }
+        LinkedHashMap<Bind, Boolean> toReturn = new LinkedHashMap<>();
+        for(Bind bind : current){
+            toReturn.put(bind, cache.isMapped(bind.getProtocol(), bind.getPort()));
         }
+        return toReturn;
     }
 
     /**
@@ -127,20 +696,14 @@ public class CLIPnP {
      */
     public void closePort(Protocol protocol, int port){
         Bind bind = containsBind(new Bind(protocol,port));
+        cache.invalidate(protocol, port);
         if(bind != null){
-            bindings.remove(bind);
-            Console.println(bind.close() + " and removed it from config.");
+            deregister(bind.getKey());
+            leases.cancel(bind.getKey());
+            sendCloseResult(bind, engine.close(bind), " and removed it from config.");
         }
         else{
-            boolean success;
-            if(protocol == Protocol.TCP){
-                success = UPnP.closePortTCP(port);
-            }
-            else{
-                success = UPnP.closePortUDP(port);
-            }
-
-            if(success){
+            if(engine.close(new Bind(protocol, port))){
                 Console.sendResponse("Successfully closed port "+protocol+":"+port);
             }
             else{
@@ -151,35 +714,551 @@ public class CLIPnP {
 
     /**
      * Adds all the binds from a configuration file into the current config, opening all of them.
-     * @param filepath The filepath (Must be a specific .JSON file, not a dir) to open as config file.
+     * @param filepath The filepath (Must be a specific JSON or binary config file, not a dir) to open as config file.
+     * @return True if the whole file was read, false if it couldn't be. Sends a soft error message in that case.
      */
-    public void addConfig(String filepath) {
+    public boolean addConfig(String filepath) {
         try {
-            // Read the config data
-            Configuration toAdd = Configuration.readFromFile(filepath);
-            // Open all the ports
-            int no = openAllPorts(toAdd.getBindings());
-            Console.sendResponse("Successfully added ("+no+") new bindings.");
-        } catch (IOException e) {
+            // Open all the ports, then report any failures.
+            BatchResult result = loadConfig(filepath);
+            sendSummary(result, "Opened");
+            Console.sendResponse("Successfully added ("+result.getSuccessCount()+") new bindings.");
+            return true;
+        } catch (IOException | JSONException e) {
+            Console.sendError("Could not get config data from file: "+filepath);
+            return false;
+        }
+    }
+
+    /**
+     * Adds all the binds from a configuration file into the current config without printing anything, opening all of
+     * them. The file is streamed, so each bind is registered and handed to the mapping engine as soon as it is read, and
+     * the first ports are opening while the rest of a large file is still being parsed.
+     * @param filepath The filepath (Must be a specific JSON or binary config file, not a dir) to open as config file.
+     * @return The outcome of every new bind from the file.
+     * @throws IOException If the file can't be read, or isn't a valid binary config.
+     * @throws JSONException If the file isn't a valid JSON config. Any binds read before the problem stay registered.
+     * @throws CancellationException If this thread's progress was cancelled partway. Binds read before then stay registered.
+     */
+    public BatchResult loadConfig(String filepath) throws IOException, JSONException, CancellationException {
+        MappingEngine.Batch batch = engine.startOpenBatch();
+        BatchResult result;
+        try {
+            ConfigFormat.read(filepath, bind -> {
+                // register() skips existing bindings, and duplicates within the file itself.
+                if(register(bind)){
+                    submitOpen(batch, bind);
+                }
+            });
+        } finally {
+            // Even if the file turned out to be broken, let the binds already submitted finish.
+            result = batch.await();
+            finishOpen(result);
+        }
+        return result;
+    }
+
+    /**
+     * Makes the current config match a configuration file, printing a summary. See applyConfig().
+     * @param filepath The filepath (Must be a specific JSON or binary config file, not a dir) holding the desired bindings.
+     * @param refresh If true, re-reads the router's mapping table first instead of trusting cached states.
+     * @return True if the file was applied without any failures, false otherwise. Sends a soft error message in that case.
+     */
+    public boolean applyConfigFile(String filepath, boolean refresh){
+        try {
+            ApplyResult result = applyConfig(filepath, refresh);
+            if(result.hasFailures()){
+                Console.sendError(result.summary());
+                if(result.getOpened().getFailureCount() > 0){
+                    Console.sendError(result.getOpened().summary("Opened"));
+                }
+                if(result.getClosed().getFailureCount() > 0){
+                    Console.sendError(result.getClosed().summary("Closed"));
+                }
+                return false;
+            }
+            Console.sendResponse(result.summary());
+            return true;
+        } catch (IOException | JSONException e) {
             Console.sendError("Could not get config data from file: "+filepath);
+            return false;
+        }
+    }
+
+    /**
+     * Treats a configuration file as the desired state and makes the current config match it, without printing
+     * anything. Only the difference is sent to the gateway, concurrently: registered bindings missing from the file are
+     * closed, new or changed ones are opened, and bindings already registered as they are cost nothing, so re-applying
+     * an unchanged file makes no gateway calls at all. New bindings that the router is already known to map to this
+     * machine are registered without being opened again.
+     * @param filepath The filepath (Must be a specific JSON or binary config file, not a dir) holding the desired bindings.
+     * @param refresh If true, scans every router's mapping table first, so bindings a router has lost are re-opened and
+     * mappings they already have are adopted. Otherwise cached states are used, and unknown ones are trusted to be in place.
+     * @return What had to be opened and closed.
+     * @throws IOException If the file can't be read, or isn't a valid binary config, or a router's table couldn't be
+     * scanned. Nothing has been changed in that case.
+     * @throws JSONException If the file isn't a valid JSON config. Nothing has been changed in that case.
+     * @throws CancellationException If this thread's progress was cancelled partway. Bindings not sent by then are left
+     * as they were.
+     */
+    public ApplyResult applyConfig(String filepath, boolean refresh) throws IOException, JSONException, CancellationException {
+        // Read the whole desired state first, so a broken file changes nothing.
+        LinkedHashMap<Integer, Bind> desired = new LinkedHashMap<>();
+        ConfigFormat.read(filepath, bind -> desired.putIfAbsent(bind.getKey(), bind));
+
+        Map<Gateway, MappingTable> tables = refresh ? scanGateways() : null;
+
+        MappingEngine.Batch closes = engine.startCloseBatch();
+        MappingEngine.Batch opens = engine.startOpenBatch();
+        try {
+            return applyDifference(desired, tables, closes, opens);
+        } finally {
+            // Even if cancelled partway, let everything already sent finish.
+            cacheResult(closes.await(), false);
+            finishOpen(opens.await());
+        }
+    }
+
+    /**
+     * Sends applyConfig()'s difference to the gateways.
+     * @param desired The bindings from the file, by key.
+     * @param tables Each gateway's scanned mapping table, or null to rely on cached states.
+     * @param closes The batch to close bindings in.
+     * @param opens The batch to open bindings in.
+     * @return What had to be opened and closed, once every operation has finished.
+     * @throws CancellationException If this thread's progress was cancelled partway.
+     */
+    private ApplyResult applyDifference(LinkedHashMap<Integer, Bind> desired, Map<Gateway, MappingTable> tables,
+                                        MappingEngine.Batch closes, MappingEngine.Batch opens) throws CancellationException {
+        for(Bind bind : bindings.toList()){
+            if(!desired.containsKey(bind.getKey())){
+                closes.submit(bind);
+                deregister(bind.getKey());
+                leases.cancel(bind.getKey());
+            }
+        }
+
+        int unchanged = 0;
+        int adopted = 0;
+        for(Bind bind : desired.values()){
+            Bind current = bindings.get(bind.getKey());
+            Boolean mapped = tables != null ? mappedIn(tables, bind) : null;
+            if(mapped == null){
+                mapped = cache.getIfFresh(bind.getProtocol(), bind.getPort());
+            }
+            if(current != null && sameSettings(current, bind) && mapped != Boolean.FALSE){
+                unchanged++;
+            }
+            else if(current == null && mapped == Boolean.TRUE && isMappedAs(bind)){
+                register(bind);
+                adopted++;
+            }
+            else{
+                // New or changed. AddPortMapping updates an existing mapping in place, so no close is needed first,
+                // but gateways the binding no longer targets have to let go of it.
+                leases.cancel(bind.getKey());
+                reregister(bind);
+                try {
+                    opens.submit(bind);
+                } catch (CancellationException e) {
+                    // Never sent, so the binding is still as it was.
+                    if(current != null){
+                        reregister(current);
+                        trackLease(current);
+                    }
+                    else{
+                        deregister(bind.getKey());
+                    }
+                    throw e;
+                }
+                if(current != null){
+                    List<Gateway> dropped = new ArrayList<>(engine.getTargets(current));
+                    dropped.removeAll(engine.getTargets(bind));
+                    if(!dropped.isEmpty()){
+                        closes.submit(onGateways(current, dropped));
+                    }
+                }
+            }
+        }
+
+        return new ApplyResult(opens.await(), closes.await(), unchanged, adopted);
+    }
+
+    /**
+     * @param current A registered binding.
+     * @param wanted The binding it should be.
+     * @return True if both have the same lease, description and target gateways, so nothing needs sending to the gateways.
+     */
+    private static boolean sameSettings(Bind current, Bind wanted){
+        return current.getLease() == wanted.getLease() && Objects.equals(current.getDescription(), wanted.getDescription())
+                && current.getGateways().equals(wanted.getGateways());
+    }
+
+    /**
+     * @param bind A binding.
+     * @param gateways Some of the gateways it targets.
+     * @return The same binding, targeting only those gateways.
+     */
+    private static Bind onGateways(Bind bind, List<Gateway> gateways){
+        List<String> addresses = new ArrayList<>(gateways.size());
+        for(Gateway gw : gateways){
+            addresses.add(gw.getGatewayIP());
+        }
+        return new Bind(bind.getProtocol(), bind.getPort(), bind.getLease(), bind.getDescription(), addresses);
+    }
+
+    /**
+     * Reads the mapping table of every gateway, one sweep each and all at once. The tables are kept for adopting
+     * mappings, and with a single gateway its table also becomes the mapping cache's snapshot.
+     * @return Each gateway's table, in gateway order.
+     * @throws IOException If any gateway failed partway through its table. The tables that were read are still kept.
+     */
+    private Map<Gateway, MappingTable> scanGateways() throws IOException {
+        List<Gateway> gateways = engine.getGateways();
+        List<CompletableFuture<MappingTable>> scans = new ArrayList<>(gateways.size());
+        for(Gateway gw : gateways){
+            scans.add(CompletableFuture.supplyAsync(() -> {
+                try {
+                    return engine.scan(gw, null);
+                } catch (IOException e) {
+                    throw new CompletionException(e);
+                }
+            }, engine::execute));
+        }
+
+        LinkedHashMap<Gateway, MappingTable> tables = new LinkedHashMap<>();
+        IOException failure = null;
+        for(int i = 0; i < gateways.size(); i++){
+            try {
+                tables.put(gateways.get(i), scans.get(i).join());
+            } catch (CompletionException e) {
+                if(failure == null){
+                    failure = e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e.getCause());
+                }
+            }
+        }
+        keepScan(tables);
+        if(failure != null){
+            throw failure;
+        }
+        return tables;
+    }
+
+    /**
+     * One reconciliation pass: reads every gateway's table in one scan each, and re-opens any registered binding a
+     * gateway it targets no longer has, E.g. after the router rebooted. Called by the reconciler every so often, and by
+     * reconcileNow(). Only prints anything if something was missing.
+     * @return The number of bindings found missing (and re-opened, or tried to be), or -1 if a table couldn't be read.
+     */
+    private int reconcile(){
+        synchronized (reconciling){
+            if(bindings.size() == 0 || engine.getGateways().isEmpty()){
+                return 0;
+            }
+            // Taken before the scan, so only bindings the tables can speak for are compared with them.
+            List<Bind> registered = bindings.toList();
+            Map<Gateway, MappingTable> tables;
+            try {
+                tables = scanGateways();
+            } catch (IOException e) {
+                return -1;
+            }
+
+            // A binding closed or changed while the tables were being read is no longer ours to re-open. Compared by
+            // identity, as equals() only compares protocol and port, and a re-open with a new lease or gateways
+            // registers a new instance.
+            ArrayList<Bind> missing = new ArrayList<>();
+            for(Bind bind : registered){
+                if(mappedIn(tables, bind) == Boolean.FALSE && bindings.get(bind.getKey()) == bind){
+                    missing.add(bind);
+                }
+            }
+            if(missing.isEmpty()){
+                return 0;
+            }
+
+            BatchResult result = engine.openAll(missing);
+            finishOpen(result);
+            Console.sendWarning("Found "+missing.size()+" bindings missing from the router. Re-opened "+result.getSuccessCount()+"/"+missing.size()+".");
+            if(result.getFailureCount() > 0){
+                Console.sendError(result.summary("Re-opened"));
+            }
+            return missing.size();
+        }
+    }
+
+    /**
+     * Runs a reconciliation pass straight away and prints its outcome, then tells the reconciler about it so the
+     * background interval adapts the same way.
+     */
+    public void reconcileNow(){
+        long start = System.currentTimeMillis();
+        int found = reconcile();
+        long took = System.currentTimeMillis() - start;
+        reconciler.record(found, took);
+
+        if(found < 0){
+            Console.sendError("Could not read the router's mapping table. Will try again in "+(reconciler.getInterval()/1000)+" seconds.");
+            return;
+        }
+        if(found == 0){
+            Console.sendResponse("All "+bindings.size()+" bindings are in place on the router. Checked in "+took+" ms.");
+        }
+        Console.sendDetails("Reconciled "+reconciler.getPasses()+" times, found "+reconciler.getHealed()+" missing mappings. Next check in "
+                +Math.max(0, (reconciler.getNextPass() - System.currentTimeMillis())/1000)+" seconds.");
+    }
+
+    /**
+     * Stops checking for dropped mappings in the background, E.g. while benchmarking. reconcileNow() still works.
+     */
+    public void stopReconciling(){
+        reconciler.close();
+    }
+
+    /**
+     * Subscribes to the events of every gateway that sends them, in the background, so the network snapshot is kept
+     * up to date by the gateways instead of asked for, and a change (a new public IP, the connection coming back, or
+     * mappings dropped) triggers a reconciliation pass straight away. Gateways that can't be subscribed to are asked
+     * on demand as before.
+     */
+    public void subscribeEvents(){
+        for(Gateway gw : engine.getGateways()){
+            if(!(gw instanceof InternetGateway) || ((InternetGateway) gw).getEventSubURL() == null){
+                continue;
+            }
+            engine.execute(() -> {
+                EventSubscription subscription;
+                try {
+                    subscription = new EventSubscription((InternetGateway) gw, variables -> onEvent(gw, variables));
+                } catch (IOException e) {
+                    Console.sendDetails("Could not subscribe to events from "+gw.getGatewayIP()+", network info will be asked for instead: "+e.getMessage());
+                    return;
+                }
+                subscriptions.add(subscription);
+                // Closed while subscribing.
+                if(closed && subscriptions.remove(subscription)){
+                    subscription.close();
+                }
+            });
+        }
+    }
+
+    /**
+     * Applies an event from a gateway to its network snapshot, and asks for a reconciliation pass if it may have
+     * dropped mappings. A falling mapping count alone isn't enough, as closing ports lowers it too: it has to fall below
+     * the number of bindings that target the gateway.
+     * @param gw The gateway that sent the event.
+     * @param variables The changed state variables, by name.
+     */
+    private void onEvent(Gateway gw, Map<String, String> variables){
+        NetworkSnapshot before = network.getOrDefault(gw, NetworkSnapshot.empty());
+        NetworkSnapshot after = before.withEvent(variables);
+        network.put(gw, after);
+
+        boolean check = false;
+        if(before.getExternalIP() != null && after.getExternalIP() != null && !before.getExternalIP().equals(after.getExternalIP())){
+            Console.sendWarning("The public IP of "+gw.getGatewayIP()+" changed from "+before.getExternalIP()+" to "+after.getExternalIP()+".");
+            check = true;
+        }
+        if(before.getConnectionStatus() != null && !before.getConnectionStatus().equals("Connected") && "Connected".equals(after.getConnectionStatus())){
+            check = true;
         }
+        if(variables.containsKey(NetworkSnapshot.MAPPING_COUNT) && after.getMappingCount() >= 0
+                && after.getMappingCount() < bindings.size() && after.getMappingCount() < countTargeting(gw)){
+            check = true;
+        }
+        if(check){
+            reconciler.requestPass();
+        }
+    }
+
+    /**
+     * @param gw A gateway.
+     * @return The number of registered bindings that should be mapped on it.
+     */
+    private int countTargeting(Gateway gw){
+        int count = 0;
+        for(Bind bind : bindings.toList()){
+            if(engine.getTargets(bind).contains(gw)){
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Keeps freshly scanned tables for adopting mappings. With a single gateway, its table also becomes the mapping
+     * cache's snapshot, so port queries and listings are answered from it until the cache TTL runs out.
+     * @param tables Each scanned gateway's table.
+     */
+    private void keepScan(Map<Gateway, MappingTable> tables){
+        scanned = tables;
+        if(engine.getGateways().size() == 1 && tables.size() == 1){
+            cache.applySnapshot(tables.values().iterator().next());
+        }
+    }
+
+    /**
+     * @param tables Freshly scanned tables.
+     * @param bind A binding.
+     * @return True if every gateway the binding targets has its port mapped, false if any doesn't, or null if some
+     * target's table is missing.
+     */
+    private Boolean mappedIn(Map<Gateway, MappingTable> tables, Bind bind){
+        List<Gateway> targets = engine.getTargets(bind);
+        if(targets.isEmpty()){
+            return null;
+        }
+        for(Gateway gw : targets){
+            MappingTable table = tables.get(gw);
+            if(table == null){
+                return null;
+            }
+            if(!table.contains(bind.getKey())){
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Checks the last scanned tables for a permanent mapping of a binding's port to this machine, with the binding's
+     * description, on every gateway the binding targets. Leased mappings are never adopted, as their remaining time
+     * isn't known.
+     * @param bind The wanted binding.
+     * @return True if every target router already maps the port exactly as the binding would.
+     */
+    private boolean isMappedAs(Bind bind){
+        List<Gateway> targets = engine.getTargets(bind);
+        if(targets.isEmpty() || targets.size() < bind.getGateways().size() || bind.getLease() > 0){
+            return false;
+        }
+        Map<Gateway, MappingTable> tables = scanned;
+        String description = bind.getDescription() != null ? bind.getDescription() : Gateway.MAPPING_DESCRIPTION;
+        for(Gateway gw : targets){
+            MappingTable table = tables.get(gw);
+            PortMappingEntry entry = table == null ? null : table.get(bind.getKey());
+            if(entry == null || !entry.isEnabled() || entry.getLeaseDuration() != 0 || entry.getInternalPort() != bind.getPort()
+                    || !gw.getLocalIP().equals(entry.getInternalClient()) || !description.equals(entry.getDescription())){
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Sets where discovered gateways are cached between runs. Must be called before discovery starts.
+     * @param file The cache file, or null to neither read nor write a cache.
+     * @param trust If false, ignores what is cached and runs a full discovery, but still caches what it finds.
+     */
+    public static synchronized void setGatewayCache(Path file, boolean trust){
+        gatewayCache = file;
+        trustCache = trust;
+    }
+
+    /**
+     * Starts looking for gateways in the background, unless a search is already under way or has found some. Discovery
+     * takes a few seconds, so it's best to start it first thing and do everything that doesn't need the router in the
+     * meantime. The gateways cached by the last run are tried first, and used if they all still answer. Otherwise every
+     * network interface is searched at once, and what is found is cached for next time. CLIPnP objects created
+     * afterwards use every gateway found. A search that found nothing is started again.
+     * @return The search, completing with the gateways found, the primary one first, or an empty list if none were.
+     * Never completes exceptionally, a search that fails sends a soft error message and finds nothing.
+     */
+    public static synchronized CompletableFuture<List<Gateway>> startDiscovery(){
+        if(discovery == null || (discovery.isDone() && discovery.join().isEmpty())){
+            Path cache = gatewayCache;
+            boolean trust = trustCache;
+            discovery = CompletableFuture.<List<Gateway>>supplyAsync(() -> {
+                if(cache != null && trust){
+                    List<InternetGateway> cached = GatewayCache.loadValid(cache);
+                    if(!cached.isEmpty()){
+                        return List.copyOf(cached);
+                    }
+                }
+                try {
+                    List<InternetGateway> found = GatewayDiscovery.discoverAll(GatewayDiscovery.DEFAULT_TIMEOUT_MILLIS);
+                    if(cache != null && !found.isEmpty()){
+                        try {
+                            GatewayCache.save(cache, found);
+                        } catch (IOException e) {
+                            Console.sendDetails("Could not cache the gateways found in "+cache+": "+e.getMessage());
+                        }
+                    }
+                    return List.copyOf(found);
+                } catch (IOException e) {
+                    return List.of();
+                }
+            }, runnable -> {
+                Thread thread = new Thread(runnable, "CLIPnP-discovery");
+                thread.setDaemon(true);
+                thread.start();
+            }).exceptionally(e -> {
+                // E.g. a cache file that can't be read, reported as no gateway rather than thrown at whoever joins.
+                Console.sendError("Could not search for the router: "+(e instanceof CompletionException && e.getCause() != null ? e.getCause() : e));
+                return List.of();
+            });
+        }
+        return discovery;
+    }
+
+    /**
+     * @return The gateways the last search found, or an empty list if it found none or hasn't finished.
+     */
+    private static synchronized List<Gateway> discovered(){
+        return discovery == null ? List.of() : discovery.getNow(List.of());
     }
 
     /**
-     * Should be called before using other methods. The isUPnPAvailable() method blocks for a while when it's been called for
-     * the first time, so it's best to call it once at the start to prevent any holdup on future interactions.
-     * @return True if UPnP service is enabled for this router, false otherwise.
+     * Waits for gateway discovery, starting it if needed. Blocks for a few seconds if it hasn't been started yet.
+     * @return True if UPnP service is enabled for at least one router, false otherwise.
      */
     public static boolean isUPnPEnabled(){
-        return UPnP.isUPnPAvailable();
+        return !startDiscovery().join().isEmpty();
     }
 
     /**
-     * Saves the current configuration list of binds to a file.
-     * @param dir The directory to save to, not a specific file. Saves as "config.clip"
+     * Runs a task on the mapping engine's worker pool, E.g. a batch that goes out alongside another one. The pool grows
+     * as needed, so a task may block on the gateway.
+     * @param task The task.
      */
-    public void save(String dir){
-        new Configuration(bindings).saveToFile(dir);
+    public void execute(Runnable task){
+        engine.execute(task);
+    }
+
+    /**
+     * Starts using gateways found after this CLIPnP was created, E.g. by discovery running in the background. Does
+     * nothing if it already has some.
+     * @param gateways The gateways, the primary one first.
+     */
+    public synchronized void useGateways(List<Gateway> gateways){
+        if(engine.getGateways().isEmpty()){
+            engine.setGateways(gateways);
+        }
+    }
+
+    /**
+     * Saves the current configuration list of binds to a file, in binary form if its name ends with ".clipb" and as
+     * JSON otherwise.
+     * @param filepath The file to save to. CANNOT be a directory.
+     */
+    public void save(String filepath){
+        try {
+            writeConfig(filepath);
+            Console.sendResponse("Saved config to "+filepath);
+        } catch (IOException e) {
+            Console.sendError("Failed to save config to "+filepath+". Did you use single quotes?");
+        }
+    }
+
+    /**
+     * Saves the current configuration list of binds to a file without printing anything, in binary form if its name
+     * ends with ".clipb" and as JSON otherwise.
+     * @param filepath The file to save to. CANNOT be a directory.
+     * @throws IOException If the file couldn't be written.
+     */
+    public void writeConfig(String filepath) throws IOException {
+        ConfigFormat.forFilename(filepath).write(filepath, bindings.toList());
     }
 
     /**
@@ -195,42 +1274,201 @@ public class CLIPnP {
         printNetworkInfo();
 
         // Bindings
-        printBindings();
+        printBindings(false);
         Console.println("");
     }
 
     /**
-     * Prints the current network information.
+     * Prints the current network information, one block per gateway.
      */
     public void printNetworkInfo(){
+        List<Map<String, String>> info = getNetworkInfo();
+        if(info == null){
+            return;
+        }
         Console.println("\t Network Info:");
-        Console.println("\t\t Local IP: "+UPnP.getLocalIP());
-        Console.println("\t\t Public IP: "+UPnP.getExternalIP());
-        Console.println("\t\t Default Gateway: "+UPnP.getDefaultGatewayIP());
+        for(int i = 0; i < info.size(); i++){
+            Map<String, String> gateway = info.get(i);
+            Console.sendRecord("network", new JSONObject(gateway).put("primary", i == 0), String.join(System.lineSeparator(),
+                    "\t\t "+(i == 0 ? "Default Gateway: " : "Gateway: ")+gateway.get("gateway"),
+                    "\t\t\t Local IP: "+gateway.get("localIP"),
+                    "\t\t\t Public IP: "+gateway.get("publicIP")
+                            +(gateway.containsKey("mappings") ? System.lineSeparator()+"\t\t\t Port Mappings: "+gateway.get("mappings") : "")));
+        }
         Console.println("");
     }
 
     /**
-     * Prints all current bindings. Omits any previous/disabled bindings.
+     * Gets the current network information of every gateway. Gateways that send events are answered from memory, the
+     * rest are all asked for their public IP at once.
+     * @return Per gateway, the primary one first, its "localIP", "publicIP" and "gateway" addresses in that order, then
+     * its number of "mappings" if it has sent it, or null if no gateway could be found. A public IP is "unknown" if the
+     * gateway wouldn't tell.
+     */
+    public List<Map<String, String>> getNetworkInfo(){
+        List<Gateway> gateways = getGateways();
+        if(gateways.isEmpty()){
+            return null;
+        }
+        List<CompletableFuture<String>> externalIPs = new ArrayList<>(gateways.size());
+        for(Gateway gw : gateways){
+            NetworkSnapshot snapshot = network.get(gw);
+            if(snapshot != null && snapshot.isPushed() && snapshot.getExternalIP() != null && isSubscribed(gw)){
+                externalIPs.add(CompletableFuture.completedFuture(snapshot.getExternalIP()));
+                continue;
+            }
+            externalIPs.add(CompletableFuture.supplyAsync(() -> {
+                try {
+                    String ip = engine.call(gw, gw::getExternalIP);
+                    network.compute(gw, (key, old) -> (old == null ? NetworkSnapshot.empty() : old).withExternalIP(ip));
+                    return ip;
+                } catch (IOException e) {
+                    return "unknown";
+                }
+            }, engine::execute));
+        }
+        List<Map<String, String>> toReturn = new ArrayList<>(gateways.size());
+        for(int i = 0; i < gateways.size(); i++){
+            Gateway gw = gateways.get(i);
+            LinkedHashMap<String, String> info = new LinkedHashMap<>();
+            info.put("localIP", gw.getLocalIP());
+            info.put("publicIP", externalIPs.get(i).join());
+            info.put("gateway", gw.getGatewayIP());
+            NetworkSnapshot snapshot = network.get(gw);
+            if(snapshot != null && snapshot.getMappingCount() >= 0 && isSubscribed(gw)){
+                info.put("mappings", Integer.toString(snapshot.getMappingCount()));
+            }
+            toReturn.add(info);
+        }
+        return toReturn;
+    }
+
+    /**
+     * @param gw A gateway.
+     * @return True if its events are currently being received, so its network snapshot is up to date.
      */
-    public void printBindings(){
+    private boolean isSubscribed(Gateway gw){
+        for(EventSubscription subscription : subscriptions){
+            if(subscription.getGateway() == gw){
+                return subscription.isActive();
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Gets the gateways, discovering them now if none were found at startup.
+     * @return The gateways, the primary one first, or an empty list if none could be found. Sends a soft error message
+     * in that case.
+     */
+    private List<Gateway> getGateways(){
+        if(engine.getGateways().isEmpty() && isUPnPEnabled()){
+            useGateways(discovered());
+        }
+        if(engine.getGateways().isEmpty()){
+            Console.sendError("Could not find a UPnP gateway on this network.");
+        }
+        return engine.getGateways();
+    }
+
+    /**
+     * Reads every gateway's entire port mapping table, one after another, printing each mapping as it arrives. The
+     * tables are then kept, and with a single gateway its table answers port queries and listings until the cache TTL
+     * runs out.
+     */
+    public void printMappings(){
+        List<Gateway> gateways = getGateways();
+        LinkedHashMap<Gateway, MappingTable> tables = new LinkedHashMap<>();
+        for(Gateway gw : gateways){
+            String address = gw.getGatewayIP();
+            Console.println(gateways.size() == 1 ? "\t Gateway Mappings:" : "\t Gateway Mappings ("+address+"):");
+            try {
+                MappingTable table = engine.scan(gw, entry -> {
+                    boolean owned = isRegisteredOn(entry, address);
+                    Console.sendRecord("mapping", entry.toJSON().put("registered", owned).put("gateway", address),
+                            "\t\t "+(entry.getIndex()+1)+". "+entry+" ["+(owned ? "registered" : "unregistered")+"]");
+                });
+                tables.put(gw, table);
+
+                int registered = 0;
+                for(PortMappingEntry entry : table.getEntries()){
+                    if(isRegisteredOn(entry, address)){
+                        registered++;
+                    }
+                }
+                Console.sendResponse("Found "+table.size()+" mappings"+(gateways.size() == 1 ? "" : " on "+address)+", "
+                        +registered+" registered with CLIPnP and "+(table.size()-registered)+" from elsewhere.");
+            } catch (IOException e) {
+                Console.sendError("Could not read the mapping table of "+address+": "+e.getMessage());
+            }
+        }
+        if(!tables.isEmpty()){
+            keepScan(tables);
+        }
+    }
+
+    /**
+     * @param entry A mapping on a gateway.
+     * @param gatewayIP The gateway's address.
+     * @return True if a registered binding targeting that gateway has the mapping's port.
+     */
+    private boolean isRegisteredOn(PortMappingEntry entry, String gatewayIP){
+        Bind bind = bindings.get(Bind.key(entry.getProtocol(), entry.getExternalPort()));
+        return bind != null && bind.targets(gatewayIP);
+    }
+
+    /**
+     * Prints all current bindings. Omits any previous/disabled bindings. Open states come from the mapping cache, any
+     * missing or expired states are probed concurrently before printing.
+     * @param refresh If true, re-probes every binding instead of trusting the cache.
+     */
+    public void printBindings(boolean refresh){
+        Map<Bind, Boolean> states = getBindingStates(refresh);
+
         Console.println("\t Active Bindings:");
         int counter = 1;
-        for(Bind bind : bindings){
-            Console.println("\t\t "+counter+". "+bind.toString());
+        for(Map.Entry<Bind, Boolean> entry : states.entrySet()){
+            Console.sendRecord("binding", entry.getKey().toJSON().put("index", counter).put("open", entry.getValue()),
+                    "\t\t "+counter+". "+entry.getKey()+" Open: "+entry.getValue());
+            counter++;
         }
     }
 
     /**
-     * Closes all ports, without removing them from the current config. Informs the user of each port's
-     * status and whether they were successfully closed or not. Tallies up the number of bindings closed.
+     * Closes all ports concurrently, without removing them from the current config. Informs the user of how many
+     * bindings were closed and which ones failed, then stops the mapping engine.
      */
     public void close(){
-        int counter = 0;
-        for(Bind bind : bindings){
-            Console.println(bind.close());
-            counter++;
+        closed = true;
+        reconciler.close();
+        for(EventSubscription subscription : subscriptions){
+            // Whoever removes a subscription closes it, see subscribeEvents().
+            if(subscriptions.remove(subscription)){
+                subscription.close();
+            }
+        }
+        leases.shutdown();
+        BatchResult result = engine.closeAll(bindings.toList());
+        cacheResult(result, false);
+        sendSummary(result, "Closed");
+        engine.shutdown();
+
+        AutoSaver saver = autosaver;
+        if(saver != null){
+            saver.close();
+        }
+
+        // Only the mappings that really were closed stop being owned, the next run cleans up or reclaims the rest.
+        Journal j = journal;
+        if(j != null){
+            for(Bind bind : result.getSucceeded()){
+                j.recordClose(bind);
+            }
+            try {
+                j.close();
+            } catch (IOException e) {
+                Console.sendError("Could not write the binding journal: "+e.getMessage());
+            }
         }
-        Console.sendResponse("Closed "+counter+" open bindings.");
     }
 }
@@ -4,12 +4,14 @@ import net.pyroneon.util.Console;
 import org.json.JSONArray;
 import org.json.JSONObject;
 import net.pyroneon.util.Bind;
+import net.pyroneon.storage.AtomicFile;
 
-import java.io.FileWriter;
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.ArrayList;
+import java.util.Collection;
 
 /**
  * Used to track binds, mainly to save them in file form and read them back later.
@@ -20,8 +22,11 @@ public class Configuration extends JSONObject {
      * Creates a brand-new config file, used for saving.
      * @param bindings The configuration state, all the binds that should be saved.
      */
-    public Configuration(ArrayList<Bind> bindings){
-        JSONArray jarray = new JSONArray(bindings);
+    public Configuration(Collection<Bind> bindings){
+        JSONArray jarray = new JSONArray();
+        for(Bind bind : bindings){
+            jarray.put(bind.toJSON());
+        }
         put("binds", jarray);
     }
 
@@ -47,22 +52,32 @@ public class Configuration extends JSONObject {
      * @param directory A filepath to save to. CANNOT be a directory.
      */
     public void saveToFile(String directory){
-        try (FileWriter file = new FileWriter(directory)) {
-            //We can write any JSONArray or JSONObject instance to the file
-            this.write(file);
+        try {
+            writeToFile(directory);
             Console.sendResponse("Saved config to "+directory);
         } catch (IOException e) {
             Console.sendError("Failed to save config to "+directory+". Did you use single quotes?");
         }
     }
 
+    /**
+     * Saves the Configuration to a JSON File without printing anything. The file is replaced atomically, so a crash
+     * partway through leaves the previous config intact rather than a truncated one.
+     * @param filepath A filepath to save to. CANNOT be a directory.
+     * @throws IOException If the file couldn't be written.
+     */
+    public void writeToFile(String filepath) throws IOException {
+        AtomicFile.write(Path.of(filepath), StandardCharsets.UTF_8.encode(toString()));
+    }
+
     /**
      * @return A list of each bind included in the configuration.
      */
     public ArrayList<Bind> getBindings(){
-        ArrayList<Bind> toReturn = new ArrayList<>();
-        for(Object obj : (JSONArray)get("binds")){
-            toReturn.add(new Bind(obj.toString()));
+        JSONArray jarray = getJSONArray("binds");
+        ArrayList<Bind> toReturn = new ArrayList<>(jarray.length());
+        for(int i = 0; i < jarray.length(); i++){
+            toReturn.add(Bind.fromJSON(jarray.getJSONObject(i)));
         }
         return toReturn;
     }
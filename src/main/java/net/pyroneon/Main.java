@@ -1,13 +1,37 @@
 package net.pyroneon;
 
+import net.pyroneon.api.ControlServer;
 import net.pyroneon.commands.Config;
 import net.pyroneon.commands.Help;
+import net.pyroneon.commands.Jobs;
 import net.pyroneon.commands.Network;
 import net.pyroneon.commands.Port;
+import net.pyroneon.commands.Stats;
+import net.pyroneon.jobs.JobManager;
+import net.pyroneon.storage.GatewayCache;
+import net.pyroneon.storage.Journal;
+import net.pyroneon.upnp.Gateway;
+import net.pyroneon.util.Arguments;
 import net.pyroneon.util.Console;
 import net.pyroneon.util.Path;
 
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.util.List;
 import java.util.Scanner;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * The main class of the entire program, which handles user commands and filepaths. The main method within
@@ -16,19 +40,34 @@ import java.util.Scanner;
 public class Main {
 
     public static CLIPnP cliPnP;
+    public static final JobManager jobs = new JobManager();
+    private static String version;
+    private static ControlServer api;
+    private static final AtomicBoolean closed = new AtomicBoolean();
+    /** Every command dispatch() handles. */
+    private static final Set<String> COMMANDS = Set.of("help", "?", "config", "info", "port", "network", "stats", "jobs", "wait", "cancel");
+    /** The longest "stop" waits for each background job to wind down after cancelling it. */
+    private static final long JOB_STOP_MILLIS = 10000;
+    /** The longest a command that needs the router waits for it to be found and set up. */
+    private static final long GATEWAY_WAIT_MILLIS = 15000;
+    private static Arguments arguments;
+    // Completes with true once a gateway has been found and the journal and startup config applied to it.
+    private static volatile CompletableFuture<Boolean> ready;
 
     /**
      * Prints a text-art logo, the software version and some copyright/licensing information.
      * @param version The version of the software, obtained from manifest of Jar file.
      */
     public static void printVersionInfo(String version){
-        Console.println(
+        if(!Console.isStructured()){
+            Console.println(
                         "   _____ _      _____ _____       _____  \n" +
                         "  / ____| |    |_   _|  __ \\     |  __ \\ \n" +
                         " | |    | |      | | | |__) | __ | |__) |\n" +
                         " | |    | |      | | |  ___/ '_ \\|  ___/ \n" +
                         " | |____| |____ _| |_| |   | | | | |     \n" +
                         "  \\_____|______|_____|_|   |_| |_|_|     \n");
+        }
         Console.sendDetails("CLIPnP " + version + " Copyright (c) 2024 PyroNeon Software");
         Console.sendDetails("Licensed under LGPL3 - \"help\" for command help.");
         Console.sendWarning("This is a BETA version. Contact us at PyroNeon.net if you experience an issue.");
@@ -36,69 +75,357 @@ public class Main {
 
     /**
      The main method for the entire program. Handles the console side of the interface, by first getting the Implementation Version from the Jar's
-     Manifest. Next, it calls the isUPnPEnabled() method from WaifUPnP to determine if UPnP is actually supported by the client's router. If not, then
-     the program terminates, otherwise, the program will proceed to check for a config file provided as a command-line argument (CLA) which if found, will
-     be applied and sent to the CLIPnP class on initialization. Finally, the program will enter it's main phase; where it constantly prompts the user for
-     input as a command-line interface. The user's commands are parsed and appropriate responses are issued accordingly. The workload of the commands is
-     split up into their own separate helper methods.
+     Manifest. Next, it starts searching for the router over SSDP in the background, and once one is found, replays the journal and applies any config
+     file provided as a command-line argument (CLA). Meanwhile the program enters it's main phase straight away; where it constantly prompts the user for
+     input as a command-line interface, or with "--daemon", serves commands in the background until it is signalled to stop. Commands that need the router
+     wait for it to be found, the rest run at once. Scripts and daemons wait for the router before starting, and stop if there is none. The user's commands
+     are parsed and appropriate responses are issued accordingly. The workload of the commands is split up into their own separate helper methods.
      */
     public static void main(String[] args){
-        Scanner keyboard = new Scanner(System.in);
-
-        String version = Main.class.getPackage().getImplementationVersion();
+        version = Main.class.getPackage().getImplementationVersion();
         if(version == null){
             version = "IDE-version";
         }
 
+        try {
+            arguments = Arguments.parse(args, Set.of("api", "journal", "output", "script", "gateway-cache"));
+        } catch (IllegalArgumentException e) {
+            Console.sendError(e.getMessage());
+            return;
+        }
+
+        // Started first thing, the router is usually found by the time the first command needs it.
+        String cache = arguments.get("gateway-cache");
+        CLIPnP.setGatewayCache(arguments.has("no-gateway-cache") ? null
+                : cache == null || cache.isEmpty() ? GatewayCache.defaultPath() : java.nio.file.Path.of(cache), !arguments.has("rediscover"));
+        CLIPnP.startDiscovery();
+        if("jsonl".equals(arguments.get("output"))){
+            Console.setFormat(Console.Format.JSONL);
+        }
+        else if(arguments.has("output") && !"text".equals(arguments.get("output"))){
+            Console.sendError("Unknown output format: "+arguments.get("output")+". Use text or jsonl.");
+            return;
+        }
+
+        // Parsed before anything else, so a broken script fails straight away and changes nothing.
+        Script script = null;
+        if(arguments.has("script")){
+            script = loadScript(arguments.get("script"));
+            if(script == null){
+                Console.flush();
+                System.exit(2);
+            }
+        }
+
         printVersionInfo(version);
 
-        if(!CLIPnP.isUPnPEnabled()){
-            Console.sendError("UPnP service is not available on this network. You will have to port forward using conventional means through your router.");
+        cliPnP = new CLIPnP();
+        if(arguments.has("no-reconcile")){
+            cliPnP.stopReconciling();
+        }
+        ready = setUpWhenFound();
+
+        if(arguments.has("api")){
+            startApi(arguments.get("api"));
+        }
+
+        // Without a prompt there's nothing to do until the router is found.
+        if((script != null || arguments.has("daemon")) && !ready.join()){
             Console.sendResponse("Thank you for using CLIPnP " + version);
-            return;
+            Console.flush();
+            System.exit(script != null ? 1 : 0);
+        }
+
+        if(script != null){
+            runScript(script, arguments.has("daemon"));
+        }
+        else if(arguments.has("daemon")){
+            runDaemon();
+        }
+        else{
+            runInteractive();
+        }
+    }
+
+    /**
+     * Starts discovery, if it isn't running, and sets up the gateways it finds.
+     * @return Completes with whether there are gateways to use. Never completes exceptionally, a failure to set them
+     * up sends a soft error message and completes with false, so a join() can't take the prompt down with it.
+     */
+    private static CompletableFuture<Boolean> setUpWhenFound(){
+        return CLIPnP.startDiscovery().thenApply(Main::setUp).exceptionally(e -> {
+            Console.sendError("Could not set up the router: "+(e instanceof CompletionException && e.getCause() != null ? e.getCause() : e));
+            return false;
+        });
+    }
+
+    /**
+     * Sets up the gateways once discovery has found them: subscribes to their events, picks up whatever the last run
+     * left on the router, then applies the config file given on the command line, if any.
+     * @param found The gateways found, the primary one first, or an empty list if none were.
+     * @return True if there are gateways to use, false otherwise. Sends a soft error message in that case.
+     */
+    private static boolean setUp(List<Gateway> found){
+        if(found.isEmpty()){
+            Console.sendError("UPnP service is not available on this network. You will have to port forward using conventional means through your router."
+                    +" Commands that don't need the router, like \"config validate\", still work.");
+            return false;
+        }
+        cliPnP.useGateways(found);
+        if(!arguments.has("no-events")){
+            cliPnP.subscribeEvents();
+        }
+
+        // Pick up whatever the last run left on the router before opening anything new.
+        if(!arguments.has("no-journal")){
+            String journal = arguments.get("journal");
+            cliPnP.openJournal(journal == null || journal.isEmpty() ? Journal.defaultPath() : java.nio.file.Path.of(journal), arguments.has("cleanup"));
         }
 
         // Check if a CLA specifies config file location.
-        if(args.length >= 1){
-            try {
-                // Turns the command-line-args into a single string.
-                String build = args[0];
-                for(int i = 1; i < args.length; i++){
-                    build += " "+args[i];
-                }
+        if(!arguments.getPositional().isEmpty()){
+            // The command-line-arg filepath should be in quotes. The file is streamed, opening ports as it's read.
+            String build = Path.getPathInQuotes(arguments.getPositional());
+            if(build == null || !cliPnP.addConfig(build)){
+                Console.sendWarning("Config file could not be read. Did you use single quotes? Proceeding with the bindings read so far.");
+            }
+        }
+        return true;
+    }
 
-                // The command-line-arg filepath should be in quotes.
-                build = Path.getPathInQuotes(build);
+    /**
+     * Waits for the router to be found and set up, searching again if the last search found nothing.
+     * @return True if it's ready, false if there's none or it took longer than GATEWAY_WAIT_MILLIS. Sends a soft error
+     * message in that case.
+     */
+    private static boolean awaitGateway(){
+        return awaitGateway(true);
+    }
 
-                cliPnP = new CLIPnP(Configuration.readFromFile(build));
-            } catch (Exception e) {
-                cliPnP = new CLIPnP();
-                Console.sendWarning("Config file could not be read. Did you use single quotes? Proceeding with empty config.");
+    /**
+     * Waits for the router to be found and set up, searching again if the last search found nothing.
+     * @param report Whether to send a soft error message if it isn't ready. The control API answers with its own.
+     * @return True if it's ready, false if there's none or it took longer than GATEWAY_WAIT_MILLIS.
+     */
+    private static boolean awaitGateway(boolean report){
+        CompletableFuture<Boolean> current;
+        synchronized (Main.class){
+            if(ready.isDone() && !ready.join()){
+                ready = setUpWhenFound();
             }
+            current = ready;
         }
-        else{
-            cliPnP = new CLIPnP();
+        try {
+            return current.get(GATEWAY_WAIT_MILLIS, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            if(report){
+                Console.sendError("The router isn't ready yet, it is still being searched for or set up. Please try again shortly.");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            if(report){
+                Console.sendError("Could not set up the router: "+e.getCause());
+            }
         }
+        return false;
+    }
+
+    /**
+     * @param parsed A parsed command line.
+     * @return True if the command talks to the router, so has to wait for it to be found.
+     */
+    private static boolean needsGateway(String[] parsed){
+        return switch (parsed[0]) {
+            case "info" -> true;
+            case "port", "network" -> parsed.length > 1;
+            case "config" -> parsed.length > 1 && (parsed[1].equals("add") || parsed[1].equals("apply"));
+            default -> false;
+        };
+    }
 
+    /**
+     * Starts the local HTTP/JSON control API. The program carries on without it if it can't be started.
+     * @param port The local port to listen on, from the "--api" argument.
+     */
+    private static void startApi(String port){
+        try {
+            api = new ControlServer(cliPnP, Integer.parseInt(port), () -> awaitGateway(false));
+            api.start();
+            Console.sendResponse("Control API listening on http://127.0.0.1:"+api.getPort()+"/");
+            Console.sendDetails("API token for this run (send as \"Authorization: Bearer <token>\"): "+api.getToken());
+        } catch (NumberFormatException e) {
+            Console.sendError("Invalid API port: "+port+". Proceeding without the control API.");
+        } catch (IOException | IllegalArgumentException e) {
+            Console.sendError("Could not start the control API on port "+port+": "+e.getMessage()+". Proceeding without it.");
+        }
+    }
+
+    /**
+     * Reads and parses a whole script, from a file or from stdin.
+     * @param filepath The script's filepath, or "-" for stdin.
+     * @return The parsed script, or null if it couldn't be read or isn't valid. Sends a soft error message in that case.
+     */
+    private static Script loadScript(String filepath){
+        try {
+            if(filepath.equals("-")){
+                return Script.parse("stdin", new BufferedReader(new InputStreamReader(System.in)));
+            }
+            try (BufferedReader in = Files.newBufferedReader(java.nio.file.Path.of(filepath))) {
+                return Script.parse(filepath, in);
+            }
+        } catch (IOException | InvalidPathException e) {
+            Console.sendError("Could not read script "+filepath+": "+e.getMessage());
+        } catch (IllegalArgumentException e) {
+            Console.sendError(e.getMessage());
+        }
+        return null;
+    }
+
+    /**
+     * Runs a script, then stops, closing every port, and exits with status 0 if every command in it succeeded or 1
+     * otherwise. With "--daemon" and no "stop" in the script, carries on as a daemon instead, keeping the ports open.
+     * @param script The parsed script.
+     * @param daemon Whether "--daemon" was given.
+     */
+    private static void runScript(Script script, boolean daemon){
+        boolean success = script.run(cliPnP);
+        if(daemon && !script.stops()){
+            runDaemon();
+            return;
+        }
+        shutdown();
+        System.exit(success ? 0 : 1);
+    }
+
+    /**
+     * Prompts the user for commands one at a time, until they enter "stop" or stdin ends.
+     */
+    private static void runInteractive(){
+        Scanner keyboard = new Scanner(System.in);
         Console.promptUser();
-        String line = keyboard.nextLine();
-        while(!line.equals("stop")){
-            String[] parsed = line.split(" ");
+        while(keyboard.hasNextLine()){
+            String line = keyboard.nextLine();
+            if(line.equals("stop")){
+                break;
+            }
+            dispatch(line);
+            Console.promptUser();
+        }
+        shutdown();
+    }
+
+    /**
+     * Runs headless: commands are read from stdin if there is one, and each runs on its own worker thread so a slow
+     * gateway call never holds up the next command. Keeps running (and renewing leases) after stdin ends, until "stop"
+     * is received or the process is signalled (SIGTERM/SIGINT), and closes every port on the way out either way.
+     */
+    private static void runDaemon(){
+        Runtime.getRuntime().addShutdownHook(new Thread(Main::shutdown, "CLIPnP-shutdown"));
+
+        ExecutorService commands = Executors.newCachedThreadPool(runnable -> {
+            Thread thread = new Thread(runnable, "CLIPnP-command");
+            thread.setDaemon(true);
+            return thread;
+        });
+        CountDownLatch stop = new CountDownLatch(1);
+
+        Thread reader = new Thread(() -> {
+            try {
+                BufferedReader in = new BufferedReader(new InputStreamReader(System.in));
+                String line;
+                while((line = in.readLine()) != null){
+                    String command = line.trim();
+                    if(command.equals("stop")){
+                        stop.countDown();
+                        return;
+                    }
+                    if(!command.isEmpty()){
+                        commands.execute(() -> dispatch(command));
+                    }
+                }
+            } catch (IOException ignored) {
+                // No usable stdin, so only signals can stop the daemon.
+            }
+        }, "CLIPnP-stdin");
+        reader.setDaemon(true);
+        reader.start();
+
+        Console.sendResponse("Running as a daemon. Send \"stop\" on stdin, or SIGTERM, to close all ports and exit.");
+        try {
+            stop.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        // Runs the shutdown hook.
+        System.exit(0);
+    }
+
+    /**
+     * @param name The first word of a command line, E.g. "port".
+     * @return True if dispatch() knows the command.
+     */
+    public static boolean isCommand(String name){
+        return COMMANDS.contains(name);
+    }
+
+    /**
+     * Splits a command line into its words. Used by everything that reads commands, so a script is checked exactly as
+     * it will be run.
+     * @param line The raw command, E.g. "port open tcp 25565".
+     * @return Its words, split on any run of whitespace. A blank line gives a single empty word.
+     */
+    public static String[] tokenize(String line){
+        return line.trim().split("\\s+");
+    }
+
+    /**
+     * Runs a single command line. Safe to call from several threads at once. A line ending with "&" is started as a
+     * background job instead, and this returns straight away.
+     * @param line The raw command, E.g. "port open tcp 25565".
+     */
+    public static void dispatch(String line){
+        if(line.endsWith("&")){
+            String command = line.substring(0, line.length() - 1).trim();
+            jobs.submit(command, Main::dispatch);
+            return;
+        }
+        String[] parsed = tokenize(line);
+        if(ready != null && needsGateway(parsed) && !awaitGateway()){
+            return;
+        }
+        try {
             switch (parsed[0]) {
                 case "help", "?" -> Help.execute(parsed);
                 case "config" -> Config.execute(line);
                 case "info" -> cliPnP.printInfo(version);
                 case "port" -> Port.execute(parsed);
                 case "network" -> Network.execute(parsed);
+                case "stats" -> Stats.execute(parsed);
+                case "jobs", "wait", "cancel" -> Jobs.execute(parsed);
                 default -> Console.sendWarning("Unknown command entered. Please enter \"help\" for command help.");
             }
-            Console.promptUser();
-            line = keyboard.nextLine();
+        } catch (NumberFormatException e) {
+            Console.sendSyntaxError("");
+        } catch (IllegalArgumentException e) {
+            // Thrown by the Path helpers, which have already sent an error message.
         }
+    }
 
+    /**
+     * Closes every port and says goodbye. Only the first call does anything, so both "stop" and a shutdown signal
+     * can call it.
+     */
+    static void shutdown(){
+        if(!closed.compareAndSet(false, true)){
+            return;
+        }
+        if(api != null){
+            api.stop();
+        }
+        jobs.cancelAll(JOB_STOP_MILLIS);
         cliPnP.close();
         Console.sendResponse("Thank you for using CLIPnP " + version);
+        Console.flush();
     }
-
-
 }
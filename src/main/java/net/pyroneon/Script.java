@@ -0,0 +1,315 @@
+package net.pyroneon;
+
+import net.pyroneon.engine.BatchResult;
+import net.pyroneon.util.Bind;
+import net.pyroneon.util.Console;
+import net.pyroneon.util.Ports;
+import net.pyroneon.util.Protocol;
+import org.json.JSONException;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * A file of commands, run without a prompt, E.g. to provision a machine's ports. The whole file is parsed before anything
+ * runs, so a typo on the last line doesn't leave the first half applied. Runs of "port open" and "port close" commands
+ * that don't touch the same port are merged into one batch and sent to the gateway concurrently, instead of waiting for
+ * each line's round trips in turn. Every other command runs on its own, in order, exactly as if it had been typed.
+ * <p>
+ * Blank lines and lines starting with "#" are ignored, and "stop" ends the script.
+ */
+public class Script {
+
+    private final String name;
+    private final List<Step> steps;
+    private final boolean stops;
+
+    /**
+     * @param name Where the script came from, for messages.
+     * @param steps The parsed steps, in order.
+     * @param stops Whether the script ends with "stop".
+     */
+    private Script(String name, List<Step> steps, boolean stops){
+        this.name = name;
+        this.steps = steps;
+        this.stops = stops;
+    }
+
+    /**
+     * Reads and parses a whole script.
+     * @param name Where the script comes from, E.g. its filepath, used in error messages.
+     * @param in The script's lines.
+     * @return The parsed script.
+     * @throws IOException If the script couldn't be read.
+     * @throws IllegalArgumentException If a line isn't a valid command. The message names the line.
+     */
+    public static Script parse(String name, BufferedReader in) throws IOException, IllegalArgumentException {
+        ArrayList<Step> steps = new ArrayList<>();
+        Step batch = null;
+        String line;
+        int number = 0;
+        while((line = in.readLine()) != null){
+            number++;
+            String command = line.trim();
+            if(command.isEmpty() || command.startsWith("#")){
+                continue;
+            }
+            if(command.equals("stop")){
+                // Anything after it would silently never run.
+                while((line = in.readLine()) != null){
+                    number++;
+                    if(!line.isBlank() && !line.trim().startsWith("#")){
+                        throw new IllegalArgumentException(name+":"+number+": Commands after \"stop\" would never run.");
+                    }
+                }
+                return new Script(name, steps, true);
+            }
+
+            String[] args = Main.tokenize(command);
+            if(!Main.isCommand(args[0])){
+                throw new IllegalArgumentException(name+":"+number+": Unknown command \""+args[0]+"\".");
+            }
+
+            List<Bind> binds = null;
+            try {
+                if(!command.endsWith("&")){
+                    binds = parsePorts(args);
+                }
+            } catch (IllegalArgumentException e) {
+                throw new IllegalArgumentException(name+":"+number+": "+e.getMessage());
+            }
+            if(binds == null){
+                // Runs on its own (or starts in the background), and ends any batch before it.
+                steps.add(new Step(number, line));
+                batch = null;
+                continue;
+            }
+
+            // A port the batch already touches has to wait for it, so the outcome is the same as running line by line.
+            boolean open = args[1].equals("open");
+            if(batch == null || batch.touches(binds)){
+                batch = new Step(number, null);
+                steps.add(batch);
+            }
+            batch.add(binds, open);
+        }
+        return new Script(name, steps, false);
+    }
+
+    /**
+     * Parses a "port open" or "port close" command that can join a batch.
+     * @param args The command's words.
+     * @return The bindings it opens or closes, or null if it isn't a command that can be batched, E.g. "port list".
+     * @throws IllegalArgumentException If it's a port open or close command with invalid syntax.
+     */
+    private static List<Bind> parsePorts(String[] args) throws IllegalArgumentException {
+        if(!args[0].equals("port") || args.length < 2 || !(args[1].equals("open") || args[1].equals("close"))){
+            return null;
+        }
+        boolean open = args[1].equals("open");
+        if(!open && args.length > 2 && args[2].equals("index")){
+            // Indexes depend on what's registered when the line runs.
+            return null;
+        }
+        if(args.length < 4){
+            throw new IllegalArgumentException("Missing protocol or ports. Usage: port "+args[1]+" <tcp, udp> <ports>"+(open ? " [lease] [--gateway=<ip>[,<ip>...]]" : ""));
+        }
+
+        Protocol protocol;
+        if(args[2].equals("tcp")){
+            protocol = Protocol.TCP;
+        }
+        else if(args[2].equals("udp")){
+            protocol = Protocol.UDP;
+        }
+        else{
+            throw new IllegalArgumentException("Unknown protocol \""+args[2]+"\". Use tcp or udp.");
+        }
+        int[] ports = Ports.parse(args[3]);
+
+        int lease = 0;
+        List<String> gateways = List.of();
+        for(int i = 4; i < args.length; i++){
+            if(open && args[i].startsWith("--gateway=")){
+                gateways = Arrays.asList(args[i].substring("--gateway=".length()).split(","));
+            }
+            else if(open && i == 4){
+                try {
+                    lease = Integer.parseInt(args[i]);
+                } catch (NumberFormatException e) {
+                    throw new IllegalArgumentException("Invalid lease: "+args[i]);
+                }
+                if(lease < 0 || lease > Bind.MAX_LEASE_SECONDS){
+                    throw new IllegalArgumentException("Invalid lease duration. Accepted range: 0-"+Bind.MAX_LEASE_SECONDS+" seconds.");
+                }
+            }
+            else{
+                throw new IllegalArgumentException("Unexpected argument: "+args[i]);
+            }
+        }
+        try {
+            Bind.checkGateways(gateways);
+        } catch (JSONException e) {
+            throw new IllegalArgumentException(e.getMessage());
+        }
+
+        ArrayList<Bind> binds = new ArrayList<>(ports.length);
+        for(int port : ports){
+            binds.add(open ? new Bind(protocol, port, lease, null, gateways) : new Bind(protocol, port));
+        }
+        return binds;
+    }
+
+    /**
+     * @return Where the script came from.
+     */
+    public String getName(){
+        return name;
+    }
+
+    /**
+     * @return True if the script ends with "stop", asking for CLIPnP to stop once it has run.
+     */
+    public boolean stops(){
+        return stops;
+    }
+
+    /**
+     * Runs every step in order, then prints a single summary of the whole script.
+     * @param cliPnP Where to open and close the batched ports.
+     * @return True if every command succeeded. A command fails if any binding in it couldn't be opened or closed, or if
+     * it sent an error message.
+     */
+    public boolean run(CLIPnP cliPnP){
+        long start = System.nanoTime();
+        BatchResult opened = new BatchResult();
+        BatchResult closed = new BatchResult();
+        int failedCommands = 0;
+        int skipped = 0;
+
+        for(Step step : steps){
+            if(step.command != null){
+                long errors = Console.getErrorCount();
+                Main.dispatch(step.command.trim());
+                if(Console.getErrorCount() > errors){
+                    Console.sendError(name+":"+step.line+": Command failed: "+step.command.trim());
+                    failedCommands++;
+                }
+                continue;
+            }
+
+            // Targets are only known once the gateways have been found, so they are checked as the batch runs.
+            // Bindings from one line share their targets, so each line is only checked (and complained about) once.
+            ArrayList<Bind> opens = new ArrayList<>(step.opens.size());
+            List<String> checked = null;
+            boolean known = true;
+            for(Bind bind : step.opens){
+                if(!bind.getGateways().equals(checked)){
+                    checked = bind.getGateways();
+                    known = cliPnP.checkGateways(checked);
+                }
+                if(known){
+                    opens.add(bind);
+                }
+                else{
+                    opened.record(bind, false);
+                }
+            }
+
+            // Opens and closes in one batch never share a port, so both go out at once.
+            CompletableFuture<BatchResult> closing = step.closes.isEmpty()
+                    ? CompletableFuture.completedFuture(new BatchResult())
+                    : CompletableFuture.supplyAsync(() -> cliPnP.closeBindings(step.closes), cliPnP::execute);
+            BatchResult result = cliPnP.openBindings(opens);
+            skipped += opens.size() - result.getTotal();
+            opened.addAll(result);
+            closed.addAll(closing.join());
+        }
+
+        double seconds = (System.nanoTime() - start) / 1e9;
+        if(opened.getTotal() > 0 || skipped > 0){
+            sendSummary(opened, "Opened");
+        }
+        if(skipped > 0){
+            Console.sendWarning(skipped+" bindings were already open and were left as they were.");
+        }
+        if(closed.getTotal() > 0){
+            sendSummary(closed, "Closed");
+        }
+        boolean success = failedCommands == 0 && opened.getFailureCount() == 0 && closed.getFailureCount() == 0;
+        String summary = String.format("Ran %s in %.2f seconds: %d steps, %d commands failed, %d bindings failed.", name, seconds,
+                steps.size(), failedCommands, opened.getFailureCount() + closed.getFailureCount());
+        if(success){
+            Console.sendResponse(summary);
+        }
+        else{
+            Console.sendError(summary);
+        }
+        return success;
+    }
+
+    /**
+     * Prints a batch summary, as an error if any binding in the batch failed.
+     * @param result The finished batch.
+     * @param verb The past-tense action performed, E.g. "Opened".
+     */
+    private static void sendSummary(BatchResult result, String verb){
+        if(result.getFailureCount() > 0){
+            Console.sendError(result.summary(verb));
+        }
+        else{
+            Console.sendResponse(result.summary(verb));
+        }
+    }
+
+    /**
+     * One step of a script: either a single command, or a batch of port opens and closes that share no port.
+     */
+    private static class Step {
+
+        private final int line;
+        private final String command;
+        private final ArrayList<Bind> opens = new ArrayList<>();
+        private final ArrayList<Bind> closes = new ArrayList<>();
+        private final BitSet keys = new BitSet(Bind.KEY_SPACE);
+
+        /**
+         * @param line The line number the step starts on.
+         * @param command The command to run on its own, or null for a batch.
+         */
+        private Step(int line, String command){
+            this.line = line;
+            this.command = command;
+        }
+
+        /**
+         * @param binds Bindings from the next line.
+         * @return True if the batch already opens or closes any of them.
+         */
+        private boolean touches(List<Bind> binds){
+            for(Bind bind : binds){
+                if(keys.get(bind.getKey())){
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        /**
+         * Adds a line's bindings to the batch.
+         * @param binds The bindings.
+         * @param open True to open them, false to close them.
+         */
+        private void add(List<Bind> binds, boolean open){
+            for(Bind bind : binds){
+                keys.set(bind.getKey());
+            }
+            (open ? opens : closes).addAll(binds);
+        }
+    }
+}
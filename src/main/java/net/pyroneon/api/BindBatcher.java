@@ -0,0 +1,233 @@
+package net.pyroneon.api;
+
+import net.pyroneon.engine.BatchResult;
+import net.pyroneon.util.Bind;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+/**
+ * Merges bind requests that arrive together into a single batch, so a burst of API calls costs one concurrent pass
+ * through the mapping engine instead of one pass each. Every caller still gets the outcome of its own binds.
+ */
+class BindBatcher {
+
+    /** How long the flusher waits for more requests to join a batch once the first one has arrived. */
+    static final long LINGER_MILLIS = 10;
+
+    private final Function<List<Bind>, BatchResult> operation;
+    private final boolean repeatsShareOutcome;
+    private final LinkedBlockingQueue<Request> queue = new LinkedBlockingQueue<>();
+    private final Thread flusher;
+    private volatile boolean running = true;
+
+    /**
+     * Creates a batcher and starts its flusher thread.
+     * @param operation Performs a merged batch, E.g. CLIPnP::openBindings. Only ever called from the flusher thread.
+     * @param repeatsShareOutcome Whether a bind that an earlier request in the same batch already asked for gets that
+     * request's outcome. If not, it is reported as skipped when that succeeded, as it would have been had the requests
+     * been performed one after the other, E.g. an open of a binding that already exists.
+     * @param name The name of the flusher thread.
+     */
+    BindBatcher(Function<List<Bind>, BatchResult> operation, boolean repeatsShareOutcome, String name){
+        this.operation = operation;
+        this.repeatsShareOutcome = repeatsShareOutcome;
+        flusher = new Thread(this::run, name);
+        flusher.setDaemon(true);
+        flusher.start();
+    }
+
+    /**
+     * Queues some binds to join the next batch.
+     * @param binds The binds to perform the operation on.
+     * @return Completes with the outcome of the batch they were part of, once it has finished.
+     */
+    CompletableFuture<Outcome> submit(List<Bind> binds){
+        Request request = new Request(binds);
+        if(!running){
+            request.future.completeExceptionally(new IllegalStateException("The API is shutting down."));
+            return request.future;
+        }
+        queue.add(request);
+        return request.future;
+    }
+
+    /**
+     * Stops the flusher thread. Requests still queued are failed instead of performed.
+     */
+    void shutdown(){
+        running = false;
+        flusher.interrupt();
+        ArrayList<Request> queued = new ArrayList<>();
+        queue.drainTo(queued);
+        fail(queued);
+    }
+
+    /**
+     * Fails requests that won't be performed because the API is shutting down.
+     * @param requests The requests.
+     */
+    private static void fail(List<Request> requests){
+        for(Request request : requests){
+            request.future.completeExceptionally(new IllegalStateException("The API is shutting down."));
+        }
+    }
+
+    /**
+     * Takes the first waiting request, lingers briefly for others to join it, then performs them all as one batch.
+     * Requests held back from the last batch go first, so later ones can't starve them.
+     */
+    private void run(){
+        List<Request> deferred = List.of();
+        while(running){
+            ArrayList<Request> batch = new ArrayList<>(deferred);
+            try {
+                if(batch.isEmpty()){
+                    batch.add(queue.take());
+                }
+                long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(LINGER_MILLIS);
+                long remaining;
+                while((remaining = deadline - System.nanoTime()) > 0){
+                    Request next = queue.poll(remaining, TimeUnit.NANOSECONDS);
+                    if(next == null){
+                        break;
+                    }
+                    batch.add(next);
+                }
+            } catch (InterruptedException e) {
+                fail(batch);
+                return;
+            }
+            queue.drainTo(batch);
+            deferred = flush(batch);
+        }
+        fail(deferred);
+    }
+
+    /**
+     * Performs one merged batch and hands each request in it the outcome of its own binds. A bind asked for again in
+     * exactly the same way is only performed once. A request that asks for a port/protocol differently to an earlier
+     * request in the batch, E.g. with another lease, is held back for the next batch instead, so it is performed after
+     * that request as if the two had arrived apart.
+     * @param batch The requests to merge.
+     * @return The requests held back.
+     */
+    private List<Request> flush(List<Request> batch){
+        // The first request to ask for each port/protocol, and the bind it asked for.
+        HashMap<Integer, Request> owners = new HashMap<>();
+        HashMap<Integer, Bind> claimed = new HashMap<>();
+        ArrayList<Request> performed = new ArrayList<>(batch.size());
+        ArrayList<Request> deferred = new ArrayList<>();
+        ArrayList<Bind> merged = new ArrayList<>();
+        for(Request request : batch){
+            if(conflicts(request, claimed)){
+                deferred.add(request);
+                continue;
+            }
+            performed.add(request);
+            for(Bind bind : request.binds){
+                if(claimed.putIfAbsent(bind.getKey(), bind) == null){
+                    owners.put(bind.getKey(), request);
+                    merged.add(bind);
+                }
+            }
+        }
+
+        try {
+            BatchResult result = operation.apply(merged);
+            for(Request request : performed){
+                request.future.complete(new Outcome(result, request, owners, repeatsShareOutcome));
+            }
+        } catch (RuntimeException e) {
+            for(Request request : performed){
+                request.future.completeExceptionally(e);
+            }
+        }
+        return deferred;
+    }
+
+    /**
+     * @param request A request.
+     * @param claimed The binds already in the batch, by key.
+     * @return True if it asks for a port/protocol already in the batch, but with another lease, description or
+     * gateways.
+     */
+    private static boolean conflicts(Request request, Map<Integer, Bind> claimed){
+        for(Bind bind : request.binds){
+            Bind other = claimed.get(bind.getKey());
+            if(other != null && !other.sameAs(bind)){
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Some binds waiting to be performed, and the future their caller waits on.
+     */
+    private static class Request {
+        private final List<Bind> binds;
+        private final CompletableFuture<Outcome> future = new CompletableFuture<>();
+
+        private Request(List<Bind> binds){
+            this.binds = binds;
+        }
+    }
+
+    /**
+     * The outcome of one request's binds in a merged batch, indexed by bind key so its caller can look them up cheaply.
+     */
+    static class Outcome {
+        private final BitSet succeeded = new BitSet(Bind.KEY_SPACE);
+        private final BitSet failed = new BitSet(Bind.KEY_SPACE);
+
+        /**
+         * @param result The finished batch.
+         * @param request The request to take the outcome of.
+         * @param owners The request that first asked for each bind in the batch, by key.
+         * @param repeatsShareOutcome Whether binds another request asked for first get that request's outcome, or
+         * are reported as skipped if it succeeded.
+         */
+        private Outcome(BatchResult result, Request request, Map<Integer, Request> owners, boolean repeatsShareOutcome){
+            BitSet mine = new BitSet(Bind.KEY_SPACE);
+            for(Bind bind : request.binds){
+                mine.set(bind.getKey());
+            }
+            for(Bind bind : result.getSucceeded()){
+                int key = bind.getKey();
+                if(mine.get(key) && (repeatsShareOutcome || owners.get(key) == request)){
+                    succeeded.set(key);
+                }
+            }
+            // A repeat of a bind that failed would have failed again.
+            for(Bind bind : result.getFailed()){
+                if(mine.get(bind.getKey())){
+                    failed.set(bind.getKey());
+                }
+            }
+        }
+
+        /**
+         * @param bind A bind from the request.
+         * @return True if the operation succeeded for it.
+         */
+        boolean succeeded(Bind bind){
+            return succeeded.get(bind.getKey());
+        }
+
+        /**
+         * @param bind A bind from the request.
+         * @return True if the operation was performed for it and failed, false if it succeeded or was skipped.
+         */
+        boolean failed(Bind bind){
+            return failed.get(bind.getKey());
+        }
+    }
+}
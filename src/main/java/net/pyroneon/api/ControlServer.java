@@ -0,0 +1,526 @@
+package net.pyroneon.api;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import net.pyroneon.CLIPnP;
+import net.pyroneon.engine.BatchResult;
+import net.pyroneon.util.Bind;
+import net.pyroneon.util.Ports;
+import net.pyroneon.util.Protocol;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.BooleanSupplier;
+
+/**
+ * A local HTTP/JSON control API, so other tools can drive CLIPnP without parsing console output. Only listens on the
+ * loopback address. Every endpoint calls the same CLIPnP methods as the console commands, and opens/closes that arrive
+ * together are merged into one batch.
+ * <pre>
+ * GET  /bindings[?refresh=true]                          - Registered bindings and whether each is open.
+ * POST /ports/open   {"protocol","ports"[,"lease"][,"gateways"]} - Opens ports, E.g. "ports": "80,443,27000-27100",
+ *                                                          on every gateway unless "gateways" lists their addresses.
+ * POST /ports/close  {"protocol","ports"}                - Closes ports, registered or not.
+ * GET  /ports/query?protocol=tcp&amp;port=80[&amp;refresh=true] - A single port's registration and open state.
+ * POST /config/add   {"path"}                            - Opens every binding from a config file.
+ * POST /config/save  {"path"}                            - Saves the registered bindings to a config file.
+ * GET  /network                                          - Local, public and gateway addresses of the primary
+ *                                                          gateway, and of every gateway under "gateways".
+ * </pre>
+ * Failures are answered with {"error": message} and a 4xx/5xx status. Endpoints that talk to the router wait for it to
+ * be found and set up, like the console commands do, and answer 503 if it isn't ready in time.
+ * <p>
+ * Listening on loopback doesn't keep out web pages open in the user's browser, which can post forms to it or reach it
+ * through DNS rebinding. So every request must carry the per-run token as "Authorization: Bearer &lt;token&gt;" and name a
+ * loopback Host, and POST bodies must be sent as application/json, which a page can't do without the API's consent.
+ */
+public class ControlServer {
+
+    /** The largest request body accepted, config paths and port lists are far smaller than this. */
+    private static final int MAX_BODY_BYTES = 64 * 1024;
+    /** The hosts a request may name in its Host header, followed by the API's port. */
+    private static final List<String> LOOPBACK_HOSTS = List.of("127.0.0.1", "localhost", "[::1]");
+
+    private final CLIPnP cliPnP;
+    private final HttpServer server;
+    private final ExecutorService workers;
+    private final BindBatcher opens;
+    private final BindBatcher closes;
+    private final String token;
+    private final BooleanSupplier gatewayReady;
+
+    /**
+     * Creates the server, binds it to the loopback address and picks a fresh token. Call start() to begin serving.
+     * @param cliPnP The instance every request acts on.
+     * @param port The local port to listen on, 0 for any free port.
+     * @param gatewayReady Waits for the router to be found and set up, returning false if there's none or it took too
+     * long. Called before every request that talks to the router.
+     * @throws IOException If the port couldn't be bound.
+     */
+    public ControlServer(CLIPnP cliPnP, int port, BooleanSupplier gatewayReady) throws IOException {
+        this.cliPnP = cliPnP;
+        this.gatewayReady = gatewayReady;
+        byte[] secret = new byte[24];
+        new SecureRandom().nextBytes(secret);
+        token = Base64.getUrlEncoder().withoutPadding().encodeToString(secret);
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        workers = Executors.newCachedThreadPool(runnable -> {
+            Thread thread = new Thread(runnable, "CLIPnP-api");
+            thread.setDaemon(true);
+            return thread;
+        });
+        server.setExecutor(workers);
+        opens = new BindBatcher(cliPnP::openBindings, false, "CLIPnP-api-open");
+        closes = new BindBatcher(cliPnP::closeBindings, true, "CLIPnP-api-close");
+
+        server.createContext("/bindings", exchange -> handle(exchange, "GET", this::bindings));
+        server.createContext("/ports/open", exchange -> handle(exchange, "POST", this::open));
+        server.createContext("/ports/close", exchange -> handle(exchange, "POST", this::close));
+        server.createContext("/ports/query", exchange -> handle(exchange, "GET", this::query));
+        server.createContext("/config/add", exchange -> handle(exchange, "POST", this::addConfig));
+        server.createContext("/config/save", exchange -> handle(exchange, "POST", this::saveConfig));
+        server.createContext("/network", exchange -> handle(exchange, "GET", this::network));
+    }
+
+    /**
+     * Starts serving requests in the background.
+     */
+    public void start(){
+        server.start();
+    }
+
+    /**
+     * @return The local port the server is listening on.
+     */
+    public int getPort(){
+        return server.getAddress().getPort();
+    }
+
+    /**
+     * @return The token every request must carry, as "Authorization: Bearer &lt;token&gt;". New on every run.
+     */
+    public String getToken(){
+        return token;
+    }
+
+    /**
+     * Stops accepting requests, fails any still waiting to be batched and stops the worker threads.
+     */
+    public void stop(){
+        server.stop(0);
+        opens.shutdown();
+        closes.shutdown();
+        workers.shutdownNow();
+    }
+
+    /**
+     * GET /bindings
+     * @param exchange The request.
+     * @return Every registered binding with its open state.
+     */
+    private JSONObject bindings(HttpExchange exchange){
+        boolean refresh = "true".equals(getQuery(exchange).get("refresh"));
+        if(refresh){
+            requireGateway();
+        }
+        JSONArray jarray = new JSONArray();
+        for(Map.Entry<Bind, Boolean> entry : cliPnP.getBindingStates(refresh).entrySet()){
+            jarray.put(entry.getKey().toJSON().put("open", entry.getValue()));
+        }
+        return new JSONObject().put("bindings", jarray);
+    }
+
+    /**
+     * POST /ports/open
+     * @param exchange The request.
+     * @return The status of each port: "opened", "failed" or "exists" if it was already registered.
+     * @throws IOException If the body couldn't be read.
+     */
+    private JSONObject open(HttpExchange exchange) throws IOException {
+        JSONObject body = readBody(exchange);
+        Protocol protocol = getProtocol(body.optString("protocol"));
+        int lease = body.optInt("lease", 0);
+        if(lease < 0 || lease > Bind.MAX_LEASE_SECONDS){
+            throw new ApiException(400, "Invalid lease duration. Accepted range: 0-"+Bind.MAX_LEASE_SECONDS+" seconds.");
+        }
+        List<String> gateways = new ArrayList<>();
+        JSONArray targets = body.optJSONArray("gateways");
+        try {
+            for(int i = 0; targets != null && i < targets.length(); i++){
+                gateways.add(targets.getString(i));
+            }
+            Bind.checkGateways(gateways);
+        } catch (JSONException e) {
+            throw new ApiException(400, e.getMessage());
+        }
+        List<Bind> binds = getBinds(protocol, body, lease, gateways);
+        requireGateway();
+        BindBatcher.Outcome outcome = await(opens.submit(binds));
+
+        JSONArray ports = new JSONArray();
+        int opened = 0;
+        int failed = 0;
+        for(Bind bind : binds){
+            String status;
+            if(outcome.succeeded(bind)){
+                status = "opened";
+                opened++;
+            }
+            else if(outcome.failed(bind)){
+                status = "failed";
+                failed++;
+            }
+            else{
+                status = "exists";
+            }
+            ports.put(new JSONObject().put("port", bind.getPort()).put("status", status));
+        }
+        return new JSONObject().put("protocol", protocol.name()).put("opened", opened).put("failed", failed).put("ports", ports);
+    }
+
+    /**
+     * POST /ports/close
+     * @param exchange The request.
+     * @return The status of each port: "closed" or "failed".
+     * @throws IOException If the body couldn't be read.
+     */
+    private JSONObject close(HttpExchange exchange) throws IOException {
+        JSONObject body = readBody(exchange);
+        Protocol protocol = getProtocol(body.optString("protocol"));
+        List<Bind> binds = getBinds(protocol, body, 0, List.of());
+        requireGateway();
+        BindBatcher.Outcome outcome = await(closes.submit(binds));
+
+        JSONArray ports = new JSONArray();
+        int closed = 0;
+        for(Bind bind : binds){
+            boolean success = outcome.succeeded(bind);
+            if(success){
+                closed++;
+            }
+            ports.put(new JSONObject().put("port", bind.getPort()).put("status", success ? "closed" : "failed"));
+        }
+        return new JSONObject().put("protocol", protocol.name()).put("closed", closed)
+                .put("failed", binds.size() - closed).put("ports", ports);
+    }
+
+    /**
+     * GET /ports/query
+     * @param exchange The request.
+     * @return Whether the port is registered (and as what) and whether it's open.
+     */
+    private JSONObject query(HttpExchange exchange){
+        Map<String, String> query = getQuery(exchange);
+        Protocol protocol = getProtocol(query.get("protocol"));
+        int port;
+        try {
+            port = Integer.parseInt(query.getOrDefault("port", ""));
+        } catch (NumberFormatException e) {
+            throw new ApiException(400, "Missing or invalid \"port\" parameter.");
+        }
+        if(port < 0 || port > 65535){
+            throw new ApiException(400, "Invalid port number. Accepted range: 0-65535.");
+        }
+
+        requireGateway();
+        boolean open = cliPnP.isOpen(protocol, port, "true".equals(query.get("refresh")));
+        Bind bind = cliPnP.containsBind(new Bind(protocol, port));
+        JSONObject toReturn = new JSONObject().put("protocol", protocol.name()).put("port", port)
+                .put("registered", bind != null).put("open", open);
+        if(bind != null){
+            toReturn.put("binding", bind.toJSON());
+        }
+        return toReturn;
+    }
+
+    /**
+     * POST /config/add
+     * @param exchange The request.
+     * @return How many new bindings were opened, and which failed.
+     * @throws IOException If the body couldn't be read.
+     */
+    private JSONObject addConfig(HttpExchange exchange) throws IOException {
+        String path = getPath(readBody(exchange));
+        requireGateway();
+        BatchResult result;
+        try {
+            result = cliPnP.loadConfig(path);
+        } catch (IOException | JSONException e) {
+            throw new ApiException(400, "Could not get config data from file: "+path);
+        }
+        JSONArray failures = new JSONArray();
+        for(Bind bind : result.getFailed()){
+            failures.put(bind.toJSON());
+        }
+        return new JSONObject().put("opened", result.getSuccessCount()).put("failed", failures);
+    }
+
+    /**
+     * POST /config/save
+     * @param exchange The request.
+     * @return The path that was written.
+     * @throws IOException If the body couldn't be read.
+     */
+    private JSONObject saveConfig(HttpExchange exchange) throws IOException {
+        String path = getPath(readBody(exchange));
+        try {
+            cliPnP.writeConfig(path);
+        } catch (IOException e) {
+            throw new ApiException(500, "Failed to save config to "+path);
+        }
+        return new JSONObject().put("saved", path);
+    }
+
+    /**
+     * GET /network
+     * @param exchange The request.
+     * @return The primary gateway's local, public and gateway addresses, and every gateway's under "gateways".
+     */
+    private JSONObject network(HttpExchange exchange){
+        requireGateway();
+        List<Map<String, String>> info = cliPnP.getNetworkInfo();
+        if(info == null){
+            throw new ApiException(503, "Could not find a UPnP gateway on this network.");
+        }
+        JSONArray gateways = new JSONArray();
+        for(Map<String, String> gateway : info){
+            gateways.put(new JSONObject(gateway));
+        }
+        return new JSONObject(info.get(0)).put("gateways", gateways);
+    }
+
+    /**
+     * Runs an endpoint and writes its JSON answer, or an error object if it failed.
+     * @param exchange The request.
+     * @param method The only HTTP method the endpoint accepts.
+     * @param endpoint The endpoint to run.
+     * @throws IOException If the answer couldn't be written.
+     */
+    private void handle(HttpExchange exchange, String method, Endpoint endpoint) throws IOException {
+        int status = 200;
+        JSONObject answer;
+        try {
+            if(!exchange.getRequestMethod().equals(method)){
+                exchange.getResponseHeaders().set("Allow", method);
+                throw new ApiException(405, "Use "+method+" for "+exchange.getHttpContext().getPath()+".");
+            }
+            if(!exchange.getRequestURI().getPath().equals(exchange.getHttpContext().getPath())){
+                throw new ApiException(404, "Unknown endpoint.");
+            }
+            checkOrigin(exchange);
+            answer = endpoint.handle(exchange);
+        } catch (ApiException e) {
+            status = e.status;
+            answer = new JSONObject().put("error", e.getMessage());
+        } catch (RuntimeException e) {
+            status = 500;
+            answer = new JSONObject().put("error", String.valueOf(e.getMessage()));
+        }
+
+        byte[] bytes = answer.toString().getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+
+    /**
+     * Waits for the router before a request that talks to it.
+     */
+    private void requireGateway(){
+        if(!gatewayReady.getAsBoolean()){
+            throw new ApiException(503, "The router isn't ready: it is still being searched for or set up, or there is no UPnP gateway on this network.");
+        }
+    }
+
+    /**
+     * Refuses requests that could have come from a web page rather than a local tool.
+     * @param exchange The request.
+     */
+    private void checkOrigin(HttpExchange exchange){
+        // A rebound DNS name still reaches the loopback address, but names itself in Host.
+        String host = String.valueOf(exchange.getRequestHeaders().getFirst("Host"));
+        boolean loopback = false;
+        for(String name : LOOPBACK_HOSTS){
+            loopback |= host.equalsIgnoreCase(name+":"+getPort());
+        }
+        if(!loopback){
+            throw new ApiException(403, "Requests must be addressed to 127.0.0.1:"+getPort()+".");
+        }
+        String authorization = String.valueOf(exchange.getRequestHeaders().getFirst("Authorization"));
+        byte[] expected = ("Bearer "+token).getBytes(StandardCharsets.UTF_8);
+        if(!MessageDigest.isEqual(expected, authorization.getBytes(StandardCharsets.UTF_8))){
+            exchange.getResponseHeaders().set("WWW-Authenticate", "Bearer");
+            throw new ApiException(401, "Missing or wrong API token. It is shown when CLIPnP starts the API.");
+        }
+        // A page can only send a JSON content type cross-origin after a preflight, which this API never answers.
+        String type = String.valueOf(exchange.getRequestHeaders().getFirst("Content-Type"));
+        if(exchange.getRequestMethod().equals("POST") && !type.toLowerCase().split(";", 2)[0].trim().equals("application/json")){
+            throw new ApiException(415, "Request bodies must be sent as application/json.");
+        }
+    }
+
+    /**
+     * Waits for a batch this request joined.
+     * @param future The batch's future.
+     * @return The outcome of the batch.
+     */
+    private static BindBatcher.Outcome await(CompletableFuture<BindBatcher.Outcome> future){
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ApiException(503, "The API is shutting down.");
+        } catch (ExecutionException e) {
+            throw new ApiException(503, String.valueOf(e.getCause().getMessage()));
+        }
+    }
+
+    /**
+     * Reads a request body as a JSON object.
+     * @param exchange The request.
+     * @return The parsed body, an empty object if there was none.
+     * @throws IOException If the body couldn't be read.
+     */
+    private static JSONObject readBody(HttpExchange exchange) throws IOException {
+        byte[] bytes;
+        try (InputStream in = exchange.getRequestBody()) {
+            bytes = in.readNBytes(MAX_BODY_BYTES + 1);
+        }
+        if(bytes.length > MAX_BODY_BYTES){
+            throw new ApiException(413, "Request body is too large.");
+        }
+        String text = new String(bytes, StandardCharsets.UTF_8);
+        if(text.isBlank()){
+            return new JSONObject();
+        }
+        try {
+            return new JSONObject(text);
+        } catch (JSONException e) {
+            throw new ApiException(400, "Request body is not a JSON object: "+e.getMessage());
+        }
+    }
+
+    /**
+     * Parses a query string into its parameters.
+     * @param exchange The request.
+     * @return Each parameter's decoded value. A parameter given more than once keeps its last value.
+     */
+    private static Map<String, String> getQuery(HttpExchange exchange){
+        HashMap<String, String> toReturn = new HashMap<>();
+        String raw = exchange.getRequestURI().getRawQuery();
+        if(raw == null){
+            return toReturn;
+        }
+        for(String pair : raw.split("&")){
+            int split = pair.indexOf('=');
+            String name = split < 0 ? pair : pair.substring(0, split);
+            String value = split < 0 ? "" : pair.substring(split+1);
+            toReturn.put(URLDecoder.decode(name, StandardCharsets.UTF_8), URLDecoder.decode(value, StandardCharsets.UTF_8));
+        }
+        return toReturn;
+    }
+
+    /**
+     * @param name The protocol name in any case, E.g. "tcp".
+     * @return The protocol.
+     */
+    private static Protocol getProtocol(String name){
+        if(name != null){
+            for(Protocol protocol : Protocol.values()){
+                if(protocol.name().equalsIgnoreCase(name)){
+                    return protocol;
+                }
+            }
+        }
+        throw new ApiException(400, "Missing or invalid \"protocol\", expected \"tcp\" or \"udp\".");
+    }
+
+    /**
+     * Builds binds from a body's "ports", which is either a single number or a string in the console's port syntax.
+     * @param protocol The protocol of every bind.
+     * @param body The request body.
+     * @param lease The lease of every bind, 0 for permanent binds.
+     * @param gateways The target gateways of every bind, empty for every gateway.
+     * @return One bind per port, in ascending port order.
+     */
+    private static List<Bind> getBinds(Protocol protocol, JSONObject body, int lease, List<String> gateways){
+        Object ports = body.opt("ports");
+        if(ports == null){
+            throw new ApiException(400, "Missing \"ports\", E.g. 25565 or \"80,443,27000-27100\".");
+        }
+        int[] parsed;
+        try {
+            parsed = Ports.parse(ports.toString());
+        } catch (IllegalArgumentException e) {
+            throw new ApiException(400, e.getMessage());
+        }
+        ArrayList<Bind> toReturn = new ArrayList<>(parsed.length);
+        for(int port : parsed){
+            toReturn.add(new Bind(protocol, port, lease, null, gateways));
+        }
+        return toReturn;
+    }
+
+    /**
+     * @param body The request body.
+     * @return The body's "path".
+     */
+    private static String getPath(JSONObject body){
+        String path = body.optString("path");
+        if(path.isEmpty()){
+            throw new ApiException(400, "Missing \"path\".");
+        }
+        return path;
+    }
+
+    /**
+     * A single API endpoint.
+     */
+    @FunctionalInterface
+    private interface Endpoint {
+        /**
+         * @param exchange The request.
+         * @return The JSON answer.
+         * @throws IOException If the request couldn't be read.
+         */
+        JSONObject handle(HttpExchange exchange) throws IOException;
+    }
+
+    /**
+     * Ends a request early with an HTTP error status and a message.
+     */
+    private static class ApiException extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+        private final int status;
+
+        /**
+         * @param status The HTTP status to answer with.
+         * @param message Explains what was wrong with the request.
+         */
+        private ApiException(int status, String message){
+            super(message);
+            this.status = status;
+        }
+    }
+}
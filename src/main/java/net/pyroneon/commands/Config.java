@@ -2,7 +2,16 @@ package net.pyroneon.commands;
 
 import net.pyroneon.Main;
 import net.pyroneon.util.Console;
+import net.pyroneon.storage.ConfigFormat;
+import net.pyroneon.util.Bind;
 import net.pyroneon.util.Path;
+import net.pyroneon.util.Protocol;
+import org.json.JSONException;
+
+import java.io.IOException;
+import java.nio.file.InvalidPathException;
+import java.util.BitSet;
+import java.util.List;
 
 /**
  * Handles all user interactions with the configuration settings.
@@ -14,7 +23,7 @@ public class Config {
      * @param msg Takes the entire unparsed message as parameter.
      */
     public static void execute(String msg){
-        String[] parsed = msg.split(" ");
+        String[] parsed = Main.tokenize(msg);
         if(parsed.length <= 1){
             help();
             return;
@@ -27,6 +36,30 @@ public class Config {
             save(msg);
             return;
         }
+        else if (parsed[1].equals("apply")) {
+            apply(msg);
+            return;
+        }
+        else if (parsed[1].equals("autosave")) {
+            autosave(msg, parsed);
+            return;
+        }
+        else if (parsed[1].equals("convert")) {
+            convert(msg);
+            return;
+        }
+        else if (parsed[1].equals("validate")) {
+            validate(msg);
+            return;
+        }
+        else if (parsed[1].equals("concurrency")) {
+            concurrency(parsed);
+            return;
+        }
+        else if (parsed[1].equals("cache-ttl")) {
+            cacheTTL(parsed);
+            return;
+        }
 
         Console.sendSyntaxError(Config.class.getSimpleName());
     }
@@ -39,6 +72,14 @@ public class Config {
         Main.cliPnP.addConfig(Path.getFilepath(msg));
     }
 
+    /**
+     * Makes the current config match a file, opening and closing only what differs.
+     * @param msg Takes the entire unparsed message as parameter.
+     */
+    private static void apply(String msg){
+        Main.cliPnP.applyConfigFile(Path.getFilepath(msg), msg.contains("--refresh"));
+    }
+
     /**
      * Saves the config to a file.
      * @param msg Takes the entire unparsed message as parameter.
@@ -47,13 +88,104 @@ public class Config {
         Main.cliPnP.save(Path.getSaveFilepath(msg));
     }
 
+    /**
+     * Turns autosaving on for a file, or off.
+     * @param msg Takes the entire unparsed message as parameter.
+     * @param args Parsed list of each argument.
+     */
+    private static void autosave(String msg, String[] args){
+        if(args.length > 2 && args[2].equals("off")){
+            Main.cliPnP.setAutosave(null);
+            return;
+        }
+        Main.cliPnP.setAutosave(Path.getSaveFilepath(msg));
+    }
+
+    /**
+     * Converts a config file between the JSON and binary formats.
+     * @param msg Takes the entire unparsed message as parameter.
+     */
+    private static void convert(String msg){
+        List<String> paths = Path.getPathsInQuotes(msg);
+        if(paths.size() != 2){
+            Console.sendSyntaxError(Config.class.getSimpleName());
+            return;
+        }
+        String source = Path.getFilepath("'"+paths.get(0)+"'");
+        try {
+            int count = ConfigFormat.convert(source, paths.get(1));
+            Console.sendResponse("Converted "+count+" bindings to "+ConfigFormat.forFilename(paths.get(1))+" config "+paths.get(1));
+        } catch (IOException | JSONException e) {
+            Console.sendError("Could not convert "+source+": "+e.getMessage());
+        }
+    }
+
+    /**
+     * Checks a config file without opening anything, so it works before (or without) a router: reads every binding,
+     * and reports how many there are and any that repeat a protocol and port.
+     * @param msg Takes the entire unparsed message as parameter.
+     */
+    private static void validate(String msg){
+        String filepath = Path.getFilepath(msg);
+        BitSet seen = new BitSet(Bind.KEY_SPACE);
+        int[] counts = new int[3];
+        try {
+            ConfigFormat format = ConfigFormat.detect(java.nio.file.Path.of(filepath));
+            int read = ConfigFormat.read(filepath, bind -> {
+                counts[bind.getProtocol() == Protocol.TCP ? 0 : 1]++;
+                if(seen.get(bind.getKey())){
+                    counts[2]++;
+                }
+                seen.set(bind.getKey());
+            });
+            Console.sendResponse(filepath+" is a valid "+format+" config with "+read+" bindings ("+counts[0]+" TCP, "+counts[1]+" UDP).");
+            if(counts[2] > 0){
+                Console.sendWarning(counts[2]+" bindings repeat a protocol and port earlier in the file. Only the first of each is used.");
+            }
+        } catch (IOException | JSONException | InvalidPathException e) {
+            Console.sendError(filepath+" is not a valid config: "+e.getMessage());
+        }
+    }
+
+    /**
+     * Sets how many gateway requests are sent at once when opening or closing many ports.
+     * @param args Parsed list of each argument.
+     */
+    private static void concurrency(String[] args){
+        try {
+            Main.cliPnP.setConcurrency(Integer.parseInt(args[2]));
+        } catch (IndexOutOfBoundsException | NumberFormatException e) {
+            Console.sendSyntaxError(Config.class.getSimpleName());
+        }
+    }
+
+    /**
+     * Sets how long port open/closed states are cached for.
+     * @param args Parsed list of each argument.
+     */
+    private static void cacheTTL(String[] args){
+        try {
+            Main.cliPnP.setCacheTTL(Integer.parseInt(args[2]));
+        } catch (IndexOutOfBoundsException | NumberFormatException e) {
+            Console.sendSyntaxError(Config.class.getSimpleName());
+        }
+    }
+
     /**
      * Displays some helpful information about this command.
      */
     public static void help(){
         Console.println("""
                 \t config - Interact with the config.
-                \t\t config add <filepath> - Adds bindings from a file, to current config. (Use single quotes)
-                \t\t config save <directory> - Saves current config to a directory (Use single quotes), as "config.json\"""");
+                \t\t config add <filepath> - Adds bindings from a JSON or binary config file, to current config. (Use single quotes)
+                \t\t config apply <filepath> [--refresh] - Makes current config match a file, only opening and closing the bindings that differ. (Use single quotes)
+                \t\t\t Use --refresh to re-read the router's mapping table first, re-opening anything it has lost.
+                \t\t config save <directory/filepath> - Saves current config to a directory as "config.clip", or to a file (Use single quotes). Files ending in .clipb are saved in the compact binary format.
+                \t\t config autosave <directory/filepath> - Keeps current config saved to a file automatically, shortly after every change. (Use single quotes)
+                \t\t config autosave off - Stops autosaving.
+                \t\t config validate <filepath> - Checks a JSON or binary config file without opening anything. Works before the router is found. (Use single quotes)
+                \t\t config convert <source> <destination> - Converts a config file between JSON and binary (.clipb), E.g. config convert 'big.clip' 'big.clipb'
+                \t\t config concurrency <1-64> - Sets the most gateway requests sent at once for bulk operations. Each router's limit adapts below it, see "stats concurrency". (Default 32)
+                \t\t config cache-ttl <seconds> - Sets how long port states are cached before re-checking with the router. (Default 30)""");
     }
 }
@@ -30,7 +30,7 @@ public class Help {
 
         // Misc. Command Help
         Console.sendDetails("Commands:");
-        Console.println("\t stop - Gracefully stops the program. All unsaved config data will be lost. All ports will be closed.");
+        Console.println("\t stop - Gracefully stops the program. All unsaved config data will be lost. All ports will be closed, and background jobs cancelled.");
         Console.println("\t info - Displays program and network info.");
 
         // Main Command Help
@@ -38,6 +38,8 @@ public class Help {
         Network.help();
         Config.help();
         Port.help();
+        Stats.help();
+        Jobs.help();
     }
 
     /**
@@ -55,5 +57,16 @@ public class Help {
     private static void cla(){
         Console.sendDetails("Command-Line Arguments:");
         Console.println("\t <filepath> - Opens saved bindings from a config file. Always surround the path with single quotes, E.g. 'C:/Users/yourname/myconfig.clip'.");
+        Console.println("\t --daemon - Runs without a prompt, for use as a service. Commands are still read from stdin if there is one. Stops on \"stop\" or SIGTERM, closing all ports.");
+        Console.println("\t --script <filepath> - Runs a file of commands (one per line, # for comments), then stops and closes all ports. Use - to read the script from stdin. Consecutive port open/close lines are sent as one concurrent batch. Exits with status 1 if any command failed, 2 if the script is invalid. Add --daemon to keep running afterwards.");
+        Console.println("\t --journal <filepath> - Where to journal owned bindings, so they can be recovered after a crash. Defaults to ~/.clipnp/bindings.journal.");
+        Console.println("\t --gateway-cache <filepath> - Where to cache the gateways found, so the next run can skip discovery if they still answer. Defaults to ~/.clipnp/gateways.json.");
+        Console.println("\t --rediscover - Ignores the cached gateways and searches the network again. --no-gateway-cache disables the cache entirely.");
+        Console.println("\t --cleanup - Closes any mappings a crashed run left on the router, instead of reclaiming them.");
+        Console.println("\t --no-journal - Disables the binding journal.");
+        Console.println("\t --no-reconcile - Stops CLIPnP from checking the router for dropped mappings in the background. \"port reconcile\" still works.");
+        Console.println("\t --no-events - Stops CLIPnP from subscribing to the router's events. Network info is then asked for each time, and dropped mappings are only found by the periodic check.");
+        Console.println("\t --output=<text, jsonl> - With jsonl, prints one JSON record per line (E.g. {\"type\":\"binding\",...}) for other tools to parse.");
+        Console.println("\t --api <port> - Serves a local HTTP/JSON control API on 127.0.0.1:<port>. Endpoints: GET /bindings, POST /ports/open, POST /ports/close, GET /ports/query, POST /config/add, POST /config/save, GET /network. Requests need the token shown at startup, as \"Authorization: Bearer <token>\", and POST bodies must be application/json.");
     }
 }
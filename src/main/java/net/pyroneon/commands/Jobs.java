@@ -0,0 +1,128 @@
+package net.pyroneon.commands;
+
+import net.pyroneon.Main;
+import net.pyroneon.engine.Progress;
+import net.pyroneon.jobs.Job;
+import net.pyroneon.jobs.JobManager;
+import net.pyroneon.util.Console;
+import org.json.JSONObject;
+
+import java.util.List;
+
+/**
+ * Handles user commands regarding background jobs, started by ending a command with "&".
+ */
+public class Jobs {
+
+    /**
+     * Calls the corresponding helper method based on parameters passed in.
+     * @param args Parsed list of each argument. The first is "jobs", "wait" or "cancel".
+     */
+    public static void execute(String[] args){
+        if(args[0].equals("jobs") && args.length == 1){
+            list();
+            return;
+        }
+        else if(args[0].equals("wait") && args.length == 1){
+            waitAll();
+            return;
+        }
+        else if(args[0].equals("wait") && args.length == 2){
+            waitFor(Integer.parseInt(args[1]));
+            return;
+        }
+        else if(args[0].equals("cancel") && args.length == 2){
+            cancel(Integer.parseInt(args[1]));
+            return;
+        }
+        Console.sendSyntaxError(Jobs.class.getSimpleName());
+    }
+
+    /**
+     * Lists every job with its progress, then forgets the finished ones.
+     */
+    private static void list(){
+        List<Job> jobs = Main.jobs.list();
+        if(jobs.isEmpty()){
+            Console.sendResponse("No background jobs.");
+            return;
+        }
+        for(Job job : jobs){
+            Progress progress = job.getProgress();
+            String state = JobManager.describe(job.getState());
+            JSONObject record = new JSONObject()
+                    .put("id", job.getId())
+                    .put("state", state.toLowerCase())
+                    .put("command", job.getCommand())
+                    .put("elapsedMillis", job.getElapsedMillis())
+                    .put("submitted", progress.getSubmitted())
+                    .put("completed", progress.getCompleted())
+                    .put("failed", progress.getFailed());
+            Console.sendRecord("job", record, String.format("\t [%d] %-9s %8s  %s%s", job.getId(), state,
+                    JobManager.formatMillis(job.getElapsedMillis()), job.getCommand(), describe(progress)));
+        }
+    }
+
+    /**
+     * @param progress A job's progress.
+     * @return How far its batches have got, E.g. " (1200/5000 bindings done, 3 failed)", or nothing if it hasn't sent any.
+     */
+    private static String describe(Progress progress){
+        if(progress.getSubmitted() == 0){
+            return "";
+        }
+        return " ("+progress.getCompleted()+"/"+progress.getSubmitted()+" bindings done"
+                +(progress.getFailed() > 0 ? ", "+progress.getFailed()+" failed" : "")+")";
+    }
+
+    /**
+     * Blocks the prompt until a job has finished.
+     * @param id The job's number.
+     */
+    private static void waitFor(int id){
+        Job job = Main.jobs.get(id);
+        if(job == null){
+            Console.sendError("No job ["+id+"]. See \"jobs\".");
+            return;
+        }
+        job.await();
+    }
+
+    /**
+     * Blocks the prompt until every running job has finished.
+     */
+    private static void waitAll(){
+        for(Job job : Main.jobs.getRunning()){
+            job.await();
+        }
+    }
+
+    /**
+     * Stops a job from sending any more requests to the gateway. Requests already in flight still finish.
+     * @param id The job's number.
+     */
+    private static void cancel(int id){
+        Job job = Main.jobs.get(id);
+        if(job == null){
+            Console.sendError("No job ["+id+"]. See \"jobs\".");
+            return;
+        }
+        if(job.getState() != Job.State.RUNNING){
+            Console.sendWarning("Job ["+id+"] has already finished.");
+            return;
+        }
+        job.cancel();
+        Console.sendResponse("Cancelling job ["+id+"]. Requests already sent to the gateway will finish first.");
+    }
+
+    /**
+     * Displays some helpful information about this command.
+     */
+    public static void help(){
+        Console.println("""
+                \t <command> & - Runs any command in the background, E.g. config add 'big.clip' &. The prompt is free straight away.
+                \t jobs - Lists background jobs, with how many bindings each has sent and finished so far.
+                \t wait [id] - Waits for a background job to finish, or for all of them.
+                \t cancel <id> - Stops a background job from sending any more requests. Requests already sent finish first.""");
+    }
+}
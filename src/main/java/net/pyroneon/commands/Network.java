@@ -21,6 +21,10 @@ public class Network {
             list();
             return;
         }
+        else if(args[1].equals("mappings")){
+            mappings();
+            return;
+        }
         Console.sendSyntaxError(Network.class.getSimpleName());
     }
 
@@ -31,12 +35,20 @@ public class Network {
         Main.cliPnP.printNetworkInfo();
     }
 
+    /**
+     * Lists every port mapping on the gateway, including ones not made by CLIPnP.
+     */
+    private static void mappings(){
+        Main.cliPnP.printMappings();
+    }
+
     /**
      * Displays some helpful information about this command.
      */
     public static void help(){
         Console.println("""
                 \t network - Interact with the network.
-                \t\t network list - View network information.""");
+                \t\t network list - View network information of every gateway found.
+                \t\t network mappings - Lists every port mapping on each router, including ones not made by CLIPnP.""");
     }
 }
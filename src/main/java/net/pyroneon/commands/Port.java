@@ -2,8 +2,12 @@ package net.pyroneon.commands;
 
 import net.pyroneon.Main;
 import net.pyroneon.util.Console;
+import net.pyroneon.util.Ports;
 import net.pyroneon.util.Protocol;
 
+import java.util.Arrays;
+import java.util.List;
+
 /**
  * Handles user commands regarding port opening,closing,querying,etc.
  */
@@ -31,44 +35,57 @@ public class Port {
             return;
         }
         else if(args[1].equals("list")){
-            list();
+            list(args);
+            return;
+        }
+        else if(args[1].equals("reconcile")){
+            Main.cliPnP.reconcileNow();
             return;
         }
         Console.sendSyntaxError(Port.class.getSimpleName());
     }
 
     /**
-     * Opens a port.
+     * Opens a port, or a list/range of ports.
      * @param args Command arguments.
      */
     private static void open(String[] args){
         try{
-            // Determine protocol and port number
+            // Determine protocol, port numbers, optional lease and optional target gateways
+            int lease = args.length > 4 && !args[4].startsWith("--") ? Integer.parseInt(args[4]) : 0;
+            List<String> gateways = getGateways(args);
             if(args[2].equals("tcp")){
-                Main.cliPnP.openPort(Protocol.TCP, Integer.parseInt(args[3]));
+                Main.cliPnP.openPorts(Protocol.TCP, Ports.parse(args[3]), lease, gateways);
             }
             else if(args[2].equals("udp")){
-                Main.cliPnP.openPort(Protocol.UDP, Integer.parseInt(args[3]));
+                Main.cliPnP.openPorts(Protocol.UDP, Ports.parse(args[3]), lease, gateways);
             }
         }
         catch(IndexOutOfBoundsException e){
             Console.sendError("Value out of bounds. Triple-check your syntax, see \"help\" for command help.");
         }
+        catch(NumberFormatException e){
+            // Ports.parse explains its own errors, so this can only be the lease.
+            Console.sendError("Invalid lease duration: "+args[4]+". Usage: port open <tcp, udp> <ports> [lease in seconds], see \"help\" for command help.");
+        }
+        catch(IllegalArgumentException e){
+            Console.sendError(e.getMessage());
+        }
     }
 
     /**
-     * Closes a port.
+     * Closes a port, or a list/range of ports.
      * @param args Command arguments.
      */
     private static void close(String[] args){
         try{
             // Determine protocol and port number
             if(args[2].equals("tcp")){
-                Main.cliPnP.closePort(Protocol.TCP, Integer.parseInt(args[3]));
+                Main.cliPnP.closePorts(Protocol.TCP, Ports.parse(args[3]));
                 return;
             }
             else if(args[2].equals("udp")){
-                Main.cliPnP.closePort(Protocol.UDP, Integer.parseInt(args[3]));
+                Main.cliPnP.closePorts(Protocol.UDP, Ports.parse(args[3]));
                 return;
             }
             else if(args[2].equals("index")){
@@ -83,6 +100,12 @@ public class Port {
         catch(IndexOutOfBoundsException e){
             Console.sendSyntaxError(Port.class.getSimpleName());
         }
+        catch(NumberFormatException e){
+            Console.sendError("Invalid index: "+args[3]+". Usage: port close index <n>, see \"help\" for command help.");
+        }
+        catch(IllegalArgumentException e){
+            Console.sendError(e.getMessage());
+        }
     }
 
     /**
@@ -93,22 +116,56 @@ public class Port {
         try {
             // Determine protocol and port number
             if(args[2].equals("tcp")){
-                Console.sendResponse(Main.cliPnP.queryPort(Protocol.TCP, Integer.parseInt(args[3])));
+                Console.sendResponse(Main.cliPnP.queryPort(Protocol.TCP, Integer.parseInt(args[3]), hasRefreshFlag(args)));
             }
             else if(args[2].equals("udp")){
-                Console.sendResponse(Main.cliPnP.queryPort(Protocol.UDP, Integer.parseInt(args[3])));
+                Console.sendResponse(Main.cliPnP.queryPort(Protocol.UDP, Integer.parseInt(args[3]), hasRefreshFlag(args)));
             }
         }
         catch(IndexOutOfBoundsException e){
             Console.sendError("Value out of bounds. Triple-check your syntax, see \"help\" for command help.");
         }
+        catch(NumberFormatException e){
+            Console.sendError("Invalid port number: "+args[3]+". See \"help\" for command help.");
+        }
+        catch(IllegalArgumentException e){
+            Console.sendError(e.getMessage());
+        }
     }
 
     /**
      * Lists open/active ports.
+     * @param args Command arguments.
      */
-    private static void list(){
-        Main.cliPnP.printBindings();
+    private static void list(String[] args){
+        Main.cliPnP.printBindings(hasRefreshFlag(args));
+    }
+
+    /**
+     * @param args Command arguments.
+     * @return True if the "--refresh" flag was passed, asking for the gateway to be probed again instead of using cached states.
+     */
+    private static boolean hasRefreshFlag(String[] args){
+        for(String arg : args){
+            if(arg.equals("--refresh")){
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @param args Command arguments.
+     * @return The gateway addresses passed with "--gateway=", E.g. "--gateway=192.168.1.1,10.0.0.1", or an empty list
+     * (meaning every gateway) if there was none.
+     */
+    private static List<String> getGateways(String[] args){
+        for(String arg : args){
+            if(arg.startsWith("--gateway=")){
+                return Arrays.asList(arg.substring("--gateway=".length()).split(","));
+            }
+        }
+        return List.of();
     }
 
     /**
@@ -117,10 +174,13 @@ public class Port {
     public static void help(){
         Console.println("""
                 \t port - Interact with a port. Acceptable port range is 0-65535.
-                \t\t port open <tcp, udp> <0-65535> - Opens a new port based on params.
+                \t\t port open <tcp, udp> <ports> [lease] - Opens new ports based on params. Ports can be a single port (25565), a range (27000-27100) or a list (80,443,8000-8010).
+                \t\t\t An optional lease (in seconds) makes the router drop the ports if CLIPnP stops without closing them. CLIPnP renews leases automatically.
+                \t\t\t Ports are opened on every gateway found. Add --gateway=<ip>[,<ip>...] to open them on specific gateways only (see "network list").
                 \t\t port close index <i> - Closes registered port and removes it from config by index. Index starts from 1.
-                \t\t port close <tcp, udp> <0-65535> - Forcefully closes a port, if registered, removes it from current config.
-                \t\t port query <tcp, udp> <0-65535> - Get a port's status. (Open/Closed)
-                \t\t port list - Lists all currently open ports (controlled by CLIPnP).""");
+                \t\t port close <tcp, udp> <ports> - Forcefully closes ports, if registered, removes them from current config. Accepts the same ranges and lists.
+                \t\t port query <tcp, udp> <0-65535> [--refresh] - Get a port's status. (Open/Closed)
+                \t\t port list [--refresh] - Lists all currently open ports (controlled by CLIPnP). Use --refresh to re-check every port with the router.
+                \t\t port reconcile - Re-opens any port the router has dropped (E.g. after a reboot) right now. This also happens in the background, more often after a drop and less often while nothing changes.""");
     }
 }
@@ -0,0 +1,118 @@
+package net.pyroneon.commands;
+
+import net.pyroneon.Main;
+import net.pyroneon.engine.ConcurrencyLimit;
+import net.pyroneon.metrics.Metrics;
+import net.pyroneon.metrics.OperationStats;
+import net.pyroneon.upnp.Gateway;
+import net.pyroneon.util.Console;
+import org.json.JSONObject;
+
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Shows how many gateway operations have been made and how long they took.
+ */
+public class Stats {
+
+    /**
+     * Calls the corresponding helper method based on parameters passed in.
+     * @param args Parsed list of each argument.
+     */
+    public static void execute(String[] args){
+        if(args.length <= 1){
+            print();
+            return;
+        }
+        if(args[1].equals("reset")){
+            Metrics.reset();
+            Console.sendResponse("Cleared all gateway operation statistics.");
+            return;
+        }
+        if(args[1].equals("concurrency")){
+            printConcurrency();
+            return;
+        }
+        Console.sendSyntaxError(Stats.class.getSimpleName());
+    }
+
+    /**
+     * Prints a table of every operation's counts and latency percentiles.
+     */
+    private static void print(){
+        List<OperationStats> all = Metrics.getAll();
+        if(all.isEmpty()){
+            Console.sendResponse("No gateway operations have been made yet.");
+            return;
+        }
+
+        Console.println("\t Gateway Operations (latency in ms):");
+        Console.println(String.format("\t\t %-30s %8s %7s %7s %9s %9s %9s %9s %9s",
+                "Operation", "Count", "Faults", "Errors", "Mean", "p50", "p99", "p99.9", "Max"));
+        for(OperationStats stats : all){
+            JSONObject record = new JSONObject()
+                    .put("operation", stats.getName())
+                    .put("count", stats.getCount())
+                    .put("faults", stats.getFaults())
+                    .put("errors", stats.getErrors())
+                    .put("meanMillis", stats.getMeanMillis())
+                    .put("p50Millis", stats.getP50Millis())
+                    .put("p90Millis", stats.getP90Millis())
+                    .put("p99Millis", stats.getP99Millis())
+                    .put("p999Millis", stats.getP999Millis())
+                    .put("maxMillis", stats.getMaxMillis());
+            Console.sendRecord("stats", record, String.format("\t\t %-30s %8d %7d %7d %9.2f %9.2f %9.2f %9.2f %9.2f",
+                    stats.getName(), stats.getCount(), stats.getFaults(), stats.getErrors(), stats.getMeanMillis(),
+                    stats.getP50Millis(), stats.getP99Millis(), stats.getP999Millis(), stats.getMaxMillis()));
+        }
+    }
+
+    /**
+     * Prints each gateway's adaptive concurrency limit, and how it got there.
+     */
+    private static void printConcurrency(){
+        Map<Gateway, ConcurrencyLimit> limits = Main.cliPnP.getConcurrencyLimits();
+        if(limits.isEmpty()){
+            Console.sendResponse("No gateway has been found yet.");
+            return;
+        }
+        SimpleDateFormat time = new SimpleDateFormat("HH:mm:ss");
+        for(Map.Entry<Gateway, ConcurrencyLimit> entry : limits.entrySet()){
+            String address = entry.getKey().getGatewayIP();
+            ConcurrencyLimit limit = entry.getValue();
+            JSONObject record = new JSONObject()
+                    .put("gateway", address)
+                    .put("limit", limit.getLimit())
+                    .put("ceiling", limit.getCeiling())
+                    .put("inFlight", limit.getInFlight())
+                    .put("baselineMillis", limit.getBaselineMillis())
+                    .put("successes", limit.getSuccesses())
+                    .put("overloads", limit.getOverloads());
+            Console.sendRecord("concurrency", record, String.format("\t Gateway %s: %d requests at once (ceiling %d), %d in flight. %d healthy, %d overloaded, baseline %.2f ms.",
+                    address, limit.getLimit(), limit.getCeiling(), limit.getInFlight(), limit.getSuccesses(), limit.getOverloads(), limit.getBaselineMillis()));
+            for(ConcurrencyLimit.Change change : limit.getHistory()){
+                JSONObject history = new JSONObject()
+                        .put("gateway", address)
+                        .put("atMillis", change.getAtMillis())
+                        .put("from", change.getFrom())
+                        .put("to", change.getTo())
+                        .put("reason", change.getReason());
+                Console.sendRecord("concurrencyChange", history, String.format("\t\t %s %3d -> %-3d %s",
+                        time.format(new Date(change.getAtMillis())), change.getFrom(), change.getTo(), change.getReason()));
+            }
+        }
+    }
+
+    /**
+     * Displays some helpful information about this command.
+     */
+    public static void help(){
+        Console.println("""
+                \t stats - Shows counts, UPnP faults, errors and latency percentiles for every kind of gateway request. Also available over JMX.
+                \t\t stats concurrency - Shows how many requests each router is currently sent at once, and the recent history of that limit.
+                \t\t stats reset - Clears all statistics.""");
+    }
+}
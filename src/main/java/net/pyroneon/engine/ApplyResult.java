@@ -0,0 +1,70 @@
+package net.pyroneon.engine;
+
+/**
+ * The outcome of applying a desired set of bindings: what had to be opened and closed to get there, and how many
+ * bindings were already in place.
+ */
+public class ApplyResult {
+
+    private final BatchResult opened;
+    private final BatchResult closed;
+    private final int unchanged;
+    private final int adopted;
+
+    /**
+     * @param opened The bindings that were missing or changed, and had to be opened.
+     * @param closed The registered bindings that weren't wanted any more, and had to be closed.
+     * @param unchanged The number of wanted bindings which were already registered as they are.
+     * @param adopted The number of wanted bindings which weren't registered, but were already mapped to this machine.
+     */
+    public ApplyResult(BatchResult opened, BatchResult closed, int unchanged, int adopted){
+        this.opened = opened;
+        this.closed = closed;
+        this.unchanged = unchanged;
+        this.adopted = adopted;
+    }
+
+    /**
+     * @return The bindings that had to be opened.
+     */
+    public BatchResult getOpened(){
+        return opened;
+    }
+
+    /**
+     * @return The bindings that had to be closed.
+     */
+    public BatchResult getClosed(){
+        return closed;
+    }
+
+    /**
+     * @return The number of bindings which were already registered as they are.
+     */
+    public int getUnchanged(){
+        return unchanged;
+    }
+
+    /**
+     * @return The number of bindings which were registered without a gateway call, as they were already mapped to this machine.
+     */
+    public int getAdopted(){
+        return adopted;
+    }
+
+    /**
+     * @return True if any open or close failed.
+     */
+    public boolean hasFailures(){
+        return opened.getFailureCount() > 0 || closed.getFailureCount() > 0;
+    }
+
+    /**
+     * Builds a one-line summary of the apply.
+     * @return The summary, without any Console prefix.
+     */
+    public String summary(){
+        return "Applied config: opened "+opened.getSuccessCount()+"/"+opened.getTotal()+", closed "+closed.getSuccessCount()
+                +"/"+closed.getTotal()+", "+unchanged+" unchanged, "+adopted+" adopted from the router.";
+    }
+}
@@ -0,0 +1,108 @@
+package net.pyroneon.engine;
+
+import net.pyroneon.util.Bind;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Collects the outcome of a batch of mapping operations, so a single summary can be reported instead of one line per port.
+ */
+public class BatchResult {
+
+    /** The most failed bindings listed by name in a summary, any more are only counted. */
+    private static final int MAX_LISTED_FAILURES = 10;
+
+    private final List<Bind> succeeded = Collections.synchronizedList(new ArrayList<>());
+    private final List<Bind> failed = Collections.synchronizedList(new ArrayList<>());
+
+    /**
+     * Records the outcome of a single binding. Safe to call from several worker threads at once.
+     * @param bind The binding the operation was performed on.
+     * @param success Whether the gateway accepted the operation.
+     */
+    public void record(Bind bind, boolean success){
+        if(success){
+            succeeded.add(bind);
+        }
+        else{
+            failed.add(bind);
+        }
+    }
+
+    /**
+     * Records the outcome of every binding in another batch, E.g. to report several batches as one.
+     * @param other The other batch, which should be finished.
+     */
+    public void addAll(BatchResult other){
+        succeeded.addAll(other.getSucceeded());
+        failed.addAll(other.getFailed());
+    }
+
+    /**
+     * @return Every binding the operation succeeded for, in order of completion.
+     */
+    public List<Bind> getSucceeded(){
+        synchronized (succeeded){
+            return new ArrayList<>(succeeded);
+        }
+    }
+
+    /**
+     * @return Every binding the operation failed for, in order of completion.
+     */
+    public List<Bind> getFailed(){
+        synchronized (failed){
+            return new ArrayList<>(failed);
+        }
+    }
+
+    /**
+     * @return The number of bindings the operation succeeded for.
+     */
+    public int getSuccessCount(){
+        return succeeded.size();
+    }
+
+    /**
+     * @return The number of bindings the operation failed for.
+     */
+    public int getFailureCount(){
+        return failed.size();
+    }
+
+    /**
+     * @return The total number of bindings processed.
+     */
+    public int getTotal(){
+        return getSuccessCount() + getFailureCount();
+    }
+
+    /**
+     * Builds a one-line summary of the batch, naming the first few failures.
+     * @param verb The past-tense action performed, E.g. "Opened".
+     * @return The summary, without any Console prefix.
+     */
+    public String summary(String verb){
+        String toReturn = verb + " " + getSuccessCount() + "/" + getTotal() + " bindings.";
+        List<Bind> failures = getFailed();
+        if(failures.isEmpty()){
+            return toReturn;
+        }
+
+        // List the first few failures by name, then just count the rest.
+        StringBuilder build = new StringBuilder(toReturn).append(" Failed: ");
+        for(int i = 0; i < failures.size() && i < MAX_LISTED_FAILURES; i++){
+            if(i > 0){
+                build.append(", ");
+            }
+            Bind bind = failures.get(i);
+            build.append(bind.getProtocol()).append(':').append(bind.getPort());
+        }
+        if(failures.size() > MAX_LISTED_FAILURES){
+            build.append(" (and ").append(failures.size() - MAX_LISTED_FAILURES).append(" more)");
+        }
+        return build.toString();
+    }
+}
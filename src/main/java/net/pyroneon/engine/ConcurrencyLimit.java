@@ -0,0 +1,316 @@
+package net.pyroneon.engine;
+
+import net.pyroneon.upnp.SoapFault;
+
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.LongSupplier;
+
+/**
+ * Limits how many requests one gateway is sent at once, adapting the limit to what the gateway can take (AIMD).
+ * Consumer routers vary wildly: some fall over with more than a couple of SOAP requests in flight, others happily
+ * serve dozens. The limit starts low, grows by about one request per window of healthy replies, and halves as soon
+ * as the gateway shows it is overloaded, by timing out, dropping the connection, or failing with a 5xx that isn't an
+ * ordinary UPnP error (E.g. 501 ActionFailed).
+ * <p>
+ * A reply only counts as healthy if it came back within LATENCY_TOLERANCE times the gateway's baseline round-trip, so
+ * the limit stops growing once requests start queueing inside the gateway, before it fails. The limit never goes above
+ * a ceiling, set by "config concurrency", nor below 1. Every change is kept in a short history.
+ */
+public class ConcurrencyLimit {
+
+    /** The limit a gateway starts with, low enough for the cheapest routers. */
+    public static final int INITIAL_LIMIT = 4;
+    /** What the limit is multiplied by when the gateway is overloaded. */
+    public static final double BACKOFF = 0.5;
+    /** How much slower than the baseline a reply can be and still count as healthy. */
+    public static final double LATENCY_TOLERANCE = 2.0;
+    /** The baseline round-trip is the fastest reply of the last one or two windows this long. */
+    public static final long BASELINE_WINDOW_MILLIS = 30_000;
+    /** How many times a request the gateway refused for overload is sent again, once it has room. */
+    public static final int MAX_RETRIES = 3;
+    /** How many changes of the limit are remembered. */
+    public static final int HISTORY_SIZE = 32;
+    // Increases closer together than this are merged into one history entry.
+    private static final long MERGE_MILLIS = 1000;
+    // The UPnP error routers send when they can't cope, rather than because of the request.
+    private static final int ACTION_FAILED = 501;
+
+    /**
+     * A blocking request to the gateway.
+     * @param <T> What it returns.
+     */
+    public interface Call<T> {
+        /**
+         * @return The request's result.
+         * @throws IOException If the request failed.
+         */
+        T run() throws IOException;
+    }
+
+    /**
+     * One change of the limit.
+     */
+    public static class Change {
+        private final long atMillis;
+        private final int from;
+        private int to;
+        private final String reason;
+
+        /**
+         * @param atMillis When it changed, in epoch milliseconds.
+         * @param from The limit before.
+         * @param to The limit after.
+         * @param reason Why it changed, E.g. "healthy replies".
+         */
+        private Change(long atMillis, int from, int to, String reason){
+            this.atMillis = atMillis;
+            this.from = from;
+            this.to = to;
+            this.reason = reason;
+        }
+
+        /**
+         * @return When it changed, in epoch milliseconds. For merged increases, when the first of them happened.
+         */
+        public long getAtMillis(){
+            return atMillis;
+        }
+
+        /**
+         * @return The limit before.
+         */
+        public int getFrom(){
+            return from;
+        }
+
+        /**
+         * @return The limit after.
+         */
+        public int getTo(){
+            return to;
+        }
+
+        /**
+         * @return Why it changed, E.g. "healthy replies" or "timeout".
+         */
+        public String getReason(){
+            return reason;
+        }
+    }
+
+    private final LongSupplier clock;
+    private int ceiling;
+    private double limit;
+    private int inFlight;
+    private long baselineNanos;
+    private long windowMin = Long.MAX_VALUE;
+    private long previousMin = Long.MAX_VALUE;
+    private long windowStart;
+    // Overloads from requests sent before the last decrease were already accounted for by it.
+    private long lastDecreaseNanos = Long.MIN_VALUE;
+    private long successes;
+    private long overloads;
+    private final ArrayDeque<Change> history = new ArrayDeque<>();
+
+    /**
+     * @param ceiling The highest the limit may grow to.
+     */
+    public ConcurrencyLimit(int ceiling){
+        this(ceiling, System::nanoTime);
+    }
+
+    /**
+     * Creates a limit that times replies with the given clock, so tests can decide how long each one took.
+     * @param ceiling The highest the limit may grow to.
+     * @param clock The time in nanoseconds, like System.nanoTime().
+     */
+    ConcurrencyLimit(int ceiling, LongSupplier clock){
+        this.clock = clock;
+        this.ceiling = ceiling;
+        this.limit = Math.min(INITIAL_LIMIT, ceiling);
+        this.windowStart = clock.getAsLong();
+    }
+
+    /**
+     * Sends a request once the gateway has room for it, and adapts the limit to how it went. If the gateway refuses it
+     * for overload (ActionFailed or a bare HTTP error), it has done nothing, so the request is sent again up to
+     * MAX_RETRIES times, each time waiting for room under the lowered limit. Timeouts aren't retried, as the gateway may
+     * have carried the request out.
+     * @param call The request.
+     * @param <T> What it returns.
+     * @return The request's result.
+     * @throws IOException If the request failed.
+     */
+    public <T> T call(Call<T> call) throws IOException {
+        for(int attempt = 0; ; attempt++){
+            long start = acquire();
+            String overload = null;
+            try {
+                return call.run();
+            } catch (SoapFault e) {
+                // Most UPnP errors are about the request, E.g. 714 NoSuchEntryInArray, and say nothing about load.
+                overload = e.getErrorCode() == ACTION_FAILED ? "ActionFailed" : e.getErrorCode() < 0 ? "HTTP error" : null;
+                if(overload == null || attempt == MAX_RETRIES){
+                    throw e;
+                }
+            } catch (IOException e) {
+                overload = e instanceof SocketTimeoutException || e.getCause() instanceof SocketTimeoutException ? "timeout" : "connection error";
+                throw e;
+            } finally {
+                release(start, overload);
+            }
+        }
+    }
+
+    /**
+     * Waits until fewer than the limit's requests are in flight, then takes a slot.
+     * @return When the request was let through, from the clock.
+     */
+    synchronized long acquire(){
+        boolean interrupted = false;
+        while(inFlight >= (int) limit){
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if(interrupted){
+            Thread.currentThread().interrupt();
+        }
+        inFlight++;
+        return clock.getAsLong();
+    }
+
+    /**
+     * Frees a request's slot and adapts the limit to its outcome.
+     * @param start When the request was let through, from acquire().
+     * @param overload How it showed the gateway is overloaded, E.g. "timeout", or null if it didn't.
+     */
+    synchronized void release(long start, String overload){
+        long now = clock.getAsLong();
+        long rtt = now - start;
+        // Whether the request was one of a full window, as growing the limit only helps if it is being used.
+        boolean saturated = inFlight >= (int) limit;
+        inFlight--;
+        int before = (int) limit;
+
+        if(overload != null){
+            overloads++;
+            if(start > lastDecreaseNanos){
+                limit = Math.max(1, limit * BACKOFF);
+                lastDecreaseNanos = now;
+                record(before, overload);
+            }
+        }
+        else{
+            successes++;
+            // A windowed minimum, so the baseline follows a gateway that really got slower, but not requests queueing in it.
+            if(now - windowStart > BASELINE_WINDOW_MILLIS * 1_000_000){
+                previousMin = windowMin;
+                windowMin = Long.MAX_VALUE;
+                windowStart = now;
+            }
+            windowMin = Math.min(windowMin, rtt);
+            baselineNanos = Math.min(windowMin, previousMin);
+            if(saturated && limit < ceiling && rtt <= baselineNanos * LATENCY_TOLERANCE){
+                limit = Math.min(ceiling, limit + 1 / limit);
+                record(before, "healthy replies");
+            }
+        }
+        notifyAll();
+    }
+
+    /**
+     * Adds a change of the limit to the history, if its whole part changed.
+     * @param before The whole limit before.
+     * @param reason Why it changed.
+     */
+    private void record(int before, String reason){
+        int after = (int) limit;
+        if(after == before){
+            return;
+        }
+        long now = System.currentTimeMillis();
+        Change last = history.peekLast();
+        if(last != null && after > before && last.to > last.from && last.to == before && now - last.atMillis < MERGE_MILLIS){
+            last.to = after;
+            return;
+        }
+        if(history.size() == HISTORY_SIZE){
+            history.removeFirst();
+        }
+        history.addLast(new Change(now, before, after, reason));
+    }
+
+    /**
+     * Changes the ceiling, E.g. after "config concurrency". A limit above the new ceiling drops to it.
+     * @param ceiling The highest the limit may grow to, at least 1.
+     */
+    public synchronized void setCeiling(int ceiling){
+        int before = (int) limit;
+        this.ceiling = ceiling;
+        if(limit > ceiling){
+            limit = ceiling;
+            record(before, "ceiling lowered");
+        }
+        notifyAll();
+    }
+
+    /**
+     * @return The highest the limit may grow to.
+     */
+    public synchronized int getCeiling(){
+        return ceiling;
+    }
+
+    /**
+     * @return How many requests the gateway may currently be sent at once.
+     */
+    public synchronized int getLimit(){
+        return (int) limit;
+    }
+
+    /**
+     * @return How many requests are in flight right now.
+     */
+    public synchronized int getInFlight(){
+        return inFlight;
+    }
+
+    /**
+     * @return The gateway's baseline round-trip in milliseconds: its fastest recent reply, or 0 before its first one.
+     */
+    public synchronized double getBaselineMillis(){
+        return baselineNanos / 1e6;
+    }
+
+    /**
+     * @return How many requests have not shown overload so far.
+     */
+    public synchronized long getSuccesses(){
+        return successes;
+    }
+
+    /**
+     * @return How many requests have shown overload so far.
+     */
+    public synchronized long getOverloads(){
+        return overloads;
+    }
+
+    /**
+     * @return The most recent changes of the limit, oldest first.
+     */
+    public synchronized List<Change> getHistory(){
+        List<Change> copy = new ArrayList<>(history.size());
+        for(Change change : history){
+            copy.add(new Change(change.atMillis, change.from, change.to, change.reason));
+        }
+        return copy;
+    }
+}
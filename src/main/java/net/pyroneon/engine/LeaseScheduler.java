@@ -0,0 +1,235 @@
+package net.pyroneon.engine;
+
+import net.pyroneon.util.Bind;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.Consumer;
+
+/**
+ * Renews leased mappings shortly before they expire, using a single thread and a hierarchical timer wheel. Scheduling
+ * and cancelling are constant time no matter how many bindings are leased, and renewals that fall due in the same tick
+ * are handed over as one batch.
+ * <p>
+ * The wheel has four levels of 64 slots. Level 0 holds timers due within 64 ticks, level 1 within 64^2 ticks and so
+ * on, and timers cascade down a level each time the level below wraps around. With one-second ticks this covers
+ * about six months, well past the longest lease a gateway accepts.
+ */
+public class LeaseScheduler {
+
+    /** How often the wheel advances, in milliseconds. */
+    public static final long TICK_MILLIS = 1000;
+    /** How long to wait before retrying a renewal the gateway refused, in milliseconds. */
+    public static final long RETRY_MILLIS = 30_000;
+
+    private static final int WHEEL_BITS = 6;
+    private static final int WHEEL_SIZE = 1 << WHEEL_BITS;
+    private static final int WHEEL_MASK = WHEEL_SIZE - 1;
+    private static final int LEVELS = 4;
+
+    /**
+     * A pending renewal, linked into one wheel slot.
+     */
+    private static class Timer {
+        private final Bind bind;
+        private final long deadline;
+        private Timer next;
+
+        private Timer(Bind bind, long deadline){
+            this.bind = bind;
+            this.deadline = deadline;
+        }
+    }
+
+    // Guarded by this.
+    private final Timer[][] wheels = new Timer[LEVELS][WHEEL_SIZE];
+    // The live timer per binding key. Cancelled or replaced timers stay in their slot and are skipped when reached.
+    private final Timer[] live = new Timer[Bind.KEY_SPACE];
+    private final long startMillis = System.currentTimeMillis();
+    private long currentTick;
+    private int scheduled;
+    private boolean stopped;
+
+    private final Consumer<List<Bind>> renewer;
+    private final Executor executor;
+    private final Thread thread;
+
+    /**
+     * Creates and starts a scheduler.
+     * @param renewer Receives each batch of bindings due for renewal. Runs on the executor, not the wheel thread.
+     * @param executor Runs the renewer, so a slow gateway never holds up the wheel.
+     */
+    public LeaseScheduler(Consumer<List<Bind>> renewer, Executor executor){
+        this(renewer, executor, true);
+    }
+
+    /**
+     * Creates a scheduler, optionally without its wheel thread, so tests can drive the wheel with tick().
+     * @param renewer Receives each batch of bindings due for renewal. Runs on the executor, not the wheel thread.
+     * @param executor Runs the renewer, so a slow gateway never holds up the wheel.
+     * @param start Whether to start the wheel thread.
+     */
+    LeaseScheduler(Consumer<List<Bind>> renewer, Executor executor, boolean start){
+        this.renewer = renewer;
+        this.executor = executor;
+        thread = new Thread(this::run, "CLIPnP-leases");
+        thread.setDaemon(true);
+        if(start){
+            thread.start();
+        }
+    }
+
+    /**
+     * Schedules a leased binding for renewal, replacing any renewal already scheduled for the same port. The renewal
+     * lands between 75% and 90% of the way through the lease, picked at random, so bindings opened together don't all
+     * come due at the same moment.
+     * @param bind The binding that was just mapped or renewed. Permanent bindings are ignored.
+     */
+    public void scheduleRenewal(Bind bind){
+        if(bind.getLease() <= 0){
+            cancel(bind.getKey());
+            return;
+        }
+        long leaseMillis = bind.getLease() * 1000L;
+        double fraction = 0.75 + ThreadLocalRandom.current().nextDouble() * 0.15;
+        schedule(bind, (long) (leaseMillis * fraction));
+    }
+
+    /**
+     * Schedules a binding to be handed to the renewer after a delay, replacing anything already scheduled for its port.
+     * @param bind The binding.
+     * @param delayMillis How long from now, at least one tick.
+     */
+    public synchronized void schedule(Bind bind, long delayMillis){
+        if(stopped){
+            return;
+        }
+        long ticks = Math.max(1, (delayMillis + TICK_MILLIS - 1) / TICK_MILLIS);
+        Timer timer = new Timer(bind, currentTick + ticks);
+        if(live[bind.getKey()] == null){
+            scheduled++;
+        }
+        live[bind.getKey()] = timer;
+        insert(timer);
+    }
+
+    /**
+     * Cancels any renewal scheduled for a port.
+     * @param key The packed key of the binding.
+     */
+    public synchronized void cancel(int key){
+        if(live[key] != null){
+            live[key] = null;
+            scheduled--;
+        }
+    }
+
+    /**
+     * @return The number of bindings with a renewal scheduled.
+     */
+    public synchronized int getScheduled(){
+        return scheduled;
+    }
+
+    /**
+     * Stops the wheel thread. Scheduled renewals are dropped.
+     */
+    public void shutdown(){
+        synchronized (this){
+            stopped = true;
+        }
+        thread.interrupt();
+    }
+
+    /**
+     * Links a timer into the lowest level whose span covers its deadline.
+     * @param timer The timer.
+     */
+    private void insert(Timer timer){
+        long remaining = timer.deadline - currentTick;
+        int level = 0;
+        while(level < LEVELS - 1 && remaining >= 1L << (WHEEL_BITS * (level + 1))){
+            level++;
+        }
+        int slot = (int) ((timer.deadline >>> (WHEEL_BITS * level)) & WHEEL_MASK);
+        timer.next = wheels[level][slot];
+        wheels[level][slot] = timer;
+    }
+
+    /**
+     * Advances the wheel by one tick, cascading higher levels as lower ones wrap.
+     * @return Every live binding that is now due.
+     */
+    synchronized List<Bind> tick(){
+        currentTick++;
+
+        // When level L's position wraps to zero, the next slot of level L+1 is spread back down.
+        for(int level = 1; level < LEVELS; level++){
+            if((currentTick & ((1L << (WHEEL_BITS * level)) - 1)) != 0){
+                break;
+            }
+            int slot = (int) ((currentTick >>> (WHEEL_BITS * level)) & WHEEL_MASK);
+            Timer timer = wheels[level][slot];
+            wheels[level][slot] = null;
+            while(timer != null){
+                Timer next = timer.next;
+                if(live[timer.bind.getKey()] == timer){
+                    insert(timer);
+                }
+                timer = next;
+            }
+        }
+
+        List<Bind> due = new ArrayList<>();
+        int slot = (int) (currentTick & WHEEL_MASK);
+        Timer timer = wheels[0][slot];
+        wheels[0][slot] = null;
+        while(timer != null){
+            Timer next = timer.next;
+            int key = timer.bind.getKey();
+            if(live[key] == timer){
+                if(timer.deadline <= currentTick){
+                    live[key] = null;
+                    scheduled--;
+                    due.add(timer.bind);
+                }
+                else{
+                    // Beyond the top level's span, so it went round again.
+                    insert(timer);
+                }
+            }
+            timer = next;
+        }
+        return due;
+    }
+
+    /**
+     * The wheel thread: sleeps until the next tick is due, then fires it. Catches up tick by tick after a stall.
+     */
+    private void run(){
+        while(true){
+            long nextTickAt;
+            synchronized (this){
+                if(stopped){
+                    return;
+                }
+                nextTickAt = startMillis + (currentTick + 1) * TICK_MILLIS;
+            }
+            long wait = nextTickAt - System.currentTimeMillis();
+            if(wait > 0){
+                try {
+                    Thread.sleep(wait);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+
+            List<Bind> due = tick();
+            if(!due.isEmpty()){
+                executor.execute(() -> renewer.accept(due));
+            }
+        }
+    }
+}
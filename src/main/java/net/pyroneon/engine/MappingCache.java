@@ -0,0 +1,208 @@
+package net.pyroneon.engine;
+
+import net.pyroneon.util.Bind;
+import net.pyroneon.util.Protocol;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Remembers whether the gateway has a mapping for a protocol and port, so listings don't need a network round-trip per
+ * binding. Entries expire after a configurable TTL, and CLIPnP updates them directly whenever it opens or closes a port.
+ */
+public class MappingCache {
+
+    /** The TTL used when none is specified, in milliseconds. */
+    public static final long DEFAULT_TTL_MILLIS = 30_000;
+
+    private final MappingEngine engine;
+    private final ConcurrentHashMap<Integer, Entry> entries = new ConcurrentHashMap<>();
+    private volatile long ttlMillis;
+    private volatile MappingTable snapshot;
+
+    /**
+     * A cached mapping state, when it was stored and the time it stops being trusted.
+     */
+    private static class Entry {
+        private final boolean mapped;
+        private final long storedAt;
+        private final long expiresAt;
+
+        private Entry(boolean mapped, long storedAt, long expiresAt){
+            this.mapped = mapped;
+            this.storedAt = storedAt;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    /**
+     * Creates a cache using the default TTL.
+     * @param engine The engine used to probe the gateway for missing states.
+     */
+    public MappingCache(MappingEngine engine){
+        this(engine, DEFAULT_TTL_MILLIS);
+    }
+
+    /**
+     * @param engine The engine used to probe the gateway for missing states.
+     * @param ttlMillis How long a cached state is trusted, in milliseconds.
+     */
+    public MappingCache(MappingEngine engine, long ttlMillis){
+        this.engine = engine;
+        setTTL(ttlMillis);
+    }
+
+    /**
+     * Changes how long cached states are trusted. Entries already cached keep the expiry they were stored with.
+     * @param ttlMillis The new TTL in milliseconds, cannot be negative. A TTL of 0 disables caching.
+     */
+    public void setTTL(long ttlMillis){
+        if(ttlMillis < 0){
+            throw new IllegalArgumentException("TTL cannot be negative.");
+        }
+        this.ttlMillis = ttlMillis;
+    }
+
+    /**
+     * @return How long cached states are trusted, in milliseconds.
+     */
+    public long getTTL(){
+        return ttlMillis;
+    }
+
+    /**
+     * Gets the cached state of a port, without contacting the gateway.
+     * @param protocol The protocol to check.
+     * @param port The port to check, within 0-65535.
+     * @return True or false if a fresh state is cached, null if the state is unknown or expired.
+     * @throws IllegalArgumentException If the port is out of range.
+     */
+    public Boolean getIfFresh(Protocol protocol, int port){
+        int key = key(protocol, port);
+        long now = System.currentTimeMillis();
+        Entry entry = entries.get(key);
+        if(entry != null && entry.expiresAt > now){
+            return entry.mapped;
+        }
+
+        // A fresh table snapshot knows the state of every port, mapped or not, unless the port changed since it was taken.
+        MappingTable table = snapshot;
+        if(table != null && table.getTakenAt() + ttlMillis > now && (entry == null || entry.storedAt < table.getTakenAt())){
+            return table.contains(key);
+        }
+        return null;
+    }
+
+    /**
+     * Replaces every cached state with a freshly scanned copy of the gateway's mapping table. Until it expires, the
+     * snapshot answers for every port, and states stored afterwards take priority over it.
+     * @param table The scanned table.
+     */
+    public void applySnapshot(MappingTable table){
+        entries.clear();
+        snapshot = table;
+    }
+
+    /**
+     * @return The last table snapshot applied, or null if the table was never scanned. May be expired.
+     */
+    public MappingTable getSnapshot(){
+        return snapshot;
+    }
+
+    /**
+     * Gets the state of a port, probing the gateway only if no fresh state is cached.
+     * @param protocol The protocol to check.
+     * @param port The port to check, within 0-65535.
+     * @return True if the gateway has a mapping for the port, false otherwise.
+     * @throws IllegalArgumentException If the port is out of range.
+     */
+    public boolean isMapped(Protocol protocol, int port){
+        Boolean cached = getIfFresh(protocol, port);
+        if(cached != null){
+            return cached;
+        }
+        return probe(new Bind(protocol, port));
+    }
+
+    /**
+     * Stores a known state, E.g. right after CLIPnP opened or closed the port itself.
+     * @param protocol The protocol of the port.
+     * @param port The port number, within 0-65535.
+     * @param mapped Whether the gateway now has a mapping for the port.
+     * @throws IllegalArgumentException If the port is out of range.
+     */
+    public void put(Protocol protocol, int port, boolean mapped){
+        long now = System.currentTimeMillis();
+        entries.put(key(protocol, port), new Entry(mapped, now, now + ttlMillis));
+    }
+
+    /**
+     * Forgets the state of a port, so the next lookup probes the gateway. Used when an operation's outcome is unclear.
+     * @param protocol The protocol of the port.
+     * @param port The port number, within 0-65535.
+     * @throws IllegalArgumentException If the port is out of range.
+     */
+    public void invalidate(Protocol protocol, int port){
+        // An already expired entry, so an older snapshot can't answer for the port either.
+        entries.put(key(protocol, port), new Entry(false, System.currentTimeMillis(), 0));
+    }
+
+    /**
+     * Forgets every cached state.
+     */
+    public void invalidateAll(){
+        entries.clear();
+        snapshot = null;
+    }
+
+    /**
+     * Probes any bindings without a fresh cached state, concurrently through the mapping engine.
+     * @param binds The bindings about to be looked up.
+     */
+    public void prefetch(Collection<Bind> binds){
+        ArrayList<Bind> stale = new ArrayList<>();
+        for(Bind bind : binds){
+            if(getIfFresh(bind.getProtocol(), bind.getPort()) == null){
+                stale.add(bind);
+            }
+        }
+        refresh(stale);
+    }
+
+    /**
+     * Re-probes every binding concurrently through the mapping engine, replacing whatever was cached.
+     * @param binds The bindings to re-probe.
+     */
+    public void refresh(Collection<Bind> binds){
+        engine.run(binds, bind -> {
+            probe(bind);
+            return true;
+        });
+    }
+
+    /**
+     * @param protocol The protocol of the port.
+     * @param port The port number.
+     * @return The port's key.
+     * @throws IllegalArgumentException If the port is out of range, as its key would alias another port's.
+     */
+    private static int key(Protocol protocol, int port){
+        if(port < 0 || port > 65535){
+            throw new IllegalArgumentException("Invalid port number. Accepted range: 0-65535.");
+        }
+        return Bind.key(protocol, port);
+    }
+
+    /**
+     * Asks the gateway for a binding's state and caches the answer.
+     * @param bind The binding to probe.
+     * @return True if the gateway has a mapping for the port, false otherwise.
+     */
+    private boolean probe(Bind bind){
+        boolean mapped = engine.probe(bind);
+        put(bind.getProtocol(), bind.getPort(), mapped);
+        return mapped;
+    }
+}
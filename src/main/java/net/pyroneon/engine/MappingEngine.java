@@ -0,0 +1,450 @@
+package net.pyroneon.engine;
+
+import net.pyroneon.upnp.Gateway;
+import net.pyroneon.upnp.PortMappingEntry;
+import net.pyroneon.upnp.SoapFault;
+import net.pyroneon.util.Bind;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+
+/**
+ * Sends open and close requests to the gateways concurrently. Each request is a blocking SOAP round-trip, so the engine
+ * keeps a bounded number of bindings in flight at once rather than waiting for each one in turn.
+ * <p>
+ * On hosts behind several gateways, each operation on a binding fans out to every gateway it targets at once, and only
+ * succeeds if it succeeded on all of them. A binding sends each gateway at most one request, so the in-flight limit is
+ * also the most requests any single gateway sees at once.
+ * <p>
+ * Within that, every request to a gateway goes through its own ConcurrencyLimit, which finds how many requests that
+ * gateway can actually take at once. The in-flight limit is the ceiling it can grow to.
+ */
+public class MappingEngine {
+
+    /** The in-flight limit used when none is specified. Gateways start lower and only grow towards it while they cope. */
+    public static final int DEFAULT_MAX_IN_FLIGHT = 32;
+    /** The highest in-flight limit accepted, to stop a typo from flooding the gateway. */
+    public static final int MAX_IN_FLIGHT = 64;
+
+    private final ExecutorService executor;
+    private volatile List<Gateway> gateways = List.of();
+    // Gateways that refused a lease, so every mapping on them is made permanent instead.
+    private final Set<Gateway> permanentOnly = ConcurrentHashMap.newKeySet();
+    private volatile int maxInFlight;
+    private volatile Semaphore inFlight;
+    private final Map<Gateway, ConcurrencyLimit> limits = new ConcurrentHashMap<>();
+
+    /**
+     * Creates an engine using the default in-flight limit.
+     */
+    public MappingEngine(){
+        this(DEFAULT_MAX_IN_FLIGHT);
+    }
+
+    /**
+     * @param maxInFlight The maximum number of gateway requests allowed in flight at once.
+     */
+    public MappingEngine(int maxInFlight){
+        executor = Executors.newCachedThreadPool(runnable -> {
+            Thread thread = new Thread(runnable, "CLIPnP-mapping");
+            thread.setDaemon(true);
+            return thread;
+        });
+        setMaxInFlight(maxInFlight);
+    }
+
+    /**
+     * Changes the in-flight limit, which is also the ceiling of every gateway's adaptive limit. Batches already
+     * running keep the limit they started with, but their requests are held to the new ceiling.
+     * @param maxInFlight The new limit, must be within 1 and MAX_IN_FLIGHT.
+     */
+    public void setMaxInFlight(int maxInFlight){
+        if(maxInFlight < 1 || maxInFlight > MAX_IN_FLIGHT){
+            throw new IllegalArgumentException("In-flight limit must be within 1-" + MAX_IN_FLIGHT);
+        }
+        this.maxInFlight = maxInFlight;
+        this.inFlight = new Semaphore(maxInFlight);
+        for(ConcurrencyLimit limit : limits.values()){
+            limit.setCeiling(maxInFlight);
+        }
+    }
+
+    /**
+     * @param gw A gateway.
+     * @return The adaptive limit on requests to it, created on first use.
+     */
+    public ConcurrencyLimit getLimit(Gateway gw){
+        return limits.computeIfAbsent(gw, key -> new ConcurrencyLimit(maxInFlight));
+    }
+
+    /**
+     * @return The adaptive limit of every current gateway, the primary one first.
+     */
+    public Map<Gateway, ConcurrencyLimit> getLimits(){
+        LinkedHashMap<Gateway, ConcurrencyLimit> current = new LinkedHashMap<>();
+        for(Gateway gw : gateways){
+            current.put(gw, getLimit(gw));
+        }
+        return current;
+    }
+
+    /**
+     * Sends a request to a gateway within its adaptive limit, E.g. for requests made outside the engine's batches.
+     * @param gw The gateway.
+     * @param call The blocking request.
+     * @param <T> What it returns.
+     * @return The request's result.
+     * @throws IOException If the request failed.
+     */
+    public <T> T call(Gateway gw, ConcurrencyLimit.Call<T> call) throws IOException {
+        return getLimit(gw).call(call);
+    }
+
+    /**
+     * @return The current in-flight limit.
+     */
+    public int getMaxInFlight(){
+        return maxInFlight;
+    }
+
+    /**
+     * Sets the single gateway every operation is sent to.
+     * @param gateway The gateway, or null if none has been found (every operation then fails).
+     */
+    public void setGateway(Gateway gateway){
+        setGateways(gateway == null ? List.of() : List.of(gateway));
+    }
+
+    /**
+     * Sets the gateways operations are sent to, on hosts behind several.
+     * @param gateways The gateways, the first being the primary one. Empty if none has been found (every operation then fails).
+     */
+    public void setGateways(List<Gateway> gateways){
+        this.gateways = List.copyOf(gateways);
+        permanentOnly.clear();
+    }
+
+    /**
+     * @param bind A binding with a lease.
+     * @return True if every gateway the binding targets has refused a lease, so its lease never needs renewing.
+     */
+    public boolean isPermanentOnly(Bind bind){
+        List<Gateway> targets = getTargets(bind);
+        return !targets.isEmpty() && permanentOnly.containsAll(targets);
+    }
+
+    /**
+     * @return The primary gateway, used where only one can be, or null if none has been found.
+     */
+    public Gateway getGateway(){
+        List<Gateway> current = gateways;
+        return current.isEmpty() ? null : current.get(0);
+    }
+
+    /**
+     * @return Every gateway operations are sent to, the primary one first. Empty if none has been found.
+     */
+    public List<Gateway> getGateways(){
+        return gateways;
+    }
+
+    /**
+     * @param bind A binding.
+     * @return The known gateways it targets. Can be fewer than it names, if some of them haven't been found.
+     */
+    public List<Gateway> getTargets(Bind bind){
+        List<Gateway> current = gateways;
+        if(bind.getGateways().isEmpty()){
+            return current;
+        }
+        List<Gateway> targets = new ArrayList<>(bind.getGateways().size());
+        for(Gateway gw : current){
+            if(bind.targets(gw.getGatewayIP())){
+                targets.add(gw);
+            }
+        }
+        return targets;
+    }
+
+    /**
+     * Runs an operation on every gateway a binding targets at once, blocking until all of them have replied.
+     * @param bind The binding.
+     * @param operation The blocking operation on one gateway, returning true on success.
+     * @return True if it succeeded on every target, false if it failed on any, or if a target the binding names hasn't
+     * been found.
+     */
+    private boolean fanOut(Bind bind, Predicate<Gateway> operation){
+        List<Gateway> targets = getTargets(bind);
+        if(targets.isEmpty() || (!bind.getGateways().isEmpty() && targets.size() < bind.getGateways().size())){
+            return false;
+        }
+        if(targets.size() == 1){
+            return operation.test(targets.get(0));
+        }
+        // The first target is handled on this thread, the rest alongside it.
+        List<CompletableFuture<Boolean>> others = new ArrayList<>(targets.size() - 1);
+        for(Gateway gw : targets.subList(1, targets.size())){
+            others.add(CompletableFuture.supplyAsync(() -> operation.test(gw), executor));
+        }
+        boolean succeeded = operation.test(targets.get(0));
+        for(CompletableFuture<Boolean> other : others){
+            succeeded &= other.join();
+        }
+        return succeeded;
+    }
+
+    /**
+     * Maps a single binding with its lease on every gateway it targets, blocking until they reply. Also renews an
+     * existing lease. On gateways that only support permanent mappings, the binding is mapped permanently instead.
+     * @param bind The binding to open.
+     * @return True if successful on every target, and False otherwise.
+     */
+    public boolean open(Bind bind){
+        return fanOut(bind, gw -> open(gw, bind));
+    }
+
+    /**
+     * Maps a single binding on one gateway.
+     * @param gw The gateway.
+     * @param bind The binding to open.
+     * @return True if successful, and False otherwise.
+     */
+    private boolean open(Gateway gw, Bind bind){
+        int lease = permanentOnly.contains(gw) ? 0 : bind.getLease();
+        try {
+            String description = bind.getDescription() != null ? bind.getDescription() : Gateway.MAPPING_DESCRIPTION;
+            call(gw, () -> {
+                gw.openPort(bind.getProtocol(), bind.getPort(), lease, description);
+                return null;
+            });
+            return true;
+        } catch (SoapFault e) {
+            if(e.getErrorCode() == SoapFault.ONLY_PERMANENT_LEASES && lease > 0){
+                permanentOnly.add(gw);
+                return open(gw, bind);
+            }
+            return false;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Removes a single binding's mapping from every gateway it targets, blocking until they reply.
+     * @param bind The binding to close.
+     * @return True if successful on every target, and False otherwise.
+     */
+    public boolean close(Bind bind){
+        return fanOut(bind, gw -> {
+            try {
+                call(gw, () -> {
+                    gw.closePort(bind.getProtocol(), bind.getPort());
+                    return null;
+                });
+                return true;
+            } catch (IOException e) {
+                return false;
+            }
+        });
+    }
+
+    /**
+     * Asks every gateway a binding targets whether it is currently mapped.
+     * @param bind The binding to check.
+     * @return True if every target has a mapping for the port, false if any doesn't or couldn't be asked.
+     */
+    public boolean probe(Bind bind){
+        return fanOut(bind, gw -> {
+            try {
+                return call(gw, () -> gw.isMapped(bind.getProtocol(), bind.getPort()));
+            } catch (IOException e) {
+                return false;
+            }
+        });
+    }
+
+    /**
+     * Opens every binding concurrently, blocking until all of them have finished.
+     * @param binds The bindings to open.
+     * @return The per-binding results.
+     * @throws CancellationException If this thread's progress was cancelled partway. See Progress.
+     */
+    public BatchResult openAll(Collection<Bind> binds) throws CancellationException {
+        return run(binds, this::open);
+    }
+
+    /**
+     * Closes every binding concurrently, blocking until all of them have finished. Does not deregister anything.
+     * @param binds The bindings to close.
+     * @return The per-binding results.
+     * @throws CancellationException If this thread's progress was cancelled partway. See Progress.
+     */
+    public BatchResult closeAll(Collection<Bind> binds) throws CancellationException {
+        return run(binds, this::close);
+    }
+
+    /**
+     * Reads the gateway's whole port mapping table, keeping up to maxInFlight index requests in flight at once, or
+     * fewer if the gateway's adaptive limit is lower.
+     * @param gateway The gateway to scan.
+     * @param listener Receives each entry in table order as soon as it can be, while the scan is still running. Can be null.
+     * @return The complete snapshot.
+     * @throws IOException If the gateway failed partway through the table.
+     */
+    public MappingTable scan(Gateway gateway, Consumer<PortMappingEntry> listener) throws IOException {
+        return new TableScan(gateway, getLimit(gateway), listener).run(executor, maxInFlight);
+    }
+
+    /**
+     * Runs an operation over each binding, keeping at most maxInFlight of them running at a time.
+     * @param binds The bindings to process.
+     * @param operation The blocking gateway operation, returning true on success.
+     * @return The per-binding results, once every operation has completed.
+     * @throws CancellationException If this thread's progress was cancelled partway, once the bindings already
+     * submitted have finished.
+     */
+    BatchResult run(Collection<Bind> binds, Predicate<Bind> operation) throws CancellationException {
+        Batch batch = new Batch(operation);
+        try {
+            for(Bind bind : binds){
+                batch.submit(bind);
+            }
+        } catch (CancellationException e) {
+            batch.await();
+            throw e;
+        }
+        return batch.await();
+    }
+
+    /**
+     * Starts an open batch that bindings can be fed into one at a time, E.g. while a config file is still being read.
+     * @return The new batch. Call await() once every binding has been submitted.
+     */
+    public Batch startOpenBatch(){
+        return new Batch(this::open);
+    }
+
+    /**
+     * Starts a close batch that bindings can be fed into one at a time. Shares the in-flight limit with any other batch,
+     * so an open and a close batch fed side by side run concurrently within it.
+     * @return The new batch. Call await() once every binding has been submitted.
+     */
+    public Batch startCloseBatch(){
+        return new Batch(this::close);
+    }
+
+    /**
+     * A batch of operations whose bindings don't all have to be known up front. Each submitted binding starts as soon
+     * as a slot is free, and at most maxInFlight of them run at a time. Reports to the Progress of the thread that
+     * started it, if it has one.
+     */
+    public class Batch {
+
+        private final BatchResult result = new BatchResult();
+        private final Predicate<Bind> operation;
+        private final Semaphore permits = inFlight;
+        private final Progress progress = Progress.current();
+        private int running;
+
+        /**
+         * @param operation The blocking gateway operation, returning true on success.
+         */
+        private Batch(Predicate<Bind> operation){
+            this.operation = operation;
+        }
+
+        /**
+         * Hands a binding to a worker, first waiting for a free slot if maxInFlight operations are already running.
+         * Should only be called from the thread that started the batch.
+         * @param bind The binding to process.
+         * @throws CancellationException If the batch's progress has been cancelled. The binding isn't processed, but
+         * the batch can still be awaited for the bindings submitted before it.
+         */
+        public void submit(Bind bind) throws CancellationException {
+            permits.acquireUninterruptibly();
+            if(progress != null){
+                try {
+                    progress.submitted();
+                } catch (CancellationException e) {
+                    permits.release();
+                    throw e;
+                }
+            }
+            synchronized (this){
+                running++;
+            }
+            executor.execute(() -> {
+                boolean success = false;
+                try {
+                    success = operation.test(bind);
+                } catch (RuntimeException ignored) {
+                    // Counts as a failure.
+                } finally {
+                    result.record(bind, success);
+                    if(progress != null){
+                        progress.completed(success);
+                    }
+                    permits.release();
+                    finished();
+                }
+            });
+        }
+
+        /**
+         * Called by a worker once its operation has been recorded.
+         */
+        private synchronized void finished(){
+            running--;
+            if(running == 0){
+                notifyAll();
+            }
+        }
+
+        /**
+         * Blocks until every submitted binding has finished.
+         * @return The per-binding results.
+         */
+        public synchronized BatchResult await(){
+            try {
+                while(running > 0){
+                    wait();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return result;
+        }
+    }
+
+    /**
+     * Runs a task on the engine's worker pool, E.g. so a background job can block on the gateway without holding up
+     * the thread that scheduled it.
+     * @param task The task.
+     */
+    public void execute(Runnable task){
+        executor.execute(task);
+    }
+
+    /**
+     * Stops the worker threads once any running requests finish, and closes the connections to the gateways.
+     */
+    public void shutdown(){
+        executor.shutdown();
+        for(Gateway gw : gateways){
+            gw.close();
+        }
+    }
+}
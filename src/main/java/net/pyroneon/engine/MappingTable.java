@@ -0,0 +1,76 @@
+package net.pyroneon.engine;
+
+import net.pyroneon.upnp.PortMappingEntry;
+import net.pyroneon.util.Bind;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * A local snapshot of the gateway's whole port mapping table, filled by a table scan. Lets port states be answered
+ * from memory, including mappings that CLIPnP did not create itself.
+ */
+public class MappingTable {
+
+    private final BitSet mapped = new BitSet(Bind.KEY_SPACE);
+    private final HashMap<Integer, PortMappingEntry> entries = new HashMap<>();
+    private final ArrayList<PortMappingEntry> ordered = new ArrayList<>();
+    private final long takenAt;
+
+    /**
+     * Creates an empty snapshot, timestamped now. Entries are added as the scan reads them.
+     */
+    MappingTable(){
+        takenAt = System.currentTimeMillis();
+    }
+
+    /**
+     * Adds an entry read from the gateway. Called by a single thread, in table order.
+     * @param entry The entry to add.
+     */
+    void add(PortMappingEntry entry){
+        int key = Bind.key(entry.getProtocol(), entry.getExternalPort());
+        mapped.set(key);
+        entries.put(key, entry);
+        ordered.add(entry);
+    }
+
+    /**
+     * @param key A packed binding key.
+     * @return True if the gateway had a mapping for this key when the snapshot was taken.
+     */
+    public boolean contains(int key){
+        return mapped.get(key);
+    }
+
+    /**
+     * @param key A packed binding key.
+     * @return The table entry for this key, or null if there was none.
+     */
+    public PortMappingEntry get(int key){
+        return entries.get(key);
+    }
+
+    /**
+     * @return Every entry, in table order.
+     */
+    public List<PortMappingEntry> getEntries(){
+        return new ArrayList<>(ordered);
+    }
+
+    /**
+     * @return The number of entries in the table.
+     */
+    public int size(){
+        return ordered.size();
+    }
+
+    /**
+     * @return When the scan started, in epoch milliseconds.
+     */
+    public long getTakenAt(){
+        return takenAt;
+    }
+}
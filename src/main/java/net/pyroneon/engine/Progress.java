@@ -0,0 +1,99 @@
+package net.pyroneon.engine;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Counts how far the batches started on a thread have got, and lets them be cancelled from another thread, E.g. so a
+ * background job loading a large config can be watched and stopped. A thread opts in with setCurrent(), and every batch
+ * it starts afterwards reports to that progress. Batches started on other threads (E.g. lease renewals) are unaffected.
+ * <p>
+ * Cancelling is cooperative: no new binding is handed to the gateway, but requests already in flight are allowed to
+ * finish, so no connection is left with a half-written request.
+ */
+public class Progress {
+
+    private static final ThreadLocal<Progress> current = new ThreadLocal<>();
+
+    private final AtomicInteger submitted = new AtomicInteger();
+    private final AtomicInteger completed = new AtomicInteger();
+    private final AtomicInteger failed = new AtomicInteger();
+    private volatile boolean cancelled;
+
+    /**
+     * @return The progress batches started on this thread report to, or null if none.
+     */
+    public static Progress current(){
+        return current.get();
+    }
+
+    /**
+     * Makes every batch started on this thread from now on report to a progress.
+     * @param progress The progress, or null to stop reporting.
+     */
+    public static void setCurrent(Progress progress){
+        if(progress == null){
+            current.remove();
+        }
+        else{
+            current.set(progress);
+        }
+    }
+
+    /**
+     * Called as a binding is handed to the gateway.
+     * @throws CancellationException If the progress has been cancelled, in which case the binding must not be sent.
+     */
+    void submitted() throws CancellationException {
+        if(cancelled){
+            throw new CancellationException("Cancelled after " + completed.get() + " bindings.");
+        }
+        submitted.incrementAndGet();
+    }
+
+    /**
+     * Called as a binding's operation finishes.
+     * @param success Whether the gateway accepted it.
+     */
+    void completed(boolean success){
+        completed.incrementAndGet();
+        if(!success){
+            failed.incrementAndGet();
+        }
+    }
+
+    /**
+     * Stops any more bindings from being handed to the gateway. Returns immediately.
+     */
+    public void cancel(){
+        cancelled = true;
+    }
+
+    /**
+     * @return True if cancel() has been called.
+     */
+    public boolean isCancelled(){
+        return cancelled;
+    }
+
+    /**
+     * @return The number of bindings handed to the gateway so far.
+     */
+    public int getSubmitted(){
+        return submitted.get();
+    }
+
+    /**
+     * @return The number of bindings whose operation has finished, successfully or not.
+     */
+    public int getCompleted(){
+        return completed.get();
+    }
+
+    /**
+     * @return The number of bindings whose operation failed.
+     */
+    public int getFailed(){
+        return failed.get();
+    }
+}
@@ -0,0 +1,152 @@
+package net.pyroneon.engine;
+
+import java.util.function.IntSupplier;
+
+/**
+ * Periodically checks that the gateways still have every registered binding, since routers quietly drop mappings when
+ * they reboot or renew their DHCP leases. Each check is one reconciliation pass (see CLIPnP), usually a single table
+ * scan per gateway, so its cost doesn't grow with per-port probes.
+ * <p>
+ * The interval adapts: it doubles after every pass that finds everything in place, up to MAX_INTERVAL_MILLIS, and drops
+ * back to MIN_INTERVAL_MILLIS as soon as a pass finds a mapping missing or can't read a table, as that usually means the
+ * router has just restarted and may not be done yet. The next pass is also never sooner than DUTY_FACTOR times as long
+ * as the last one took, so a gateway with a huge table spends most of its time serving other requests.
+ */
+public class Reconciler {
+
+    /** The shortest time between passes, used after a drop is found. */
+    public static final long MIN_INTERVAL_MILLIS = 30_000;
+    /** The longest time between passes, reached after a run of passes that find nothing wrong. */
+    public static final long MAX_INTERVAL_MILLIS = 15 * 60_000;
+    /** The next pass waits at least this many times as long as the last one took. */
+    public static final int DUTY_FACTOR = 20;
+    /** How long a requested pass waits for more requests to join it, E.g. a burst of gateway events. */
+    public static final long REQUEST_DELAY_MILLIS = 2000;
+
+    private final IntSupplier pass;
+    private final Thread thread;
+    private long interval = MIN_INTERVAL_MILLIS;
+    private long nextPass = System.currentTimeMillis() + MIN_INTERVAL_MILLIS;
+    private long passes;
+    private long healed;
+    private long failures;
+    private boolean running = true;
+
+    /**
+     * Creates and starts a reconciler. The first pass runs MIN_INTERVAL_MILLIS from now.
+     * @param pass Runs one reconciliation pass, returning how many missing mappings it found (and tried to re-open),
+     * or -1 if a gateway's table couldn't be read. Called on the reconciler's own thread.
+     */
+    public Reconciler(IntSupplier pass){
+        this.pass = pass;
+        thread = new Thread(this::run, "CLIPnP-reconcile");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Asks for a pass soon, E.g. because the gateway reported a change. Returns immediately. The pass waits
+     * REQUEST_DELAY_MILLIS, and every request made in the meantime is served by that one pass.
+     */
+    public synchronized void requestPass(){
+        nextPass = Math.min(nextPass, System.currentTimeMillis() + REQUEST_DELAY_MILLIS);
+        notifyAll();
+    }
+
+    /**
+     * Feeds the outcome of a pass into the interval, and schedules the next one. Also used for passes run on demand
+     * on another thread, so they count the same as the background ones.
+     * @param found The pass's result: how many missing mappings it found, or -1 if a table couldn't be read.
+     * @param tookMillis How long the pass took.
+     */
+    public synchronized void record(int found, long tookMillis){
+        passes++;
+        if(found != 0){
+            if(found > 0){
+                healed += found;
+            }
+            else{
+                failures++;
+            }
+            interval = MIN_INTERVAL_MILLIS;
+        }
+        else{
+            interval = Math.min(interval * 2, MAX_INTERVAL_MILLIS);
+        }
+        nextPass = System.currentTimeMillis() + Math.max(interval, tookMillis * DUTY_FACTOR);
+        notifyAll();
+    }
+
+    /**
+     * @return The current interval between passes, in milliseconds.
+     */
+    public synchronized long getInterval(){
+        return interval;
+    }
+
+    /**
+     * @return When the next pass is due, in epoch milliseconds.
+     */
+    public synchronized long getNextPass(){
+        return nextPass;
+    }
+
+    /**
+     * @return The number of passes run so far.
+     */
+    public synchronized long getPasses(){
+        return passes;
+    }
+
+    /**
+     * @return The number of missing mappings found so far.
+     */
+    public synchronized long getHealed(){
+        return healed;
+    }
+
+    /**
+     * @return The number of passes that couldn't read a gateway's table.
+     */
+    public synchronized long getFailures(){
+        return failures;
+    }
+
+    /**
+     * Stops the reconciler. A pass already running is left to finish on its own.
+     */
+    public synchronized void close(){
+        running = false;
+        notifyAll();
+    }
+
+    /**
+     * The reconciler thread. Sleeps until the next pass is due, then runs it.
+     */
+    private void run(){
+        while(true){
+            synchronized (this){
+                try {
+                    long remaining;
+                    while(running && (remaining = nextPass - System.currentTimeMillis()) > 0){
+                        wait(remaining);
+                    }
+                } catch (InterruptedException e) {
+                    return;
+                }
+                if(!running){
+                    return;
+                }
+            }
+
+            long start = System.currentTimeMillis();
+            int found;
+            try {
+                found = pass.getAsInt();
+            } catch (RuntimeException e) {
+                found = -1;
+            }
+            record(found, System.currentTimeMillis() - start);
+        }
+    }
+}
@@ -0,0 +1,119 @@
+package net.pyroneon.engine;
+
+import net.pyroneon.upnp.Gateway;
+import net.pyroneon.upnp.PortMappingEntry;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+/**
+ * Walks a gateway's port mapping table with GetGenericPortMappingEntry. Several indexes are requested at once, so the
+ * sweep isn't bound by one round-trip per entry, but entries are still handed out strictly in table order.
+ */
+class TableScan {
+
+    private final Gateway gateway;
+    private final ConcurrencyLimit limit;
+    private final Consumer<PortMappingEntry> listener;
+    private final MappingTable table = new MappingTable();
+
+    private final AtomicInteger nextIndex = new AtomicInteger();
+    // The first index known to be past the end of the table.
+    private volatile int endIndex = Integer.MAX_VALUE;
+    private volatile IOException error;
+
+    // Entries that arrived ahead of an earlier index, waiting to be emitted in order. Guarded by this.
+    private final HashMap<Integer, PortMappingEntry> pending = new HashMap<>();
+    private int nextToEmit;
+
+    /**
+     * @param gateway The gateway to scan.
+     * @param limit The gateway's adaptive limit, which every index request goes through.
+     * @param listener Receives each entry as soon as every earlier entry has been received. Can be null.
+     */
+    TableScan(Gateway gateway, ConcurrencyLimit limit, Consumer<PortMappingEntry> listener){
+        this.gateway = gateway;
+        this.limit = limit;
+        this.listener = listener;
+    }
+
+    /**
+     * Runs the scan, blocking until the end of the table is found.
+     * @param executor Runs the worker loops.
+     * @param window How many indexes to have in flight at once.
+     * @return The complete snapshot.
+     * @throws IOException If the gateway failed partway, other than by reporting the end of the table.
+     */
+    MappingTable run(Executor executor, int window) throws IOException {
+        CountDownLatch workers = new CountDownLatch(window);
+        for(int i = 0; i < window; i++){
+            executor.execute(() -> {
+                try {
+                    work();
+                } finally {
+                    workers.countDown();
+                }
+            });
+        }
+
+        try {
+            workers.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Table scan interrupted.", e);
+        }
+        if(error != null){
+            throw error;
+        }
+        return table;
+    }
+
+    /**
+     * A worker loop, claiming the next unrequested index until the end of the table is found.
+     */
+    private void work(){
+        while(error == null){
+            int index = nextIndex.getAndIncrement();
+            if(index >= endIndex){
+                return;
+            }
+            PortMappingEntry entry;
+            try {
+                entry = limit.call(() -> gateway.getPortMappingEntry(index));
+            } catch (IOException e) {
+                error = e;
+                return;
+            }
+
+            if(entry == null){
+                // Other workers may have already asked for later indexes, those replies are ignored.
+                synchronized (this){
+                    endIndex = Math.min(endIndex, index);
+                }
+                return;
+            }
+            emit(index, entry);
+        }
+    }
+
+    /**
+     * Queues an entry, then emits every entry that is now next in table order.
+     * @param index The entry's table index.
+     * @param entry The entry.
+     */
+    private synchronized void emit(int index, PortMappingEntry entry){
+        pending.put(index, entry);
+        while(pending.containsKey(nextToEmit) && nextToEmit < endIndex){
+            PortMappingEntry next = pending.remove(nextToEmit);
+            table.add(next);
+            if(listener != null){
+                listener.accept(next);
+            }
+            nextToEmit++;
+        }
+    }
+}
@@ -0,0 +1,121 @@
+package net.pyroneon.jobs;
+
+import net.pyroneon.engine.Progress;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * A command running in the background, E.g. "config add 'big.clip' &".
+ */
+public class Job {
+
+    /**
+     * What a job is doing.
+     */
+    public enum State {
+        /** Still running. */
+        RUNNING,
+        /** Finished. The command may still have reported failures of its own. */
+        DONE,
+        /** Stopped early by "cancel". */
+        CANCELLED,
+        /** Stopped by an unexpected error. */
+        FAILED
+    }
+
+    private final int id;
+    private final String command;
+    private final long started = System.currentTimeMillis();
+    private final Progress progress = new Progress();
+    private final CompletableFuture<State> finished = new CompletableFuture<>();
+    private volatile long ended;
+
+    /**
+     * @param id The job's number, as shown to the user.
+     * @param command The command line, without its "&".
+     */
+    Job(int id, String command){
+        this.id = id;
+        this.command = command;
+    }
+
+    /**
+     * @return The job's number, as shown to the user.
+     */
+    public int getId(){
+        return id;
+    }
+
+    /**
+     * @return The command line, without its "&".
+     */
+    public String getCommand(){
+        return command;
+    }
+
+    /**
+     * @return How far the command's gateway batches have got.
+     */
+    public Progress getProgress(){
+        return progress;
+    }
+
+    /**
+     * @return What the job is doing.
+     */
+    public State getState(){
+        return finished.getNow(State.RUNNING);
+    }
+
+    /**
+     * @return How long the job has been running, or ran for, in milliseconds.
+     */
+    public long getElapsedMillis(){
+        long end = ended;
+        return (end != 0 ? end : System.currentTimeMillis()) - started;
+    }
+
+    /**
+     * Asks the job to stop sending requests to the gateway. Returns immediately; requests already in flight finish first.
+     */
+    public void cancel(){
+        progress.cancel();
+    }
+
+    /**
+     * Blocks until the job has finished.
+     * @return How it finished.
+     */
+    public State await(){
+        return finished.join();
+    }
+
+    /**
+     * Blocks until the job has finished, or a timeout passes.
+     * @param timeoutMillis The longest to wait.
+     * @return How it finished, or RUNNING if it hadn't by the timeout.
+     */
+    public State await(long timeoutMillis){
+        try {
+            return finished.get(timeoutMillis, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            return State.RUNNING;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return State.RUNNING;
+        } catch (Exception e) {
+            return State.FAILED;
+        }
+    }
+
+    /**
+     * Marks the job finished, waking anyone waiting for it.
+     * @param state How it finished.
+     */
+    void finish(State state){
+        ended = System.currentTimeMillis();
+        finished.complete(state);
+    }
+}
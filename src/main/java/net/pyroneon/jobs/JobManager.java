@@ -0,0 +1,137 @@
+package net.pyroneon.jobs;
+
+import net.pyroneon.engine.Progress;
+import net.pyroneon.util.Console;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+/**
+ * Runs commands in the background, so a long one (E.g. loading a config of thousands of bindings) doesn't hold up the
+ * prompt. Each job runs on its own thread and reports the progress of its gateway batches as it goes. Like a shell, a
+ * finished job is announced when it ends, and forgotten once "jobs" has listed it as finished.
+ */
+public class JobManager {
+
+    private final ExecutorService executor = Executors.newCachedThreadPool(runnable -> {
+        Thread thread = new Thread(runnable, "CLIPnP-job");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final ConcurrentSkipListMap<Integer, Job> jobs = new ConcurrentSkipListMap<>();
+    private final AtomicInteger nextId = new AtomicInteger(1);
+
+    /**
+     * Starts running a command in the background, and says so. Returns immediately.
+     * @param command The command line, without its "&".
+     * @param runner Runs a command line, E.g. Main::dispatch.
+     * @return The new job.
+     */
+    public Job submit(String command, Consumer<String> runner){
+        Job job = new Job(nextId.getAndIncrement(), command);
+        jobs.put(job.getId(), job);
+        // Announced first, so it can't come after the job's own output.
+        Console.sendResponse("["+job.getId()+"] Started: "+command);
+        executor.execute(() -> run(job, runner));
+        return job;
+    }
+
+    /**
+     * Runs a job on its worker thread.
+     * @param job The job.
+     * @param runner Runs its command line.
+     */
+    private void run(Job job, Consumer<String> runner){
+        Progress.setCurrent(job.getProgress());
+        Job.State state;
+        try {
+            runner.accept(job.getCommand());
+            state = job.getProgress().isCancelled() ? Job.State.CANCELLED : Job.State.DONE;
+        } catch (CancellationException e) {
+            state = Job.State.CANCELLED;
+        } catch (RuntimeException e) {
+            Console.sendError("["+job.getId()+"] "+e);
+            state = Job.State.FAILED;
+        } finally {
+            Progress.setCurrent(null);
+        }
+        job.finish(state);
+        Console.sendResponse("["+job.getId()+"] "+describe(state)+" after "+formatMillis(job.getElapsedMillis())+": "+job.getCommand());
+    }
+
+    /**
+     * @param id A job's number.
+     * @return The job, or null if there is none with that number (or it has already been forgotten).
+     */
+    public Job get(int id){
+        return jobs.get(id);
+    }
+
+    /**
+     * Lists every job, then forgets the ones that have finished.
+     * @return The jobs in the order they were started.
+     */
+    public List<Job> list(){
+        List<Job> all = new ArrayList<>(jobs.values());
+        for(Job job : all){
+            if(job.getState() != Job.State.RUNNING){
+                jobs.remove(job.getId());
+            }
+        }
+        return all;
+    }
+
+    /**
+     * @return The jobs still running, in the order they were started.
+     */
+    public List<Job> getRunning(){
+        List<Job> running = new ArrayList<>();
+        for(Job job : jobs.values()){
+            if(job.getState() == Job.State.RUNNING){
+                running.add(job);
+            }
+        }
+        return running;
+    }
+
+    /**
+     * Cancels every running job and waits for them to stop, E.g. before closing all ports on the way out.
+     * @param timeoutMillis The longest to wait for each job.
+     */
+    public void cancelAll(long timeoutMillis){
+        List<Job> running = getRunning();
+        for(Job job : running){
+            job.cancel();
+        }
+        for(Job job : running){
+            job.await(timeoutMillis);
+        }
+    }
+
+    /**
+     * @param state How a job finished.
+     * @return The word used for it in messages, E.g. "Done".
+     */
+    public static String describe(Job.State state){
+        return switch (state) {
+            case RUNNING -> "Running";
+            case DONE -> "Done";
+            case CANCELLED -> "Cancelled";
+            case FAILED -> "Failed";
+        };
+    }
+
+    /**
+     * @param millis A duration.
+     * @return The duration in seconds, E.g. "12.3s".
+     */
+    public static String formatMillis(long millis){
+        return String.format("%.1fs", millis / 1000.0);
+    }
+}
@@ -0,0 +1,124 @@
+package net.pyroneon.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A fixed-size, lock-free latency histogram in the style of HdrHistogram. Values (in microseconds) are bucketed
+ * log-linearly: each power of two is split into 32 equal sub-buckets, so every recorded value is kept to within about 3%
+ * no matter how large, in a few kilobytes. Recording is a couple of shifts and an atomic increment, cheap
+ * enough to sit on every gateway call.
+ */
+public class LatencyHistogram {
+
+    /** Values below 2^SUB_BUCKET_BITS are counted exactly, and every power of two above is split in half as many buckets. */
+    private static final int SUB_BUCKET_BITS = 6;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    /** Powers of two covered above the exact range, enough for values up to about 3 days. */
+    private static final int MAGNITUDES = 32;
+    private static final int BUCKETS = SUB_BUCKETS + MAGNITUDES * (SUB_BUCKETS / 2);
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final AtomicLong total = new AtomicLong();
+    private final AtomicLong sum = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+    /**
+     * Records a single value.
+     * @param micros The value in microseconds. Negative values are recorded as 0, and huge ones in the last bucket.
+     */
+    public void record(long micros){
+        long value = Math.max(0, micros);
+        counts.incrementAndGet(indexOf(value));
+        total.incrementAndGet();
+        sum.addAndGet(value);
+        max.accumulateAndGet(value, Math::max);
+    }
+
+    /**
+     * @return The number of values recorded.
+     */
+    public long getCount(){
+        return total.get();
+    }
+
+    /**
+     * @return The mean of every value recorded in microseconds, 0 if there are none.
+     */
+    public double getMean(){
+        long count = total.get();
+        return count == 0 ? 0 : (double) sum.get() / count;
+    }
+
+    /**
+     * @return The largest value recorded in microseconds, exactly.
+     */
+    public long getMax(){
+        return max.get();
+    }
+
+    /**
+     * Finds the value below which a given share of the recorded values fall.
+     * @param percentile The share, within 0 and 100. E.g. 99.9
+     * @return The value in microseconds, accurate to the bucket it falls in. 0 if nothing was recorded.
+     */
+    public long getPercentile(double percentile){
+        long count = total.get();
+        if(count == 0){
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(count * Math.min(100, Math.max(0, percentile)) / 100));
+        long seen = 0;
+        for(int i = 0; i < counts.length(); i++){
+            seen += counts.get(i);
+            if(seen >= rank){
+                // Never report more than the true maximum.
+                return Math.min(highestValueAt(i), getMax());
+            }
+        }
+        return getMax();
+    }
+
+    /**
+     * Clears every recorded value.
+     */
+    public void reset(){
+        for(int i = 0; i < counts.length(); i++){
+            counts.set(i, 0);
+        }
+        total.set(0);
+        sum.set(0);
+        max.set(0);
+    }
+
+    /**
+     * @param value A value in microseconds.
+     * @return The index of the bucket holding it.
+     */
+    private static int indexOf(long value){
+        if(value < SUB_BUCKETS){
+            // Small values each get their own bucket.
+            return (int) value;
+        }
+        // The magnitude is how far the value's top bit is above the linear range, the sub-bucket is the next bits down.
+        int magnitude = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS + 1;
+        if(magnitude > MAGNITUDES){
+            return BUCKETS - 1;
+        }
+        int subBucket = (int) (value >>> magnitude) - SUB_BUCKETS / 2;
+        return SUB_BUCKETS + (magnitude - 1) * (SUB_BUCKETS / 2) + subBucket;
+    }
+
+    /**
+     * @param index A bucket index.
+     * @return The largest value that falls in the bucket.
+     */
+    private static long highestValueAt(int index){
+        if(index < SUB_BUCKETS){
+            return index;
+        }
+        int magnitude = (index - SUB_BUCKETS) / (SUB_BUCKETS / 2) + 1;
+        int subBucket = (index - SUB_BUCKETS) % (SUB_BUCKETS / 2) + SUB_BUCKETS / 2;
+        return (((long) subBucket + 1) << magnitude) - 1;
+    }
+}
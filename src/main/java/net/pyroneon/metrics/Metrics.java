@@ -0,0 +1,69 @@
+package net.pyroneon.metrics;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * The registry of per-operation gateway statistics. Every SOAP action and gateway discovery is timed here, and each
+ * operation is also exposed over JMX (E.g. in JConsole) as "net.pyroneon:type=Operation,name=&lt;operation&gt;".
+ */
+public class Metrics {
+
+    /** The operation name used for SSDP gateway discovery. SOAP operations use their action name. */
+    public static final String DISCOVERY = "Discovery";
+
+    private static final ConcurrentHashMap<String, OperationStats> operations = new ConcurrentHashMap<>();
+
+    /**
+     * Gets an operation's statistics, creating and registering them with JMX the first time.
+     * @param operation The operation's name, E.g. "AddPortMapping".
+     * @return The operation's statistics.
+     */
+    public static OperationStats get(String operation){
+        OperationStats stats = operations.get(operation);
+        if(stats != null){
+            return stats;
+        }
+        return operations.computeIfAbsent(operation, name -> {
+            OperationStats created = new OperationStats(name);
+            register(created);
+            return created;
+        });
+    }
+
+    /**
+     * @return Every operation seen so far, sorted by name.
+     */
+    public static List<OperationStats> getAll(){
+        List<OperationStats> toReturn = new ArrayList<>(operations.values());
+        toReturn.sort(Comparator.comparing(OperationStats::getName));
+        return toReturn;
+    }
+
+    /**
+     * Clears every operation's statistics.
+     */
+    public static void reset(){
+        for(OperationStats stats : operations.values()){
+            stats.reset();
+        }
+    }
+
+    /**
+     * Exposes an operation's statistics over JMX. Statistics are still kept if that fails.
+     * @param stats The statistics to register.
+     */
+    private static void register(OperationStats stats){
+        try {
+            ObjectName name = new ObjectName("net.pyroneon:type=Operation,name=" + stats.getName());
+            ManagementFactory.getPlatformMBeanServer().registerMBean(stats, name);
+        } catch (JMException | RuntimeException e) {
+            // JMX is only a convenience, the stats command still works.
+        }
+    }
+}
@@ -0,0 +1,121 @@
+package net.pyroneon.metrics;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counts the calls of one gateway operation by outcome, and keeps a histogram of their latencies.
+ */
+public class OperationStats implements OperationStatsMXBean {
+
+    private final String name;
+    private final LongAdder count = new LongAdder();
+    private final LongAdder faults = new LongAdder();
+    private final LongAdder errors = new LongAdder();
+    private final LatencyHistogram latency = new LatencyHistogram();
+
+    /**
+     * @param name The operation's name, E.g. "AddPortMapping".
+     */
+    OperationStats(String name){
+        this.name = name;
+    }
+
+    /**
+     * Records a call the gateway answered normally.
+     * @param nanos How long it took.
+     */
+    public void recordSuccess(long nanos){
+        record(nanos);
+    }
+
+    /**
+     * Records a call the gateway answered with a UPnP error.
+     * @param nanos How long it took.
+     */
+    public void recordFault(long nanos){
+        faults.increment();
+        record(nanos);
+    }
+
+    /**
+     * Records a call that failed without an answer.
+     * @param nanos How long it took to fail.
+     */
+    public void recordError(long nanos){
+        errors.increment();
+        record(nanos);
+    }
+
+    /**
+     * @param nanos How long a call took.
+     */
+    private void record(long nanos){
+        count.increment();
+        latency.record(nanos / 1000);
+    }
+
+    /**
+     * @return The latency histogram, in microseconds.
+     */
+    public LatencyHistogram getLatency(){
+        return latency;
+    }
+
+    @Override
+    public String getName(){
+        return name;
+    }
+
+    @Override
+    public long getCount(){
+        return count.sum();
+    }
+
+    @Override
+    public long getFaults(){
+        return faults.sum();
+    }
+
+    @Override
+    public long getErrors(){
+        return errors.sum();
+    }
+
+    @Override
+    public double getMeanMillis(){
+        return latency.getMean() / 1000;
+    }
+
+    @Override
+    public double getP50Millis(){
+        return latency.getPercentile(50) / 1000.0;
+    }
+
+    @Override
+    public double getP90Millis(){
+        return latency.getPercentile(90) / 1000.0;
+    }
+
+    @Override
+    public double getP99Millis(){
+        return latency.getPercentile(99) / 1000.0;
+    }
+
+    @Override
+    public double getP999Millis(){
+        return latency.getPercentile(99.9) / 1000.0;
+    }
+
+    @Override
+    public double getMaxMillis(){
+        return latency.getMax() / 1000.0;
+    }
+
+    @Override
+    public void reset(){
+        count.reset();
+        faults.reset();
+        errors.reset();
+        latency.reset();
+    }
+}
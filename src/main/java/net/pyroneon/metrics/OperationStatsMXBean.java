@@ -0,0 +1,63 @@
+package net.pyroneon.metrics;
+
+/**
+ * The JMX view of one gateway operation's statistics, registered as "net.pyroneon:type=Operation,name=&lt;operation&gt;".
+ * Latencies are in milliseconds.
+ */
+public interface OperationStatsMXBean {
+
+    /**
+     * @return The operation's name, E.g. "AddPortMapping".
+     */
+    String getName();
+
+    /**
+     * @return The number of calls made, whatever their outcome.
+     */
+    long getCount();
+
+    /**
+     * @return The number of calls the gateway answered with a UPnP error, E.g. 714 NoSuchEntryInArray.
+     */
+    long getFaults();
+
+    /**
+     * @return The number of calls that failed without an answer, E.g. timeouts and lost connections.
+     */
+    long getErrors();
+
+    /**
+     * @return The mean latency.
+     */
+    double getMeanMillis();
+
+    /**
+     * @return The median latency.
+     */
+    double getP50Millis();
+
+    /**
+     * @return The 90th percentile latency.
+     */
+    double getP90Millis();
+
+    /**
+     * @return The 99th percentile latency.
+     */
+    double getP99Millis();
+
+    /**
+     * @return The 99.9th percentile latency.
+     */
+    double getP999Millis();
+
+    /**
+     * @return The slowest call's latency.
+     */
+    double getMaxMillis();
+
+    /**
+     * Clears the operation's statistics.
+     */
+    void reset();
+}
@@ -0,0 +1,44 @@
+package net.pyroneon.storage;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Replaces files atomically: the new contents are written and synced to a temporary file next to the target, which is
+ * then renamed over it. A crash or full disk partway through leaves the previous file intact.
+ */
+public class AtomicFile {
+
+    /**
+     * Atomically replaces a file's contents.
+     * @param file The file to write. Its directory must exist.
+     * @param contents The new contents, from its position to its limit.
+     * @throws IOException If the file couldn't be written. The previous file, if any, is left untouched.
+     */
+    public static void write(Path file, ByteBuffer contents) throws IOException {
+        Path target = file.toAbsolutePath();
+        Path temp = Files.createTempFile(target.getParent(), target.getFileName().toString(), ".tmp");
+        try {
+            try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                while(contents.hasRemaining()){
+                    channel.write(contents);
+                }
+                // The data must be on disk before the rename makes it visible.
+                channel.force(true);
+            }
+            try {
+                Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING);
+            }
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+}
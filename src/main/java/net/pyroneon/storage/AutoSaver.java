@@ -0,0 +1,140 @@
+package net.pyroneon.storage;
+
+import net.pyroneon.util.Bind;
+import net.pyroneon.util.Console;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.function.Supplier;
+
+/**
+ * Keeps a config file in step with the registered bindings. Changes only mark the state dirty, and a background writer
+ * saves it once things have been quiet for a moment, so a burst of changes (E.g. opening a range of thousands of ports)
+ * costs a single write. Every write replaces the file atomically, in the format its extension asks for.
+ */
+public class AutoSaver {
+
+    /** How long the writer waits after a change for more changes to join the same write. */
+    public static final long COALESCE_MILLIS = 500;
+    /** The longest a change waits to be saved while changes keep arriving. */
+    public static final long MAX_DELAY_MILLIS = 5000;
+
+    private final String filepath;
+    private final Supplier<Collection<Bind>> state;
+    private final Thread writer;
+    private long changes;
+    private long saved;
+    private long lastChange;
+    private long writes;
+    private boolean urgent;
+    private boolean running = true;
+
+    /**
+     * Starts autosaving to a file.
+     * @param filepath The config file to keep saved. CANNOT be a directory.
+     * @param state Supplies the bindings to save, called on the writer thread.
+     */
+    public AutoSaver(String filepath, Supplier<Collection<Bind>> state){
+        this.filepath = filepath;
+        this.state = state;
+        writer = new Thread(this::run, "CLIPnP-autosave");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * @return The config file being kept saved.
+     */
+    public String getFilepath(){
+        return filepath;
+    }
+
+    /**
+     * @return The number of writes made so far.
+     */
+    public synchronized long getWrites(){
+        return writes;
+    }
+
+    /**
+     * Marks the state as changed, so it is saved soon. Returns immediately.
+     */
+    public synchronized void markDirty(){
+        changes++;
+        lastChange = System.currentTimeMillis();
+        notifyAll();
+    }
+
+    /**
+     * Blocks until every change marked so far has been saved, writing straight away instead of waiting for more.
+     */
+    public synchronized void flush(){
+        long target = changes;
+        if(saved >= target){
+            return;
+        }
+        urgent = true;
+        notifyAll();
+        try {
+            while(saved < target && running){
+                wait();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Saves any outstanding changes, then stops the writer thread.
+     */
+    public void close(){
+        flush();
+        synchronized (this){
+            running = false;
+            notifyAll();
+        }
+    }
+
+    /**
+     * The writer thread. Waits for a change, lets further changes pile up until things go quiet (or MAX_DELAY_MILLIS
+     * passes), then saves them all in one write.
+     */
+    private void run(){
+        while(true){
+            long target;
+            synchronized (this){
+                try {
+                    while(running && saved == changes){
+                        wait();
+                    }
+                    if(!running){
+                        return;
+                    }
+                    long firstChange = System.currentTimeMillis();
+                    long remaining;
+                    while(!urgent && (remaining = Math.min(lastChange + COALESCE_MILLIS, firstChange + MAX_DELAY_MILLIS)
+                            - System.currentTimeMillis()) > 0){
+                        wait(remaining);
+                    }
+                } catch (InterruptedException e) {
+                    return;
+                }
+                urgent = false;
+                target = changes;
+            }
+
+            // Changes made while writing are picked up by the next write.
+            try {
+                ConfigFormat.forFilename(filepath).write(filepath, state.get());
+            } catch (IOException e) {
+                Console.sendError("Failed to autosave config to "+filepath+": "+e.getMessage());
+            }
+
+            synchronized (this){
+                saved = target;
+                writes++;
+                notifyAll();
+            }
+        }
+    }
+}
@@ -0,0 +1,245 @@
+package net.pyroneon.storage;
+
+import net.pyroneon.util.Bind;
+import net.pyroneon.util.Protocol;
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * A compact binary config format, read straight out of a memory-mapped file. The layout is a header followed by one
+ * packed section per field, so the mandatory part of each bind stays 3 bytes and the optional fields cost nothing when
+ * no bind uses them:
+ * <pre>
+ * header        "CLPB" magic, 1 byte version, 1 byte flags, 4 byte bind count
+ * records       count x (1 byte protocol ordinal, 2 byte port)
+ * leases        count x 4 byte lease in seconds             (only if flags has LEASES)
+ * descriptions  count x (2 byte length, UTF-8 bytes)        (only if flags has DESCRIPTIONS, length 0 for none)
+ * gateways      count x (1 byte n, n x (1 byte length, UTF-8 address))   (only if flags has GATEWAYS, n 0 for all)
+ * </pre>
+ * Every number is big-endian and unsigned.
+ */
+public class BinaryConfig {
+
+    /** The first bytes of every binary config, used to tell it apart from a JSON one. */
+    static final byte[] MAGIC = {'C', 'L', 'P', 'B'};
+    /** The layout version written by this class. */
+    private static final byte VERSION = 1;
+    /** Set in the flags if the leases section is present. */
+    private static final int LEASES = 1;
+    /** Set in the flags if the descriptions section is present. */
+    private static final int DESCRIPTIONS = 2;
+    /** Set in the flags if the gateways section is present. */
+    private static final int GATEWAYS = 4;
+    private static final int HEADER_BYTES = MAGIC.length + 6;
+    private static final int RECORD_BYTES = 3;
+
+    /**
+     * Streams every bind from a binary config. The file is memory-mapped, so binds are decoded straight from the page
+     * cache without first being copied into a buffer.
+     * @param file The binary config.
+     * @param sink Receives each bind in file order, on the calling thread.
+     * @return The number of binds read.
+     * @throws IOException If the file can't be read, or isn't a valid binary config. Binds before the problem have
+     * already been handed to the sink.
+     */
+    public static int read(Path file, Consumer<Bind> sink) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            return read(buffer, sink);
+        }
+    }
+
+    /**
+     * Streams every bind from a binary config held in a buffer.
+     * @param buffer The config, positioned at its header.
+     * @param sink Receives each bind in order.
+     * @return The number of binds read.
+     * @throws IOException If the buffer isn't a valid binary config.
+     */
+    static int read(ByteBuffer buffer, Consumer<Bind> sink) throws IOException {
+        try {
+            for(byte expected : MAGIC){
+                if(buffer.get() != expected){
+                    throw new IOException("Not a binary config.");
+                }
+            }
+            byte version = buffer.get();
+            if(version != VERSION){
+                throw new IOException("Unsupported binary config version " + version + ".");
+            }
+            int flags = buffer.get();
+            int count = buffer.getInt();
+            if(count < 0 || (long) count * RECORD_BYTES > buffer.remaining()){
+                throw new IOException("Binary config is truncated.");
+            }
+
+            // Each optional section starts right after the previous one, so find them before walking the records.
+            int records = buffer.position();
+            int leases = records + count * RECORD_BYTES;
+            int descriptions = (flags & LEASES) != 0 ? leases + count * 4 : leases;
+            if(descriptions > buffer.limit()){
+                throw new IOException("Binary config is truncated.");
+            }
+            ByteBuffer text = null;
+            int targets = descriptions;
+            if((flags & DESCRIPTIONS) != 0){
+                text = buffer.duplicate();
+                text.position(descriptions);
+                // The gateways section starts after the last description, so skip over them to find it.
+                for(int i = 0; i < count; i++){
+                    targets += 2 + (buffer.getShort(targets) & 0xFFFF);
+                }
+            }
+            if(targets > buffer.limit()){
+                throw new IOException("Binary config is truncated.");
+            }
+            ByteBuffer addresses = null;
+            if((flags & GATEWAYS) != 0){
+                addresses = buffer.duplicate();
+                addresses.position(targets);
+            }
+
+            Protocol[] protocols = Protocol.values();
+            for(int i = 0; i < count; i++){
+                int offset = records + i * RECORD_BYTES;
+                int ordinal = buffer.get(offset) & 0xFF;
+                if(ordinal >= protocols.length){
+                    throw new IOException("Unknown protocol " + ordinal + " in bind " + i + ".");
+                }
+                int port = buffer.getShort(offset + 1) & 0xFFFF;
+
+                int lease = 0;
+                if((flags & LEASES) != 0){
+                    lease = buffer.getInt(leases + i * 4);
+                    if(lease < 0 || lease > Bind.MAX_LEASE_SECONDS){
+                        throw new IOException("Lease " + lease + " is outside of 0-" + Bind.MAX_LEASE_SECONDS + ".");
+                    }
+                }
+
+                String description = null;
+                if(text != null){
+                    int length = text.getShort() & 0xFFFF;
+                    if(length > 0){
+                        byte[] bytes = new byte[length];
+                        text.get(bytes);
+                        description = new String(bytes, StandardCharsets.UTF_8);
+                        if(description.length() > Bind.MAX_DESCRIPTION_LENGTH){
+                            throw new IOException("Description of bind " + i + " is too long.");
+                        }
+                    }
+                }
+                List<String> gateways = List.of();
+                if(addresses != null){
+                    int n = addresses.get() & 0xFF;
+                    if(n > Bind.MAX_GATEWAYS){
+                        throw new IOException("Bind " + i + " has too many gateways.");
+                    }
+                    gateways = new ArrayList<>(n);
+                    for(int g = 0; g < n; g++){
+                        byte[] bytes = new byte[addresses.get() & 0xFF];
+                        addresses.get(bytes);
+                        gateways.add(new String(bytes, StandardCharsets.UTF_8));
+                    }
+                }
+                sink.accept(new Bind(protocols[ordinal], port, lease, description, gateways));
+            }
+            return count;
+        } catch (BufferUnderflowException | IndexOutOfBoundsException e) {
+            throw new IOException("Binary config is truncated.", e);
+        }
+    }
+
+    /**
+     * Writes binds as a binary config, replacing the file atomically so it is never seen half-written.
+     * @param file The file to write.
+     * @param binds The binds to save, in order.
+     * @throws IOException If the file couldn't be written. The previous file, if any, is left untouched.
+     */
+    public static void write(Path file, Collection<Bind> binds) throws IOException {
+        AtomicFile.write(file, encode(binds));
+    }
+
+    /**
+     * Encodes binds in the binary config layout.
+     * @param binds The binds to encode, in order.
+     * @return The encoded config, positioned at its header and ready to be written.
+     */
+    static ByteBuffer encode(Collection<Bind> binds){
+        // Work out which optional sections are needed, and how big the descriptions section is.
+        int flags = 0;
+        int textBytes = 0;
+        int gatewayBytes = 0;
+        byte[][] encoded = new byte[binds.size()][];
+        int i = 0;
+        for(Bind bind : binds){
+            if(bind.getLease() > 0){
+                flags |= LEASES;
+            }
+            if(bind.getDescription() != null){
+                flags |= DESCRIPTIONS;
+                encoded[i] = bind.getDescription().getBytes(StandardCharsets.UTF_8);
+                textBytes += encoded[i].length;
+            }
+            if(!bind.getGateways().isEmpty()){
+                flags |= GATEWAYS;
+                for(String gateway : bind.getGateways()){
+                    gatewayBytes += 1 + gateway.getBytes(StandardCharsets.UTF_8).length;
+                }
+            }
+            i++;
+        }
+
+        int size = HEADER_BYTES + binds.size() * RECORD_BYTES;
+        if((flags & LEASES) != 0){
+            size += binds.size() * 4;
+        }
+        if((flags & DESCRIPTIONS) != 0){
+            size += binds.size() * 2 + textBytes;
+        }
+        if((flags & GATEWAYS) != 0){
+            size += binds.size() + gatewayBytes;
+        }
+
+        ByteBuffer buffer = ByteBuffer.allocate(size);
+        buffer.put(MAGIC).put(VERSION).put((byte) flags).putInt(binds.size());
+        for(Bind bind : binds){
+            buffer.put((byte) bind.getProtocol().ordinal()).putShort((short) bind.getPort());
+        }
+        if((flags & LEASES) != 0){
+            for(Bind bind : binds){
+                buffer.putInt(bind.getLease());
+            }
+        }
+        if((flags & DESCRIPTIONS) != 0){
+            for(byte[] text : encoded){
+                if(text == null){
+                    buffer.putShort((short) 0);
+                }
+                else{
+                    buffer.putShort((short) text.length).put(text);
+                }
+            }
+        }
+        if((flags & GATEWAYS) != 0){
+            for(Bind bind : binds){
+                buffer.put((byte) bind.getGateways().size());
+                for(String gateway : bind.getGateways()){
+                    byte[] address = gateway.getBytes(StandardCharsets.UTF_8);
+                    buffer.put((byte) address.length).put(address);
+                }
+            }
+        }
+        return buffer.flip();
+    }
+}
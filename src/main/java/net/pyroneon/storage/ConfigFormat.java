@@ -0,0 +1,96 @@
+package net.pyroneon.storage;
+
+import net.pyroneon.Configuration;
+import net.pyroneon.util.Bind;
+import org.json.JSONException;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.function.Consumer;
+
+/**
+ * The config file formats CLIPnP can read and write. Files are read in whichever format their contents turn out to be,
+ * and written in the format their extension asks for.
+ */
+public enum ConfigFormat {
+    /** The original JSON config, E.g. "config.clip". */
+    JSON,
+    /** The compact binary config, E.g. "config.clipb". See BinaryConfig. */
+    BINARY;
+
+    /** The extension that selects the binary format when saving. */
+    public static final String BINARY_EXTENSION = ".clipb";
+
+    /**
+     * Works out a file's format from its first few bytes.
+     * @param file An existing config file.
+     * @return BINARY if the file starts with the binary magic, JSON otherwise.
+     * @throws IOException If the file can't be read.
+     */
+    public static ConfigFormat detect(Path file) throws IOException {
+        try (InputStream in = Files.newInputStream(file)) {
+            byte[] start = in.readNBytes(BinaryConfig.MAGIC.length);
+            return Arrays.equals(start, BinaryConfig.MAGIC) ? BINARY : JSON;
+        }
+    }
+
+    /**
+     * Works out which format a file should be saved in.
+     * @param filepath The file to be written.
+     * @return BINARY if the file name ends with BINARY_EXTENSION, JSON otherwise.
+     */
+    public static ConfigFormat forFilename(String filepath){
+        return filepath.toLowerCase().endsWith(BINARY_EXTENSION) ? BINARY : JSON;
+    }
+
+    /**
+     * Streams every bind from a config file in either format.
+     * @param filepath The config file.
+     * @param sink Receives each bind in file order, on the calling thread.
+     * @return The number of binds read.
+     * @throws IOException If the file can't be read, or isn't a valid binary config.
+     * @throws JSONException If the file isn't a valid JSON config.
+     */
+    public static int read(String filepath, Consumer<Bind> sink) throws IOException, JSONException {
+        Path file = Path.of(filepath);
+        if(detect(file) == BINARY){
+            return BinaryConfig.read(file, sink);
+        }
+        return ConfigReader.read(filepath, sink);
+    }
+
+    /**
+     * Writes binds to a file in this format.
+     * @param filepath The file to write. CANNOT be a directory.
+     * @param binds The binds to save, in order.
+     * @throws IOException If the file couldn't be written.
+     */
+    public void write(String filepath, Collection<Bind> binds) throws IOException {
+        if(this == BINARY){
+            BinaryConfig.write(Path.of(filepath), binds);
+        }
+        else{
+            new Configuration(binds).writeToFile(filepath);
+        }
+    }
+
+    /**
+     * Copies a config file into another file, converting between formats as needed.
+     * @param source The config to read, in either format.
+     * @param destination The file to write, in the format its extension asks for.
+     * @return The number of binds converted.
+     * @throws IOException If either file couldn't be read or written, or the source isn't a valid binary config.
+     * @throws JSONException If the source isn't a valid JSON config.
+     */
+    public static int convert(String source, String destination) throws IOException, JSONException {
+        ArrayList<Bind> binds = new ArrayList<>();
+        read(source, binds::add);
+        forFilename(destination).write(destination, binds);
+        return binds.size();
+    }
+}
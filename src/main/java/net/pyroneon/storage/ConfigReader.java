@@ -0,0 +1,130 @@
+package net.pyroneon.storage;
+
+import net.pyroneon.util.Bind;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.json.JSONTokener;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.function.Consumer;
+
+/**
+ * Reads the binds from a JSON config file one at a time, without ever holding the whole file or its JSON tree in
+ * memory. Each bind is handed over as soon as it has been parsed, so a caller can start opening ports while the rest
+ * of a large file is still being read.
+ */
+public class ConfigReader {
+
+    /**
+     * Streams every bind from a config file.
+     * @param filepath Should point to a .JSON config, E.g. one written by Configuration.saveToFile().
+     * @param sink Receives each bind in file order, on the calling thread.
+     * @return The number of binds read.
+     * @throws IOException If the file can't be opened.
+     * @throws JSONException If the file isn't a valid config, or can't be read partway through. Binds before the
+     * problem have already been handed to the sink.
+     */
+    public static int read(String filepath, Consumer<Bind> sink) throws IOException, JSONException {
+        try (Reader reader = Files.newBufferedReader(Path.of(filepath), StandardCharsets.UTF_8)) {
+            return read(reader, sink);
+        }
+    }
+
+    /**
+     * Streams every bind from a config.
+     * @param reader The config's JSON text.
+     * @param sink Receives each bind in order, on the calling thread.
+     * @return The number of binds read.
+     * @throws JSONException If the text isn't a valid config. Binds before the problem have already been handed to the sink.
+     */
+    public static int read(Reader reader, Consumer<Bind> sink) throws JSONException {
+        JSONTokener tokener = new JSONTokener(reader);
+        if(tokener.nextClean() != '{'){
+            throw tokener.syntaxError("A config must begin with '{'");
+        }
+
+        int count = -1;
+        char next = tokener.nextClean();
+        if(next != '}'){
+            tokener.back();
+            while(true){
+                String key = readKey(tokener);
+                // Only the binds are streamed, anything else is parsed and skipped.
+                if(key.equals("binds")){
+                    count = Math.max(count, 0) + readBinds(tokener, sink);
+                }
+                else{
+                    tokener.nextValue();
+                }
+
+                next = tokener.nextClean();
+                if(next == '}'){
+                    break;
+                }
+                if(next != ','){
+                    throw tokener.syntaxError("Expected a ',' or '}'");
+                }
+            }
+        }
+
+        if(count < 0){
+            throw new JSONException("JSONObject[\"binds\"] not found.");
+        }
+        return count;
+    }
+
+    /**
+     * Reads an object key and the colon after it.
+     * @param tokener Positioned before the key.
+     * @return The key.
+     */
+    private static String readKey(JSONTokener tokener){
+        char quote = tokener.nextClean();
+        if(quote != '"' && quote != '\''){
+            throw tokener.syntaxError("Expected a quoted key");
+        }
+        String key = tokener.nextString(quote);
+        if(tokener.nextClean() != ':'){
+            throw tokener.syntaxError("Expected a ':' after a key");
+        }
+        return key;
+    }
+
+    /**
+     * Reads the binds array, handing each bind to the sink as soon as its object has been parsed.
+     * @param tokener Positioned before the array.
+     * @param sink Receives each bind in order.
+     * @return The number of binds read.
+     */
+    private static int readBinds(JSONTokener tokener, Consumer<Bind> sink){
+        if(tokener.nextClean() != '['){
+            throw tokener.syntaxError("\"binds\" must be an array");
+        }
+        if(tokener.nextClean() == ']'){
+            return 0;
+        }
+        tokener.back();
+
+        int count = 0;
+        while(true){
+            Object value = tokener.nextValue();
+            if(!(value instanceof JSONObject)){
+                throw tokener.syntaxError("Each bind must be an object");
+            }
+            sink.accept(Bind.fromJSON((JSONObject) value));
+            count++;
+
+            char next = tokener.nextClean();
+            if(next == ']'){
+                return count;
+            }
+            if(next != ','){
+                throw tokener.syntaxError("Expected a ',' or ']'");
+            }
+        }
+    }
+}
@@ -0,0 +1,142 @@
+package net.pyroneon.storage;
+
+import net.pyroneon.upnp.InternetGateway;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.NetworkInterface;
+import java.net.Socket;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Remembers the gateways discovery found, so the next run can skip the SSDP search and description fetches when the
+ * network hasn't changed. For each gateway the cache keeps its description URL, WAN connection service type, control
+ * and event URLs, and the local address it was reached through.
+ * <p>
+ * Cached gateways are only trusted after validation: the local address must still be this machine's, and the gateway
+ * must answer GetExternalIPAddress on the cached control URL. If any of them fails, the whole cache is ignored and a
+ * full discovery runs instead, as the network has changed.
+ */
+public class GatewayCache {
+
+    /** The cache format's version, bumped if its fields ever change meaning. */
+    public static final int VERSION = 1;
+    /** How long a cached gateway's control port has to accept a connection, before its SOAP call is even tried. */
+    public static final int CONNECT_TIMEOUT_MILLIS = 500;
+
+    /**
+     * @return Where the cache is kept by default: "gateways.json" in the ".clipnp" folder of the user's home.
+     */
+    public static Path defaultPath(){
+        return Path.of(System.getProperty("user.home"), ".clipnp", "gateways.json");
+    }
+
+    /**
+     * Reads the cached gateways, without checking them.
+     * @param file The cache.
+     * @return The gateways, the primary one first. Empty if the cache doesn't exist, is from another version, or can't
+     * be read.
+     */
+    public static List<InternetGateway> load(Path file){
+        try {
+            JSONObject cache = new JSONObject(Files.readString(file));
+            if(cache.optInt("version") != VERSION){
+                return List.of();
+            }
+            JSONArray entries = cache.getJSONArray("gateways");
+            List<InternetGateway> gateways = new ArrayList<>(entries.length());
+            for(int i = 0; i < entries.length(); i++){
+                JSONObject entry = entries.getJSONObject(i);
+                String events = entry.optString("eventSubURL", "");
+                gateways.add(new InternetGateway(
+                        new URL(entry.getString("location")),
+                        entry.getString("serviceType"),
+                        new URL(entry.getString("controlURL")),
+                        events.isEmpty() ? null : new URL(events),
+                        // Always an address literal, so this never looks anything up.
+                        InetAddress.getByName(entry.getString("localAddress"))));
+            }
+            return gateways;
+        } catch (IOException | JSONException e) {
+            // A missing or broken cache is as good as none, discovery rewrites it.
+            return List.of();
+        }
+    }
+
+    /**
+     * Reads the cached gateways and checks them all at once.
+     * @param file The cache.
+     * @return The gateways, the primary one first, if every one of them checked out. Empty otherwise, in which case a
+     * full discovery should be run.
+     */
+    public static List<InternetGateway> loadValid(Path file){
+        List<InternetGateway> gateways = load(file);
+        List<CompletableFuture<Boolean>> checks = new ArrayList<>(gateways.size());
+        for(InternetGateway gateway : gateways){
+            checks.add(CompletableFuture.supplyAsync(() -> isValid(gateway)));
+        }
+        for(CompletableFuture<Boolean> check : checks){
+            if(!check.join()){
+                return List.of();
+            }
+        }
+        return gateways;
+    }
+
+    /**
+     * Checks that a cached gateway is still there and still reached the same way.
+     * @param gateway A cached gateway.
+     * @return True if the local address is still this machine's and the gateway answered GetExternalIPAddress.
+     */
+    private static boolean isValid(InternetGateway gateway){
+        try {
+            if(NetworkInterface.getByInetAddress(gateway.getLocalAddress()) == null){
+                return false;
+            }
+            // A gateway that has gone away usually doesn't answer at all, so fail fast rather than wait out a SOAP timeout.
+            URL control = gateway.getControlURL();
+            try (Socket socket = new Socket()) {
+                socket.connect(new InetSocketAddress(control.getHost(), control.getPort() < 0 ? control.getDefaultPort() : control.getPort()),
+                        CONNECT_TIMEOUT_MILLIS);
+            }
+            return gateway.getExternalIP() != null;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Replaces the cache with freshly discovered gateways. The cache's directory is created if needed.
+     * @param file The cache.
+     * @param gateways The gateways, the primary one first.
+     * @throws IOException If the cache couldn't be written. The previous one, if any, is left untouched.
+     */
+    public static void save(Path file, List<InternetGateway> gateways) throws IOException {
+        Path parent = file.toAbsolutePath().getParent();
+        if(parent != null){
+            Files.createDirectories(parent);
+        }
+        JSONArray entries = new JSONArray();
+        for(InternetGateway gateway : gateways){
+            entries.put(new JSONObject()
+                    .put("location", gateway.getLocation().toString())
+                    .put("serviceType", gateway.getServiceType())
+                    .put("controlURL", gateway.getControlURL().toString())
+                    .put("eventSubURL", gateway.getEventSubURL() == null ? "" : gateway.getEventSubURL().toString())
+                    .put("localAddress", gateway.getLocalIP()));
+        }
+        JSONObject cache = new JSONObject().put("version", VERSION).put("gateways", entries);
+        AtomicFile.write(file, ByteBuffer.wrap(cache.toString(2).getBytes(StandardCharsets.UTF_8)));
+    }
+}
@@ -0,0 +1,355 @@
+package net.pyroneon.storage;
+
+import net.pyroneon.util.Bind;
+import net.pyroneon.util.Protocol;
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.zip.CRC32;
+
+/**
+ * An append-only write-ahead journal of the bindings CLIPnP owns, so the mappings it made can be found again after a
+ * crash. Every open and close is appended as a small checksummed record.
+ * <p>
+ * Appending never blocks the caller: records are queued and a single writer thread writes whatever has queued up in
+ * one go, followed by one fsync, so a burst of thousands of changes costs a handful of syncs rather than one each.
+ * On startup the journal is replayed into the set of owned bindings and compacted down to just that set.
+ * <pre>
+ * header   "CLPJ" magic, 1 byte version
+ * record   1 byte type (OPEN/CLOSE), 1 byte protocol ordinal, 2 byte port, 4 byte lease,
+ *          2 byte description length (0 for none), UTF-8 description,
+ *          1 byte gateway count (0 for all), per gateway 1 byte length and UTF-8 address (version 2 only),
+ *          4 byte CRC32 of everything before it
+ * </pre>
+ */
+public class Journal {
+
+    private static final byte[] MAGIC = {'C', 'L', 'P', 'J'};
+    private static final byte VERSION = 2;
+    /** The version before bindings could target specific gateways, still replayed. */
+    private static final byte VERSION_1 = 1;
+    private static final byte OPEN = 1;
+    private static final byte CLOSE = 2;
+    /** The fixed part of a record, without its description and gateways. */
+    private static final int RECORD_BYTES = 15;
+    /** Queued by close() after the last record, to stop the writer once everything before it is written. */
+    private static final byte[] STOP = new byte[0];
+
+    private final FileChannel channel;
+    private final LinkedBlockingQueue<byte[]> queue = new LinkedBlockingQueue<>();
+    private final Thread writer;
+    private final Object monitor = new Object();
+    private long appended;
+    private long durable;
+    private long syncs;
+    private IOException failure;
+    // Guarded by monitor, so no record can be queued after the writer has been told to stop.
+    private boolean running = true;
+
+    /**
+     * @param channel The journal file, positioned at its end.
+     */
+    private Journal(FileChannel channel){
+        this.channel = channel;
+        writer = new Thread(this::run, "CLIPnP-journal");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * @return The journal location used unless another is given, "~/.clipnp/bindings.journal".
+     */
+    public static Path defaultPath(){
+        return Path.of(System.getProperty("user.home"), ".clipnp", "bindings.journal");
+    }
+
+    /**
+     * Replays a journal into the set of bindings it says are owned. A torn or corrupt record, E.g. from a crash partway
+     * through a write, ends the replay, and everything before it is kept.
+     * @param file The journal.
+     * @return Each owned binding by key, in the order it was first opened. Empty if the journal doesn't exist.
+     * @throws IOException If the journal can't be read, or isn't a journal at all.
+     */
+    public static LinkedHashMap<Integer, Bind> replay(Path file) throws IOException {
+        LinkedHashMap<Integer, Bind> owned = new LinkedHashMap<>();
+        ByteBuffer buffer;
+        try {
+            buffer = ByteBuffer.wrap(Files.readAllBytes(file));
+        } catch (NoSuchFileException e) {
+            return owned;
+        }
+
+        if(buffer.remaining() < MAGIC.length + 1){
+            return owned;
+        }
+        for(byte expected : MAGIC){
+            if(buffer.get() != expected){
+                throw new IOException("Not a CLIPnP journal: " + file);
+            }
+        }
+        byte version = buffer.get();
+        if(version != VERSION && version != VERSION_1){
+            throw new IOException("Unsupported journal version: " + file);
+        }
+
+        CRC32 crc = new CRC32();
+        Protocol[] protocols = Protocol.values();
+        while(buffer.hasRemaining()){
+            int start = buffer.position();
+            try {
+                byte type = buffer.get();
+                int ordinal = buffer.get() & 0xFF;
+                int port = buffer.getShort() & 0xFFFF;
+                int lease = buffer.getInt();
+                byte[] text = new byte[buffer.getShort() & 0xFFFF];
+                buffer.get(text);
+                List<String> gateways = new ArrayList<>();
+                if(version != VERSION_1){
+                    for(int n = buffer.get() & 0xFF; n > 0; n--){
+                        byte[] address = new byte[buffer.get() & 0xFF];
+                        buffer.get(address);
+                        gateways.add(new String(address, StandardCharsets.UTF_8));
+                    }
+                }
+                int end = buffer.position();
+                int expected = buffer.getInt();
+
+                crc.reset();
+                crc.update(buffer.array(), start, end - start);
+                if((int) crc.getValue() != expected || ordinal >= protocols.length || (type != OPEN && type != CLOSE)
+                        || lease < 0 || lease > Bind.MAX_LEASE_SECONDS){
+                    break;
+                }
+
+                Bind bind = new Bind(protocols[ordinal], port, lease, text.length > 0 ? new String(text, StandardCharsets.UTF_8) : null, gateways);
+                if(type == OPEN){
+                    // A re-open (E.g. a changed lease) keeps the binding's original position.
+                    owned.put(bind.getKey(), bind);
+                }
+                else{
+                    owned.remove(bind.getKey());
+                }
+            } catch (BufferUnderflowException e) {
+                // Torn final record.
+                break;
+            }
+        }
+        return owned;
+    }
+
+    /**
+     * Compacts a journal down to a set of bindings, then opens it for appending. The compacted journal replaces the
+     * old one atomically, so a crash during compaction loses nothing.
+     * @param file The journal. Its directory is created if needed.
+     * @param owned The bindings currently owned, usually what replay() returned after reconciling.
+     * @return The open journal.
+     * @throws IOException If the journal couldn't be written.
+     */
+    public static Journal open(Path file, Collection<Bind> owned) throws IOException {
+        Path parent = file.toAbsolutePath().getParent();
+        if(parent != null){
+            Files.createDirectories(parent);
+        }
+
+        ArrayList<byte[]> records = new ArrayList<>(owned.size());
+        int size = MAGIC.length + 1;
+        for(Bind bind : owned){
+            byte[] record = encode(OPEN, bind);
+            records.add(record);
+            size += record.length;
+        }
+        ByteBuffer snapshot = ByteBuffer.allocate(size);
+        snapshot.put(MAGIC).put(VERSION);
+        for(byte[] record : records){
+            snapshot.put(record);
+        }
+        AtomicFile.write(file, snapshot.flip());
+
+        FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        return new Journal(channel);
+    }
+
+    /**
+     * Records that a binding is now owned. Should be called before its mapping is requested, so a crash mid-request
+     * still leaves a record of it. Returns immediately, the record is made durable in the background.
+     * @param bind The binding being opened, or re-opened with new settings.
+     */
+    public void recordOpen(Bind bind){
+        append(encode(OPEN, bind));
+    }
+
+    /**
+     * Records that a binding is no longer owned. Returns immediately, the record is made durable in the background.
+     * @param bind The binding that was closed or deregistered.
+     */
+    public void recordClose(Bind bind){
+        append(encode(CLOSE, bind));
+    }
+
+    /**
+     * Queues a record for the writer thread.
+     * @param record The encoded record.
+     */
+    private void append(byte[] record){
+        synchronized (monitor){
+            if(!running){
+                return;
+            }
+            appended++;
+            queue.add(record);
+        }
+    }
+
+    /**
+     * Blocks until every record appended so far is durable on disk.
+     * @throws IOException If the journal couldn't be written.
+     */
+    public void flush() throws IOException {
+        synchronized (monitor){
+            long target = appended;
+            try {
+                while(durable < target && failure == null){
+                    monitor.wait();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            if(failure != null){
+                throw failure;
+            }
+        }
+    }
+
+    /**
+     * @return The number of fsyncs performed so far. Each one covers every record that was queued when it started.
+     */
+    public long getSyncs(){
+        synchronized (monitor){
+            return syncs;
+        }
+    }
+
+    /**
+     * Flushes any queued records, then stops the writer thread and closes the file.
+     * @throws IOException If the remaining records couldn't be written.
+     */
+    public void close() throws IOException {
+        synchronized (monitor){
+            if(running){
+                running = false;
+                queue.add(STOP);
+            }
+        }
+        try {
+            // Not interrupted, as that would close the channel mid-write. The writer stops on its own once it reaches STOP.
+            boolean interrupted = false;
+            while(writer.isAlive()){
+                try {
+                    writer.join();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if(interrupted){
+                Thread.currentThread().interrupt();
+            }
+            flush();
+        } finally {
+            channel.close();
+        }
+    }
+
+    /**
+     * The writer thread. Takes every queued record at once, writes them together and syncs once per group, until it
+     * reaches the STOP record.
+     */
+    private void run(){
+        ArrayList<byte[]> group = new ArrayList<>();
+        boolean stopping = false;
+        while(!stopping){
+            try {
+                group.add(queue.take());
+            } catch (InterruptedException e) {
+                // Only close() stops the writer.
+                continue;
+            }
+            queue.drainTo(group);
+            // Nothing is queued after STOP, so it can only be last.
+            if(group.get(group.size() - 1) == STOP){
+                group.remove(group.size() - 1);
+                stopping = true;
+            }
+            if(group.isEmpty()){
+                continue;
+            }
+
+            int size = 0;
+            for(byte[] record : group){
+                size += record.length;
+            }
+            ByteBuffer buffer = ByteBuffer.allocate(size);
+            for(byte[] record : group){
+                buffer.put(record);
+            }
+            buffer.flip();
+
+            try {
+                while(buffer.hasRemaining()){
+                    channel.write(buffer);
+                }
+                channel.force(false);
+                synchronized (monitor){
+                    durable += group.size();
+                    syncs++;
+                    monitor.notifyAll();
+                }
+            } catch (IOException e) {
+                synchronized (monitor){
+                    failure = e;
+                    running = false;
+                    monitor.notifyAll();
+                }
+                return;
+            }
+            group.clear();
+        }
+    }
+
+    /**
+     * Encodes a single record.
+     * @param type OPEN or CLOSE.
+     * @param bind The binding.
+     * @return The record, including its checksum.
+     */
+    private static byte[] encode(byte type, Bind bind){
+        byte[] text = bind.getDescription() != null ? bind.getDescription().getBytes(StandardCharsets.UTF_8) : new byte[0];
+        byte[][] addresses = new byte[bind.getGateways().size()][];
+        int size = RECORD_BYTES + text.length;
+        for(int i = 0; i < addresses.length; i++){
+            addresses[i] = bind.getGateways().get(i).getBytes(StandardCharsets.UTF_8);
+            size += 1 + addresses[i].length;
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(size);
+        buffer.put(type).put((byte) bind.getProtocol().ordinal()).putShort((short) bind.getPort())
+                .putInt(bind.getLease()).putShort((short) text.length).put(text).put((byte) addresses.length);
+        for(byte[] address : addresses){
+            buffer.put((byte) address.length).put(address);
+        }
+        CRC32 crc = new CRC32();
+        crc.update(buffer.array(), 0, buffer.position());
+        buffer.putInt((int) crc.getValue());
+        return buffer.array();
+    }
+}
@@ -0,0 +1,349 @@
+package net.pyroneon.upnp;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NodeList;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Consumer;
+
+/**
+ * A GENA subscription to a gateway's WAN connection events, so changes (a new public IP, mappings added or dropped,
+ * the connection going down) are pushed to CLIPnP instead of polled for. A small HTTP listener on the interface facing
+ * the gateway receives the NOTIFY requests, and a background thread renews the subscription before it runs out. If a
+ * renewal is refused, E.g. because the router restarted and forgot every subscriber, a fresh subscription is made, and
+ * its initial event carries every variable's current value again.
+ * <p>
+ * The listener faces the LAN, so it only accepts NOTIFY requests from the gateway's own address, with bodies of at most
+ * MAX_BODY_BYTES. Otherwise any host on the network could feed CLIPnP a false public IP or mapping count.
+ */
+public class EventSubscription {
+
+    /** How long each subscription is asked to last. Gateways may grant less. */
+    public static final int TIMEOUT_SECONDS = 1800;
+    /** How long to wait before trying again after the gateway couldn't be subscribed to. */
+    public static final long RETRY_MILLIS = 30_000;
+    /** The largest NOTIFY body accepted. Events carry a handful of short variables, far less than this. */
+    public static final int MAX_BODY_BYTES = 64 * 1024;
+    private static final String CALLBACK_PATH = "/clipnp/events";
+
+    private final InternetGateway gateway;
+    private final Consumer<Map<String, String>> listener;
+    // The addresses the gateway's URLs point at, the only ones NOTIFY requests are accepted from.
+    private final Set<InetAddress> senders = new HashSet<>();
+    private final HttpServer server;
+    private final Thread renewer;
+    // Guarded by this.
+    private String sid;
+    private boolean subscribing;
+    private long renewAt;
+    private boolean running = true;
+
+    /**
+     * Starts the listener and subscribes. The gateway's first event, with the current value of every variable, follows
+     * shortly after on the listener's thread.
+     * @param gateway The gateway to subscribe to.
+     * @param listener Receives the changed state variables of each event, by name, one event at a time in order.
+     * @throws IOException If the gateway has no event URL, its address couldn't be resolved, the listener couldn't be
+     * started, or the gateway refused the subscription.
+     */
+    public EventSubscription(InternetGateway gateway, Consumer<Map<String, String>> listener) throws IOException {
+        if(gateway.getEventSubURL() == null){
+            throw new IOException("Gateway " + gateway.getGatewayIP() + " doesn't send events.");
+        }
+        this.gateway = gateway;
+        this.listener = listener;
+        for(URL url : new URL[]{gateway.getLocation(), gateway.getControlURL(), gateway.getEventSubURL()}){
+            senders.add(InetAddress.getByName(url.getHost()));
+        }
+        // The default executor handles one NOTIFY at a time, so events reach the listener in order.
+        server = HttpServer.create(new InetSocketAddress(gateway.getLocalAddress(), 0), 0);
+        server.createContext(CALLBACK_PATH, this::receive);
+        server.start();
+        try {
+            subscribe();
+        } catch (IOException e) {
+            server.stop(0);
+            throw e;
+        }
+        renewer = new Thread(this::run, "CLIPnP-events-" + gateway.getGatewayIP());
+        renewer.setDaemon(true);
+        renewer.start();
+    }
+
+    /**
+     * @return True if the gateway currently holds a subscription, false while it is being re-made.
+     */
+    public synchronized boolean isActive(){
+        return sid != null;
+    }
+
+    /**
+     * @return The gateway subscribed to.
+     */
+    public InternetGateway getGateway(){
+        return gateway;
+    }
+
+    /**
+     * Cancels the subscription and stops the listener.
+     */
+    public void close(){
+        String current;
+        synchronized (this){
+            running = false;
+            current = sid;
+            sid = null;
+            notifyAll();
+        }
+        if(current != null){
+            try {
+                request("UNSUBSCRIBE", Map.of("SID", current));
+            } catch (IOException ignored) {
+                // It runs out on its own.
+            }
+        }
+        server.stop(0);
+    }
+
+    /**
+     * Makes a fresh subscription, replacing any current one.
+     * @throws IOException If the gateway refused it.
+     */
+    private void subscribe() throws IOException {
+        InetSocketAddress local = server.getAddress();
+        synchronized (this){
+            subscribing = true;
+        }
+        try {
+            LinkedHashMap<String, String> headers = new LinkedHashMap<>();
+            headers.put("CALLBACK", "<http://" + gateway.getLocalIP() + ":" + local.getPort() + CALLBACK_PATH + ">");
+            headers.put("NT", "upnp:event");
+            headers.put("TIMEOUT", "Second-" + TIMEOUT_SECONDS);
+            Map<String, String> reply = request("SUBSCRIBE", headers);
+            String granted = reply.get("sid");
+            if(granted == null){
+                throw new IOException("Gateway " + gateway.getGatewayIP() + " accepted the subscription without an SID.");
+            }
+            synchronized (this){
+                sid = granted;
+                renewAt = System.currentTimeMillis() + renewDelay(reply.get("timeout"));
+            }
+        } finally {
+            synchronized (this){
+                subscribing = false;
+            }
+        }
+    }
+
+    /**
+     * Renews the current subscription.
+     * @throws IOException If the gateway refused, E.g. because it no longer knows the subscription.
+     */
+    private void renew() throws IOException {
+        String current;
+        synchronized (this){
+            current = sid;
+        }
+        if(current == null){
+            throw new IOException("Not subscribed.");
+        }
+        Map<String, String> reply = request("SUBSCRIBE", Map.of("SID", current, "TIMEOUT", "Second-" + TIMEOUT_SECONDS));
+        synchronized (this){
+            renewAt = System.currentTimeMillis() + renewDelay(reply.get("timeout"));
+        }
+    }
+
+    /**
+     * @param timeout A TIMEOUT header, E.g. "Second-1800" or "infinite", or null.
+     * @return How long to wait before renewing: halfway through the granted time.
+     */
+    private static long renewDelay(String timeout){
+        long seconds = TIMEOUT_SECONDS;
+        if(timeout != null && timeout.regionMatches(true, 0, "Second-", 0, 7)){
+            try {
+                seconds = Long.parseLong(timeout.substring(7).trim());
+            } catch (NumberFormatException ignored) {
+                // Keep the requested time.
+            }
+        }
+        return Math.max(seconds, 2) * 500;
+    }
+
+    /**
+     * The renewal thread. Renews halfway through each subscription, and re-subscribes from scratch if that fails.
+     */
+    private void run(){
+        while(true){
+            synchronized (this){
+                try {
+                    long remaining;
+                    while(running && (remaining = renewAt - System.currentTimeMillis()) > 0){
+                        wait(remaining);
+                    }
+                } catch (InterruptedException e) {
+                    return;
+                }
+                if(!running){
+                    return;
+                }
+            }
+
+            try {
+                renew();
+            } catch (IOException e) {
+                synchronized (this){
+                    sid = null;
+                }
+                try {
+                    subscribe();
+                } catch (IOException again) {
+                    synchronized (this){
+                        renewAt = System.currentTimeMillis() + RETRY_MILLIS;
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Sends a GENA request to the gateway's event URL on a fresh connection and reads the reply's headers.
+     * @param method "SUBSCRIBE" or "UNSUBSCRIBE".
+     * @param headers The GENA headers to send.
+     * @return The reply's headers, by lower-case name.
+     * @throws IOException If the gateway couldn't be reached, or replied with anything but 200.
+     */
+    private Map<String, String> request(String method, Map<String, String> headers) throws IOException {
+        URL url = gateway.getEventSubURL();
+        int port = url.getPort() < 0 ? url.getDefaultPort() : url.getPort();
+        StringBuilder build = new StringBuilder(method).append(' ').append(url.getFile().isEmpty() ? "/" : url.getFile())
+                .append(" HTTP/1.1\r\nHOST: ").append(url.getHost()).append(':').append(port).append("\r\n");
+        for(Map.Entry<String, String> header : headers.entrySet()){
+            build.append(header.getKey()).append(": ").append(header.getValue()).append("\r\n");
+        }
+        build.append("Content-Length: 0\r\nConnection: close\r\n\r\n");
+
+        try (Socket socket = new Socket()) {
+            socket.connect(new InetSocketAddress(url.getHost(), port), SoapClient.TIMEOUT_MILLIS);
+            socket.setSoTimeout(SoapClient.TIMEOUT_MILLIS);
+            OutputStream out = socket.getOutputStream();
+            out.write(build.toString().getBytes(StandardCharsets.ISO_8859_1));
+            out.flush();
+
+            InputStream in = new BufferedInputStream(socket.getInputStream());
+            String[] status = readLine(in).split(" ", 3);
+            if(status.length < 2 || !status[0].startsWith("HTTP/")){
+                throw new IOException("Malformed reply to " + method + " from " + gateway.getGatewayIP());
+            }
+            if(!status[1].equals("200")){
+                throw new IOException(method + " refused by " + gateway.getGatewayIP() + " with HTTP " + status[1]);
+            }
+            HashMap<String, String> reply = new HashMap<>();
+            String line;
+            while(!(line = readLine(in)).isEmpty()){
+                int colon = line.indexOf(':');
+                if(colon > 0){
+                    reply.put(line.substring(0, colon).trim().toLowerCase(), line.substring(colon + 1).trim());
+                }
+            }
+            return reply;
+        }
+    }
+
+    /**
+     * @param in The stream to read from.
+     * @return The next line, without its CRLF.
+     * @throws IOException If the stream ends first.
+     */
+    private static String readLine(InputStream in) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream(64);
+        int b;
+        while((b = in.read()) != '\n'){
+            if(b == -1){
+                throw new EOFException("Connection closed by gateway.");
+            }
+            if(b != '\r'){
+                line.write(b);
+            }
+        }
+        return line.toString(StandardCharsets.ISO_8859_1);
+    }
+
+    /**
+     * Handles a NOTIFY from the gateway: reads the changed variables out of its property set and hands them to the
+     * listener. Events from any other host, with an oversized body, or for any other subscription (E.g. one replaced
+     * after a restart) are refused.
+     * @param exchange The request.
+     * @throws IOException If the reply couldn't be sent.
+     */
+    private void receive(HttpExchange exchange) throws IOException {
+        try (exchange) {
+            if(!senders.contains(exchange.getRemoteAddress().getAddress())){
+                exchange.sendResponseHeaders(403, -1);
+                return;
+            }
+            byte[] body = exchange.getRequestBody().readNBytes(MAX_BODY_BYTES + 1);
+            if(body.length > MAX_BODY_BYTES){
+                exchange.sendResponseHeaders(413, -1);
+                return;
+            }
+            if(!exchange.getRequestMethod().equals("NOTIFY")){
+                exchange.sendResponseHeaders(405, -1);
+                return;
+            }
+            // The first event can arrive before the reply to SUBSCRIBE has been read.
+            String from = exchange.getRequestHeaders().getFirst("SID");
+            synchronized (this){
+                if(!running || (!subscribing && (sid == null || !sid.equals(from)))){
+                    exchange.sendResponseHeaders(412, -1);
+                    return;
+                }
+            }
+
+            Map<String, String> variables;
+            try {
+                variables = parseProperties(body);
+            } catch (IOException e) {
+                exchange.sendResponseHeaders(400, -1);
+                return;
+            }
+            exchange.sendResponseHeaders(200, -1);
+            listener.accept(variables);
+        }
+    }
+
+    /**
+     * @param body A NOTIFY body: a property set holding one property element per changed variable.
+     * @return Each variable's new value, by name.
+     * @throws IOException If the body isn't a valid property set.
+     */
+    private static Map<String, String> parseProperties(byte[] body) throws IOException {
+        Document doc = Xml.parse(body);
+        LinkedHashMap<String, String> variables = new LinkedHashMap<>();
+        NodeList properties = doc.getElementsByTagNameNS("*", "property");
+        for(int i = 0; i < properties.getLength(); i++){
+            Element variable = Xml.firstChildElement(properties.item(i));
+            if(variable != null){
+                variables.put(variable.getLocalName(), variable.getTextContent().trim());
+            }
+        }
+        return variables;
+    }
+}
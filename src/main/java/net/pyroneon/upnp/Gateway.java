@@ -0,0 +1,72 @@
+package net.pyroneon.upnp;
+
+import net.pyroneon.util.Protocol;
+
+import java.io.IOException;
+
+/**
+ * The gateway operations the mapping engine and CLIPnP rely on. InternetGateway implements them over SOAP against a real
+ * router. Keeping the rest of CLIPnP to this interface means a stub can stand in for the router, E.g. in benchmarks.
+ */
+public interface Gateway {
+
+    /** The description attached to every mapping CLIPnP creates, unless the binding has its own. */
+    String MAPPING_DESCRIPTION = "CLIPnP";
+
+    /**
+     * Maps an external port to the same port on this machine. Mapping a port that is already mapped to this machine
+     * renews its lease.
+     * @param protocol The protocol to map.
+     * @param port The port, used both externally and internally.
+     * @param lease How long the gateway should keep the mapping, in seconds. 0 for no expiry.
+     * @param description The mapping's description, E.g. "Minecraft".
+     * @throws IOException If the gateway refused (E.g. 725 if it doesn't support leases) or couldn't be reached.
+     */
+    void openPort(Protocol protocol, int port, int lease, String description) throws IOException;
+
+    /**
+     * Removes the mapping for an external port.
+     * @param protocol The protocol of the mapping.
+     * @param port The external port.
+     * @throws IOException If the gateway refused (E.g. 714 if there was no such mapping) or couldn't be reached.
+     */
+    void closePort(Protocol protocol, int port) throws IOException;
+
+    /**
+     * Checks whether an external port is mapped, to any client.
+     * @param protocol The protocol of the mapping.
+     * @param port The external port.
+     * @return True if the gateway has a mapping for the port, false if it has none.
+     * @throws IOException If the gateway couldn't be reached or replied with an unexpected error.
+     */
+    boolean isMapped(Protocol protocol, int port) throws IOException;
+
+    /**
+     * @return The gateway's public IP address.
+     * @throws IOException If the gateway couldn't be reached.
+     */
+    String getExternalIP() throws IOException;
+
+    /**
+     * Reads one row of the gateway's port mapping table.
+     * @param index The zero-based row.
+     * @return The row, or null if the index is past the end of the table.
+     * @throws IOException If the gateway couldn't be reached or replied with an unexpected error.
+     */
+    PortMappingEntry getPortMappingEntry(int index) throws IOException;
+
+    /**
+     * @return The IP address of this machine on the gateway's network.
+     */
+    String getLocalIP();
+
+    /**
+     * @return The IP address of the gateway itself.
+     */
+    String getGatewayIP();
+
+    /**
+     * Closes any open connections to the gateway. It can still be used afterwards.
+     */
+    void close();
+}
@@ -0,0 +1,302 @@
+package net.pyroneon.upnp;
+
+import net.pyroneon.metrics.Metrics;
+import net.pyroneon.metrics.OperationStats;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.MulticastSocket;
+import java.net.NetworkInterface;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Finds Internet Gateway Devices on the local network with an SSDP M-SEARCH: either the first one to answer, or every
+ * one reachable from any of this machine's network interfaces.
+ */
+public class GatewayDiscovery {
+
+    /** The SSDP multicast group and port. */
+    public static final InetSocketAddress SSDP_ADDRESS = new InetSocketAddress("239.255.255.250", 1900);
+    /** How long to wait for gateways to answer, when no timeout is specified. */
+    public static final int DEFAULT_TIMEOUT_MILLIS = 3000;
+    /** Once one gateway has answered, how much longer the other interfaces are given to find theirs. */
+    public static final int SETTLE_MILLIS = 1000;
+    private static final int POLL_MILLIS = 100;
+
+    private static final String[] SEARCH_TARGETS = {
+            "urn:schemas-upnp-org:device:InternetGatewayDevice:1",
+            "urn:schemas-upnp-org:service:WANIPConnection:1",
+            "urn:schemas-upnp-org:service:WANPPPConnection:1"
+    };
+
+    /**
+     * Searches for a gateway, returning the first one that answers with a usable description. Timed and counted in
+     * Metrics as Metrics.DISCOVERY, where finding nothing counts as an error.
+     * @param timeoutMillis How long to wait for answers.
+     * @return The gateway, or null if none answered in time.
+     * @throws IOException If the search couldn't be sent.
+     */
+    public static InternetGateway discover(int timeoutMillis) throws IOException {
+        return discover(timeoutMillis, SSDP_ADDRESS);
+    }
+
+    /**
+     * Searches for a gateway at a specific address rather than the SSDP multicast group, E.g. a mock gateway on loopback.
+     * Timed and counted in Metrics the same way as discover(int).
+     * @param timeoutMillis How long to wait for answers.
+     * @param searchAddress Where to send the M-SEARCH requests.
+     * @return The gateway, or null if none answered in time.
+     * @throws IOException If the search couldn't be sent.
+     */
+    public static InternetGateway discover(int timeoutMillis, InetSocketAddress searchAddress) throws IOException {
+        OperationStats stats = Metrics.get(Metrics.DISCOVERY);
+        long start = System.nanoTime();
+        InternetGateway gateway = null;
+        try {
+            gateway = search(timeoutMillis, searchAddress);
+            return gateway;
+        } finally {
+            if(gateway != null){
+                stats.recordSuccess(System.nanoTime() - start);
+            }
+            else{
+                stats.recordError(System.nanoTime() - start);
+            }
+        }
+    }
+
+    /**
+     * Searches for every gateway on every network interface at once, for multi-homed hosts behind several gateways. Each
+     * interface with an IPv4 address sends its own M-SEARCH, and the search ends at the timeout or SETTLE_MILLIS after
+     * the first gateway answered, whichever is sooner. Timed and counted in Metrics as Metrics.DISCOVERY, where finding
+     * nothing counts as an error.
+     * @param timeoutMillis How long to wait for answers.
+     * @return Every usable gateway found, each once, in the order they answered. Empty if none answered in time.
+     * @throws IOException If the network interfaces couldn't be listed.
+     */
+    public static List<InternetGateway> discoverAll(int timeoutMillis) throws IOException {
+        OperationStats stats = Metrics.get(Metrics.DISCOVERY);
+        long start = System.nanoTime();
+        List<InternetGateway> gateways = List.of();
+        try {
+            gateways = searchAll(timeoutMillis);
+            return gateways;
+        } finally {
+            if(!gateways.isEmpty()){
+                stats.recordSuccess(System.nanoTime() - start);
+            }
+            else{
+                stats.recordError(System.nanoTime() - start);
+            }
+        }
+    }
+
+    /**
+     * Runs a search on every interface in parallel and merges what they found.
+     * @param timeoutMillis How long to wait for answers.
+     * @return Every usable gateway found, each once.
+     * @throws IOException If the network interfaces couldn't be listed.
+     */
+    private static List<InternetGateway> searchAll(int timeoutMillis) throws IOException {
+        LinkedHashMap<InetAddress, NetworkInterface> addresses = new LinkedHashMap<>();
+        Enumeration<NetworkInterface> interfaces = NetworkInterface.getNetworkInterfaces();
+        while(interfaces != null && interfaces.hasMoreElements()){
+            NetworkInterface nif = interfaces.nextElement();
+            if(!nif.isUp() || nif.isLoopback() || !nif.supportsMulticast()){
+                continue;
+            }
+            for(Enumeration<InetAddress> e = nif.getInetAddresses(); e.hasMoreElements(); ){
+                InetAddress address = e.nextElement();
+                if(address instanceof Inet4Address){
+                    addresses.put(address, nif);
+                }
+            }
+        }
+        if(addresses.isEmpty()){
+            // Nothing to pick from, so let the routing table choose.
+            InternetGateway gateway = search(timeoutMillis, SSDP_ADDRESS);
+            return gateway == null ? List.of() : List.of(gateway);
+        }
+
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        AtomicLong settleBy = new AtomicLong(Long.MAX_VALUE);
+        ExecutorService pool = Executors.newFixedThreadPool(addresses.size(), runnable -> {
+            Thread thread = new Thread(runnable, "CLIPnP-discovery");
+            thread.setDaemon(true);
+            return thread;
+        });
+        try {
+            List<Future<List<InternetGateway>>> searches = new ArrayList<>();
+            addresses.forEach((address, nif) -> searches.add(pool.submit(() -> searchFrom(nif, address, deadline, settleBy))));
+
+            // The same gateway can answer on several interfaces, keep the first.
+            LinkedHashMap<String, InternetGateway> found = new LinkedHashMap<>();
+            for(Future<List<InternetGateway>> search : searches){
+                try {
+                    for(InternetGateway gateway : search.get()){
+                        found.putIfAbsent(gateway.getLocation().toString(), gateway);
+                    }
+                } catch (ExecutionException e) {
+                    // That interface couldn't search, E.g. it went down. The others still count.
+                }
+            }
+            return new ArrayList<>(found.values());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return List.of();
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    /**
+     * Searches for gateways through one interface, collecting every one that answers.
+     * @param nif The interface to search on.
+     * @param address The interface's IPv4 address, which the search is sent from.
+     * @param deadline When to stop listening, from System.currentTimeMillis().
+     * @param settleBy Shared between interfaces, when to stop listening because a gateway was already found.
+     * @return The usable gateways that answered, each reached through this interface.
+     * @throws IOException If the search couldn't be sent.
+     */
+    private static List<InternetGateway> searchFrom(NetworkInterface nif, InetAddress address, long deadline,
+                                                    AtomicLong settleBy) throws IOException {
+        List<InternetGateway> gateways = new ArrayList<>();
+        HashSet<String> locations = new HashSet<>();
+        try (MulticastSocket socket = new MulticastSocket(new InetSocketAddress(address, 0))) {
+            socket.setNetworkInterface(nif);
+            for(String target : SEARCH_TARGETS){
+                byte[] search = buildSearch(target);
+                socket.send(new DatagramPacket(search, search.length, SSDP_ADDRESS));
+            }
+
+            byte[] buffer = new byte[1536];
+            while(true){
+                long remaining = Math.min(deadline, settleBy.get()) - System.currentTimeMillis();
+                if(remaining <= 0){
+                    return gateways;
+                }
+                // Wake up regularly, as another interface finding a gateway brings the settle time forward.
+                socket.setSoTimeout((int) Math.min(remaining, POLL_MILLIS));
+                DatagramPacket reply = new DatagramPacket(buffer, buffer.length);
+                try {
+                    socket.receive(reply);
+                } catch (SocketTimeoutException e) {
+                    continue;
+                }
+
+                String location = parseLocation(new String(reply.getData(), 0, reply.getLength(), StandardCharsets.ISO_8859_1));
+                // A gateway answers once per search target.
+                if(location == null || !locations.add(location)){
+                    continue;
+                }
+                try {
+                    gateways.add(InternetGateway.fromDescription(checkLocation(location, reply.getAddress()), address));
+                    settleBy.accumulateAndGet(System.currentTimeMillis() + SETTLE_MILLIS, Math::min);
+                } catch (IOException e) {
+                    // Not a usable gateway (E.g. a media server answering the device search), keep listening.
+                }
+            }
+        }
+    }
+
+    /**
+     * Sends the M-SEARCH requests and waits for the first usable gateway to answer.
+     * @param timeoutMillis How long to wait for answers.
+     * @param searchAddress Where to send the M-SEARCH requests.
+     * @return The gateway, or null if none answered in time.
+     * @throws IOException If the search couldn't be sent.
+     */
+    private static InternetGateway search(int timeoutMillis, InetSocketAddress searchAddress) throws IOException {
+        try (DatagramSocket socket = new DatagramSocket()) {
+            for(String target : SEARCH_TARGETS){
+                byte[] search = buildSearch(target);
+                socket.send(new DatagramPacket(search, search.length, searchAddress));
+            }
+
+            long deadline = System.currentTimeMillis() + timeoutMillis;
+            byte[] buffer = new byte[1536];
+            while(true){
+                long remaining = deadline - System.currentTimeMillis();
+                if(remaining <= 0){
+                    return null;
+                }
+                socket.setSoTimeout((int) remaining);
+                DatagramPacket reply = new DatagramPacket(buffer, buffer.length);
+                try {
+                    socket.receive(reply);
+                } catch (SocketTimeoutException e) {
+                    return null;
+                }
+
+                String location = parseLocation(new String(reply.getData(), 0, reply.getLength(), StandardCharsets.ISO_8859_1));
+                if(location == null){
+                    continue;
+                }
+                try {
+                    return InternetGateway.fromDescription(checkLocation(location, reply.getAddress()));
+                } catch (IOException e) {
+                    // Not a usable gateway (E.g. a media server answering the device search), keep listening.
+                }
+            }
+        }
+    }
+
+    /**
+     * @param target The search target (ST header).
+     * @return The encoded M-SEARCH request.
+     */
+    static byte[] buildSearch(String target){
+        return ("M-SEARCH * HTTP/1.1\r\n" +
+                "HOST: 239.255.255.250:1900\r\n" +
+                "ST: " + target + "\r\n" +
+                "MAN: \"ssdp:discover\"\r\n" +
+                "MX: 2\r\n\r\n").getBytes(StandardCharsets.ISO_8859_1);
+    }
+
+    /**
+     * Checks an SSDP reply's LOCATION, which any host on the network can send, before anything is fetched from it.
+     * @param location The LOCATION header.
+     * @param responder The address the reply came from.
+     * @return The description URL.
+     * @throws IOException If it isn't an http URL on the responder itself.
+     */
+    static URL checkLocation(String location, InetAddress responder) throws IOException {
+        URL url = InternetGateway.checkHttp(new URL(location));
+        // Gateways give their address as a literal, so this never looks anything up in practice.
+        if(!InetAddress.getByName(url.getHost()).equals(responder)){
+            throw new IOException("SSDP reply from " + responder.getHostAddress() + " points elsewhere: " + location);
+        }
+        return url;
+    }
+
+    /**
+     * Reads the LOCATION header out of an SSDP reply.
+     * @param reply The raw reply.
+     * @return The description URL, or null if the reply has none.
+     */
+    static String parseLocation(String reply){
+        for(String line : reply.split("\r\n")){
+            int colon = line.indexOf(':');
+            if(colon > 0 && line.substring(0, colon).trim().equalsIgnoreCase("LOCATION")){
+                return line.substring(colon + 1).trim();
+            }
+        }
+        return null;
+    }
+}
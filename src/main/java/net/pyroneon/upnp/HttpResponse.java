@@ -0,0 +1,43 @@
+package net.pyroneon.upnp;
+
+/**
+ * A raw HTTP response read off a persistent connection.
+ */
+class HttpResponse {
+
+    private final int status;
+    private final byte[] body;
+    private final boolean closing;
+
+    /**
+     * @param status The HTTP status code.
+     * @param body The decoded response body.
+     * @param closing True if the server will close the connection after this response.
+     */
+    HttpResponse(int status, byte[] body, boolean closing){
+        this.status = status;
+        this.body = body;
+        this.closing = closing;
+    }
+
+    /**
+     * @return The HTTP status code.
+     */
+    int getStatus(){
+        return status;
+    }
+
+    /**
+     * @return The decoded response body.
+     */
+    byte[] getBody(){
+        return body;
+    }
+
+    /**
+     * @return True if the server will close the connection after this response.
+     */
+    boolean isClosing(){
+        return closing;
+    }
+}
@@ -0,0 +1,322 @@
+package net.pyroneon.upnp;
+
+import net.pyroneon.metrics.Metrics;
+import net.pyroneon.metrics.OperationStats;
+import net.pyroneon.util.Protocol;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NodeList;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.DatagramSocket;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.URL;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A discovered Internet Gateway Device, or more precisely its WANIPConnection (or WANPPPConnection) service. Every
+ * gateway interaction CLIPnP makes goes through here, over a pipelined SoapClient.
+ */
+public class InternetGateway implements Gateway {
+
+    /** The largest device description accepted. Real ones are a few KiB, even for devices with many services. */
+    static final int MAX_DESCRIPTION_BYTES = 64 * 1024;
+
+    private final URL location;
+    private final String serviceType;
+    private final URL controlURL;
+    private final URL eventSubURL;
+    private final InetAddress localAddress;
+    private final SoapClient soap;
+
+    /**
+     * @param location The URL of the device description.
+     * @param serviceType The full service type of the WAN connection service.
+     * @param controlURL The service's control URL, where SOAP actions are sent.
+     * @param eventSubURL The service's event subscription URL, or null if it has none.
+     * @param localAddress The address of this machine on the gateway's network.
+     */
+    public InternetGateway(URL location, String serviceType, URL controlURL, URL eventSubURL, InetAddress localAddress){
+        this.location = location;
+        this.serviceType = serviceType;
+        this.controlURL = controlURL;
+        this.eventSubURL = eventSubURL;
+        this.localAddress = localAddress;
+        this.soap = new SoapClient(controlURL, serviceType);
+    }
+
+    /**
+     * Fetches a device description and builds a gateway from its WAN connection service.
+     * @param location The URL of the device description, from an SSDP reply's LOCATION header.
+     * @return The gateway.
+     * @throws IOException If the description can't be fetched, or it describes no WAN connection service.
+     */
+    public static InternetGateway fromDescription(URL location) throws IOException {
+        return fromDescription(location, null);
+    }
+
+    /**
+     * Fetches a device description and builds a gateway from its WAN connection service, reached through a known local
+     * address, E.g. the interface the gateway answered discovery on.
+     * @param location The URL of the device description, from an SSDP reply's LOCATION header.
+     * @param localAddress The address of this machine on the gateway's network, or null to work it out from the routes.
+     * @return The gateway.
+     * @throws IOException If the description can't be fetched, is over MAX_DESCRIPTION_BYTES, describes no WAN
+     * connection service, or any of its URLs isn't plain HTTP.
+     */
+    public static InternetGateway fromDescription(URL location, InetAddress localAddress) throws IOException {
+        HttpURLConnection conn = (HttpURLConnection) checkHttp(location).openConnection();
+        conn.setConnectTimeout(SoapClient.TIMEOUT_MILLIS);
+        conn.setReadTimeout(SoapClient.TIMEOUT_MILLIS);
+        Document doc;
+        try (InputStream in = conn.getInputStream()) {
+            byte[] description = in.readNBytes(MAX_DESCRIPTION_BYTES + 1);
+            if(description.length > MAX_DESCRIPTION_BYTES){
+                throw new IOException("Device description at " + location + " is over the limit of " + MAX_DESCRIPTION_BYTES + " bytes.");
+            }
+            doc = Xml.parse(description);
+        }
+
+        // Relative URLs resolve against URLBase if the description has one, otherwise against its own location.
+        URL base = location;
+        String urlBase = Xml.firstText(doc.getDocumentElement(), "URLBase");
+        if(urlBase != null && !urlBase.isEmpty()){
+            base = new URL(urlBase);
+        }
+
+        NodeList services = doc.getElementsByTagNameNS("*", "service");
+        for(int i = 0; i < services.getLength(); i++){
+            Element service = (Element) services.item(i);
+            String type = Xml.firstText(service, "serviceType");
+            if(type == null || !(type.contains(":WANIPConnection:") || type.contains(":WANPPPConnection:"))){
+                continue;
+            }
+            String control = Xml.firstText(service, "controlURL");
+            String events = Xml.firstText(service, "eventSubURL");
+            if(control == null){
+                continue;
+            }
+            URL eventURL = events == null || events.isEmpty() ? null : checkHttp(new URL(base, events));
+            return new InternetGateway(location, type, checkHttp(new URL(base, control)), eventURL,
+                    localAddress != null ? localAddress : findLocalAddress(location));
+        }
+        throw new IOException("Device at " + location + " has no WAN connection service.");
+    }
+
+    /**
+     * UPnP only ever uses plain HTTP, and the URLs come from whatever device answered discovery, so anything else (E.g. a
+     * "file:" LOCATION) is refused rather than opened.
+     * @param url A URL from an SSDP reply or a device description.
+     * @return The same URL.
+     * @throws IOException If it isn't an http URL with a host.
+     */
+    static URL checkHttp(URL url) throws IOException {
+        if(!url.getProtocol().equals("http") || url.getHost().isEmpty()){
+            throw new IOException("Not an HTTP URL on a host: " + url);
+        }
+        return url;
+    }
+
+    /**
+     * Works out which local address is used to reach the gateway, without sending anything.
+     * @param location Any URL on the gateway.
+     * @return The local address.
+     * @throws IOException If the gateway's host can't be resolved or routed to.
+     */
+    private static InetAddress findLocalAddress(URL location) throws IOException {
+        try (DatagramSocket socket = new DatagramSocket()) {
+            socket.connect(InetAddress.getByName(location.getHost()), 1900);
+            return socket.getLocalAddress();
+        }
+    }
+
+    /**
+     * Invokes a SOAP action on the WAN connection service. Every call is timed and counted in Metrics under the action name.
+     * @param action The action name.
+     * @param args The action's input arguments, in order.
+     * @return The reply's output arguments.
+     * @throws IOException If the action failed, see SoapFault for UPnP errors.
+     */
+    public Map<String, String> invoke(String action, Map<String, String> args) throws IOException {
+        OperationStats stats = Metrics.get(action);
+        long start = System.nanoTime();
+        try {
+            Map<String, String> toReturn = soap.invoke(action, args);
+            stats.recordSuccess(System.nanoTime() - start);
+            return toReturn;
+        } catch (SoapFault e) {
+            stats.recordFault(System.nanoTime() - start);
+            throw e;
+        } catch (IOException | RuntimeException e) {
+            stats.recordError(System.nanoTime() - start);
+            throw e;
+        }
+    }
+
+    /**
+     * Maps an external port to the same port on this machine. Mapping a port that is already mapped to this machine
+     * renews its lease.
+     * @param protocol The protocol to map.
+     * @param port The port, used both externally and internally.
+     * @param lease How long the gateway should keep the mapping, in seconds. 0 for no expiry.
+     * @throws IOException If the gateway refused (E.g. 725 if it doesn't support leases) or couldn't be reached.
+     */
+    public void openPort(Protocol protocol, int port, int lease) throws IOException {
+        openPort(protocol, port, lease, MAPPING_DESCRIPTION);
+    }
+
+    /**
+     * Maps an external port to the same port on this machine, with a custom description shown in the router's
+     * mapping table. Mapping a port that is already mapped to this machine renews its lease.
+     * @param protocol The protocol to map.
+     * @param port The port, used both externally and internally.
+     * @param lease How long the gateway should keep the mapping, in seconds. 0 for no expiry.
+     * @param description The mapping's description, E.g. "Minecraft".
+     * @throws IOException If the gateway refused (E.g. 725 if it doesn't support leases) or couldn't be reached.
+     */
+    public void openPort(Protocol protocol, int port, int lease, String description) throws IOException {
+        Map<String, String> args = new LinkedHashMap<>();
+        args.put("NewRemoteHost", "");
+        args.put("NewExternalPort", Integer.toString(port));
+        args.put("NewProtocol", protocol.name());
+        args.put("NewInternalPort", Integer.toString(port));
+        args.put("NewInternalClient", getLocalIP());
+        args.put("NewEnabled", "1");
+        args.put("NewPortMappingDescription", description);
+        args.put("NewLeaseDuration", Integer.toString(lease));
+        invoke("AddPortMapping", args);
+    }
+
+    /**
+     * Removes the mapping for an external port.
+     * @param protocol The protocol of the mapping.
+     * @param port The external port.
+     * @throws IOException If the gateway refused (E.g. 714 if there was no such mapping) or couldn't be reached.
+     */
+    public void closePort(Protocol protocol, int port) throws IOException {
+        invoke("DeletePortMapping", mappingKey(protocol, port));
+    }
+
+    /**
+     * Checks whether an external port is mapped, to any client.
+     * @param protocol The protocol of the mapping.
+     * @param port The external port.
+     * @return True if the gateway has a mapping for the port, false if it has none.
+     * @throws IOException If the gateway couldn't be reached or replied with an unexpected error.
+     */
+    public boolean isMapped(Protocol protocol, int port) throws IOException {
+        try {
+            invoke("GetSpecificPortMappingEntry", mappingKey(protocol, port));
+            return true;
+        } catch (SoapFault e) {
+            if(e.getErrorCode() == SoapFault.NO_SUCH_ENTRY){
+                return false;
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * @return The gateway's public IP address.
+     * @throws IOException If the gateway couldn't be reached.
+     */
+    public String getExternalIP() throws IOException {
+        return invoke("GetExternalIPAddress", new LinkedHashMap<>()).get("NewExternalIPAddress");
+    }
+
+    /**
+     * Builds the arguments identifying one mapping.
+     * @param protocol The protocol of the mapping.
+     * @param port The external port.
+     * @return The arguments, in order.
+     */
+    private static Map<String, String> mappingKey(Protocol protocol, int port){
+        Map<String, String> args = new LinkedHashMap<>();
+        args.put("NewRemoteHost", "");
+        args.put("NewExternalPort", Integer.toString(port));
+        args.put("NewProtocol", protocol.name());
+        return args;
+    }
+
+    /**
+     * Closes the pooled connections to the gateway.
+     */
+    public void close(){
+        soap.close();
+    }
+
+    /**
+     * Reads one row of the port mapping table.
+     * @param index The zero-based table index.
+     * @return The entry, or null if the index is past the end of the table.
+     * @throws IOException If the gateway couldn't be reached or replied with an unexpected error.
+     */
+    public PortMappingEntry getPortMappingEntry(int index) throws IOException {
+        Map<String, String> args = new LinkedHashMap<>();
+        args.put("NewPortMappingIndex", Integer.toString(index));
+        try {
+            return new PortMappingEntry(index, invoke("GetGenericPortMappingEntry", args));
+        } catch (SoapFault e) {
+            // 713 is the standard end-of-table reply, some gateways send 714 or a bare 402 (Invalid Args) instead.
+            if(e.getErrorCode() == SoapFault.ARRAY_INDEX_INVALID || e.getErrorCode() == SoapFault.NO_SUCH_ENTRY
+                    || e.getErrorCode() == 402){
+                return null;
+            }
+            throw e;
+        } catch (IllegalArgumentException e) {
+            throw new IOException(e.getMessage(), e);
+        }
+    }
+
+    /**
+     * @return The URL of the device description.
+     */
+    public URL getLocation(){
+        return location;
+    }
+
+    /**
+     * @return The full service type of the WAN connection service.
+     */
+    public String getServiceType(){
+        return serviceType;
+    }
+
+    /**
+     * @return The control URL SOAP actions are sent to.
+     */
+    public URL getControlURL(){
+        return controlURL;
+    }
+
+    /**
+     * @return The event subscription URL, or null if the service has none.
+     */
+    public URL getEventSubURL(){
+        return eventSubURL;
+    }
+
+    /**
+     * @return The address of this machine on the gateway's network.
+     */
+    public InetAddress getLocalAddress(){
+        return localAddress;
+    }
+
+    /**
+     * @return The address of this machine on the gateway's network, as text.
+     */
+    public String getLocalIP(){
+        return localAddress.getHostAddress();
+    }
+
+    /**
+     * @return The gateway's host, as found in its description URL.
+     */
+    public String getGatewayIP(){
+        return location.getHost();
+    }
+}
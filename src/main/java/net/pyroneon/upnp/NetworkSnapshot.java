@@ -0,0 +1,109 @@
+package net.pyroneon.upnp;
+
+import java.util.Map;
+
+/**
+ * What is known about one gateway's WAN connection: its public IP, how many port mappings it holds and whether it is
+ * connected. Kept up to date by the gateway's events where it sends them (see EventSubscription), so network queries
+ * can be answered from memory. Immutable, each update makes a new snapshot.
+ */
+public class NetworkSnapshot {
+
+    /** The evented state variable holding the public IP. */
+    public static final String EXTERNAL_IP = "ExternalIPAddress";
+    /** The evented state variable holding the number of port mappings. */
+    public static final String MAPPING_COUNT = "PortMappingNumberOfEntries";
+    /** The evented state variable holding the WAN connection status. */
+    public static final String CONNECTION_STATUS = "ConnectionStatus";
+
+    private final String externalIP;
+    private final int mappingCount;
+    private final String connectionStatus;
+    private final boolean pushed;
+    private final long updatedAt;
+
+    /**
+     * @param externalIP The gateway's public IP, or null if not known.
+     * @param mappingCount The number of entries in its mapping table, or -1 if not known.
+     * @param connectionStatus Its WAN connection status, E.g. "Connected", or null if not known.
+     * @param pushed True if the snapshot was last updated by an event, false if by asking the gateway.
+     * @param updatedAt When the snapshot was last updated, in epoch milliseconds.
+     */
+    private NetworkSnapshot(String externalIP, int mappingCount, String connectionStatus, boolean pushed, long updatedAt){
+        this.externalIP = externalIP;
+        this.mappingCount = mappingCount;
+        this.connectionStatus = connectionStatus;
+        this.pushed = pushed;
+        this.updatedAt = updatedAt;
+    }
+
+    /**
+     * @return A snapshot knowing nothing yet.
+     */
+    public static NetworkSnapshot empty(){
+        return new NetworkSnapshot(null, -1, null, false, 0);
+    }
+
+    /**
+     * Applies an event from the gateway.
+     * @param variables The changed state variables by name. Variables this snapshot doesn't follow are ignored.
+     * @return The updated snapshot.
+     */
+    public NetworkSnapshot withEvent(Map<String, String> variables){
+        String ip = variables.getOrDefault(EXTERNAL_IP, externalIP);
+        int count = mappingCount;
+        try {
+            if(variables.containsKey(MAPPING_COUNT)){
+                count = Integer.parseInt(variables.get(MAPPING_COUNT).trim());
+            }
+        } catch (NumberFormatException ignored) {
+            // Keep the last count.
+        }
+        String status = variables.getOrDefault(CONNECTION_STATUS, connectionStatus);
+        return new NetworkSnapshot(ip == null || ip.isEmpty() ? null : ip, count, status, true, System.currentTimeMillis());
+    }
+
+    /**
+     * Applies a public IP read from the gateway on demand.
+     * @param ip The public IP.
+     * @return The updated snapshot.
+     */
+    public NetworkSnapshot withExternalIP(String ip){
+        return new NetworkSnapshot(ip, mappingCount, connectionStatus, false, System.currentTimeMillis());
+    }
+
+    /**
+     * @return The gateway's public IP, or null if not known.
+     */
+    public String getExternalIP(){
+        return externalIP;
+    }
+
+    /**
+     * @return The number of entries in the gateway's mapping table, or -1 if not known.
+     */
+    public int getMappingCount(){
+        return mappingCount;
+    }
+
+    /**
+     * @return The gateway's WAN connection status, E.g. "Connected", or null if not known.
+     */
+    public String getConnectionStatus(){
+        return connectionStatus;
+    }
+
+    /**
+     * @return True if the snapshot was last updated by an event, false if by asking the gateway (or never).
+     */
+    public boolean isPushed(){
+        return pushed;
+    }
+
+    /**
+     * @return When the snapshot was last updated, in epoch milliseconds, or 0 if never.
+     */
+    public long getUpdatedAt(){
+        return updatedAt;
+    }
+}
@@ -0,0 +1,313 @@
+package net.pyroneon.upnp;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * A persistent HTTP/1.1 connection that pipelines requests: each request is written as soon as it is sent, without
+ * waiting for earlier responses, and a reader thread matches responses back to requests in order.
+ */
+class PipelinedConnection {
+
+    /**
+     * Thrown to a request that was written but never answered because the connection went away. The request can safely
+     * be sent again on another connection.
+     */
+    static class ConnectionLostException extends IOException {
+        private static final long serialVersionUID = 1L;
+        private final boolean reused;
+
+        ConnectionLostException(String message, Throwable cause, boolean reused){
+            super(message, cause);
+            this.reused = reused;
+        }
+
+        /**
+         * @return True if the connection had already answered an earlier request before it was lost. A gateway that keeps
+         * doing this closes connections after each reply without saying so.
+         */
+        boolean wasReused(){
+            return reused;
+        }
+    }
+
+    /** The largest response body accepted. SOAP replies are a few hundred bytes, anything near this is not a gateway. */
+    static final int MAX_BODY_BYTES = 64 * 1024;
+
+    private final Socket socket;
+    private final OutputStream out;
+    private final InputStream in;
+    private final Object writeLock = new Object();
+    // Requests written but not yet answered, oldest first. Guarded by this.
+    private final ArrayDeque<CompletableFuture<HttpResponse>> outstanding = new ArrayDeque<>();
+    private boolean closed;
+    private int answered;
+
+    /**
+     * Connects and starts the reader thread.
+     * @param host The server host.
+     * @param port The server port.
+     * @param timeoutMillis How long to wait for the connection, and for each response.
+     * @throws IOException If the connection couldn't be made.
+     */
+    PipelinedConnection(String host, int port, int timeoutMillis) throws IOException {
+        socket = new Socket();
+        socket.connect(new InetSocketAddress(host, port), timeoutMillis);
+        socket.setSoTimeout(timeoutMillis);
+        socket.setTcpNoDelay(true);
+        out = socket.getOutputStream();
+        in = new BufferedInputStream(socket.getInputStream());
+
+        Thread reader = new Thread(this::readLoop, "CLIPnP-soap-" + host);
+        reader.setDaemon(true);
+        reader.start();
+    }
+
+    /**
+     * Writes a request, without waiting for any earlier response.
+     * @param request The complete encoded request, head and body.
+     * @return Completes with the response, or exceptionally if the connection fails first.
+     */
+    CompletableFuture<HttpResponse> send(byte[] request){
+        CompletableFuture<HttpResponse> future = new CompletableFuture<>();
+        // Writes are serialized separately from the response queue, so a slow write never stops the reader.
+        synchronized (writeLock){
+            synchronized (this){
+                if(closed){
+                    future.completeExceptionally(new ConnectionLostException("Connection already closed.", null, answered > 0));
+                    return future;
+                }
+                outstanding.add(future);
+                notifyAll();
+            }
+            try {
+                out.write(request);
+                out.flush();
+            } catch (IOException e) {
+                close(e);
+            }
+        }
+        return future;
+    }
+
+    /**
+     * @return The number of requests written but not yet answered.
+     */
+    synchronized int getOutstanding(){
+        return outstanding.size();
+    }
+
+    /**
+     * @return True if the connection can't take any more requests.
+     */
+    synchronized boolean isClosed(){
+        return closed;
+    }
+
+    /**
+     * Closes the connection, failing any request still waiting for a response.
+     * @param cause Why the connection is closing, or null for a deliberate close.
+     */
+    synchronized void close(Throwable cause){
+        if(closed){
+            return;
+        }
+        closed = true;
+        for(CompletableFuture<HttpResponse> future : outstanding){
+            future.completeExceptionally(new ConnectionLostException("Connection closed before a response arrived.", cause, answered > 0));
+        }
+        outstanding.clear();
+        notifyAll();
+        try {
+            socket.close();
+        } catch (IOException ignored) {
+        }
+    }
+
+    /**
+     * Reads responses for as long as the connection is open, completing requests in the order they were written.
+     */
+    private void readLoop(){
+        while(true){
+            synchronized (this){
+                while(outstanding.isEmpty() && !closed){
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        close(e);
+                        return;
+                    }
+                }
+                if(closed){
+                    return;
+                }
+            }
+
+            HttpResponse response;
+            try {
+                response = readResponse();
+            } catch (IOException e) {
+                // Includes timeouts: once a response is late, the pipeline can't be trusted.
+                close(e);
+                return;
+            } catch (RuntimeException e) {
+                // Never let the reader die with requests still waiting on it.
+                close(e);
+                return;
+            }
+
+            CompletableFuture<HttpResponse> future;
+            synchronized (this){
+                future = outstanding.poll();
+                answered++;
+            }
+            // Closed first, so whoever receives the response never sees this connection as still usable.
+            if(response.isClosing()){
+                close(null);
+            }
+            if(future != null){
+                future.complete(response);
+            }
+            if(response.isClosing()){
+                return;
+            }
+        }
+    }
+
+    /**
+     * Reads a single response: status line, headers, then a fixed-length, chunked, or read-to-close body.
+     * @return The response.
+     * @throws IOException If the stream ends early, the response is malformed, or its body is over MAX_BODY_BYTES.
+     */
+    private HttpResponse readResponse() throws IOException {
+        String statusLine = readLine();
+        String[] parts = statusLine.split(" ", 3);
+        if(parts.length < 2 || !parts[0].startsWith("HTTP/")){
+            throw new IOException("Malformed status line: " + statusLine);
+        }
+        int status = parseNumber(parts[1], 10, "status code");
+        // HTTP/1.0 servers close after every response unless they say otherwise.
+        boolean closing = parts[0].equals("HTTP/1.0");
+
+        int contentLength = -1;
+        boolean chunked = false;
+        String line;
+        while(!(line = readLine()).isEmpty()){
+            int colon = line.indexOf(':');
+            if(colon <= 0){
+                continue;
+            }
+            String name = line.substring(0, colon).trim();
+            String value = line.substring(colon + 1).trim();
+            if(name.equalsIgnoreCase("Content-Length")){
+                contentLength = parseNumber(value, 10, "Content-Length");
+            }
+            else if(name.equalsIgnoreCase("Transfer-Encoding") && value.toLowerCase().contains("chunked")){
+                chunked = true;
+            }
+            else if(name.equalsIgnoreCase("Connection")){
+                closing = value.equalsIgnoreCase("close") || (closing && !value.equalsIgnoreCase("keep-alive"));
+            }
+        }
+
+        byte[] body;
+        if(chunked){
+            body = readChunked();
+        }
+        else if(contentLength >= 0){
+            checkBodySize(contentLength);
+            body = in.readNBytes(contentLength);
+            if(body.length < contentLength){
+                throw new EOFException("Response body ended early.");
+            }
+        }
+        else{
+            // No length given, so the body runs until the server closes the connection.
+            body = in.readNBytes(MAX_BODY_BYTES + 1);
+            checkBodySize(body.length);
+            closing = true;
+        }
+        return new HttpResponse(status, body, closing);
+    }
+
+    /**
+     * @return A chunked transfer-encoded body, decoded.
+     * @throws IOException If the stream ends early, a chunk size is malformed, or the body is over MAX_BODY_BYTES.
+     */
+    private byte[] readChunked() throws IOException {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        while(true){
+            String sizeLine = readLine();
+            int semicolon = sizeLine.indexOf(';');
+            int size = parseNumber((semicolon >= 0 ? sizeLine.substring(0, semicolon) : sizeLine).trim(), 16, "chunk size");
+            if(size == 0){
+                // Skip any trailers.
+                while(!readLine().isEmpty()){
+                }
+                return body.toByteArray();
+            }
+            checkBodySize((long) body.size() + size);
+            byte[] chunk = in.readNBytes(size);
+            if(chunk.length < size){
+                throw new EOFException("Response chunk ended early.");
+            }
+            body.write(chunk);
+            readLine();
+        }
+    }
+
+    /**
+     * @param size The size of a response body, or as much of it as has been read.
+     * @throws IOException If it's over MAX_BODY_BYTES.
+     */
+    private static void checkBodySize(long size) throws IOException {
+        if(size > MAX_BODY_BYTES){
+            throw new IOException("Response body is over the limit of " + MAX_BODY_BYTES + " bytes.");
+        }
+    }
+
+    /**
+     * @param value A number from the response.
+     * @param radix Its radix, 10 or 16.
+     * @param what What it is, for the error message. E.g. "Content-Length".
+     * @return The number.
+     * @throws IOException If it isn't a non-negative number that fits in an int.
+     */
+    private static int parseNumber(String value, int radix, String what) throws IOException {
+        try {
+            int number = Integer.parseInt(value, radix);
+            if(number >= 0){
+                return number;
+            }
+        } catch (NumberFormatException ignored) {
+        }
+        throw new IOException("Malformed " + what + " in response: " + value);
+    }
+
+    /**
+     * @return The next line, without its CRLF.
+     * @throws IOException If the stream ends first.
+     */
+    private String readLine() throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream(64);
+        int b;
+        while((b = in.read()) != '\n'){
+            if(b == -1){
+                throw new EOFException("Connection closed by gateway.");
+            }
+            if(b != '\r'){
+                line.write(b);
+            }
+        }
+        return line.toString(StandardCharsets.ISO_8859_1);
+    }
+}
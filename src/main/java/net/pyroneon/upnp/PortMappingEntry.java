@@ -0,0 +1,142 @@
+package net.pyroneon.upnp;
+
+import net.pyroneon.util.Bind;
+import net.pyroneon.util.Protocol;
+
+import org.json.JSONObject;
+
+import java.util.Map;
+
+/**
+ * One row of the gateway's port mapping table, as returned by GetGenericPortMappingEntry.
+ */
+public class PortMappingEntry {
+
+    private final int index;
+    private final Protocol protocol;
+    private final int externalPort;
+    private final String internalClient;
+    private final int internalPort;
+    private final boolean enabled;
+    private final String description;
+    private final int leaseDuration;
+
+    /**
+     * Builds an entry from the output arguments of a GetGenericPortMappingEntry reply.
+     * @param index The table index the entry was read from.
+     * @param reply The reply's output arguments.
+     * @throws IllegalArgumentException If the reply is missing a field or holds an unknown protocol.
+     */
+    PortMappingEntry(int index, Map<String, String> reply){
+        this.index = index;
+        try {
+            this.protocol = Protocol.valueOf(reply.get("NewProtocol").toUpperCase());
+            this.externalPort = Integer.parseInt(reply.get("NewExternalPort"));
+            this.internalPort = Integer.parseInt(reply.get("NewInternalPort"));
+        } catch (NullPointerException | NumberFormatException e) {
+            throw new IllegalArgumentException("Incomplete port mapping entry at index " + index, e);
+        }
+        this.internalClient = reply.getOrDefault("NewInternalClient", "");
+        this.enabled = !"0".equals(reply.get("NewEnabled"));
+        this.description = reply.getOrDefault("NewPortMappingDescription", "");
+        String lease = reply.get("NewLeaseDuration");
+        this.leaseDuration = lease == null || lease.isEmpty() ? 0 : Integer.parseInt(lease);
+    }
+
+    /**
+     * @return The table index this entry was read from.
+     */
+    public int getIndex(){
+        return index;
+    }
+
+    /**
+     * @return The mapped protocol.
+     */
+    public Protocol getProtocol(){
+        return protocol;
+    }
+
+    /**
+     * @return The external (WAN side) port.
+     */
+    public int getExternalPort(){
+        return externalPort;
+    }
+
+    /**
+     * @return The LAN address traffic is forwarded to.
+     */
+    public String getInternalClient(){
+        return internalClient;
+    }
+
+    /**
+     * @return The LAN port traffic is forwarded to.
+     */
+    public int getInternalPort(){
+        return internalPort;
+    }
+
+    /**
+     * @return Whether the gateway reports the mapping as enabled.
+     */
+    public boolean isEnabled(){
+        return enabled;
+    }
+
+    /**
+     * @return The description the mapping was created with.
+     */
+    public String getDescription(){
+        return description;
+    }
+
+    /**
+     * @return The remaining lease in seconds, 0 if the mapping is permanent.
+     */
+    public int getLeaseDuration(){
+        return leaseDuration;
+    }
+
+    /**
+     * @return The binding this entry maps, by protocol and external port.
+     */
+    public Bind toBind(){
+        return new Bind(protocol, externalPort);
+    }
+
+    /**
+     * @return The JSON form of the mapping, E.g. for structured output.
+     */
+    public JSONObject toJSON(){
+        JSONObject json = new JSONObject();
+        json.put("index", index);
+        json.put("protocol", protocol.name());
+        json.put("externalPort", externalPort);
+        json.put("internalClient", internalClient);
+        json.put("internalPort", internalPort);
+        json.put("enabled", enabled);
+        json.put("description", description);
+        json.put("leaseDuration", leaseDuration);
+        return json;
+    }
+
+    /**
+     * @return A one-line description of the mapping.
+     */
+    @Override
+    public String toString(){
+        String toReturn = protocol + ": " + externalPort + " -> " + internalClient + ":" + internalPort;
+        if(!description.isEmpty()){
+            toReturn += " '" + description + "'";
+        }
+        if(leaseDuration > 0){
+            toReturn += " (lease " + leaseDuration + "s)";
+        }
+        if(!enabled){
+            toReturn += " (disabled)";
+        }
+        return toReturn;
+    }
+}
@@ -0,0 +1,244 @@
+package net.pyroneon.upnp;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Sends UPnP SOAP actions to a gateway's control URL and parses the replies. Requests go over a small pool of persistent
+ * HTTP/1.1 connections and are pipelined, so many concurrent actions don't each pay for a new connection and a full
+ * round-trip. Gateways that close the connection after each reply are detected, and then get one request per connection.
+ */
+public class SoapClient {
+
+    /** How long to wait for the gateway to accept a connection or send a reply, in milliseconds. */
+    public static final int TIMEOUT_MILLIS = 3000;
+    /** The most connections kept open to one gateway. */
+    public static final int MAX_CONNECTIONS = 4;
+
+    private final URL controlURL;
+    private final String serviceType;
+    private final String host;
+    private final int port;
+    private final ArrayList<PipelinedConnection> connections = new ArrayList<>();
+    private volatile boolean keepAlive = true;
+
+    /**
+     * @param controlURL The control URL of the WAN connection service.
+     * @param serviceType The full service type, E.g. "urn:schemas-upnp-org:service:WANIPConnection:1".
+     */
+    public SoapClient(URL controlURL, String serviceType){
+        this.controlURL = controlURL;
+        this.serviceType = serviceType;
+        this.host = controlURL.getHost();
+        this.port = controlURL.getPort() == -1 ? controlURL.getDefaultPort() : controlURL.getPort();
+    }
+
+    /**
+     * Invokes a SOAP action and waits for the reply. Safe to call from many threads at once, concurrent calls are
+     * pipelined onto the pooled connections.
+     * @param action The action name, E.g. "GetExternalIPAddress".
+     * @param args The action's input arguments, in order. Can be empty.
+     * @return The reply's output arguments, by name.
+     * @throws SoapFault If the gateway answered with a UPnP error.
+     * @throws IOException If the gateway couldn't be reached or the reply couldn't be read.
+     */
+    public Map<String, String> invoke(String action, Map<String, String> args) throws IOException {
+        byte[] request = buildRequest(action, buildEnvelope(action, args));
+        HttpResponse response;
+        try {
+            response = send(request);
+        } catch (PipelinedConnection.ConnectionLostException e) {
+            if(e.getCause() instanceof SocketTimeoutException){
+                // The gateway may have carried it out and just been slow to reply, so it isn't safe to send again.
+                SocketTimeoutException timeout = new SocketTimeoutException("No reply from gateway " + host + " in time.");
+                timeout.initCause(e);
+                throw timeout;
+            }
+            if(e.wasReused()){
+                // The gateway hung up after answering on this connection, so it can't be trusted with more than one request.
+                keepAlive = false;
+            }
+            // The request was never answered (E.g. the gateway dropped an idle connection), so send it once more.
+            response = send(request);
+        }
+        return parseResponse(response.getStatus(), response.getBody());
+    }
+
+    /**
+     * Closes every pooled connection. Later calls open new ones.
+     */
+    public synchronized void close(){
+        for(PipelinedConnection conn : connections){
+            conn.close(null);
+        }
+        connections.clear();
+    }
+
+    /**
+     * Sends a request on a pooled connection and waits for its response.
+     * @param request The complete encoded request.
+     * @return The response.
+     * @throws IOException If the connection failed before the response arrived.
+     */
+    private HttpResponse send(byte[] request) throws IOException {
+        PipelinedConnection conn = acquire();
+        HttpResponse response;
+        try {
+            CompletableFuture<HttpResponse> future = conn.send(request);
+            // The connection's reader times out on every read, so this is only a backstop. Each response queued ahead of
+            // this one may take up to a full timeout.
+            response = future.get((long) TIMEOUT_MILLIS * (conn.getOutstanding() + 1) + TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            SocketTimeoutException timeout = new SocketTimeoutException("No reply from gateway " + host + " in time.");
+            conn.close(timeout);
+            throw timeout;
+        } catch (ExecutionException e) {
+            conn.close(e.getCause());
+            if(e.getCause() instanceof IOException){
+                throw (IOException) e.getCause();
+            }
+            throw new IOException(e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted waiting for the gateway.", e);
+        }
+
+        if(response.isClosing()){
+            // This gateway doesn't keep connections open, so stop pipelining onto them.
+            keepAlive = false;
+        }
+        if(!keepAlive){
+            conn.close(null);
+        }
+        return response;
+    }
+
+    /**
+     * Picks the connection for the next request: an idle open connection if there is one, otherwise a new one if the
+     * pool isn't full, otherwise the least busy one. Requests are spread over connections before being pipelined, as
+     * many gateways serve each connection one request at a time but several connections side by side. Without
+     * keep-alive, always a new unpooled connection.
+     * @return The connection to use.
+     * @throws IOException If a new connection was needed but couldn't be made.
+     */
+    private synchronized PipelinedConnection acquire() throws IOException {
+        connections.removeIf(PipelinedConnection::isClosed);
+        if(!keepAlive){
+            close();
+            return new PipelinedConnection(host, port, TIMEOUT_MILLIS);
+        }
+
+        PipelinedConnection best = null;
+        for(PipelinedConnection conn : connections){
+            if(best == null || conn.getOutstanding() < best.getOutstanding()){
+                best = conn;
+            }
+        }
+        if(best != null && best.getOutstanding() == 0){
+            return best;
+        }
+        if(connections.size() < MAX_CONNECTIONS || best == null){
+            PipelinedConnection conn = new PipelinedConnection(host, port, TIMEOUT_MILLIS);
+            connections.add(conn);
+            return conn;
+        }
+        return best;
+    }
+
+    /**
+     * Builds the HTTP request carrying a SOAP envelope.
+     * @param action The action name, for the SOAPAction header.
+     * @param envelope The encoded envelope.
+     * @return The complete encoded request.
+     */
+    private byte[] buildRequest(String action, byte[] envelope){
+        String path = controlURL.getFile().isEmpty() ? "/" : controlURL.getFile();
+        byte[] head = ("POST " + path + " HTTP/1.1\r\n" +
+                "Host: " + host + ":" + port + "\r\n" +
+                "Content-Type: text/xml; charset=\"utf-8\"\r\n" +
+                "SOAPAction: \"" + serviceType + "#" + action + "\"\r\n" +
+                "Content-Length: " + envelope.length + "\r\n" +
+                "Connection: keep-alive\r\n\r\n").getBytes(StandardCharsets.ISO_8859_1);
+        byte[] request = Arrays.copyOf(head, head.length + envelope.length);
+        System.arraycopy(envelope, 0, request, head.length, envelope.length);
+        return request;
+    }
+
+    /**
+     * Builds a SOAP request envelope.
+     * @param action The action name.
+     * @param args The action's input arguments, in order.
+     * @return The UTF-8 encoded envelope.
+     */
+    byte[] buildEnvelope(String action, Map<String, String> args){
+        StringBuilder build = new StringBuilder()
+                .append("<?xml version=\"1.0\"?>\r\n")
+                .append("<s:Envelope xmlns:s=\"http://schemas.xmlsoap.org/soap/envelope/\" ")
+                .append("s:encodingStyle=\"http://schemas.xmlsoap.org/soap/encoding/\"><s:Body>")
+                .append("<u:").append(action).append(" xmlns:u=\"").append(serviceType).append("\">");
+        for(Map.Entry<String, String> arg : args.entrySet()){
+            build.append('<').append(arg.getKey()).append('>')
+                    .append(Xml.escape(arg.getValue()))
+                    .append("</").append(arg.getKey()).append('>');
+        }
+        build.append("</u:").append(action).append("></s:Body></s:Envelope>");
+        return build.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Parses a SOAP reply into its output arguments.
+     * @param status The HTTP status code of the reply.
+     * @param body The reply body.
+     * @return The output arguments, by name.
+     * @throws SoapFault If the reply is a UPnP error.
+     * @throws IOException If the reply isn't valid SOAP.
+     */
+    Map<String, String> parseResponse(int status, byte[] body) throws IOException {
+        Document doc = Xml.parse(body);
+
+        // UPnP errors are sent as a SOAP fault holding an errorCode, usually with HTTP 500.
+        String errorCode = Xml.firstText(doc.getDocumentElement(), "errorCode");
+        if(errorCode != null || status >= 400){
+            int code = -1;
+            try {
+                code = errorCode == null ? -1 : Integer.parseInt(errorCode.trim());
+            } catch (NumberFormatException ignored) {
+            }
+            String description = Xml.firstText(doc.getDocumentElement(), "errorDescription");
+            throw new SoapFault(code, description == null ? "HTTP " + status : description);
+        }
+
+        // The reply's Body holds one <u:ActionResponse> element, whose children are the output arguments.
+        Element responseElement = null;
+        NodeList bodies = doc.getElementsByTagNameNS("*", "Body");
+        if(bodies.getLength() > 0){
+            responseElement = Xml.firstChildElement(bodies.item(0));
+        }
+        if(responseElement == null){
+            throw new IOException("Gateway reply has no SOAP body.");
+        }
+
+        Map<String, String> toReturn = new LinkedHashMap<>();
+        for(Node child = responseElement.getFirstChild(); child != null; child = child.getNextSibling()){
+            if(child instanceof Element){
+                toReturn.put(child.getLocalName() != null ? child.getLocalName() : child.getNodeName(), child.getTextContent().trim());
+            }
+        }
+        return toReturn;
+    }
+}
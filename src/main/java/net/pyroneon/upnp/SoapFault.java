@@ -0,0 +1,36 @@
+package net.pyroneon.upnp;
+
+import java.io.IOException;
+
+/**
+ * Thrown when the gateway answers a SOAP action with a UPnP error, E.g. 713 SpecifiedArrayIndexInvalid at the end of the
+ * port mapping table.
+ */
+public class SoapFault extends IOException {
+
+    /** GetGenericPortMappingEntry was asked for an index past the end of the table. */
+    public static final int ARRAY_INDEX_INVALID = 713;
+    /** The requested port mapping does not exist. */
+    public static final int NO_SUCH_ENTRY = 714;
+    /** The gateway only accepts mappings with no lease expiry. */
+    public static final int ONLY_PERMANENT_LEASES = 725;
+
+    private static final long serialVersionUID = 1L;
+    private final int errorCode;
+
+    /**
+     * @param errorCode The UPnP error code, or -1 if the gateway didn't send one.
+     * @param description The error description sent by the gateway.
+     */
+    public SoapFault(int errorCode, String description){
+        super("UPnP error " + errorCode + ": " + description);
+        this.errorCode = errorCode;
+    }
+
+    /**
+     * @return The UPnP error code, or -1 if the gateway didn't send one.
+     */
+    public int getErrorCode(){
+        return errorCode;
+    }
+}
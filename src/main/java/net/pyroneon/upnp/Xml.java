@@ -0,0 +1,89 @@
+package net.pyroneon.upnp;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+import org.xml.sax.SAXException;
+
+import javax.xml.XMLConstants;
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+
+/**
+ * Small helpers for reading the XML that gateways send back. Device descriptions and SOAP replies come from the network,
+ * so doctypes and external entities are refused.
+ */
+class Xml {
+
+    // Building a parser is far slower than using one, so each thread keeps its own.
+    private static final ThreadLocal<DocumentBuilder> BUILDER = ThreadLocal.withInitial(() -> {
+        try {
+            DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+            factory.setNamespaceAware(true);
+            factory.setFeature("http://apache.org/xml/features/disallow-doctype-decl", true);
+            factory.setAttribute(XMLConstants.ACCESS_EXTERNAL_DTD, "");
+            factory.setAttribute(XMLConstants.ACCESS_EXTERNAL_SCHEMA, "");
+            factory.setExpandEntityReferences(false);
+            return factory.newDocumentBuilder();
+        } catch (ParserConfigurationException e) {
+            throw new IllegalStateException("No usable XML parser.", e);
+        }
+    });
+
+    /**
+     * Parses a namespace-aware DOM document.
+     * @param bytes The raw XML.
+     * @return The parsed document.
+     * @throws IOException If the XML is malformed.
+     */
+    static Document parse(byte[] bytes) throws IOException {
+        DocumentBuilder builder = BUILDER.get();
+        try {
+            return builder.parse(new ByteArrayInputStream(bytes));
+        } catch (SAXException e) {
+            throw new IOException("Malformed XML from gateway: " + e.getMessage(), e);
+        } finally {
+            builder.reset();
+        }
+    }
+
+    /**
+     * Finds the text of the first descendant element with a local name, ignoring namespaces.
+     * @param parent The element to search within.
+     * @param localName The element name, without prefix.
+     * @return The trimmed text content, or null if there is no such element.
+     */
+    static String firstText(Element parent, String localName){
+        NodeList nodes = parent.getElementsByTagNameNS("*", localName);
+        if(nodes.getLength() == 0){
+            return null;
+        }
+        return nodes.item(0).getTextContent().trim();
+    }
+
+    /**
+     * @param node The parent node.
+     * @return Its first child that is an element, or null if it has none.
+     */
+    static Element firstChildElement(Node node){
+        for(Node child = node.getFirstChild(); child != null; child = child.getNextSibling()){
+            if(child instanceof Element){
+                return (Element) child;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Escapes text for use as XML element content.
+     * @param text The raw text.
+     * @return The escaped text.
+     */
+    static String escape(String text){
+        return text.replace("&", "&amp;").replace("<", "&lt;").replace(">", "&gt;");
+    }
+}
@@ -0,0 +1,128 @@
+package net.pyroneon.util;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Splits the command-line arguments into "--flag" options and the config filepath. The filepath keeps its single quotes
+ * (see Path.getPathInQuotes()), and a quoted filepath may contain spaces even though the shell split it into several args.
+ */
+public class Arguments {
+
+    private final HashMap<String, String> flags = new HashMap<>();
+    private final String positional;
+
+    /**
+     * @param flags The flags found, by name without the leading dashes. Flags without a value map to an empty string.
+     * @param positional Every non-flag word, joined with spaces.
+     */
+    private Arguments(HashMap<String, String> flags, String positional){
+        this.flags.putAll(flags);
+        this.positional = positional;
+    }
+
+    /**
+     * Parses the command-line arguments. Flags are written "--name", "--name=value", or "--name value" for the names in
+     * valueFlags. Values may be wrapped in single quotes, which are removed.
+     * @param args The raw arguments, as passed to main().
+     * @param valueFlags The flags that take the following word as their value when no "=" is used.
+     * @return The parsed arguments.
+     * @throws IllegalArgumentException If a value flag is the last word, with no value after it.
+     */
+    public static Arguments parse(String[] args, Set<String> valueFlags) throws IllegalArgumentException {
+        List<String> words = splitWords(String.join(" ", args));
+        HashMap<String, String> flags = new HashMap<>();
+        StringBuilder positional = new StringBuilder();
+
+        for(int i = 0; i < words.size(); i++){
+            String word = words.get(i);
+            if(!word.startsWith("--")){
+                if(positional.length() > 0){
+                    positional.append(' ');
+                }
+                positional.append(word);
+                continue;
+            }
+
+            String name = word.substring(2);
+            String value = "";
+            int equals = name.indexOf('=');
+            if(equals >= 0){
+                value = name.substring(equals + 1);
+                name = name.substring(0, equals);
+            }
+            else if(valueFlags.contains(name)){
+                if(i + 1 >= words.size()){
+                    throw new IllegalArgumentException("Missing value after --" + name);
+                }
+                value = words.get(++i);
+            }
+            flags.put(name, unquote(value));
+        }
+        return new Arguments(flags, positional.toString());
+    }
+
+    /**
+     * Splits a line on whitespace, except inside single quotes. The quotes stay part of the word.
+     * @param line The line to split.
+     * @return The words.
+     */
+    private static List<String> splitWords(String line){
+        List<String> words = new ArrayList<>();
+        StringBuilder word = new StringBuilder();
+        boolean quoted = false;
+        for(char c : line.toCharArray()){
+            if(c == '\''){
+                quoted = !quoted;
+            }
+            if(Character.isWhitespace(c) && !quoted){
+                if(word.length() > 0){
+                    words.add(word.toString());
+                    word.setLength(0);
+                }
+                continue;
+            }
+            word.append(c);
+        }
+        if(word.length() > 0){
+            words.add(word.toString());
+        }
+        return words;
+    }
+
+    /**
+     * @param value A flag value.
+     * @return The value without surrounding single quotes.
+     */
+    private static String unquote(String value){
+        if(value.length() >= 2 && value.startsWith("'") && value.endsWith("'")){
+            return value.substring(1, value.length() - 1);
+        }
+        return value;
+    }
+
+    /**
+     * @param name The flag name, without the leading dashes.
+     * @return True if the flag was given.
+     */
+    public boolean has(String name){
+        return flags.containsKey(name);
+    }
+
+    /**
+     * @param name The flag name, without the leading dashes.
+     * @return The flag's value, an empty string if it was given without one, or null if it wasn't given.
+     */
+    public String get(String name){
+        return flags.get(name);
+    }
+
+    /**
+     * @return Every non-flag word joined with spaces, E.g. a quoted config filepath. Empty if there were none.
+     */
+    public String getPositional(){
+        return positional;
+    }
+}
@@ -1,104 +1,268 @@
 package net.pyroneon.util;
 
-import com.simtechdata.waifupnp.UPnP;
+import org.json.JSONArray;
+import org.json.JSONException;
 import org.json.JSONObject;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+
 /**
- * This is a data structure class, which is basically just a JSONObject with some fancy methods to keep things organized and compartmentalized.
+ * An immutable protocol and port pair, with an optional lease duration, description and set of target gateways. Each Bind packs its protocol and port into a
+ * single int key (protocol bit plus 16-bit port), which is what BindIndex and the caches are keyed by.
  */
-public class Bind extends JSONObject {
+public final class Bind {
+
+    /** The number of distinct keys, one per protocol and port combination. */
+    public static final int KEY_SPACE = 2 << 16;
+
+    /** The longest lease accepted, one week, which is the most IGD:2 gateways allow. */
+    public static final int MAX_LEASE_SECONDS = 604800;
+
+    /** The longest description accepted, in characters. Routers truncate long descriptions anyway. */
+    public static final int MAX_DESCRIPTION_LENGTH = 128;
+
+    /** The most target gateways a binding can name. */
+    public static final int MAX_GATEWAYS = 16;
+
+    /** The longest gateway address accepted, in characters. */
+    public static final int MAX_GATEWAY_LENGTH = 64;
+
+    private final Protocol protocol;
+    private final int port;
+    private final int lease;
+    private final String description;
+    private final List<String> gateways;
 
     /**
-     * Creates a Bind object.
+     * Creates a permanent Bind object.
      * @param np The protocol to use.
      * @param port The port to use. Is assumed to be within range when called.
      */
     public Bind(Protocol np, int port) {
-        put("protocol", np);
-        put("port", port);
+        this(np, port, 0);
+    }
+
+    /**
+     * Creates a Bind object whose mapping expires unless it is renewed.
+     * @param np The protocol to use.
+     * @param port The port to use. Is assumed to be within range when called.
+     * @param lease The lease duration in seconds, 0 for a permanent mapping. Is assumed to be within 0-MAX_LEASE_SECONDS.
+     */
+    public Bind(Protocol np, int port, int lease) {
+        this(np, port, lease, null);
+    }
+
+    /**
+     * Creates a Bind object with a custom description, which is shown in the router's mapping table.
+     * @param np The protocol to use.
+     * @param port The port to use. Is assumed to be within range when called.
+     * @param lease The lease duration in seconds, 0 for a permanent mapping. Is assumed to be within 0-MAX_LEASE_SECONDS.
+     * @param description The description, or null for the default. Is assumed to be at most MAX_DESCRIPTION_LENGTH long.
+     */
+    public Bind(Protocol np, int port, int lease, String description) {
+        this(np, port, lease, description, List.of());
+    }
+
+    /**
+     * Creates a Bind object mapped on specific gateways only, on hosts behind several.
+     * @param np The protocol to use.
+     * @param port The port to use. Is assumed to be within range when called.
+     * @param lease The lease duration in seconds, 0 for a permanent mapping. Is assumed to be within 0-MAX_LEASE_SECONDS.
+     * @param description The description, or null for the default. Is assumed to be at most MAX_DESCRIPTION_LENGTH long.
+     * @param gateways The addresses of the gateways to map it on, E.g. "192.168.1.1", or empty for every gateway. Is
+     * assumed to hold at most MAX_GATEWAYS addresses of at most MAX_GATEWAY_LENGTH characters.
+     */
+    public Bind(Protocol np, int port, int lease, String description, List<String> gateways) {
+        this.protocol = np;
+        this.port = port;
+        this.lease = lease;
+        this.description = description;
+        this.gateways = List.copyOf(gateways);
+    }
+
+    /**
+     * Builds a Bind object from a JSON object read from a config file.
+     * @param json An object holding a "protocol" name, a "port" number and optionally a "lease" in seconds, a "description"
+     * and a "gateways" array of gateway addresses.
+     * @return The new Bind.
+     * @throws JSONException If a required field is missing, or the port, lease, description or gateways are out of range.
+     */
+    public static Bind fromJSON(JSONObject json) throws JSONException {
+        int port = json.getInt("port");
+        if(port < 0 || port > 65535){
+            throw new JSONException("Port " + port + " is outside of 0-65535.");
+        }
+        int lease = json.optInt("lease", 0);
+        if(lease < 0 || lease > MAX_LEASE_SECONDS){
+            throw new JSONException("Lease " + lease + " is outside of 0-" + MAX_LEASE_SECONDS + ".");
+        }
+        String description = json.optString("description", null);
+        if(description != null && description.length() > MAX_DESCRIPTION_LENGTH){
+            throw new JSONException("Description is longer than " + MAX_DESCRIPTION_LENGTH + " characters.");
+        }
+        JSONArray targets = json.optJSONArray("gateways");
+        List<String> gateways = new ArrayList<>();
+        if(targets != null){
+            for(int i = 0; i < targets.length(); i++){
+                gateways.add(targets.getString(i));
+            }
+        }
+        return new Bind(json.getEnum(Protocol.class, "protocol"), port, lease, description, checkGateways(gateways));
     }
 
     /**
-     * Builds a Bind object from a serial JSON object as String.
-     * @param line The serialized JSONObject, read from a file.
+     * Checks a list of target gateways is within the limits.
+     * @param gateways The gateway addresses.
+     * @return The same list.
+     * @throws JSONException If there are more than MAX_GATEWAYS, or one is empty or longer than MAX_GATEWAY_LENGTH.
      */
-    public Bind(String line){
-        super(line);
+    public static List<String> checkGateways(List<String> gateways) throws JSONException {
+        if(gateways.size() > MAX_GATEWAYS){
+            throw new JSONException("More than " + MAX_GATEWAYS + " target gateways.");
+        }
+        for(String gateway : gateways){
+            if(gateway.isEmpty() || gateway.length() > MAX_GATEWAY_LENGTH){
+                throw new JSONException("Gateway address \"" + gateway + "\" is empty or longer than " + MAX_GATEWAY_LENGTH + " characters.");
+            }
+        }
+        return gateways;
+    }
+
+    /**
+     * Builds a Bind object back from its packed key.
+     * @param key A key previously returned by key() or getKey().
+     * @return The new Bind.
+     */
+    public static Bind fromKey(int key){
+        return new Bind(Protocol.values()[key >>> 16], key & 0xFFFF);
+    }
+
+    /**
+     * Packs a protocol and port into a single int, within 0 and KEY_SPACE.
+     * @param protocol The protocol.
+     * @param port The port, assumed to be within 0-65535.
+     * @return The packed key.
+     */
+    public static int key(Protocol protocol, int port){
+        return (protocol.ordinal() << 16) | (port & 0xFFFF);
+    }
+
+    /**
+     * @return This binding's packed key.
+     */
+    public int getKey(){
+        return key(protocol, port);
     }
 
     /**
      * @return Returns the protocol to be used.
      */
     public Protocol getProtocol(){
-        return Protocol.valueOf(get("protocol").toString());
+        return protocol;
     }
 
     /**
      * @return Returns the port to be used.
      */
     public int getPort(){
-        return getInt("port");
+        return port;
     }
 
     /**
-     * Attempts to open a port with the Protocol and Port held by this object.
-     * @return True if successful, and False otherwise. Will also print more specific information to console before returning.
+     * @return The lease duration in seconds, 0 if the mapping is permanent.
      */
-    public boolean connect(){
-        boolean success;
-        if(getProtocol() == Protocol.TCP){
-            success = UPnP.openPortTCP(getPort());
-        }
-        else{
-            success = UPnP.openPortUDP(getPort());
-        }
+    public int getLease(){
+        return lease;
+    }
 
-        if(success){
-            Console.sendResponse("Successfully opened "+getProtocol()+" port: "+getPort());
-            return true;
-        }
-        Console.sendError("Failed to open "+getProtocol()+" port: "+getPort());
-        return false;
+    /**
+     * @return The mapping description, or null if the default is used.
+     */
+    public String getDescription(){
+        return description;
     }
 
     /**
-     * Attempts to close the UPnP port based on Protocol and Port held by this object. Will not deregister the port from the config, however.
-     * @return A success/failure message, to be printed out to the console.
+     * @return The addresses of the gateways this binding is mapped on, or an empty list if it is mapped on every gateway.
      */
-    public String close(){
-        boolean success;
-        if(getProtocol() == Protocol.TCP){
-            success = UPnP.closePortTCP(getPort());
+    public List<String> getGateways(){
+        return gateways;
+    }
+
+    /**
+     * @param gatewayIP A gateway's address, as in Gateway.getGatewayIP().
+     * @return True if this binding is mapped on that gateway.
+     */
+    public boolean targets(String gatewayIP){
+        return gateways.isEmpty() || gateways.contains(gatewayIP);
+    }
+
+    /**
+     * @return The JSON form of this binding, as stored in config files. Permanent bindings have no "lease" field,
+     * bindings with the default description have no "description" field, and bindings on every gateway have no
+     * "gateways" field.
+     */
+    public JSONObject toJSON(){
+        JSONObject json = new JSONObject();
+        json.put("protocol", protocol.name());
+        json.put("port", port);
+        if(lease > 0){
+            json.put("lease", lease);
         }
-        else{
-            success = UPnP.closePortUDP(getPort());
+        if(description != null){
+            json.put("description", description);
         }
-
-        if(success){
-            return Console.getResponse("Successfully closed "+getProtocol()+" port: "+getPort());
+        if(!gateways.isEmpty()){
+            json.put("gateways", new JSONArray(gateways));
         }
-        return Console.getError("Failed to close "+getProtocol()+" port: "+getPort());
+        return json;
     }
 
     /**
-     * @param other Another Bind object.
-     * @return True if they map to the same port/protocol, false otherwise.
+     * @param other Another binding.
+     * @return True if it maps the same port/protocol with the same lease, description and gateways, unlike equals(),
+     * which only compares the port/protocol.
      */
-    public boolean equals(Bind other){
-        return other.getProtocol() == getProtocol() && other.getPort() == getPort();
+    public boolean sameAs(Bind other){
+        return getKey() == other.getKey() && lease == other.lease && Objects.equals(description, other.description)
+                && gateways.equals(other.gateways);
     }
 
     /**
-     * @return Useful information about the port and protocol this object holds.
+     * @param other Another object.
+     * @return True if it is a Bind mapping to the same port/protocol, false otherwise. The lease is not compared, as
+     * only one mapping can exist per port/protocol.
      */
+    @Override
+    public boolean equals(Object other){
+        return other instanceof Bind && ((Bind) other).getKey() == getKey();
+    }
+
+    /**
+     * @return The packed key, which is unique per protocol and port.
+     */
+    @Override
+    public int hashCode(){
+        return getKey();
+    }
+
+    /**
+     * @return The port and protocol this object holds. Does not contact the gateway.
+     */
+    @Override
     public String toString(){
-        boolean isMapped;
-        if(getProtocol() == Protocol.TCP){
-            isMapped = UPnP.isMappedTCP(getPort());
+        String toReturn = protocol + ": " + port;
+        if(lease > 0){
+            toReturn += " (lease " + lease + "s)";
+        }
+        if(description != null){
+            toReturn += " \"" + description + "\"";
         }
-        else{
-            isMapped = UPnP.isMappedUDP(getPort());
+        if(!gateways.isEmpty()){
+            toReturn += " @" + String.join(",", gateways);
         }
-        return getProtocol() + ": " + getPort() + " Open: "+ isMapped;
+        return toReturn;
     }
 }
@@ -0,0 +1,172 @@
+package net.pyroneon.util;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Holds the registered bindings, indexed by their packed key. Lookups, inserts and removals are constant time, and
+ * iteration follows insertion order (which is what "port list" numbers and "port close index" refer to).
+ * <p>
+ * Rather than a map, the index is a fixed array slot per key, with two int arrays linking occupied slots in insertion
+ * order. Nothing is allocated per binding besides the Bind itself. Every method is synchronized, so background tasks
+ * such as lease renewal can look bindings up safely; iterate over toList() if other threads may be modifying it.
+ */
+public class BindIndex implements Iterable<Bind> {
+
+    private static final int NONE = -1;
+
+    private final Bind[] slots = new Bind[Bind.KEY_SPACE];
+    private final int[] next = new int[Bind.KEY_SPACE];
+    private final int[] prev = new int[Bind.KEY_SPACE];
+    private int head = NONE;
+    private int tail = NONE;
+    private int size;
+
+    /**
+     * @param key A packed binding key.
+     * @return True if a binding with this key is registered.
+     */
+    public synchronized boolean contains(int key){
+        return slots[key] != null;
+    }
+
+    /**
+     * @param key A packed binding key.
+     * @return The registered binding with this key, or null if there is none.
+     */
+    public synchronized Bind get(int key){
+        return slots[key];
+    }
+
+    /**
+     * Registers a binding at the end of the insertion order.
+     * @param bind The binding to add.
+     * @return True if it was added, false if a binding with the same protocol and port was already registered.
+     */
+    public synchronized boolean add(Bind bind){
+        int key = bind.getKey();
+        if(slots[key] != null){
+            return false;
+        }
+        slots[key] = bind;
+        prev[key] = tail;
+        next[key] = NONE;
+        if(tail == NONE){
+            head = key;
+        }
+        else{
+            next[tail] = key;
+        }
+        tail = key;
+        size++;
+        return true;
+    }
+
+    /**
+     * Registers a binding, replacing any with the same protocol and port in place so its position is kept. E.g. when
+     * only a binding's lease changes.
+     * @param bind The binding to put.
+     * @return The binding it replaced, or null if it was added at the end of the insertion order instead.
+     */
+    public synchronized Bind replace(Bind bind){
+        Bind previous = slots[bind.getKey()];
+        if(previous == null){
+            add(bind);
+        }
+        else{
+            slots[bind.getKey()] = bind;
+        }
+        return previous;
+    }
+
+    /**
+     * Deregisters a binding.
+     * @param key The packed key of the binding to remove.
+     * @return The removed binding, or null if there was none with this key.
+     */
+    public synchronized Bind remove(int key){
+        Bind bind = slots[key];
+        if(bind == null){
+            return null;
+        }
+
+        // Unlink it from the insertion order.
+        if(prev[key] == NONE){
+            head = next[key];
+        }
+        else{
+            next[prev[key]] = next[key];
+        }
+        if(next[key] == NONE){
+            tail = prev[key];
+        }
+        else{
+            prev[next[key]] = prev[key];
+        }
+
+        slots[key] = null;
+        size--;
+        return bind;
+    }
+
+    /**
+     * Gets a binding by its position in insertion order. Walks the order, so this is linear in the position.
+     * @param position The zero-based position.
+     * @return The binding at this position.
+     * @throws IndexOutOfBoundsException If there is no binding at this position.
+     */
+    public synchronized Bind getAt(int position){
+        if(position < 0 || position >= size){
+            throw new IndexOutOfBoundsException("Index " + position + " out of bounds for length " + size);
+        }
+        int key = head;
+        for(int i = 0; i < position; i++){
+            key = next[key];
+        }
+        return slots[key];
+    }
+
+    /**
+     * @return The number of registered bindings.
+     */
+    public synchronized int size(){
+        return size;
+    }
+
+    /**
+     * @return A copy of every registered binding, in insertion order.
+     */
+    public synchronized ArrayList<Bind> toList(){
+        ArrayList<Bind> toReturn = new ArrayList<>(size);
+        for(Bind bind : this){
+            toReturn.add(bind);
+        }
+        return toReturn;
+    }
+
+    /**
+     * @return An iterator over the registered bindings in insertion order. The index must not be modified while iterating.
+     */
+    @Override
+    public Iterator<Bind> iterator(){
+        return new Iterator<>() {
+            private int key = head;
+
+            @Override
+            public boolean hasNext(){
+                return key != NONE;
+            }
+
+            @Override
+            public Bind next(){
+                if(key == NONE){
+                    throw new NoSuchElementException();
+                }
+                Bind bind = slots[key];
+                key = next[key];
+                return bind;
+            }
+        };
+    }
+}
@@ -1,16 +1,174 @@
 package net.pyroneon.util;
 
+import org.json.JSONObject;
+
+import java.io.BufferedWriter;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicLong;
+
 /**
  * Used to maintain consistent formatting for the Console output of command-line execution.
+ * <p>
+ * Output is buffered rather than flushed line by line, and a background thread flushes it every FLUSH_MILLIS, so bulk
+ * operations printing thousands of lines don't pay for thousands of writes. Prompts flush straight away. With
+ * setFormat(Format.JSONL), every message is instead a single-line JSON record with a "type" field ("result", "error",
+ * "warning", "info", "text", or a structured type such as "binding"), so other tools can parse the output.
  */
 public class Console {
 
+    /**
+     * The output formats.
+     */
+    public enum Format {
+        /** Human-readable text, E.g. "(i) Opened 10/10 bindings." */
+        TEXT,
+        /** One JSON record per line, E.g. {"type":"result","message":"Opened 10/10 bindings."} */
+        JSONL
+    }
+
+    /** How often buffered output is flushed in the background. */
+    public static final long FLUSH_MILLIS = 20;
+
+    private static final Object lock = new Object();
+    private static Writer out = buffer(new FileOutputStream(FileDescriptor.out));
+    private static volatile Format format = Format.TEXT;
+    private static boolean dirty;
+    private static final AtomicLong errors = new AtomicLong();
+
+    static {
+        Thread flusher = new Thread(() -> {
+            try {
+                while(true){
+                    Thread.sleep(FLUSH_MILLIS);
+                    flush();
+                }
+            } catch (InterruptedException ignored) {
+                // Never interrupted, the thread ends with the JVM.
+            }
+        }, "CLIPnP-console");
+        flusher.setDaemon(true);
+        flusher.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(Console::flush, "CLIPnP-console-flush"));
+    }
+
+    /**
+     * Sets the output format for every message from now on.
+     * @param newFormat The format.
+     */
+    public static void setFormat(Format newFormat){
+        format = newFormat;
+    }
+
+    /**
+     * Sends all output from now on somewhere other than standard output, E.g. nowhere at all while benchmarking.
+     * Anything already buffered is flushed to the previous destination first.
+     * @param stream The new destination.
+     */
+    public static void setOutput(OutputStream stream){
+        synchronized (lock){
+            flush();
+            out = buffer(stream);
+        }
+    }
+
+    /**
+     * @param stream An output destination.
+     * @return A large UTF-8 buffer in front of it.
+     */
+    private static Writer buffer(OutputStream stream){
+        return new BufferedWriter(new OutputStreamWriter(stream, StandardCharsets.UTF_8), 1 << 16);
+    }
+
+    /**
+     * @return True if output is JSON records rather than text, E.g. so decorative output can be skipped.
+     */
+    public static boolean isStructured(){
+        return format == Format.JSONL;
+    }
+
+    /**
+     * Writes out anything still buffered.
+     */
+    public static void flush(){
+        synchronized (lock){
+            if(!dirty){
+                return;
+            }
+            try {
+                out.flush();
+            } catch (IOException ignored) {
+                // Nowhere left to report it.
+            }
+            dirty = false;
+        }
+    }
+
+    /**
+     * Buffers a line of output.
+     * @param line The line, without its line break.
+     */
+    private static void write(String line){
+        synchronized (lock){
+            try {
+                out.write(line);
+                out.write(System.lineSeparator());
+            } catch (IOException ignored) {
+                // Nowhere left to report it.
+            }
+            dirty = true;
+        }
+    }
+
+    /**
+     * Sends a message in the current format.
+     * @param type The record type used in JSONL, E.g. "error".
+     * @param text The complete text line used otherwise.
+     * @param context The message details used in JSONL.
+     */
+    private static void send(String type, String text, String context){
+        if(format == Format.JSONL){
+            write(new JSONObject().put("type", type).put("message", context).toString());
+        }
+        else{
+            write(text);
+        }
+    }
+
+    /**
+     * Sends a structured record, E.g. one binding of a listing.
+     * @param type The record type, E.g. "binding".
+     * @param record The record's fields. Its "type" field is set to the type.
+     * @param text The line to print instead when the output is text.
+     */
+    public static void sendRecord(String type, JSONObject record, String text){
+        if(format == Format.JSONL){
+            write(record.put("type", type).toString());
+        }
+        else{
+            write(text);
+        }
+    }
+
     /**
      * Sends an error message.
      * @param context Message details.
      */
     public static void sendError(String context){
-        System.out.println(getError(context));
+        errors.incrementAndGet();
+        send("error", getError(context), context);
+    }
+
+    /**
+     * @return The number of error messages sent so far, E.g. so a script can tell whether a command failed.
+     */
+    public static long getErrorCount(){
+        return errors.get();
     }
 
     /**
@@ -27,7 +185,7 @@ public class Console {
      * @param context Message details.
      */
     public static void sendWarning(String context){
-        System.out.println(getWarning(context));
+        send("warning", getWarning(context), context);
     }
 
     /**
@@ -44,7 +202,7 @@ public class Console {
      * @param context Message details.
      */
     public static void sendResponse(String context){
-        System.out.println(getResponse(context));
+        send("result", getResponse(context), context);
     }
 
     /**
@@ -61,7 +219,7 @@ public class Console {
      * @param context Message details.
      */
     public static void sendDetails(String context){
-        System.out.println(getDetails(context));
+        send("info", getDetails(context), context);
     }
 
     /**
@@ -74,18 +232,36 @@ public class Console {
     }
 
     /**
-     * Prompts the user for input. Preceded with a colon, printed on same line..
+     * Prompts the user for input. Preceded with a colon, printed on same line.. Flushes any buffered output first, and
+     * prints no prompt for JSONL output.
      */
     public static void promptUser(){
-        System.out.print("CLIPnP: ");
+        synchronized (lock){
+            if(format == Format.TEXT){
+                try {
+                    out.write("CLIPnP: ");
+                } catch (IOException ignored) {
+                    // Nowhere left to report it.
+                }
+            }
+            dirty = true;
+            flush();
+        }
     }
 
     /**
-     * Currently just a wrapper for console's println() method.
+     * Prints a plain line of text. In JSONL output it becomes a "text" record without its indentation, and blank lines
+     * are left out.
      * @param content Message details.
      */
     public static void println(String content){
-        System.out.println(content);
+        if(format == Format.JSONL){
+            if(!content.isBlank()){
+                write(new JSONObject().put("type", "text").put("message", content.strip()).toString());
+            }
+            return;
+        }
+        write(content);
     }
 
     /**
@@ -99,6 +275,6 @@ public class Console {
             prefix = "["+classname+"] ";
         }
 
-        System.out.println(getError( prefix + "Invalid syntax. See \"help\" for command help."));
+        sendError(prefix + "Invalid syntax. See \"help\" for command help.");
     }
 }
@@ -1,6 +1,8 @@
 package net.pyroneon.util;
 
 import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -9,10 +11,13 @@ import java.util.regex.Pattern;
  */
 public class Path {
 
+    private static final Pattern QUOTED = Pattern.compile("'([^']*)'");
+
     /**
      * Creates a save filepath from a dir/file path.
      * @param msg The command.
-     * @return The filepath. If only a directory is provided, assigns it a default name.
+     * @return The filepath. If only a directory is provided, assigns it a default name. A file which doesn't exist yet
+     * is accepted as long as its directory does.
      */
     public static String getSaveFilepath(String msg) throws IllegalArgumentException{
         // If path could not be found, returns an error.
@@ -31,6 +36,11 @@ public class Path {
             // Returns a unique default file name.
             return generateDefaultFilePath(file.getAbsolutePath());
         }
+        // A new file is fine as long as its directory exists.
+        File parent = file.getAbsoluteFile().getParentFile();
+        if(parent != null && parent.isDirectory()){
+            return file.getAbsolutePath();
+        }
 
         // If the path given was something other than a dir or file, throw error.
         Console.sendError("Could not find specified file/dir. Did you spell everything right?");
@@ -90,8 +100,7 @@ public class Path {
      * forgets to put single quotes around the filepath, so error message should remind them of that)
      */
     public static String getPathInQuotes(String content){
-        Pattern pattern = Pattern.compile("'([^']*)'");
-        Matcher matcher = pattern.matcher(content);
+        Matcher matcher = QUOTED.matcher(content);
         if(matcher.find()){
             String toReturn = matcher.group();
             return toReturn.substring(1,toReturn.length()-1);
@@ -99,6 +108,20 @@ public class Path {
         return null;
     }
 
+    /**
+     * Gets every filepath between single quotes in a message, E.g. the source and destination of a conversion.
+     * @param content The raw content message to-be-processed.
+     * @return Each filepath without its single quotes, in order. Empty if none were found.
+     */
+    public static List<String> getPathsInQuotes(String content){
+        Matcher matcher = QUOTED.matcher(content);
+        ArrayList<String> toReturn = new ArrayList<>();
+        while(matcher.find()){
+            toReturn.add(matcher.group(1));
+        }
+        return toReturn;
+    }
+
     /**
      * Generates a unique filename for the config file.
      * @param directory The directory path to use.
@@ -0,0 +1,48 @@
+package net.pyroneon.util;
+
+import java.util.BitSet;
+
+/**
+ * Parses port lists and ranges from commands, E.g. "25565", "27000-27100" or "80,443,8000-8010".
+ */
+public class Ports {
+
+    /**
+     * Parses a port specification into the ports it names. Duplicates are dropped and ports come back in ascending order.
+     * @param spec Comma-separated ports and inclusive ranges, without spaces.
+     * @return The ports, each within 0-65535.
+     * @throws IllegalArgumentException If a part isn't a number or range, a range is backwards, or a port is out of range.
+     */
+    public static int[] parse(String spec) throws IllegalArgumentException {
+        BitSet ports = new BitSet(65536);
+        for(String part : spec.split(",")){
+            if(part.isEmpty()){
+                throw new IllegalArgumentException("Empty port in list: " + spec);
+            }
+
+            int dash = part.indexOf('-');
+            int from;
+            int to;
+            try {
+                if(dash < 0){
+                    from = to = Integer.parseInt(part);
+                }
+                else{
+                    from = Integer.parseInt(part.substring(0, dash));
+                    to = Integer.parseInt(part.substring(dash + 1));
+                }
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Not a port or port range: " + part);
+            }
+
+            if(from < 0 || to > 65535 || from > 65535 || to < 0){
+                throw new IllegalArgumentException("Invalid port number. Accepted range: 0-65535.");
+            }
+            if(from > to){
+                throw new IllegalArgumentException("Port range is backwards: " + part);
+            }
+            ports.set(from, to + 1);
+        }
+        return ports.stream().toArray();
+    }
+}
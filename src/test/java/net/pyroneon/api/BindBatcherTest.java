@@ -0,0 +1,209 @@
+package net.pyroneon.api;
+
+import net.pyroneon.engine.BatchResult;
+import net.pyroneon.util.Bind;
+import net.pyroneon.util.Protocol;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * How requests are merged into batches, and the outcome each one is handed. The first batch is held open while the
+ * requests under test queue up, so they always land in the same batch.
+ */
+class BindBatcherTest {
+
+    private final CountDownLatch started = new CountDownLatch(1);
+    private final CountDownLatch release = new CountDownLatch(1);
+    private final List<List<Bind>> batches = new ArrayList<>();
+    private final Map<Integer, Bind> registered = new HashMap<>();
+    private BindBatcher batcher;
+
+    @AfterEach
+    void shutDown(){
+        release.countDown();
+        if(batcher != null){
+            batcher.shutdown();
+        }
+    }
+
+    /**
+     * Registers each new bind like CLIPnP.openBindings, skipping ones already registered. Binds on port 13 fail.
+     * The first batch waits until release is counted down.
+     * @param binds The merged batch.
+     * @return Its outcome.
+     */
+    private BatchResult open(List<Bind> binds){
+        hold();
+        batches.add(List.copyOf(binds));
+        BatchResult result = new BatchResult();
+        for(Bind bind : binds){
+            if(bind.getPort() == 13){
+                result.record(bind, false);
+            }
+            else if(registered.putIfAbsent(bind.getKey(), bind) == null){
+                result.record(bind, true);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Closes every bind like CLIPnP.closeBindings. The first batch waits until release is counted down.
+     * @param binds The merged batch.
+     * @return Its outcome.
+     */
+    private BatchResult close(List<Bind> binds){
+        hold();
+        batches.add(List.copyOf(binds));
+        BatchResult result = new BatchResult();
+        for(Bind bind : binds){
+            registered.remove(bind.getKey());
+            result.record(bind, true);
+        }
+        return result;
+    }
+
+    /**
+     * Blocks the first batch until release is counted down.
+     */
+    private void hold(){
+        if(started.getCount() > 0){
+            started.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Submits a request that keeps the flusher busy, so the following requests queue up for one batch together.
+     * @throws InterruptedException If interrupted while waiting for the flusher.
+     */
+    private void occupy() throws InterruptedException {
+        batcher.submit(List.of(new Bind(Protocol.UDP, 1)));
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+    }
+
+    /**
+     * @param future A submitted request.
+     * @return Its outcome, once its batch has finished.
+     * @throws Exception If it failed or took longer than 5 seconds.
+     */
+    private static BindBatcher.Outcome get(CompletableFuture<BindBatcher.Outcome> future) throws Exception {
+        return future.get(5, TimeUnit.SECONDS);
+    }
+
+    @Test
+    void performsARepeatedBindOnceAndReportsTheRepeatAsSkipped() throws Exception {
+        batcher = new BindBatcher(this::open, false, "test-open");
+        occupy();
+        Bind first = new Bind(Protocol.TCP, 80, 3600);
+        Bind repeat = new Bind(Protocol.TCP, 80, 3600);
+        CompletableFuture<BindBatcher.Outcome> a = batcher.submit(List.of(first));
+        CompletableFuture<BindBatcher.Outcome> b = batcher.submit(List.of(repeat));
+        release.countDown();
+
+        BindBatcher.Outcome opened = get(a);
+        BindBatcher.Outcome skipped = get(b);
+        assertEquals(2, batches.size());
+        assertEquals(1, batches.get(1).size());
+        assertTrue(opened.succeeded(first));
+        // Had the requests arrived apart, the second would have found the binding already there.
+        assertFalse(skipped.succeeded(repeat));
+        assertFalse(skipped.failed(repeat));
+    }
+
+    @Test
+    void holdsAConflictingBindBackForTheNextBatch() throws Exception {
+        batcher = new BindBatcher(this::open, false, "test-open");
+        occupy();
+        Bind permanent = new Bind(Protocol.TCP, 80);
+        Bind leased = new Bind(Protocol.TCP, 80, 3600);
+        Bind other = new Bind(Protocol.TCP, 81, 3600);
+        CompletableFuture<BindBatcher.Outcome> a = batcher.submit(List.of(permanent));
+        CompletableFuture<BindBatcher.Outcome> b = batcher.submit(List.of(leased, other));
+        release.countDown();
+
+        BindBatcher.Outcome first = get(a);
+        BindBatcher.Outcome second = get(b);
+        assertEquals(3, batches.size());
+        assertEquals(List.of(permanent), batches.get(1));
+        assertEquals(List.of(leased, other), batches.get(2));
+        assertEquals(3600, batches.get(2).get(0).getLease());
+        assertTrue(first.succeeded(permanent));
+        // Performed after the first, so it found port 80 taken by the permanent binding rather than replacing it.
+        assertFalse(second.succeeded(leased));
+        assertFalse(second.failed(leased));
+        assertTrue(second.succeeded(other));
+        assertEquals(0, registered.get(permanent.getKey()).getLease());
+    }
+
+    @Test
+    void reportsARepeatOfAFailedBindAsFailed() throws Exception {
+        batcher = new BindBatcher(this::open, false, "test-open");
+        occupy();
+        Bind bind = new Bind(Protocol.TCP, 13);
+        CompletableFuture<BindBatcher.Outcome> a = batcher.submit(List.of(bind));
+        CompletableFuture<BindBatcher.Outcome> b = batcher.submit(List.of(new Bind(Protocol.TCP, 13)));
+        release.countDown();
+
+        assertTrue(get(a).failed(bind));
+        assertTrue(get(b).failed(bind));
+        assertEquals(2, batches.size());
+    }
+
+    @Test
+    void sharesTheOutcomeOfARepeatedCloseWhenAsked() throws Exception {
+        batcher = new BindBatcher(this::close, true, "test-close");
+        occupy();
+        Bind bind = new Bind(Protocol.UDP, 27015);
+        CompletableFuture<BindBatcher.Outcome> a = batcher.submit(List.of(bind));
+        CompletableFuture<BindBatcher.Outcome> b = batcher.submit(List.of(new Bind(Protocol.UDP, 27015)));
+        release.countDown();
+
+        assertTrue(get(a).succeeded(bind));
+        assertTrue(get(b).succeeded(bind));
+        assertEquals(List.of(bind), batches.get(1));
+    }
+
+    @Test
+    void onlyReportsTheBindsOfItsOwnRequest() throws Exception {
+        batcher = new BindBatcher(this::open, false, "test-open");
+        occupy();
+        Bind mine = new Bind(Protocol.TCP, 8080);
+        Bind theirs = new Bind(Protocol.TCP, 8081);
+        CompletableFuture<BindBatcher.Outcome> a = batcher.submit(List.of(mine));
+        CompletableFuture<BindBatcher.Outcome> b = batcher.submit(List.of(theirs));
+        release.countDown();
+
+        BindBatcher.Outcome outcome = get(a);
+        assertTrue(outcome.succeeded(mine));
+        assertFalse(outcome.succeeded(theirs));
+        assertTrue(get(b).succeeded(theirs));
+        assertEquals(2, batches.get(1).size());
+    }
+
+    @Test
+    void failsQueuedRequestsOnShutdown() throws Exception {
+        batcher = new BindBatcher(this::open, false, "test-open");
+        occupy();
+        CompletableFuture<BindBatcher.Outcome> queued = batcher.submit(List.of(new Bind(Protocol.TCP, 80)));
+        batcher.shutdown();
+        assertTrue(queued.isCompletedExceptionally());
+        assertTrue(batcher.submit(List.of(new Bind(Protocol.TCP, 81))).isCompletedExceptionally());
+    }
+}
@@ -0,0 +1,225 @@
+package net.pyroneon.engine;
+
+import net.pyroneon.upnp.SoapFault;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.util.ArrayDeque;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+/**
+ * How the limit grows and shrinks, driven slot by slot with a clock that only moves when told to.
+ */
+class ConcurrencyLimitTest {
+
+    private static final long MILLI = 1_000_000;
+
+    private long now = 1000 * MILLI;
+    private final ConcurrencyLimit limit = new ConcurrencyLimit(16, () -> now);
+    // When each request in flight was let through, oldest first.
+    private final ArrayDeque<Long> inFlight = new ArrayDeque<>();
+
+    /**
+     * Takes slots until the limit is used up.
+     */
+    private void fill(){
+        while(limit.getInFlight() < limit.getLimit()){
+            inFlight.add(limit.acquire());
+        }
+    }
+
+    /**
+     * Keeps every slot busy while replies come back, as a large batch does.
+     * @param replies How many replies come back.
+     * @param rttMillis How long each took.
+     * @param overload How each showed overload, or null for healthy replies.
+     */
+    private void saturate(int replies, long rttMillis, String overload){
+        for(int i = 0; i < replies; i++){
+            fill();
+            now = inFlight.peek() + rttMillis * MILLI;
+            limit.release(inFlight.poll(), overload);
+        }
+    }
+
+    @Test
+    void startsAtTheInitialLimit(){
+        assertEquals(ConcurrencyLimit.INITIAL_LIMIT, limit.getLimit());
+        assertEquals(2, new ConcurrencyLimit(2, () -> now).getLimit());
+    }
+
+    @Test
+    void growsByAboutOnePerWindowOfHealthyReplies(){
+        // 4 + 1/4 + 1/4.25 + ... only passes 5 on the fifth reply.
+        saturate(4, 10, null);
+        assertEquals(4, limit.getLimit());
+        saturate(1, 10, null);
+        assertEquals(5, limit.getLimit());
+        saturate(5, 10, null);
+        assertEquals(6, limit.getLimit());
+
+        // Increases close together in wall-clock time are merged, so how many entries there are isn't fixed.
+        List<ConcurrencyLimit.Change> history = limit.getHistory();
+        assertEquals(4, history.get(0).getFrom());
+        assertEquals(6, history.get(history.size() - 1).getTo());
+        assertEquals("healthy replies", history.get(0).getReason());
+        assertEquals(10, limit.getSuccesses());
+    }
+
+    @Test
+    void doesNotGrowWhenTheSlotsArentAllUsed(){
+        for(int i = 0; i < 100; i++){
+            long start = limit.acquire();
+            now += 10 * MILLI;
+            limit.release(start, null);
+        }
+        assertEquals(ConcurrencyLimit.INITIAL_LIMIT, limit.getLimit());
+        assertEquals(100, limit.getSuccesses());
+    }
+
+    @Test
+    void doesNotGrowOnRepliesSlowerThanTheBaseline(){
+        long start = limit.acquire();
+        now += 10 * MILLI;
+        limit.release(start, null);
+        assertEquals(10.0, limit.getBaselineMillis());
+
+        // Requests queueing inside the gateway: over LATENCY_TOLERANCE times the baseline.
+        saturate(50, 21, null);
+        assertEquals(ConcurrencyLimit.INITIAL_LIMIT, limit.getLimit());
+        saturate(5, 20, null);
+        assertEquals(ConcurrencyLimit.INITIAL_LIMIT + 1, limit.getLimit());
+    }
+
+    @Test
+    void stopsGrowingAtTheCeiling(){
+        saturate(500, 10, null);
+        assertEquals(16, limit.getLimit());
+        assertEquals(16, limit.getCeiling());
+    }
+
+    @Test
+    void dropsToALoweredCeiling(){
+        saturate(5, 10, null);
+        assertEquals(5, limit.getLimit());
+        limit.setCeiling(2);
+        assertEquals(2, limit.getLimit());
+        ConcurrencyLimit.Change last = limit.getHistory().get(limit.getHistory().size() - 1);
+        assertEquals(5, last.getFrom());
+        assertEquals(2, last.getTo());
+        assertEquals("ceiling lowered", last.getReason());
+
+        saturate(100, 10, null);
+        assertEquals(2, limit.getLimit());
+    }
+
+    @Test
+    void halvesOnATimeoutWithoutSendingAgain(){
+        saturate(10, 10, null);
+        assertEquals(6, limit.getLimit());
+        AtomicInteger sent = new AtomicInteger();
+        assertThrows(SocketTimeoutException.class, () -> limit.call(() -> {
+            sent.incrementAndGet();
+            now += 3000 * MILLI;
+            throw new SocketTimeoutException();
+        }));
+        assertEquals(1, sent.get());
+        assertEquals(3, limit.getLimit());
+        assertEquals(1, limit.getOverloads());
+        ConcurrencyLimit.Change last = limit.getHistory().get(limit.getHistory().size() - 1);
+        assertEquals(6, last.getFrom());
+        assertEquals(3, last.getTo());
+        assertEquals("timeout", last.getReason());
+    }
+
+    @Test
+    void halvesOnActionFailedAndSendsAgain() throws Exception {
+        AtomicInteger sent = new AtomicInteger();
+        String reply = limit.call(() -> {
+            now += MILLI;
+            if(sent.incrementAndGet() == 1){
+                throw new SoapFault(501, "ActionFailed");
+            }
+            return "ok";
+        });
+        assertEquals("ok", reply);
+        assertEquals(2, sent.get());
+        assertEquals(2, limit.getLimit());
+        assertEquals("ActionFailed", limit.getHistory().get(0).getReason());
+    }
+
+    @Test
+    void givesUpOnActionFailedAfterMaxRetries(){
+        AtomicInteger sent = new AtomicInteger();
+        SoapFault fault = assertThrows(SoapFault.class, () -> limit.call(() -> {
+            sent.incrementAndGet();
+            now += MILLI;
+            throw new SoapFault(501, "ActionFailed");
+        }));
+        assertEquals(501, fault.getErrorCode());
+        assertEquals(ConcurrencyLimit.MAX_RETRIES + 1, sent.get());
+        // 4, 2, 1, then never below 1.
+        assertEquals(1, limit.getLimit());
+        assertEquals(ConcurrencyLimit.MAX_RETRIES + 1, limit.getOverloads());
+    }
+
+    @Test
+    void leavesTheLimitAloneOnOrdinaryUpnpErrors(){
+        AtomicInteger sent = new AtomicInteger();
+        assertThrows(SoapFault.class, () -> limit.call(() -> {
+            sent.incrementAndGet();
+            throw new SoapFault(714, "NoSuchEntryInArray");
+        }));
+        assertEquals(1, sent.get());
+        assertEquals(ConcurrencyLimit.INITIAL_LIMIT, limit.getLimit());
+        assertEquals(0, limit.getOverloads());
+        assertEquals(1, limit.getSuccesses());
+    }
+
+    @Test
+    void halvesOnAConnectionError(){
+        assertThrows(IOException.class, () -> limit.call(() -> {
+            now += MILLI;
+            throw new IOException("Connection reset");
+        }));
+        assertEquals(2, limit.getLimit());
+        assertEquals("connection error", limit.getHistory().get(0).getReason());
+    }
+
+    @Test
+    void neverGoesBelowOne(){
+        for(int i = 0; i < 10; i++){
+            long start = limit.acquire();
+            now += MILLI;
+            limit.release(start, "timeout");
+        }
+        assertEquals(1, limit.getLimit());
+        assertEquals(10, limit.getOverloads());
+        // 4 to 2, then 2 to 1. Halving 1 changes nothing, so it isn't recorded.
+        assertEquals(2, limit.getHistory().size());
+    }
+
+    @Test
+    void countsABurstOfOverloadsFromOneWindowOnce(){
+        fill();
+        now += 3000 * MILLI;
+        while(!inFlight.isEmpty()){
+            limit.release(inFlight.poll(), "timeout");
+        }
+        // Every one of them was sent before the first decrease, which already accounted for the overload.
+        assertEquals(2, limit.getLimit());
+        assertEquals(4, limit.getOverloads());
+
+        // A request sent after the decrease that times out halves it again.
+        now += MILLI;
+        long start = limit.acquire();
+        now += 3000 * MILLI;
+        limit.release(start, "timeout");
+        assertEquals(1, limit.getLimit());
+    }
+}
@@ -0,0 +1,177 @@
+package net.pyroneon.engine;
+
+import net.pyroneon.util.Bind;
+import net.pyroneon.util.Protocol;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeMap;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Due times and cascading of the lease timer wheel, driven tick by tick without its thread.
+ */
+class LeaseSchedulerTest {
+
+    /**
+     * @return A scheduler whose wheel only moves when tick() is called.
+     */
+    private static LeaseScheduler manual(){
+        return new LeaseScheduler(due -> {}, Runnable::run, false);
+    }
+
+    /**
+     * Advances the wheel and collects what falls due.
+     * @param scheduler The scheduler.
+     * @param ticks How many ticks to advance.
+     * @return The ports that fell due, by the tick (counted from the call) they fell due on.
+     */
+    private static TreeMap<Integer, List<Integer>> advance(LeaseScheduler scheduler, int ticks){
+        TreeMap<Integer, List<Integer>> fired = new TreeMap<>();
+        for(int tick = 1; tick <= ticks; tick++){
+            for(Bind bind : scheduler.tick()){
+                fired.computeIfAbsent(tick, t -> new ArrayList<>()).add(bind.getPort());
+            }
+        }
+        return fired;
+    }
+
+    /**
+     * @param port A TCP port.
+     * @return A leased binding on it.
+     */
+    private static Bind leased(int port){
+        return new Bind(Protocol.TCP, port, 3600);
+    }
+
+    @Test
+    void firesOnTheTickItIsDue(){
+        LeaseScheduler scheduler = manual();
+        scheduler.schedule(leased(1), 5 * LeaseScheduler.TICK_MILLIS);
+        assertEquals(1, scheduler.getScheduled());
+        assertEquals(List.of(5), List.copyOf(advance(scheduler, 10).keySet()));
+        assertEquals(0, scheduler.getScheduled());
+    }
+
+    @Test
+    void roundsDelaysUpToWholeTicksOfAtLeastOne(){
+        LeaseScheduler scheduler = manual();
+        scheduler.schedule(leased(1), 0);
+        scheduler.schedule(leased(2), LeaseScheduler.TICK_MILLIS / 2);
+        scheduler.schedule(leased(3), LeaseScheduler.TICK_MILLIS + 1);
+        TreeMap<Integer, List<Integer>> fired = advance(scheduler, 5);
+        assertEquals(Set.of(1, 2), Set.copyOf(fired.get(1)));
+        assertEquals(List.of(3), fired.get(2));
+    }
+
+    @Test
+    void cascadesFromEveryLevelOnTime(){
+        // Just either side of each level's span, where a timer is first placed on a higher level and cascaded down.
+        int[] delays = {63, 64, 65, 64 * 64 - 1, 64 * 64, 64 * 64 + 1, 64 * 64 * 64 - 1, 64 * 64 * 64, 64 * 64 * 64 + 7,
+                Bind.MAX_LEASE_SECONDS};
+        LeaseScheduler scheduler = manual();
+        for(int i = 0; i < delays.length; i++){
+            scheduler.schedule(leased(i), delays[i] * LeaseScheduler.TICK_MILLIS);
+        }
+        TreeMap<Integer, List<Integer>> fired = advance(scheduler, Bind.MAX_LEASE_SECONDS + 1);
+        assertEquals(delays.length, fired.size());
+        for(int i = 0; i < delays.length; i++){
+            assertEquals(List.of(i), fired.get(delays[i]), "Delay of " + delays[i] + " ticks.");
+        }
+    }
+
+    @Test
+    void cascadesCorrectlyWhenScheduledPartwayThroughTheWheel(){
+        LeaseScheduler scheduler = manual();
+        // Leaves every level's position somewhere other than zero.
+        advance(scheduler, 64 * 64 + 37);
+        int[] delays = {1, 26, 27, 28, 100, 64 * 64 - 37, 64 * 64 + 500, 64 * 64 * 64 + 3};
+        for(int i = 0; i < delays.length; i++){
+            scheduler.schedule(leased(i), delays[i] * LeaseScheduler.TICK_MILLIS);
+        }
+        TreeMap<Integer, List<Integer>> fired = advance(scheduler, 64 * 64 * 64 + 10);
+        for(int i = 0; i < delays.length; i++){
+            assertEquals(List.of(i), fired.get(delays[i]), "Delay of " + delays[i] + " ticks.");
+        }
+    }
+
+    @Test
+    void batchesEverythingDueOnTheSameTick(){
+        LeaseScheduler scheduler = manual();
+        for(int port = 0; port < 1000; port++){
+            scheduler.schedule(leased(port), 200 * LeaseScheduler.TICK_MILLIS);
+        }
+        TreeMap<Integer, List<Integer>> fired = advance(scheduler, 300);
+        assertEquals(Set.of(200), fired.keySet());
+        assertEquals(1000, fired.get(200).size());
+    }
+
+    @Test
+    void cancelledTimersNeverFire(){
+        LeaseScheduler scheduler = manual();
+        scheduler.schedule(leased(1), 10 * LeaseScheduler.TICK_MILLIS);
+        scheduler.schedule(leased(2), 5000 * LeaseScheduler.TICK_MILLIS);
+        scheduler.cancel(leased(1).getKey());
+        scheduler.cancel(leased(2).getKey());
+        assertEquals(0, scheduler.getScheduled());
+        assertTrue(advance(scheduler, 6000).isEmpty());
+    }
+
+    @Test
+    void reschedulingReplacesTheEarlierTimer(){
+        LeaseScheduler scheduler = manual();
+        scheduler.schedule(leased(1), 10 * LeaseScheduler.TICK_MILLIS);
+        scheduler.schedule(leased(1), 300 * LeaseScheduler.TICK_MILLIS);
+        assertEquals(1, scheduler.getScheduled());
+        TreeMap<Integer, List<Integer>> fired = advance(scheduler, 400);
+        assertEquals(Set.of(300), fired.keySet());
+
+        // Moving a timer earlier works the same way.
+        scheduler.schedule(leased(1), 300 * LeaseScheduler.TICK_MILLIS);
+        scheduler.schedule(leased(1), 10 * LeaseScheduler.TICK_MILLIS);
+        assertEquals(Set.of(10), advance(scheduler, 400).keySet());
+    }
+
+    @Test
+    void renewsBetweenThreeQuartersAndNinetyPercentOfTheLease(){
+        LeaseScheduler scheduler = manual();
+        for(int port = 0; port < 200; port++){
+            scheduler.scheduleRenewal(new Bind(Protocol.UDP, port, 1000));
+        }
+        // Permanent bindings are never renewed.
+        scheduler.scheduleRenewal(new Bind(Protocol.TCP, 1));
+        assertEquals(200, scheduler.getScheduled());
+        TreeMap<Integer, List<Integer>> fired = advance(scheduler, 1000);
+        assertTrue(fired.firstKey() >= 750 && fired.lastKey() <= 900, fired.firstKey() + "-" + fired.lastKey());
+        assertEquals(200, fired.values().stream().mapToInt(List::size).sum());
+    }
+
+    @Test
+    void handsDueBatchesToTheRenewer() throws InterruptedException {
+        List<List<Bind>> batches = new ArrayList<>();
+        LeaseScheduler scheduler = new LeaseScheduler(batch -> {
+            synchronized (batches){
+                batches.add(batch);
+                batches.notifyAll();
+            }
+        }, Runnable::run);
+        try {
+            scheduler.schedule(leased(1), LeaseScheduler.TICK_MILLIS);
+            scheduler.schedule(leased(2), LeaseScheduler.TICK_MILLIS);
+            synchronized (batches){
+                long until = System.currentTimeMillis() + 10 * LeaseScheduler.TICK_MILLIS;
+                while(batches.isEmpty() && System.currentTimeMillis() < until){
+                    batches.wait(LeaseScheduler.TICK_MILLIS);
+                }
+                assertEquals(1, batches.size());
+                assertEquals(2, batches.get(0).size());
+            }
+        } finally {
+            scheduler.shutdown();
+        }
+    }
+}
@@ -0,0 +1,130 @@
+package net.pyroneon.engine;
+
+import net.pyroneon.upnp.GatewayDiscovery;
+import net.pyroneon.upnp.InternetGateway;
+import net.pyroneon.upnp.MockGateway;
+import net.pyroneon.upnp.PortMappingEntry;
+import net.pyroneon.util.Bind;
+import net.pyroneon.util.Protocol;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Concurrent batches and table scans against a MockGateway, so every request goes through the pipelined SOAP client
+ * and the gateway's adaptive limit.
+ */
+@Timeout(60)
+class MappingEngineTest {
+
+    private MockGateway mock;
+    private InternetGateway gateway;
+    private MappingEngine engine;
+
+    @BeforeEach
+    void start() throws Exception {
+        mock = new MockGateway();
+        // A little processing time, so requests overlap and pile up on the pooled connections.
+        mock.setLatency(200, 1000);
+        gateway = GatewayDiscovery.discover(3000, mock.getSearchAddress());
+        assertNotNull(gateway, "The mock gateway didn't answer its M-SEARCH.");
+        engine = new MappingEngine();
+        engine.setGateway(gateway);
+    }
+
+    @AfterEach
+    void stop(){
+        engine.shutdown();
+        mock.close();
+    }
+
+    /**
+     * @param count How many bindings.
+     * @param firstPort The port of the first.
+     * @return That many TCP bindings on consecutive ports.
+     */
+    private static List<Bind> binds(int count, int firstPort){
+        ArrayList<Bind> binds = new ArrayList<>(count);
+        for(int i = 0; i < count; i++){
+            binds.add(new Bind(Protocol.TCP, firstPort + i, 3600));
+        }
+        return binds;
+    }
+
+    @Test
+    void opensAndClosesABatchConcurrently(){
+        List<Bind> binds = binds(300, 20000);
+        BatchResult opened = engine.openAll(binds);
+        assertEquals(300, opened.getSuccessCount());
+        assertEquals(0, opened.getFailureCount());
+        assertEquals(300, mock.getTableSize());
+        // Nothing was lost on the pipelined connections and sent again.
+        assertEquals(300, mock.getRequests());
+
+        BatchResult closed = engine.closeAll(binds);
+        assertEquals(300, closed.getSuccessCount());
+        assertEquals(0, mock.getTableSize());
+        assertEquals(600, mock.getRequests());
+    }
+
+    @Test
+    void reportsTheBindsATableCantHoldAsFailed(){
+        mock.setTableLimit(10);
+        BatchResult result = engine.openAll(binds(15, 30000));
+        assertEquals(10, result.getSuccessCount());
+        assertEquals(5, result.getFailureCount());
+        assertEquals(10, mock.getTableSize());
+        // NoPortMapsAvailable is about the request, not load.
+        assertEquals(0, engine.getLimit(gateway).getOverloads());
+    }
+
+    @Test
+    void probesEachBindingOnItsOwn(){
+        Bind open = new Bind(Protocol.UDP, 27015);
+        assertTrue(engine.open(open));
+        assertTrue(engine.probe(open));
+        assertFalse(engine.probe(new Bind(Protocol.UDP, 27016)));
+        assertTrue(engine.close(open));
+        assertFalse(engine.probe(open));
+    }
+
+    @Test
+    void scansTheWholeTableInOrder() throws Exception {
+        // Opened one at a time, so the table order is known.
+        List<Bind> binds = binds(150, 40000);
+        for(Bind bind : binds){
+            gateway.openPort(bind.getProtocol(), bind.getPort(), bind.getLease());
+        }
+
+        ArrayList<PortMappingEntry> streamed = new ArrayList<>();
+        MappingTable table = engine.scan(gateway, streamed::add);
+        assertEquals(150, table.size());
+        assertEquals(150, streamed.size());
+        for(int i = 0; i < binds.size(); i++){
+            PortMappingEntry entry = table.getEntries().get(i);
+            assertEquals(i, entry.getIndex());
+            assertEquals(binds.get(i).getPort(), entry.getExternalPort());
+            assertEquals(3600, entry.getLeaseDuration());
+            assertEquals(entry.getExternalPort(), streamed.get(i).getExternalPort());
+            assertTrue(table.contains(binds.get(i).getKey()));
+        }
+        assertFalse(table.contains(Bind.key(Protocol.UDP, 40000)));
+    }
+
+    @Test
+    void scansAnEmptyTable() throws Exception {
+        ArrayList<PortMappingEntry> streamed = new ArrayList<>();
+        MappingTable table = engine.scan(gateway, streamed::add);
+        assertEquals(0, table.size());
+        assertTrue(streamed.isEmpty());
+    }
+}
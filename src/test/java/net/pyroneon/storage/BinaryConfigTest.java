@@ -0,0 +1,114 @@
+package net.pyroneon.storage;
+
+import net.pyroneon.util.Bind;
+import net.pyroneon.util.Protocol;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+/**
+ * Round-trips and truncation of the binary config format.
+ */
+class BinaryConfigTest {
+
+    /**
+     * Binds with every optional field, in the combinations that decide which sections get written.
+     */
+    private static final List<Bind> MIXED = List.of(
+            new Bind(Protocol.TCP, 0),
+            new Bind(Protocol.UDP, 65535, Bind.MAX_LEASE_SECONDS),
+            new Bind(Protocol.TCP, 25565, 3600, "Minecraft \u00e9\u4e16"),
+            new Bind(Protocol.UDP, 27015, 0, null, List.of("192.168.1.1", "10.0.0.1")),
+            new Bind(Protocol.TCP, 443, 0, "x".repeat(Bind.MAX_DESCRIPTION_LENGTH), List.of("fe80::1")));
+
+    @Test
+    void roundTripsEveryField(@TempDir Path dir) throws IOException {
+        Path file = dir.resolve("binds.clpb");
+        BinaryConfig.write(file, MIXED);
+        List<Bind> read = new ArrayList<>();
+        assertEquals(MIXED.size(), BinaryConfig.read(file, read::add));
+        assertBindsEqual(MIXED, read);
+    }
+
+    @Test
+    void roundTripsEachOptionalSectionOnItsOwn() throws IOException {
+        List<List<Bind>> cases = List.of(
+                List.of(),
+                List.of(new Bind(Protocol.TCP, 80), new Bind(Protocol.UDP, 80)),
+                List.of(new Bind(Protocol.TCP, 80, 60), new Bind(Protocol.TCP, 81)),
+                List.of(new Bind(Protocol.TCP, 80, 0, "web"), new Bind(Protocol.TCP, 81)),
+                List.of(new Bind(Protocol.TCP, 80), new Bind(Protocol.TCP, 81, 0, null, List.of("a"))));
+        for(List<Bind> binds : cases){
+            List<Bind> read = new ArrayList<>();
+            assertEquals(binds.size(), BinaryConfig.read(BinaryConfig.encode(binds), read::add));
+            assertBindsEqual(binds, read);
+        }
+    }
+
+    @Test
+    void writesOnlyTheMandatoryPartWhenNoOptionalFieldIsUsed(){
+        ByteBuffer encoded = BinaryConfig.encode(List.of(new Bind(Protocol.TCP, 80), new Bind(Protocol.UDP, 53)));
+        // Header, then 3 bytes per bind.
+        assertEquals(BinaryConfig.MAGIC.length + 6 + 2 * 3, encoded.remaining());
+    }
+
+    @Test
+    void rejectsEveryTruncation(){
+        ByteBuffer encoded = BinaryConfig.encode(MIXED);
+        byte[] bytes = new byte[encoded.remaining()];
+        encoded.get(bytes);
+        for(int length = 0; length < bytes.length; length++){
+            ByteBuffer truncated = ByteBuffer.wrap(bytes, 0, length).slice();
+            List<Bind> read = new ArrayList<>();
+            assertThrows(IOException.class, () -> BinaryConfig.read(truncated, read::add), "Truncated to " + length + " bytes.");
+            // Whatever was handed over before the problem must be a prefix of what was written.
+            assertBindsEqual(MIXED.subList(0, read.size()), read);
+        }
+    }
+
+    @Test
+    void rejectsOtherFormatsAndVersions(@TempDir Path dir) throws IOException {
+        Path json = dir.resolve("binds.json");
+        Files.writeString(json, "{\"bindings\": []}");
+        assertThrows(IOException.class, () -> BinaryConfig.read(json, bind -> {}));
+
+        ByteBuffer encoded = BinaryConfig.encode(MIXED);
+        encoded.put(BinaryConfig.MAGIC.length, (byte) 99);
+        assertThrows(IOException.class, () -> BinaryConfig.read(encoded, bind -> {}));
+    }
+
+    @Test
+    void rejectsAnOutOfRangeLease(){
+        ByteBuffer encoded = BinaryConfig.encode(List.of(new Bind(Protocol.TCP, 80, 60)));
+        // The leases section follows the header and the single 3 byte record.
+        encoded.putInt(BinaryConfig.MAGIC.length + 6 + 3, Bind.MAX_LEASE_SECONDS + 1);
+        assertThrows(IOException.class, () -> BinaryConfig.read(encoded, bind -> {}));
+    }
+
+    /**
+     * Binds are equal by key alone, so compares every field instead.
+     * @param expected The binds written.
+     * @param actual The binds read back.
+     */
+    static void assertBindsEqual(List<Bind> expected, List<Bind> actual){
+        assertEquals(expected.size(), actual.size());
+        for(int i = 0; i < expected.size(); i++){
+            Bind want = expected.get(i);
+            Bind got = actual.get(i);
+            assertArrayEquals(
+                    new Object[]{want.getProtocol(), want.getPort(), want.getLease(), want.getDescription(), want.getGateways()},
+                    new Object[]{got.getProtocol(), got.getPort(), got.getLease(), got.getDescription(), got.getGateways()},
+                    "Bind " + i);
+        }
+    }
+}
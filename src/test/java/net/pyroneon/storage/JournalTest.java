@@ -0,0 +1,159 @@
+package net.pyroneon.storage;
+
+import net.pyroneon.util.Bind;
+import net.pyroneon.util.Protocol;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+import static net.pyroneon.storage.BinaryConfigTest.assertBindsEqual;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Replay, compaction and recovery from torn writes of the binding journal.
+ */
+@Timeout(30)
+class JournalTest {
+
+    private static final Bind WEB = new Bind(Protocol.TCP, 80, 0, null, List.of("192.168.1.1", "10.0.0.1"));
+    private static final Bind GAME = new Bind(Protocol.UDP, 27015, 3600, "Game \u00e9");
+    private static final Bind GAME_RENEWED = new Bind(Protocol.UDP, 27015, 7200, "Game \u00e9");
+    private static final Bind VOICE = new Bind(Protocol.UDP, 9987, 0, null, List.of("a"));
+
+    @Test
+    void replaysOpensAndClosesInOrder(@TempDir Path dir) throws IOException {
+        Path file = dir.resolve("bindings.journal");
+        Journal journal = Journal.open(file, List.of(WEB));
+        journal.recordOpen(GAME);
+        journal.recordOpen(VOICE);
+        journal.recordClose(WEB);
+        // A re-open replaces the binding's settings but keeps its place.
+        journal.recordOpen(GAME_RENEWED);
+        journal.close();
+
+        assertBindsEqual(List.of(GAME_RENEWED, VOICE), new ArrayList<>(Journal.replay(file).values()));
+    }
+
+    @Test
+    void compactsDownToTheOwnedBindings(@TempDir Path dir) throws IOException {
+        Path file = dir.resolve("bindings.journal");
+        Journal journal = Journal.open(file, List.of());
+        for(int port = 1000; port < 1100; port++){
+            journal.recordOpen(new Bind(Protocol.TCP, port));
+            journal.recordClose(new Bind(Protocol.TCP, port));
+        }
+        journal.recordOpen(GAME);
+        journal.close();
+        long before = Files.size(file);
+
+        LinkedHashMap<Integer, Bind> owned = Journal.replay(file);
+        Journal.open(file, owned.values()).close();
+        assertTrue(Files.size(file) < before);
+        assertBindsEqual(List.of(GAME), new ArrayList<>(Journal.replay(file).values()));
+    }
+
+    @Test
+    void keepsEveryWholeRecordBeforeATornOne(@TempDir Path dir) throws IOException {
+        Path file = dir.resolve("bindings.journal");
+        List<Bind> ops = List.of(WEB, GAME, VOICE, GAME_RENEWED, WEB);
+        List<Boolean> opens = List.of(true, true, true, true, false);
+
+        // Flushing after each record gives the offset where each one ends.
+        Journal journal = Journal.open(file, List.of());
+        List<Long> ends = new ArrayList<>();
+        ends.add(Files.size(file));
+        for(int i = 0; i < ops.size(); i++){
+            if(opens.get(i)){
+                journal.recordOpen(ops.get(i));
+            }
+            else{
+                journal.recordClose(ops.get(i));
+            }
+            journal.flush();
+            ends.add(Files.size(file));
+        }
+        journal.close();
+        byte[] whole = Files.readAllBytes(file);
+
+        for(int length = (int) (long) ends.get(0); length <= whole.length; length++){
+            Files.write(file, Arrays.copyOf(whole, length));
+            int complete = 0;
+            while(complete < ops.size() && ends.get(complete + 1) <= length){
+                complete++;
+            }
+            LinkedHashMap<Integer, Bind> expected = new LinkedHashMap<>();
+            for(int i = 0; i < complete; i++){
+                if(opens.get(i)){
+                    expected.put(ops.get(i).getKey(), ops.get(i));
+                }
+                else{
+                    expected.remove(ops.get(i).getKey());
+                }
+            }
+            assertBindsEqual(new ArrayList<>(expected.values()), new ArrayList<>(Journal.replay(file).values()));
+        }
+    }
+
+    @Test
+    void stopsAtACorruptRecord(@TempDir Path dir) throws IOException {
+        Path file = dir.resolve("bindings.journal");
+        Journal journal = Journal.open(file, List.of(WEB));
+        long firstEnd = Files.size(file);
+        journal.recordOpen(GAME);
+        journal.recordOpen(VOICE);
+        journal.close();
+
+        byte[] bytes = Files.readAllBytes(file);
+        // Flip a bit in the port of the second record, so its checksum no longer matches.
+        bytes[(int) firstEnd + 3] ^= 1;
+        Files.write(file, bytes);
+        assertBindsEqual(List.of(WEB), new ArrayList<>(Journal.replay(file).values()));
+    }
+
+    @Test
+    void treatsAMissingOrEmptyJournalAsOwningNothing(@TempDir Path dir) throws IOException {
+        Path file = dir.resolve("bindings.journal");
+        assertTrue(Journal.replay(file).isEmpty());
+        Files.write(file, new byte[0]);
+        assertTrue(Journal.replay(file).isEmpty());
+    }
+
+    @Test
+    void rejectsAFileThatIsNotAJournal(@TempDir Path dir) throws IOException {
+        Path file = dir.resolve("bindings.journal");
+        Files.writeString(file, "{\"bindings\": []}");
+        assertThrows(IOException.class, () -> Journal.replay(file));
+    }
+
+    @Test
+    void ignoresRecordsAfterCloseWithoutHangingFlush(@TempDir Path dir) throws IOException {
+        Path file = dir.resolve("bindings.journal");
+        Journal journal = Journal.open(file, List.of());
+        journal.recordOpen(WEB);
+        journal.close();
+        journal.recordOpen(GAME);
+        journal.flush();
+        assertBindsEqual(List.of(WEB), new ArrayList<>(Journal.replay(file).values()));
+    }
+
+    @Test
+    void closeWritesEveryRecordAppendedBeforeIt(@TempDir Path dir) throws IOException {
+        Path file = dir.resolve("bindings.journal");
+        Journal journal = Journal.open(file, List.of());
+        for(int port = 0; port < 5000; port++){
+            journal.recordOpen(new Bind(Protocol.TCP, port));
+        }
+        journal.close();
+        assertEquals(5000, Journal.replay(file).size());
+    }
+}
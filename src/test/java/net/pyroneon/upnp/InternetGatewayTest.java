@@ -0,0 +1,131 @@
+package net.pyroneon.upnp;
+
+import net.pyroneon.util.Protocol;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.URL;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Fetching and reading device descriptions, served by a scripted server, and the SOAP actions of a gateway found by
+ * searching a MockGateway.
+ */
+@Timeout(30)
+class InternetGatewayTest {
+
+    private static final String DESCRIPTION = "<?xml version=\"1.0\"?>"
+            + "<root xmlns=\"urn:schemas-upnp-org:device-1-0\"><device><serviceList><service>"
+            + "<serviceType>urn:schemas-upnp-org:service:WANIPConnection:1</serviceType>"
+            + "<controlURL>/ctl/IPConn</controlURL>"
+            + "</service></serviceList></device></root>";
+
+    /**
+     * @param server The server to fetch from.
+     * @return Its device description URL.
+     * @throws IOException If the URL is malformed.
+     */
+    private static URL location(RawHttpServer server) throws IOException {
+        return new URL("http://" + server.getHost() + ":" + server.getPort() + "/rootDesc.xml");
+    }
+
+    @Test
+    void readsTheWanConnectionServiceFromADescription() throws Exception {
+        try (RawHttpServer server = new RawHttpServer((n, peer) -> {
+            peer.readRequest();
+            peer.write(RawHttpServer.ok(DESCRIPTION));
+        })) {
+            InternetGateway gateway = InternetGateway.fromDescription(location(server), InetAddress.getLoopbackAddress());
+            assertEquals("urn:schemas-upnp-org:service:WANIPConnection:1", gateway.getServiceType());
+            assertEquals(new URL(location(server), "/ctl/IPConn"), gateway.getControlURL());
+            assertNull(gateway.getEventSubURL());
+        }
+    }
+
+    @Test
+    void refusesADescriptionOverTheLimit() throws Exception {
+        // Still a valid description, just padded out past the limit.
+        String padded = DESCRIPTION.replace("<device>", "<device><!--" + "a".repeat(InternetGateway.MAX_DESCRIPTION_BYTES) + "-->");
+        try (RawHttpServer server = new RawHttpServer((n, peer) -> {
+            peer.readRequest();
+            peer.write(RawHttpServer.ok(padded));
+        })) {
+            IOException e = assertThrows(IOException.class,
+                    () -> InternetGateway.fromDescription(location(server), InetAddress.getLoopbackAddress()));
+            assertTrue(e.getMessage().contains("limit"), e.getMessage());
+        }
+    }
+
+    /**
+     * @param mock The mock to search.
+     * @return The gateway it answered as.
+     * @throws IOException If the search couldn't be sent.
+     */
+    private static InternetGateway discover(MockGateway mock) throws IOException {
+        InternetGateway gateway = GatewayDiscovery.discover(3000, mock.getSearchAddress());
+        assertNotNull(gateway, "The mock gateway didn't answer its M-SEARCH.");
+        return gateway;
+    }
+
+    @Test
+    void findsTheMockBySearchingForIt() throws Exception {
+        try (MockGateway mock = new MockGateway()) {
+            InternetGateway gateway = discover(mock);
+            assertEquals(new URL(mock.getLocation()), gateway.getLocation());
+            assertEquals(MockGateway.SERVICE_TYPE, gateway.getServiceType());
+            assertEquals(new URL(gateway.getLocation(), "/ctl/IPConn"), gateway.getControlURL());
+            assertEquals(new URL(gateway.getLocation(), "/evt/IPConn"), gateway.getEventSubURL());
+            gateway.close();
+        }
+    }
+
+    @Test
+    void mapsAndUnmapsAPortOverSoap() throws Exception {
+        try (MockGateway mock = new MockGateway()) {
+            InternetGateway gateway = discover(mock);
+            assertEquals(MockGateway.EXTERNAL_IP, gateway.getExternalIP());
+            assertFalse(gateway.isMapped(Protocol.TCP, 25565));
+
+            gateway.openPort(Protocol.TCP, 25565, 3600, "Test server");
+            assertTrue(gateway.isMapped(Protocol.TCP, 25565));
+            assertFalse(gateway.isMapped(Protocol.UDP, 25565));
+            assertArrayEquals(new String[]{"TCP", "25565", "25565", gateway.getLocalIP(), "Test server", "3600"},
+                    mock.getTable().get(0));
+            PortMappingEntry entry = gateway.getPortMappingEntry(0);
+            assertEquals(Protocol.TCP, entry.getProtocol());
+            assertEquals(25565, entry.getExternalPort());
+            assertEquals("Test server", entry.getDescription());
+            assertEquals(3600, entry.getLeaseDuration());
+            assertNull(gateway.getPortMappingEntry(1));
+
+            gateway.closePort(Protocol.TCP, 25565);
+            assertEquals(0, mock.getTableSize());
+            SoapFault fault = assertThrows(SoapFault.class, () -> gateway.closePort(Protocol.TCP, 25565));
+            assertEquals(SoapFault.NO_SUCH_ENTRY, fault.getErrorCode());
+            gateway.close();
+        }
+    }
+
+    @Test
+    void passesOnTheFaultOfAFullTable() throws Exception {
+        try (MockGateway mock = new MockGateway()) {
+            mock.setTableLimit(1);
+            InternetGateway gateway = discover(mock);
+            gateway.openPort(Protocol.UDP, 27015, 0);
+            // Renewing a mapping the table already holds still works.
+            gateway.openPort(Protocol.UDP, 27015, 0);
+            SoapFault fault = assertThrows(SoapFault.class, () -> gateway.openPort(Protocol.UDP, 27016, 0));
+            assertEquals(728, fault.getErrorCode());
+            gateway.close();
+        }
+    }
+}
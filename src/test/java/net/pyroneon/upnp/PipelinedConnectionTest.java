@@ -0,0 +1,270 @@
+package net.pyroneon.upnp;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Response parsing and pipelining of PipelinedConnection, against scripted raw replies.
+ */
+@Timeout(30)
+class PipelinedConnectionTest {
+
+    private static final byte[] REQUEST = ("POST / HTTP/1.1\r\nHost: localhost\r\nContent-Length: 4\r\n\r\nping")
+            .getBytes(StandardCharsets.ISO_8859_1);
+
+    /**
+     * @param server The server to connect to.
+     * @param timeoutMillis The connection's timeout.
+     * @return A connection to it.
+     * @throws IOException If it couldn't connect.
+     */
+    private static PipelinedConnection connect(RawHttpServer server, int timeoutMillis) throws IOException {
+        return new PipelinedConnection(server.getHost(), server.getPort(), timeoutMillis);
+    }
+
+    /**
+     * @param future A response.
+     * @return Its body as text.
+     * @throws Exception If it failed.
+     */
+    private static String body(CompletableFuture<HttpResponse> future) throws Exception {
+        return new String(future.get().getBody(), StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @param future A response that should fail.
+     * @return Why the connection was lost.
+     */
+    private static Throwable failure(CompletableFuture<HttpResponse> future){
+        ExecutionException e = assertThrows(ExecutionException.class, future::get);
+        assertInstanceOf(PipelinedConnection.ConnectionLostException.class, e.getCause());
+        return e.getCause().getCause();
+    }
+
+    @Test
+    void answersPipelinedRequestsInOrder() throws Exception {
+        CountDownLatch allSent = new CountDownLatch(1);
+        try (RawHttpServer server = new RawHttpServer((n, peer) -> {
+            // Every request arrives before any reply is sent.
+            for(int i = 0; i < 3; i++){
+                peer.readRequest();
+            }
+            allSent.countDown();
+            peer.write(RawHttpServer.ok("one") + RawHttpServer.ok("two") + RawHttpServer.ok("three"));
+            peer.holdOpen();
+        })) {
+            PipelinedConnection conn = connect(server, 3000);
+            CompletableFuture<HttpResponse> first = conn.send(REQUEST);
+            CompletableFuture<HttpResponse> second = conn.send(REQUEST);
+            CompletableFuture<HttpResponse> third = conn.send(REQUEST);
+            allSent.await();
+            assertEquals("one", body(first));
+            assertEquals("two", body(second));
+            assertEquals("three", body(third));
+            assertFalse(first.get().isClosing());
+            assertEquals(0, conn.getOutstanding());
+            assertEquals(1, server.getConnections());
+            conn.close(null);
+        }
+    }
+
+    @Test
+    void decodesChunkedBodiesWithExtensionsAndTrailers() throws Exception {
+        try (RawHttpServer server = new RawHttpServer((n, peer) -> {
+            peer.readRequest();
+            peer.write("HTTP/1.1 200 OK\r\nTransfer-Encoding: chunked\r\n\r\n"
+                    + "5;name=value\r\nhello\r\n" + "1\r\n \r\n" + "A\r\nchunked!!!\r\n" + "0\r\nX-Trailer: yes\r\n\r\n");
+            peer.holdOpen();
+        })) {
+            PipelinedConnection conn = connect(server, 3000);
+            CompletableFuture<HttpResponse> response = conn.send(REQUEST);
+            assertEquals("hello chunked!!!", body(response));
+            assertEquals(200, response.get().getStatus());
+            assertFalse(conn.isClosed());
+            conn.close(null);
+        }
+    }
+
+    @Test
+    void closesAfterAnHttp10Reply() throws Exception {
+        assertClosingReply("HTTP/1.0 200 OK\r\nContent-Length: 2\r\n\r\nok");
+    }
+
+    @Test
+    void closesAfterConnectionClose() throws Exception {
+        assertClosingReply("HTTP/1.1 200 OK\r\nConnection: close\r\nContent-Length: 2\r\n\r\nok");
+    }
+
+    @Test
+    void readsABodyWithoutALengthUntilTheServerCloses() throws Exception {
+        assertClosingReply("HTTP/1.1 200 OK\r\n\r\nok");
+    }
+
+    @Test
+    void keepsAnHttp10ConnectionThatAsksToStayOpen() throws Exception {
+        try (RawHttpServer server = new RawHttpServer((n, peer) -> {
+            peer.readRequest();
+            peer.write("HTTP/1.0 200 OK\r\nConnection: keep-alive\r\nContent-Length: 2\r\n\r\nok");
+            peer.holdOpen();
+        })) {
+            PipelinedConnection conn = connect(server, 3000);
+            CompletableFuture<HttpResponse> response = conn.send(REQUEST);
+            assertFalse(response.get().isClosing());
+            assertFalse(conn.isClosed());
+            conn.close(null);
+        }
+    }
+
+    /**
+     * Checks a reply that ends the connection: it is read whole, marked closing, and later requests are refused as lost.
+     * @param raw The reply.
+     * @throws Exception If anything failed.
+     */
+    private void assertClosingReply(String raw) throws Exception {
+        try (RawHttpServer server = new RawHttpServer((n, peer) -> {
+            peer.readRequest();
+            peer.write(raw);
+        })) {
+            PipelinedConnection conn = connect(server, 3000);
+            CompletableFuture<HttpResponse> response = conn.send(REQUEST);
+            assertEquals("ok", body(response));
+            assertTrue(response.get().isClosing());
+            assertTrue(conn.isClosed());
+
+            ExecutionException e = assertThrows(ExecutionException.class, () -> conn.send(REQUEST).get());
+            PipelinedConnection.ConnectionLostException lost = assertInstanceOf(PipelinedConnection.ConnectionLostException.class, e.getCause());
+            assertTrue(lost.wasReused());
+        }
+    }
+
+    @Test
+    void failsEveryPendingRequestOnAMalformedStatusLine() throws Exception {
+        assertMalformed("garbage\r\n\r\n");
+        assertMalformed("HTTP/1.1 abc OK\r\nContent-Length: 0\r\n\r\n");
+    }
+
+    @Test
+    void failsEveryPendingRequestOnAMalformedLength() throws Exception {
+        assertMalformed("HTTP/1.1 200 OK\r\nContent-Length: lots\r\n\r\n");
+        assertMalformed("HTTP/1.1 200 OK\r\nContent-Length: -5\r\n\r\n");
+        assertMalformed("HTTP/1.1 200 OK\r\nContent-Length: 99999999999\r\n\r\n");
+    }
+
+    @Test
+    void failsEveryPendingRequestOnAMalformedChunkSize() throws Exception {
+        assertMalformed("HTTP/1.1 200 OK\r\nTransfer-Encoding: chunked\r\n\r\nzz\r\n");
+    }
+
+    /**
+     * Checks that a malformed reply fails the request it answers and the one pipelined behind it, rather than leaving
+     * them waiting forever.
+     * @param raw The reply.
+     * @throws Exception If anything failed.
+     */
+    private void assertMalformed(String raw) throws Exception {
+        try (RawHttpServer server = new RawHttpServer((n, peer) -> {
+            peer.readRequest();
+            peer.readRequest();
+            peer.write(raw);
+            peer.holdOpen();
+        })) {
+            PipelinedConnection conn = connect(server, 3000);
+            CompletableFuture<HttpResponse> first = conn.send(REQUEST);
+            CompletableFuture<HttpResponse> second = conn.send(REQUEST);
+            assertInstanceOf(IOException.class, failure(first), raw);
+            assertInstanceOf(IOException.class, failure(second), raw);
+            assertTrue(conn.isClosed());
+            PipelinedConnection.ConnectionLostException lost = assertInstanceOf(PipelinedConnection.ConnectionLostException.class,
+                    assertThrows(ExecutionException.class, first::get).getCause());
+            assertFalse(lost.wasReused());
+        }
+    }
+
+    @Test
+    void acceptsABodyRightUpToTheLimit() throws Exception {
+        String body = "a".repeat(PipelinedConnection.MAX_BODY_BYTES);
+        try (RawHttpServer server = new RawHttpServer((n, peer) -> {
+            peer.readRequest();
+            peer.write("HTTP/1.1 200 OK\r\nContent-Length: " + body.length() + "\r\n\r\n" + body);
+            peer.holdOpen();
+        })) {
+            PipelinedConnection conn = connect(server, 3000);
+            assertEquals(body, body(conn.send(REQUEST)));
+        }
+    }
+
+    @Test
+    void refusesABodyOverTheLimit() throws Exception {
+        int limit = PipelinedConnection.MAX_BODY_BYTES;
+        // Refused from the length alone, without waiting for a body that never comes.
+        assertOverLimit("HTTP/1.1 200 OK\r\nContent-Length: " + (limit + 1) + "\r\n\r\n");
+        assertOverLimit("HTTP/1.1 200 OK\r\nTransfer-Encoding: chunked\r\n\r\n" + Integer.toHexString(limit + 1) + "\r\n");
+        // Refused once the chunks read so far add up to more.
+        String half = "a".repeat(limit / 2 + 1);
+        String chunk = Integer.toHexString(half.length()) + "\r\n" + half + "\r\n";
+        assertOverLimit("HTTP/1.1 200 OK\r\nTransfer-Encoding: chunked\r\n\r\n" + chunk + chunk + "0\r\n\r\n");
+        assertOverLimit("HTTP/1.1 200 OK\r\n\r\n" + "a".repeat(limit + 1));
+    }
+
+    /**
+     * Checks that a reply whose body is over the limit fails the request with an IOException saying so.
+     * @param raw The reply.
+     * @throws Exception If anything failed.
+     */
+    private void assertOverLimit(String raw) throws Exception {
+        try (RawHttpServer server = new RawHttpServer((n, peer) -> {
+            peer.readRequest();
+            peer.write(raw);
+            peer.holdOpen();
+        })) {
+            PipelinedConnection conn = connect(server, 3000);
+            Throwable cause = failure(conn.send(REQUEST));
+            assertInstanceOf(IOException.class, cause);
+            assertTrue(cause.getMessage().contains("limit"), cause.getMessage());
+            assertTrue(conn.isClosed());
+        }
+    }
+
+    @Test
+    void failsWithATimeoutWhenNoReplyComes() throws Exception {
+        try (RawHttpServer server = new RawHttpServer((n, peer) -> {
+            peer.readRequest();
+            peer.holdOpen();
+        })) {
+            PipelinedConnection conn = connect(server, 300);
+            assertInstanceOf(SocketTimeoutException.class, failure(conn.send(REQUEST)));
+            assertTrue(conn.isClosed());
+        }
+    }
+
+    @Test
+    void failsPendingRequestsWhenTheServerHangsUp() throws Exception {
+        try (RawHttpServer server = new RawHttpServer((n, peer) -> {
+            peer.readRequest();
+            peer.write(RawHttpServer.ok("first"));
+            peer.readRequest();
+            // Hangs up without answering the second request.
+        })) {
+            PipelinedConnection conn = connect(server, 3000);
+            assertEquals("first", body(conn.send(REQUEST)));
+            CompletableFuture<HttpResponse> second = conn.send(REQUEST);
+            failure(second);
+            PipelinedConnection.ConnectionLostException lost = assertInstanceOf(PipelinedConnection.ConnectionLostException.class,
+                    assertThrows(ExecutionException.class, second::get).getCause());
+            assertTrue(lost.wasReused());
+        }
+    }
+}
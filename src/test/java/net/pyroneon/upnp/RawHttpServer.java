@@ -0,0 +1,194 @@
+package net.pyroneon.upnp;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A loopback HTTP server that answers with whatever raw bytes a test scripts, so malformed and unusual replies can be
+ * sent. Each accepted connection is handed to the script on its own thread.
+ */
+class RawHttpServer implements AutoCloseable {
+
+    /**
+     * Serves one connection.
+     */
+    interface Script {
+        /**
+         * @param number The connection number, from 0 in the order they were accepted.
+         * @param connection The connection.
+         * @throws IOException If the client went away.
+         */
+        void serve(int number, Connection connection) throws IOException;
+    }
+
+    /**
+     * One accepted connection, as seen by a script.
+     */
+    class Connection {
+        private final InputStream in;
+        private final OutputStream out;
+
+        /**
+         * @param socket The accepted socket.
+         * @throws IOException If its streams couldn't be opened.
+         */
+        private Connection(Socket socket) throws IOException {
+            in = new BufferedInputStream(socket.getInputStream());
+            out = socket.getOutputStream();
+        }
+
+        /**
+         * Reads one request, head and Content-Length body.
+         * @return The request body.
+         * @throws IOException If the connection ended first.
+         */
+        byte[] readRequest() throws IOException {
+            int length = 0;
+            String line;
+            while(!(line = readLine()).isEmpty()){
+                if(line.regionMatches(true, 0, "Content-Length:", 0, 15)){
+                    length = Integer.parseInt(line.substring(15).trim());
+                }
+            }
+            byte[] body = in.readNBytes(length);
+            requests.incrementAndGet();
+            return body;
+        }
+
+        /**
+         * @return The next line without its CRLF.
+         * @throws IOException If the connection ended first.
+         */
+        private String readLine() throws IOException {
+            ByteArrayOutputStream line = new ByteArrayOutputStream();
+            int b;
+            while((b = in.read()) != '\n'){
+                if(b == -1){
+                    throw new IOException("Connection closed.");
+                }
+                if(b != '\r'){
+                    line.write(b);
+                }
+            }
+            return line.toString(StandardCharsets.ISO_8859_1);
+        }
+
+        /**
+         * Writes a raw reply.
+         * @param raw The reply, head and body.
+         * @throws IOException If the client went away.
+         */
+        void write(String raw) throws IOException {
+            out.write(raw.getBytes(StandardCharsets.UTF_8));
+            out.flush();
+        }
+
+        /**
+         * Keeps the connection open, without answering, until the client closes it.
+         * @throws IOException If reading failed.
+         */
+        void holdOpen() throws IOException {
+            while(in.read() != -1){
+            }
+        }
+    }
+
+    private final ServerSocket server;
+    private final Thread acceptor;
+    private final List<Socket> sockets = new ArrayList<>();
+    private final AtomicInteger connections = new AtomicInteger();
+    private final AtomicInteger requests = new AtomicInteger();
+
+    /**
+     * Starts listening on a free loopback port.
+     * @param script Serves each connection.
+     * @throws IOException If no port could be bound.
+     */
+    RawHttpServer(Script script) throws IOException {
+        server = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+        acceptor = new Thread(() -> {
+            while(!server.isClosed()){
+                Socket socket;
+                try {
+                    socket = server.accept();
+                } catch (IOException e) {
+                    return;
+                }
+                synchronized (sockets){
+                    sockets.add(socket);
+                }
+                int number = connections.getAndIncrement();
+                Thread handler = new Thread(() -> {
+                    try (socket) {
+                        script.serve(number, new Connection(socket));
+                    } catch (IOException ignored) {
+                    }
+                });
+                handler.setDaemon(true);
+                handler.start();
+            }
+        });
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    /**
+     * @return The port the server listens on.
+     */
+    int getPort(){
+        return server.getLocalPort();
+    }
+
+    /**
+     * @return The host the server listens on.
+     */
+    String getHost(){
+        return server.getInetAddress().getHostAddress();
+    }
+
+    /**
+     * @return How many connections have been accepted.
+     */
+    int getConnections(){
+        return connections.get();
+    }
+
+    /**
+     * @return How many requests readRequest() has read, over every connection.
+     */
+    int getRequests(){
+        return requests.get();
+    }
+
+    /**
+     * @param body A reply body.
+     * @return A complete HTTP/1.1 200 reply with a Content-Length.
+     */
+    static String ok(String body){
+        return "HTTP/1.1 200 OK\r\nContent-Length: " + body.getBytes(StandardCharsets.UTF_8).length + "\r\n\r\n" + body;
+    }
+
+    /**
+     * Stops listening and drops every open connection.
+     * @throws IOException If the listener couldn't be closed.
+     */
+    @Override
+    public void close() throws IOException {
+        server.close();
+        synchronized (sockets){
+            for(Socket socket : sockets){
+                socket.close();
+            }
+        }
+    }
+}
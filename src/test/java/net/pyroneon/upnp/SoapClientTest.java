@@ -0,0 +1,137 @@
+package net.pyroneon.upnp;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+/**
+ * SOAP replies, faults and the resend-once rule of SoapClient, against scripted raw replies.
+ */
+@Timeout(30)
+class SoapClientTest {
+
+    private static final String SERVICE = "urn:schemas-upnp-org:service:WANIPConnection:1";
+    private static final String REPLY = "<?xml version=\"1.0\"?><s:Envelope xmlns:s=\"http://schemas.xmlsoap.org/soap/envelope/\">"
+            + "<s:Body><u:GetExternalIPAddressResponse xmlns:u=\"" + SERVICE + "\">"
+            + "<NewExternalIPAddress>203.0.113.1</NewExternalIPAddress>"
+            + "</u:GetExternalIPAddressResponse></s:Body></s:Envelope>";
+    private static final String FAULT = "<?xml version=\"1.0\"?><s:Envelope xmlns:s=\"http://schemas.xmlsoap.org/soap/envelope/\">"
+            + "<s:Body><s:Fault><faultcode>s:Client</faultcode><faultstring>UPnPError</faultstring><detail>"
+            + "<UPnPError xmlns=\"urn:schemas-upnp-org:control-1-0\"><errorCode>714</errorCode>"
+            + "<errorDescription>NoSuchEntryInArray</errorDescription></UPnPError></detail></s:Fault></s:Body></s:Envelope>";
+
+    /**
+     * @param server The server to send to.
+     * @return A client for its control URL.
+     * @throws IOException If the URL is malformed.
+     */
+    private static SoapClient client(RawHttpServer server) throws IOException {
+        return new SoapClient(new URL("http://" + server.getHost() + ":" + server.getPort() + "/ctl"), SERVICE);
+    }
+
+    /**
+     * @param client The client.
+     * @return The public IP from GetExternalIPAddress.
+     * @throws IOException If the call failed.
+     */
+    private static String externalIP(SoapClient client) throws IOException {
+        return client.invoke("GetExternalIPAddress", Map.of()).get("NewExternalIPAddress");
+    }
+
+    @Test
+    void returnsTheReplysOutputArguments() throws Exception {
+        try (RawHttpServer server = new RawHttpServer((n, peer) -> {
+            while(true){
+                peer.readRequest();
+                peer.write(RawHttpServer.ok(REPLY));
+            }
+        })) {
+            SoapClient client = client(server);
+            for(int i = 0; i < 5; i++){
+                assertEquals("203.0.113.1", externalIP(client));
+            }
+            // Sequential calls reuse the one keep-alive connection.
+            assertEquals(1, server.getConnections());
+            client.close();
+        }
+    }
+
+    @Test
+    void throwsUPnPErrorsAsSoapFaults() throws Exception {
+        try (RawHttpServer server = new RawHttpServer((n, peer) -> {
+            peer.readRequest();
+            peer.write("HTTP/1.1 500 Internal Server Error\r\nContent-Length: " + FAULT.length() + "\r\n\r\n" + FAULT);
+            peer.holdOpen();
+        })) {
+            SoapClient client = client(server);
+            SoapFault fault = assertThrows(SoapFault.class, () -> externalIP(client));
+            assertEquals(SoapFault.NO_SUCH_ENTRY, fault.getErrorCode());
+            client.close();
+        }
+    }
+
+    @Test
+    void resendsOnceWhenAnIdleConnectionWasDropped() throws Exception {
+        try (RawHttpServer server = new RawHttpServer((n, peer) -> {
+            peer.readRequest();
+            // The first connection hangs up without answering, as a gateway closing an idle connection does.
+            if(n > 0){
+                peer.write(RawHttpServer.ok(REPLY));
+                peer.holdOpen();
+            }
+        })) {
+            SoapClient client = client(server);
+            assertEquals("203.0.113.1", externalIP(client));
+            assertEquals(2, server.getRequests());
+            assertEquals(2, server.getConnections());
+            client.close();
+        }
+    }
+
+    @Test
+    void givesUpAfterOneResend() throws Exception {
+        try (RawHttpServer server = new RawHttpServer((n, peer) -> peer.readRequest())) {
+            SoapClient client = client(server);
+            assertThrows(PipelinedConnection.ConnectionLostException.class, () -> externalIP(client));
+            assertEquals(2, server.getRequests());
+        }
+    }
+
+    @Test
+    void neverResendsARequestThatTimedOut() throws Exception {
+        try (RawHttpServer server = new RawHttpServer((n, peer) -> {
+            peer.readRequest();
+            peer.holdOpen();
+        })) {
+            SoapClient client = client(server);
+            assertThrows(SocketTimeoutException.class, () -> externalIP(client));
+            // The gateway may have carried it out, so it must only ever have been sent once.
+            assertEquals(1, server.getRequests());
+            client.close();
+        }
+    }
+
+    @Test
+    void stopsPipeliningOnGatewaysThatCloseAfterEachReply() throws Exception {
+        try (RawHttpServer server = new RawHttpServer((n, peer) -> {
+            peer.readRequest();
+            peer.write("HTTP/1.0 200 OK\r\nContent-Length: " + REPLY.length() + "\r\n\r\n" + REPLY);
+        })) {
+            SoapClient client = client(server);
+            for(int i = 0; i < 3; i++){
+                assertEquals("203.0.113.1", externalIP(client));
+            }
+            // One request per connection, and never one sent on a connection the gateway was about to close.
+            assertEquals(3, server.getConnections());
+            assertEquals(3, server.getRequests());
+            client.close();
+        }
+    }
+}
@@ -0,0 +1,156 @@
+package net.pyroneon.util;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Slot linking, removal and positional lookup of the binding index.
+ */
+class BindIndexTest {
+
+    /**
+     * @param index The index.
+     * @return Every binding's protocol and port in insertion order, E.g. "TCP:80".
+     */
+    private static List<String> order(BindIndex index){
+        List<String> toReturn = new ArrayList<>();
+        for(Bind bind : index){
+            toReturn.add(bind.getProtocol() + ":" + bind.getPort());
+        }
+        return toReturn;
+    }
+
+    /**
+     * @param index The index.
+     * @param ports TCP ports to add, in order.
+     * @return The same index.
+     */
+    private static BindIndex withTcp(BindIndex index, int... ports){
+        for(int port : ports){
+            assertTrue(index.add(new Bind(Protocol.TCP, port)));
+        }
+        return index;
+    }
+
+    @Test
+    void keepsInsertionOrderAndKeysProtocolsApart(){
+        BindIndex index = new BindIndex();
+        assertTrue(index.add(new Bind(Protocol.TCP, 80)));
+        assertTrue(index.add(new Bind(Protocol.UDP, 80)));
+        assertTrue(index.add(new Bind(Protocol.UDP, 65535)));
+        assertTrue(index.add(new Bind(Protocol.TCP, 0)));
+        assertFalse(index.add(new Bind(Protocol.TCP, 80, 60)));
+        assertEquals(List.of("TCP:80", "UDP:80", "UDP:65535", "TCP:0"), order(index));
+        assertEquals(4, index.size());
+        assertTrue(index.contains(Bind.key(Protocol.UDP, 65535)));
+        assertFalse(index.contains(Bind.key(Protocol.TCP, 65535)));
+    }
+
+    @Test
+    void unlinksTheHeadMiddleAndTail(){
+        BindIndex index = withTcp(new BindIndex(), 1, 2, 3, 4, 5);
+        assertEquals(3, index.remove(Bind.key(Protocol.TCP, 3)).getPort());
+        assertEquals(List.of("TCP:1", "TCP:2", "TCP:4", "TCP:5"), order(index));
+        assertEquals(1, index.remove(Bind.key(Protocol.TCP, 1)).getPort());
+        assertEquals(List.of("TCP:2", "TCP:4", "TCP:5"), order(index));
+        assertEquals(5, index.remove(Bind.key(Protocol.TCP, 5)).getPort());
+        assertEquals(List.of("TCP:2", "TCP:4"), order(index));
+        assertNull(index.remove(Bind.key(Protocol.TCP, 5)));
+        assertEquals(2, index.size());
+
+        // The tail is still linked correctly, so new bindings go after it.
+        withTcp(index, 6);
+        assertEquals(List.of("TCP:2", "TCP:4", "TCP:6"), order(index));
+    }
+
+    @Test
+    void emptiesAndRefillsCleanly(){
+        BindIndex index = withTcp(new BindIndex(), 7);
+        index.remove(Bind.key(Protocol.TCP, 7));
+        assertEquals(0, index.size());
+        assertFalse(index.iterator().hasNext());
+        assertNull(index.get(Bind.key(Protocol.TCP, 7)));
+
+        // A removed binding comes back at the end, not in its old place.
+        withTcp(index, 8, 7);
+        assertEquals(List.of("TCP:8", "TCP:7"), order(index));
+    }
+
+    @Test
+    void replacesInPlaceOrAppends(){
+        BindIndex index = withTcp(new BindIndex(), 1, 2, 3);
+        Bind leased = new Bind(Protocol.TCP, 2, 3600);
+        assertEquals(0, index.replace(leased).getLease());
+        assertSame(leased, index.get(leased.getKey()));
+        assertEquals(List.of("TCP:1", "TCP:2", "TCP:3"), order(index));
+
+        assertNull(index.replace(new Bind(Protocol.UDP, 2)));
+        assertEquals(List.of("TCP:1", "TCP:2", "TCP:3", "UDP:2"), order(index));
+        assertEquals(4, index.size());
+    }
+
+    @Test
+    void getsByPositionWithinBounds(){
+        BindIndex index = withTcp(new BindIndex(), 10, 20, 30);
+        assertEquals(10, index.getAt(0).getPort());
+        assertEquals(30, index.getAt(2).getPort());
+        assertThrows(IndexOutOfBoundsException.class, () -> index.getAt(-1));
+        assertThrows(IndexOutOfBoundsException.class, () -> index.getAt(3));
+
+        index.remove(Bind.key(Protocol.TCP, 20));
+        assertEquals(30, index.getAt(1).getPort());
+        assertThrows(IndexOutOfBoundsException.class, () -> index.getAt(2));
+        assertThrows(IndexOutOfBoundsException.class, () -> new BindIndex().getAt(0));
+    }
+
+    @Test
+    void iteratorEndsAfterTheLastBinding(){
+        Iterator<Bind> iterator = withTcp(new BindIndex(), 1).iterator();
+        iterator.next();
+        assertFalse(iterator.hasNext());
+        assertThrows(NoSuchElementException.class, iterator::next);
+    }
+
+    @Test
+    void matchesAnInsertionOrderedMapUnderRandomChanges(){
+        BindIndex index = new BindIndex();
+        LinkedHashMap<Integer, Bind> model = new LinkedHashMap<>();
+        Random random = new Random(42);
+        for(int step = 0; step < 20_000; step++){
+            Bind bind = new Bind(Protocol.values()[random.nextInt(2)], random.nextInt(64));
+            switch (random.nextInt(3)) {
+                case 0 -> assertEquals(model.putIfAbsent(bind.getKey(), bind) == null, index.add(bind));
+                case 1 -> assertSame(model.remove(bind.getKey()), index.remove(bind.getKey()));
+                default -> {
+                    Bind previous = model.get(bind.getKey());
+                    if(previous == null){
+                        model.put(bind.getKey(), bind);
+                    }
+                    else{
+                        model.replace(bind.getKey(), bind);
+                    }
+                    assertSame(previous, index.replace(bind));
+                }
+            }
+            assertEquals(model.size(), index.size());
+        }
+        assertEquals(new ArrayList<>(model.values()), index.toList());
+        List<Bind> expected = new ArrayList<>(model.values());
+        for(int i = 0; i < expected.size(); i++){
+            assertSame(expected.get(i), index.getAt(i));
+        }
+    }
+}
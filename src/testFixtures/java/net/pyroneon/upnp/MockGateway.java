@@ -0,0 +1,609 @@
+package net.pyroneon.upnp;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A stand-in Internet Gateway Device on loopback, so CLIPnP can be exercised end to end without a router. It answers
+ * SSDP M-SEARCH requests on a UDP port, serves a device description, and implements the WANIPConnection actions CLIPnP
+ * uses over SOAP: AddPortMapping, DeletePortMapping, GetSpecificPortMappingEntry, GetGenericPortMappingEntry and
+ * GetExternalIPAddress. It also takes GENA subscriptions to that service's events, and notifies subscribers of the
+ * external IP, the number of mappings and the connection status: all three when they subscribe, then whichever changed.
+ * Table changes are batched into one event per EVENT_DELAY_MILLIS, like a router's moderated PortMappingNumberOfEntries.
+ * <p>
+ * Its behaviour can be made more router-like while it runs: every reply can be delayed, a fraction of actions can fail
+ * with ActionFailed (501), actions beyond a number handled at once can fail the same way, like a cheap router that is
+ * overwhelmed, and the mapping table can be capped, beyond which AddPortMapping fails with NoPortMapsAvailable (728).
+ */
+public class MockGateway implements AutoCloseable {
+
+    /** The service type the mock advertises. */
+    public static final String SERVICE_TYPE = "urn:schemas-upnp-org:service:WANIPConnection:1";
+    /** The public address the mock reports, until changed with setExternalIP(). */
+    public static final String EXTERNAL_IP = "203.0.113.1";
+    /** How long table changes are collected before subscribers are notified of the new count. */
+    public static final long EVENT_DELAY_MILLIS = 100;
+
+    private static final int ACTION_FAILED = 501;
+    private static final int ARRAY_INDEX_INVALID = 713;
+    private static final int NO_SUCH_ENTRY = 714;
+    private static final int NO_PORT_MAPS_AVAILABLE = 728;
+
+    static {
+        // The JDK server writes headers and body separately, which Nagle's algorithm would hold back ~40ms per reply.
+        System.setProperty("sun.net.httpserver.nodelay", "true");
+    }
+
+    private final HttpServer http;
+    private final ExecutorService handlers;
+    private final DatagramSocket ssdp;
+    private final Thread responder;
+    // Keyed by "PROTOCOL:port", in the order mappings were added, like a router's table.
+    private final LinkedHashMap<String, String[]> table = new LinkedHashMap<>();
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong injectedFailures = new AtomicLong();
+    private volatile long minLatencyMicros;
+    private volatile long maxLatencyMicros;
+    private volatile double failureRate;
+    private volatile int tableLimit = Integer.MAX_VALUE;
+    private volatile int capacity = Integer.MAX_VALUE;
+    private final AtomicInteger active = new AtomicInteger();
+    // Whether the action on this handler thread still counts towards the capacity.
+    private final ThreadLocal<Boolean> counted = ThreadLocal.withInitial(() -> false);
+    private volatile String externalIP = EXTERNAL_IP;
+    // Callback URL and next event number of each subscription, by SID.
+    private final ConcurrentHashMap<String, Subscriber> subscribers = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService events = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "MockGateway-events");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final AtomicBoolean countPending = new AtomicBoolean();
+    private final HttpClient notifier = HttpClient.newBuilder().connectTimeout(Duration.ofSeconds(2)).build();
+
+    /**
+     * Starts the mock on ephemeral loopback ports.
+     * @throws IOException If either port couldn't be opened.
+     */
+    public MockGateway() throws IOException {
+        this(InetAddress.getLoopbackAddress());
+    }
+
+    /**
+     * Starts the mock on ephemeral ports of a specific address, E.g. 127.0.0.2, so several mocks can stand in for
+     * several gateways with distinct addresses.
+     * @param loopback The address to listen on.
+     * @throws IOException If either port couldn't be opened.
+     */
+    public MockGateway(InetAddress loopback) throws IOException {
+        http = HttpServer.create(new InetSocketAddress(loopback, 0), 0);
+        http.createContext("/rootDesc.xml", this::describe);
+        http.createContext("/ctl/IPConn", this::control);
+        http.createContext("/evt/IPConn", this::subscription);
+        handlers = Executors.newCachedThreadPool(runnable -> {
+            Thread thread = new Thread(runnable, "MockGateway-http");
+            thread.setDaemon(true);
+            return thread;
+        });
+        http.setExecutor(handlers);
+        http.start();
+
+        ssdp = new DatagramSocket(new InetSocketAddress(loopback, 0));
+        responder = new Thread(this::respond, "MockGateway-ssdp");
+        responder.setDaemon(true);
+        responder.start();
+    }
+
+    /**
+     * @return Where to send M-SEARCH requests, E.g. for GatewayDiscovery.discover(timeout, address).
+     */
+    public InetSocketAddress getSearchAddress(){
+        return (InetSocketAddress) ssdp.getLocalSocketAddress();
+    }
+
+    /**
+     * @return The device description URL the mock advertises.
+     */
+    public String getLocation(){
+        InetSocketAddress address = http.getAddress();
+        return "http://" + address.getAddress().getHostAddress() + ":" + address.getPort() + "/rootDesc.xml";
+    }
+
+    /**
+     * Delays every SOAP reply by a random time in a range, like a router's processing time.
+     * @param minMicros The shortest delay.
+     * @param maxMicros The longest delay, at least minMicros.
+     */
+    public void setLatency(long minMicros, long maxMicros){
+        if(minMicros < 0 || maxMicros < minMicros){
+            throw new IllegalArgumentException("Latency range must be 0 <= min <= max.");
+        }
+        minLatencyMicros = minMicros;
+        maxLatencyMicros = maxMicros;
+    }
+
+    /**
+     * Makes a fraction of SOAP actions fail with ActionFailed (501), chosen at random.
+     * @param rate The fraction, 0 for none and 1 for every action.
+     */
+    public void setFailureRate(double rate){
+        if(rate < 0 || rate > 1){
+            throw new IllegalArgumentException("Failure rate must be between 0 and 1.");
+        }
+        failureRate = rate;
+    }
+
+    /**
+     * Caps how many SOAP actions are handled at once. Actions arriving while that many are already being handled fail
+     * with ActionFailed (501) after the usual delay, like a router that can't keep up.
+     * @param actions The most actions handled at once.
+     */
+    public void setCapacity(int actions){
+        if(actions < 1){
+            throw new IllegalArgumentException("Capacity must be at least 1.");
+        }
+        capacity = actions;
+    }
+
+    /**
+     * Caps the mapping table. Adding a new mapping to a full table fails with NoPortMapsAvailable (728), renewing an
+     * existing one still works.
+     * @param limit The most mappings the table can hold.
+     */
+    public void setTableLimit(int limit){
+        if(limit < 0){
+            throw new IllegalArgumentException("Table limit can't be negative.");
+        }
+        tableLimit = limit;
+    }
+
+    /**
+     * Forgets every mapping, like a router that has just restarted. Subscribers are kept, and told the new count.
+     */
+    public void reboot(){
+        synchronized (table){
+            table.clear();
+        }
+        tableChanged();
+    }
+
+    /**
+     * Changes the public address the mock reports, E.g. as if the ISP handed out a new one, and notifies subscribers.
+     * @param ip The new address.
+     */
+    public void setExternalIP(String ip){
+        externalIP = ip;
+        events.execute(() -> notifyAll(Map.of("ExternalIPAddress", ip)));
+    }
+
+    /**
+     * @return The number of current event subscriptions.
+     */
+    public int getSubscriberCount(){
+        return subscribers.size();
+    }
+
+    /**
+     * @return The number of mappings in the table.
+     */
+    public int getTableSize(){
+        synchronized (table){
+            return table.size();
+        }
+    }
+
+    /**
+     * @return A copy of the mapping table, each row as protocol, external port, internal port, internal client,
+     * description and lease.
+     */
+    public ArrayList<String[]> getTable(){
+        synchronized (table){
+            return new ArrayList<>(table.values());
+        }
+    }
+
+    /**
+     * @return The number of SOAP requests served so far.
+     */
+    public long getRequests(){
+        return requests.get();
+    }
+
+    /**
+     * @return The number of SOAP requests failed on purpose, because of the failure rate or capacity.
+     */
+    public long getInjectedFailures(){
+        return injectedFailures.get();
+    }
+
+    /**
+     * Stops answering and closes both ports.
+     */
+    @Override
+    public void close(){
+        ssdp.close();
+        http.stop(0);
+        handlers.shutdownNow();
+        events.shutdownNow();
+    }
+
+    /**
+     * The SSDP thread. Answers every M-SEARCH, whatever its search target, with the description URL.
+     */
+    private void respond(){
+        byte[] buffer = new byte[1536];
+        while(true){
+            DatagramPacket request = new DatagramPacket(buffer, buffer.length);
+            try {
+                ssdp.receive(request);
+                String text = new String(request.getData(), 0, request.getLength(), StandardCharsets.ISO_8859_1);
+                if(!text.startsWith("M-SEARCH")){
+                    continue;
+                }
+                byte[] reply = ("HTTP/1.1 200 OK\r\n" +
+                        "CACHE-CONTROL: max-age=120\r\n" +
+                        "ST: urn:schemas-upnp-org:device:InternetGatewayDevice:1\r\n" +
+                        "USN: uuid:clipnp-mock::urn:schemas-upnp-org:device:InternetGatewayDevice:1\r\n" +
+                        "EXT:\r\n" +
+                        "SERVER: CLIPnP-Mock UPnP/1.1\r\n" +
+                        "LOCATION: " + getLocation() + "\r\n\r\n").getBytes(StandardCharsets.ISO_8859_1);
+                ssdp.send(new DatagramPacket(reply, reply.length, request.getSocketAddress()));
+            } catch (SocketException e) {
+                // Closed.
+                return;
+            } catch (IOException e) {
+                // A single bad datagram, keep listening.
+            }
+        }
+    }
+
+    /**
+     * Serves the device description, naming the WANIPConnection service and its control URL.
+     * @param exchange The request.
+     * @throws IOException If the reply couldn't be sent.
+     */
+    private void describe(HttpExchange exchange) throws IOException {
+        String description = "<?xml version=\"1.0\"?>" +
+                "<root xmlns=\"urn:schemas-upnp-org:device-1-0\"><device>" +
+                "<deviceType>urn:schemas-upnp-org:device:InternetGatewayDevice:1</deviceType>" +
+                "<friendlyName>CLIPnP Mock Gateway</friendlyName>" +
+                "<serviceList><service>" +
+                "<serviceType>" + SERVICE_TYPE + "</serviceType>" +
+                "<controlURL>/ctl/IPConn</controlURL>" +
+                "<eventSubURL>/evt/IPConn</eventSubURL>" +
+                "</service></serviceList>" +
+                "</device></root>";
+        reply(exchange, 200, description);
+    }
+
+    /**
+     * Serves a SOAP action.
+     * @param exchange The request.
+     * @throws IOException If the reply couldn't be sent.
+     */
+    private void control(HttpExchange exchange) throws IOException {
+        requests.incrementAndGet();
+        counted.set(true);
+        try {
+            serve(exchange, active.incrementAndGet() > capacity);
+        } finally {
+            uncount();
+        }
+    }
+
+    /**
+     * Serves a SOAP action once it has been counted.
+     * @param exchange The request.
+     * @param overloaded True if more actions than the capacity are being handled, so this one fails.
+     * @throws IOException If the reply couldn't be sent.
+     */
+    private void serve(HttpExchange exchange, boolean overloaded) throws IOException {
+        String body = new String(exchange.getRequestBody().readAllBytes(), StandardCharsets.UTF_8);
+        String action = exchange.getRequestHeaders().getFirst("SOAPAction");
+        action = action == null ? "" : action.substring(action.indexOf('#') + 1).replace("\"", "").trim();
+
+        long delay = minLatencyMicros == maxLatencyMicros ? minLatencyMicros
+                : ThreadLocalRandom.current().nextLong(minLatencyMicros, maxLatencyMicros + 1);
+        if(delay > 0){
+            try {
+                Thread.sleep(delay / 1000, (int) (delay % 1000) * 1000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        if(overloaded || (failureRate > 0 && ThreadLocalRandom.current().nextDouble() < failureRate)){
+            injectedFailures.incrementAndGet();
+            reply(exchange, 500, fault(ACTION_FAILED, "ActionFailed"));
+            return;
+        }
+
+        String key = text(body, "NewProtocol") + ":" + text(body, "NewExternalPort");
+        switch (action) {
+            case "AddPortMapping" -> {
+                String[] entry = {text(body, "NewProtocol"), text(body, "NewExternalPort"), text(body, "NewInternalPort"),
+                        text(body, "NewInternalClient"), text(body, "NewPortMappingDescription"), text(body, "NewLeaseDuration")};
+                boolean added;
+                synchronized (table){
+                    added = table.containsKey(key) || table.size() < tableLimit;
+                    if(added){
+                        table.put(key, entry);
+                    }
+                }
+                if(added){
+                    tableChanged();
+                    reply(exchange, 200, response(action, ""));
+                }
+                else{
+                    reply(exchange, 500, fault(NO_PORT_MAPS_AVAILABLE, "NoPortMapsAvailable"));
+                }
+            }
+            case "DeletePortMapping" -> {
+                boolean removed;
+                synchronized (table){
+                    removed = table.remove(key) != null;
+                }
+                if(removed){
+                    tableChanged();
+                    reply(exchange, 200, response(action, ""));
+                }
+                else{
+                    reply(exchange, 500, fault(NO_SUCH_ENTRY, "NoSuchEntryInArray"));
+                }
+            }
+            case "GetSpecificPortMappingEntry" -> {
+                String[] entry;
+                synchronized (table){
+                    entry = table.get(key);
+                }
+                if(entry != null){
+                    reply(exchange, 200, response(action, details(entry)));
+                }
+                else{
+                    reply(exchange, 500, fault(NO_SUCH_ENTRY, "NoSuchEntryInArray"));
+                }
+            }
+            case "GetGenericPortMappingEntry" -> {
+                String[] entry = null;
+                int index = Integer.parseInt(text(body, "NewPortMappingIndex"));
+                synchronized (table){
+                    if(index >= 0 && index < table.size()){
+                        Iterator<String[]> entries = table.values().iterator();
+                        for(int i = 0; i < index; i++){
+                            entries.next();
+                        }
+                        entry = entries.next();
+                    }
+                }
+                if(entry != null){
+                    reply(exchange, 200, response(action, "<NewRemoteHost></NewRemoteHost>" +
+                            "<NewExternalPort>" + entry[1] + "</NewExternalPort>" +
+                            "<NewProtocol>" + entry[0] + "</NewProtocol>" + details(entry)));
+                }
+                else{
+                    reply(exchange, 500, fault(ARRAY_INDEX_INVALID, "SpecifiedArrayIndexInvalid"));
+                }
+            }
+            case "GetExternalIPAddress" ->
+                    reply(exchange, 200, response(action, "<NewExternalIPAddress>" + externalIP + "</NewExternalIPAddress>"));
+            default -> reply(exchange, 500, fault(401, "Invalid Action"));
+        }
+    }
+
+    /**
+     * Serves GENA requests: SUBSCRIBE with a CALLBACK makes a subscription, SUBSCRIBE with an SID renews one and
+     * UNSUBSCRIBE cancels one. Unknown SIDs fail with 412, as a restarted router's would.
+     * @param exchange The request.
+     * @throws IOException If the reply couldn't be sent.
+     */
+    private void subscription(HttpExchange exchange) throws IOException {
+        exchange.getRequestBody().readAllBytes();
+        String method = exchange.getRequestMethod();
+        String sid = exchange.getRequestHeaders().getFirst("SID");
+        String callback = exchange.getRequestHeaders().getFirst("CALLBACK");
+        int status = 200;
+        if(method.equals("SUBSCRIBE") && sid == null && callback != null && callback.startsWith("<") && callback.contains(">")){
+            Subscriber subscriber = new Subscriber(URI.create(callback.substring(1, callback.indexOf('>'))));
+            sid = "uuid:" + UUID.randomUUID();
+            subscribers.put(sid, subscriber);
+            String initial = sid;
+            // Queued now, sent once this reply is on its way.
+            events.execute(() -> send(initial, subscriber, Map.of("ExternalIPAddress", externalIP,
+                    "PortMappingNumberOfEntries", Integer.toString(getTableSize()), "ConnectionStatus", "Connected")));
+        }
+        else if(method.equals("SUBSCRIBE") && sid != null){
+            status = subscribers.containsKey(sid) ? 200 : 412;
+        }
+        else if(method.equals("UNSUBSCRIBE") && sid != null){
+            status = subscribers.remove(sid) != null ? 200 : 412;
+        }
+        else{
+            status = 400;
+        }
+        if(status == 200 && method.equals("SUBSCRIBE")){
+            exchange.getResponseHeaders().set("SID", sid);
+            exchange.getResponseHeaders().set("TIMEOUT", "Second-1800");
+        }
+        exchange.sendResponseHeaders(status, -1);
+        exchange.close();
+    }
+
+    /**
+     * Schedules an event with the new mapping count, unless one is already waiting to go out.
+     */
+    private void tableChanged(){
+        if(!subscribers.isEmpty() && countPending.compareAndSet(false, true)){
+            events.schedule(() -> {
+                countPending.set(false);
+                notifyAll(Map.of("PortMappingNumberOfEntries", Integer.toString(getTableSize())));
+            }, EVENT_DELAY_MILLIS, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Sends an event to every subscriber. Runs on the event thread, so events go out in order.
+     * @param variables The changed state variables, by name.
+     */
+    private void notifyAll(Map<String, String> variables){
+        for(Map.Entry<String, Subscriber> subscriber : subscribers.entrySet()){
+            send(subscriber.getKey(), subscriber.getValue(), variables);
+        }
+    }
+
+    /**
+     * Sends one NOTIFY. A subscriber that can't be reached misses the event, as with a real router.
+     * @param sid The subscription's SID.
+     * @param subscriber The subscriber.
+     * @param variables The changed state variables, by name.
+     */
+    private void send(String sid, Subscriber subscriber, Map<String, String> variables){
+        StringBuilder body = new StringBuilder("<?xml version=\"1.0\"?><e:propertyset xmlns:e=\"urn:schemas-upnp-org:event-1-0\">");
+        for(Map.Entry<String, String> variable : variables.entrySet()){
+            body.append("<e:property><").append(variable.getKey()).append('>').append(variable.getValue())
+                    .append("</").append(variable.getKey()).append("></e:property>");
+        }
+        body.append("</e:propertyset>");
+        HttpRequest request = HttpRequest.newBuilder(subscriber.callback)
+                .timeout(Duration.ofSeconds(2))
+                .header("Content-Type", "text/xml; charset=\"utf-8\"")
+                .header("NT", "upnp:event")
+                .header("NTS", "upnp:propchange")
+                .header("SID", sid)
+                .header("SEQ", Long.toString(subscriber.seq.getAndIncrement()))
+                .method("NOTIFY", HttpRequest.BodyPublishers.ofString(body.toString()))
+                .build();
+        try {
+            notifier.send(request, HttpResponse.BodyHandlers.discarding());
+        } catch (IOException e) {
+            // Missed.
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * @param entry A table row.
+     * @return The fields every entry lookup replies with.
+     */
+    private static String details(String[] entry){
+        return "<NewInternalPort>" + entry[2] + "</NewInternalPort>" +
+                "<NewInternalClient>" + entry[3] + "</NewInternalClient>" +
+                "<NewEnabled>1</NewEnabled>" +
+                "<NewPortMappingDescription>" + entry[4] + "</NewPortMappingDescription>" +
+                "<NewLeaseDuration>" + entry[5] + "</NewLeaseDuration>";
+    }
+
+    /**
+     * Reads an argument out of a SOAP request. The requests CLIPnP sends are simple enough not to need a real parser.
+     * @param body The request body.
+     * @param name The argument name.
+     * @return Its text, or an empty string if it's missing.
+     */
+    private static String text(String body, String name){
+        int start = body.indexOf("<" + name + ">");
+        if(start < 0){
+            return "";
+        }
+        start += name.length() + 2;
+        int end = body.indexOf("</" + name + ">", start);
+        return end < 0 ? "" : body.substring(start, end);
+    }
+
+    /**
+     * @param action The action replied to.
+     * @param arguments The output arguments, as XML.
+     * @return The SOAP reply envelope.
+     */
+    private static String response(String action, String arguments){
+        return envelope("<u:" + action + "Response xmlns:u=\"" + SERVICE_TYPE + "\">" + arguments + "</u:" + action + "Response>");
+    }
+
+    /**
+     * @param code The UPnP error code.
+     * @param description The error description.
+     * @return The SOAP fault envelope.
+     */
+    private static String fault(int code, String description){
+        return envelope("<s:Fault><faultcode>s:Client</faultcode><faultstring>UPnPError</faultstring><detail>" +
+                "<UPnPError xmlns=\"urn:schemas-upnp-org:control-1-0\"><errorCode>" + code + "</errorCode>" +
+                "<errorDescription>" + description + "</errorDescription></UPnPError></detail></s:Fault>");
+    }
+
+    /**
+     * @param body The envelope's body.
+     * @return A complete SOAP envelope.
+     */
+    private static String envelope(String body){
+        return "<?xml version=\"1.0\"?><s:Envelope xmlns:s=\"http://schemas.xmlsoap.org/soap/envelope/\" " +
+                "s:encodingStyle=\"http://schemas.xmlsoap.org/soap/encoding/\"><s:Body>" + body + "</s:Body></s:Envelope>";
+    }
+
+    /**
+     * Stops the action on this handler thread counting towards the capacity, if it still does.
+     */
+    private void uncount(){
+        if(counted.get()){
+            counted.set(false);
+            active.decrementAndGet();
+        }
+    }
+
+    /**
+     * Sends an XML reply. An action stops counting towards the capacity first, as the client can send its next one as
+     * soon as this arrives.
+     * @param exchange The request.
+     * @param status The HTTP status.
+     * @param xml The body.
+     * @throws IOException If the reply couldn't be sent.
+     */
+    private void reply(HttpExchange exchange, int status, String xml) throws IOException {
+        uncount();
+        byte[] bytes = xml.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "text/xml; charset=\"utf-8\"");
+        exchange.sendResponseHeaders(status, bytes.length);
+        exchange.getResponseBody().write(bytes);
+        exchange.close();
+    }
+
+    /**
+     * An event subscriber: where to send its events, and the SEQ of the next one.
+     */
+    private static class Subscriber {
+        private final URI callback;
+        private final AtomicLong seq = new AtomicLong();
+
+        /**
+         * @param callback Where to send events.
+         */
+        private Subscriber(URI callback){
+            this.callback = callback;
+        }
+    }
+}